@@ -0,0 +1,103 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.jfr;
+
+import java.util.Arrays;
+
+import net.wedjaa.elasticparser.ESSearch;
+import net.wedjaa.elasticparser.instrument.ESInstrumentation;
+
+/**
+ * Emits the events of the parser as Flight Recorder events. An event that
+ * is not enabled in the recording settings is never begun, so that nothing
+ * is computed for it.
+ */
+public class ESJfrInstrumentation implements ESInstrumentation {
+
+	@Override
+	public Object beginQuery() {
+		ESQueryEvent event = new ESQueryEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void endQuery(Object event, String[] indexes, int mode, long totalHits) {
+		ESQueryEvent queryEvent = (ESQueryEvent) event;
+		queryEvent.end();
+		if (queryEvent.shouldCommit()) {
+			queryEvent.indexes = indexes != null ? Arrays.toString(indexes) : "_all";
+			queryEvent.mode = mode == ESSearch.ES_MODE_AGGS ? "aggregations" : "hits";
+			queryEvent.totalHits = totalHits;
+			queryEvent.commit();
+		}
+	}
+
+	@Override
+	public Object beginPage() {
+		ESScrollPageEvent event = new ESScrollPageEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void endPage(Object event, int hits, long bytes) {
+		ESScrollPageEvent pageEvent = (ESScrollPageEvent) event;
+		pageEvent.end();
+		if (pageEvent.shouldCommit()) {
+			pageEvent.hits = hits;
+			pageEvent.bytes = bytes;
+			pageEvent.commit();
+		}
+	}
+
+	@Override
+	public Object beginExplode() {
+		ESExplodeEvent event = new ESExplodeEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void endExplode(Object event, long buckets, long rows) {
+		ESExplodeEvent explodeEvent = (ESExplodeEvent) event;
+		explodeEvent.end();
+		if (explodeEvent.shouldCommit()) {
+			explodeEvent.buckets = buckets;
+			explodeEvent.rows = rows;
+			explodeEvent.commit();
+		}
+	}
+
+}
@@ -0,0 +1,49 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("net.wedjaa.elasticparser.Query")
+@Label("Query")
+@Category("ElasticParser")
+@Description("Execution of a query, up to the first page of results")
+class ESQueryEvent extends Event {
+
+	@Label("Indexes")
+	String indexes;
+
+	@Label("Mode")
+	String mode;
+
+	@Label("Total Hits")
+	@Description("The hits, or the rows of the aggregations")
+	long totalHits;
+
+}
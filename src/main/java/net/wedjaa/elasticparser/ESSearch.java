@@ -23,7 +23,8 @@
 
 package net.wedjaa.elasticparser;
 
-import java.net.InetSocketAddress;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.CallableStatement;
@@ -39,27 +40,70 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.wedjaa.elasticparser.batch.ESColumnBatch;
+import net.wedjaa.elasticparser.estimate.ESMemoryBudgetException;
+import net.wedjaa.elasticparser.estimate.ESResponseEstimate;
+import net.wedjaa.elasticparser.estimate.ESResponseEstimator;
+import net.wedjaa.elasticparser.export.ESDelimitedExporter;
+import net.wedjaa.elasticparser.export.ESExportStats;
+import net.wedjaa.elasticparser.export.ESNdjsonExporter;
+import net.wedjaa.elasticparser.instrument.ESInstrumentation;
+import net.wedjaa.elasticparser.instrument.ESInstrumentationProvider;
 import net.wedjaa.elasticparser.pager.ESAggregationPager;
 import net.wedjaa.elasticparser.pager.ESEmptyPager;
+import net.wedjaa.elasticparser.pager.ESHedgedSearch;
 import net.wedjaa.elasticparser.pager.ESHitsPager;
+import net.wedjaa.elasticparser.pager.ESMergingPager;
+import net.wedjaa.elasticparser.pager.ESRestHitsPager;
 import net.wedjaa.elasticparser.pager.ESResultsPager;
+import net.wedjaa.elasticparser.pager.ESRetryPolicy;
+import net.wedjaa.elasticparser.pager.ESScrollResumer;
+import net.wedjaa.elasticparser.pager.ESSliceOpener;
+import net.wedjaa.elasticparser.pager.ESSlicedHitsPager;
+import net.wedjaa.elasticparser.pool.ESClientFactory;
+import net.wedjaa.elasticparser.pool.ESClientLease;
+import net.wedjaa.elasticparser.profile.ESProfileReport;
+import net.wedjaa.elasticparser.query.ESClientIndexCatalog;
+import net.wedjaa.elasticparser.query.ESIndexPruner;
+import net.wedjaa.elasticparser.query.ESQueryAnalyzer;
+import net.wedjaa.elasticparser.query.ESQueryRewriter;
+import net.wedjaa.elasticparser.query.ESRestIndexCatalog;
+import net.wedjaa.elasticparser.query.ESRoutingAnalyzer;
+import net.wedjaa.elasticparser.query.ESTimeRange;
+import net.wedjaa.elasticparser.query.ESTimeSlice;
+import net.wedjaa.elasticparser.query.ESTimeSlicer;
+import net.wedjaa.elasticparser.resolver.JsonAggregateResolver;
+import net.wedjaa.elasticparser.rest.ESRestClient;
+import net.wedjaa.elasticparser.rest.ESRestResponse;
+import net.wedjaa.elasticparser.rest.ESRestResponseParser;
+import net.wedjaa.elasticparser.scheduler.ESQueryScheduler;
+import net.wedjaa.elasticparser.scheduler.ESQueryTiming;
+import net.wedjaa.elasticparser.spool.ESSpillingRowStore;
+import net.wedjaa.elasticparser.spool.ESSpoolingCursor;
+import net.wedjaa.elasticparser.trace.ESTrace;
+import net.wedjaa.elasticparser.trace.ESTraceSpan;
+import net.wedjaa.elasticparser.trace.ESTracer;
 
 import org.apache.log4j.Logger;
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
-import org.elasticsearch.client.transport.TransportClient;
-import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.transport.InetSocketTransportAddress;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.search.sort.SortOrder;
-import org.elasticsearch.shield.ShieldPlugin;
 import org.json.JSONObject;
 
 public class ESSearch implements Connection
@@ -67,11 +111,17 @@ public class ESSearch implements Connection
 
     private ESResultsPager pager;
     private boolean keepClient = false;
+    private volatile boolean closed = false;
     private Client esClient;
+    private ESRestClient restClient;
     private String mainSearch;
     private String cluster;
     private String[] indexes;
+    private String[] searchedIndexes = new String[0];
+    private String searchRouting;
     private String[] types;
+    private String[] columns = new String[0];
+    private String[] docValueColumns = new String[0];
     private String strIndexes;
     private String strTypes;
     private String username;
@@ -79,17 +129,50 @@ public class ESSearch implements Connection
     private String hostname;
     private int port;
     private int searchMode;
+    private long maxRows = 0;
+    private int transport = ES_TRANSPORT_NATIVE;
+    private boolean lazySource = false;
+    private boolean spooling = false;
+    private long aggregationHeapBudget = 0;
+    private boolean spillCompression = true;
+    private int conversionThreads = 0;
+    private ExecutorService conversionPool;
+    private ESQueryScheduler scheduler;
+    private int priority = ESQueryScheduler.PRIORITY_INTERACTIVE;
+    private ESQueryTiming lastQueryTiming;
+    private long memoryBudget = 0;
+    private int memoryPolicy = ES_MEMORY_WARN;
+    private ESResponseEstimate lastEstimate;
+    private ESRetryPolicy retryPolicy;
+    private boolean profiling = false;
+    private ESProfileReport lastProfile;
+    private boolean traced = false;
+    private ESTrace trace;
+    private ESClientLease lease;
+    private ESIndexPruner indexPruner;
+    private ESRoutingAnalyzer routingAnalyzer;
+    private String timeSliceField;
+    private int timeSlices = 0;
+    private boolean timeSliceOrdered = true;
 
     private static Logger logger = Logger.getLogger(ESSearch.class);
 
     public final static int ES_MODE_HITS = 0;
     public final static int ES_MODE_AGGS = 1;
 
+    public final static int ES_TRANSPORT_NATIVE = 0;
+    public final static int ES_TRANSPORT_HTTP = 1;
+
     public final static String ES_DEFAULT_HOST = "localhost";
     public final static int ES_DEFAULT_PORT = 9300;
+    public final static int ES_DEFAULT_HTTP_PORT = 9200;
     public final static String ES_DEFAULT_CLUSTER = "elasticsearch";
     public final static int ES_DEFAULT_SEARCH_MODE = ES_MODE_HITS;
 
+    public final static int ES_MEMORY_WARN = 0;
+    public final static int ES_MEMORY_REFUSE = 1;
+    public final static int ES_MEMORY_STREAM = 2;
+
 
     /**
      * Create an ESSearch instance initialized to connect to the local node and search on
@@ -258,22 +341,58 @@ public class ESSearch implements Connection
      */
     public ESSearch(Client esClient, int searchMode)
     {
+        this(null, null, searchMode, ES_DEFAULT_HOST, ES_DEFAULT_PORT, null, null, ES_DEFAULT_CLUSTER);
         this.esClient = esClient;
         this.keepClient = true;
     }
 
     /**
-     * Creates a clone of this ESSearch, keeping the searchMode
+     * Creates a clone of this ESSearch, with the same configuration but none
+     * of its results. The clone connects on its own: a pooled connection
+     * borrows another client from the pool, only a client handed to
+     * {@link #ESSearch(Client, int)} - which is never closed here - is
+     * shared.
      *
      * @returns a clone of this ESSearch
      */
     public ESSearch clone()
     {
-        if (esClient != null)
+        ESSearch clone = new ESSearch(strIndexes, strTypes, searchMode, hostname, port, username, password, cluster);
+        clone.indexes = indexes != null ? indexes.clone() : null;
+        clone.types = types != null ? types.clone() : null;
+        clone.mainSearch = mainSearch;
+        clone.columns = columns.clone();
+        clone.docValueColumns = docValueColumns.clone();
+        clone.maxRows = maxRows;
+        clone.transport = transport;
+        clone.lazySource = lazySource;
+        clone.spooling = spooling;
+        clone.aggregationHeapBudget = aggregationHeapBudget;
+        clone.spillCompression = spillCompression;
+        clone.conversionThreads = conversionThreads;
+        clone.scheduler = scheduler;
+        clone.priority = priority;
+        clone.memoryBudget = memoryBudget;
+        clone.memoryPolicy = memoryPolicy;
+        clone.retryPolicy = retryPolicy;
+        clone.profiling = profiling;
+        clone.traced = traced;
+        clone.indexPruner = indexPruner;
+        clone.routingAnalyzer = routingAnalyzer;
+        clone.timeSliceField = timeSliceField;
+        clone.timeSlices = timeSlices;
+        clone.timeSliceOrdered = timeSliceOrdered;
+
+        if (lease != null)
         {
-            return new ESSearch(esClient, searchMode);
+            clone.setClientLease(lease.acquireAnother());
         }
-        return new ESSearch(strIndexes, strTypes, searchMode, hostname, port, username, password, cluster);
+        else if (keepClient)
+        {
+            clone.esClient = esClient;
+            clone.keepClient = true;
+        }
+        return clone;
     }
 
     public String getUsername()
@@ -316,6 +435,447 @@ public class ESSearch implements Connection
         this.port = port;
     }
 
+    /**
+     * Selects how to talk to the cluster: with the native transport client -
+     * joining the cluster on the transport port - or through the REST
+     * endpoints on the HTTP port. If the port is still the default transport
+     * port, switching to HTTP moves it to the default HTTP port.
+     *
+     * @param transport ES_TRANSPORT_NATIVE or ES_TRANSPORT_HTTP
+     */
+    public void setTransport(int transport)
+    {
+        if (transport == ES_TRANSPORT_HTTP && this.port == ES_DEFAULT_PORT)
+        {
+            this.port = ES_DEFAULT_HTTP_PORT;
+        }
+        this.transport = transport;
+    }
+
+    public int getTransport()
+    {
+        return transport;
+    }
+
+    /**
+     * Limits the number of rows returned in hits mode. The page sizes
+     * requested to the cluster are capped to the limit, the shards are
+     * asked to terminate early when the query allows it and the scroll
+     * is released as soon as the last row has been delivered.
+     *
+     * @param maxRows the maximum number of rows to return, 0 for no limit.
+     */
+    public void setMaxRows(long maxRows)
+    {
+        this.maxRows = maxRows > 0 ? maxRows : 0;
+    }
+
+    public long getMaxRows()
+    {
+        return maxRows;
+    }
+
+    /**
+     * In hits mode, returns each <em>_source</em> as a map that parses the
+     * raw document only for the fields that are read. Reports reading a few
+     * fields of large documents save most of the parsing. Only applies to
+     * the native transport.
+     *
+     * @param lazySource true to parse the sources lazily.
+     */
+    public void setLazySource(boolean lazySource)
+    {
+        this.lazySource = lazySource;
+    }
+
+    public boolean isLazySource()
+    {
+        return lazySource;
+    }
+
+    /**
+     * Keeps the rows read in a local spool file, so the results can be read
+     * again with {@link #rewind()} or {@link #absolute(long)} without
+     * running the query on the cluster a second time.
+     *
+     * @param spooling true to spool the results.
+     */
+    public void setSpooling(boolean spooling)
+    {
+        this.spooling = spooling;
+    }
+
+    public boolean isSpooling()
+    {
+        return spooling;
+    }
+
+    /**
+     * Caps the heap held by flattened aggregation rows: once the estimated
+     * size of the rows goes over the budget, the rest of the rows are
+     * spilled to a temporary file and read back from there.
+     *
+     * @param aggregationHeapBudget the budget in bytes, 0 - the default - to
+     *                              keep all the rows on the heap.
+     */
+    public void setAggregationHeapBudget(long aggregationHeapBudget)
+    {
+        this.aggregationHeapBudget = aggregationHeapBudget;
+    }
+
+    public long getAggregationHeapBudget()
+    {
+        return aggregationHeapBudget;
+    }
+
+    /**
+     * @param spillCompression true - the default - to compress aggregation
+     *                         rows spilled to disk.
+     */
+    public void setSpillCompression(boolean spillCompression)
+    {
+        this.spillCompression = spillCompression;
+    }
+
+    public boolean isSpillCompression()
+    {
+        return spillCompression;
+    }
+
+    /**
+     * In hits mode, converts the hits to rows on a pool of threads while
+     * the rows are being read, instead of on the reading thread. Rows are
+     * still returned in the order of the hits. Only applies to the native
+     * transport.
+     *
+     * @param conversionThreads the number of threads, 0 - the default - to
+     *                          convert the hits as they are read.
+     */
+    public void setConversionThreads(int conversionThreads)
+    {
+        this.conversionThreads = conversionThreads;
+    }
+
+    public int getConversionThreads()
+    {
+        return conversionThreads;
+    }
+
+    /**
+     * Sends the queries through a scheduler, which limits how many queries
+     * run at once on the cluster and backs off when the cluster rejects
+     * them.
+     *
+     * @param scheduler the scheduler, usually ESQueryScheduler.getInstance(),
+     *                  or <em>null</em> - the default - to send the queries
+     *                  straight away.
+     */
+    public void setScheduler(ESQueryScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+    }
+
+    public ESQueryScheduler getScheduler()
+    {
+        return scheduler;
+    }
+
+    /**
+     * @param priority ESQueryScheduler.PRIORITY_INTERACTIVE - the default -
+     *                 or ESQueryScheduler.PRIORITY_BATCH
+     */
+    public void setPriority(int priority)
+    {
+        this.priority = priority;
+    }
+
+    public int getPriority()
+    {
+        return priority;
+    }
+
+    /**
+     * @return how long the last query waited in the scheduler and ran, or
+     * <em>null</em> if it didn't go through a scheduler.
+     */
+    public ESQueryTiming getLastQueryTiming()
+    {
+        return lastQueryTiming;
+    }
+
+    /**
+     * Estimates the size of the results before reading them - from a small
+     * sample of the hits, or from the buckets of the aggregations - and
+     * applies the memory policy when they are not expected to fit.
+     *
+     * @param memoryBudget the bytes of heap the results may take, 0 - the
+     *                     default - not to estimate them.
+     */
+    public void setMemoryBudget(long memoryBudget)
+    {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    /**
+     * @param memoryPolicy what to do with results over the memory budget:
+     *                     ES_MEMORY_WARN - the default - logs a warning,
+     *                     ES_MEMORY_REFUSE throws an ESMemoryBudgetException,
+     *                     ES_MEMORY_STREAM shrinks the pages of hits to fit
+     *                     the budget and spills aggregation rows to disk.
+     */
+    public void setMemoryPolicy(int memoryPolicy)
+    {
+        this.memoryPolicy = memoryPolicy;
+    }
+
+    public int getMemoryPolicy()
+    {
+        return memoryPolicy;
+    }
+
+    /**
+     * @return the estimate of the results of the last query, or <em>null</em>
+     * if there is no memory budget.
+     */
+    public ESResponseEstimate getLastEstimate()
+    {
+        return lastEstimate;
+    }
+
+    /**
+     * Makes scrolling through hits resilient: failed page requests are
+     * retried, a scroll context lost on the cluster is resumed by running
+     * the search again and skipping the hits already read, and a page that
+     * can't be read throws an exception instead of ending the results.
+     * Resuming needs the hits in index order: queries sorted on anything
+     * other than <em>_doc</em> are retried but not resumed. Only applies to
+     * the native transport.
+     *
+     * @param retryPolicy the policy, or <em>null</em> - the default - for
+     *                    the results to end at the first failure.
+     */
+    public void setRetryPolicy(ESRetryPolicy retryPolicy)
+    {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public ESRetryPolicy getRetryPolicy()
+    {
+        return retryPolicy;
+    }
+
+    /**
+     * Profiles the queries: the cluster reports the time spent by every
+     * query and collector on each shard, and the client adds the time spent
+     * connecting, waiting for the responses and turning aggregations into
+     * rows. Profiling has a cost on the cluster, so it's meant for tuning
+     * queries rather than for every execution.
+     *
+     * @param profiling <em>true</em> to profile the queries.
+     */
+    public void setProfiling(boolean profiling)
+    {
+        this.profiling = profiling;
+    }
+
+    public boolean isProfiling()
+    {
+        return profiling;
+    }
+
+    /**
+     * @return the profile of the last query, or <em>null</em> if profiling
+     * was not enabled. Page fetches keep being accounted while the results
+     * are read.
+     */
+    public ESProfileReport getLastProfile()
+    {
+        return lastProfile;
+    }
+
+    /**
+     * Traces every query of this search, regardless of the sampling of the
+     * {@link ESTracer}.
+     *
+     * @param traced <em>true</em> to trace the queries.
+     */
+    public void setTraced(boolean traced)
+    {
+        this.traced = traced;
+    }
+
+    public boolean isTraced()
+    {
+        return traced;
+    }
+
+    /**
+     * @return the trace of the current query, or <em>null</em> if it's not
+     * traced.
+     */
+    public ESTrace getTrace()
+    {
+        return trace;
+    }
+
+    /**
+     * Searches only the indexes that can have hits for the range of a
+     * timestamp field the queries ask for, instead of all the indexes
+     * behind the patterns and aliases set.
+     *
+     * @param indexPruner the pruner, <em>null</em> to search all the indexes.
+     */
+    public void setIndexPruner(ESIndexPruner indexPruner)
+    {
+        this.indexPruner = indexPruner;
+    }
+
+    public ESIndexPruner getIndexPruner()
+    {
+        return indexPruner;
+    }
+
+    /**
+     * @return the indexes the last query was sent to, after pruning.
+     */
+    public String[] getSearchedIndexes()
+    {
+        return searchedIndexes;
+    }
+
+    /**
+     * Sends the queries only to the shards that can hold their hits, when
+     * they filter on the fields the documents of the indexes are routed by.
+     *
+     * @param routingAnalyzer the routing fields of the indexes, <em>null</em>
+     *                        to search all the shards.
+     */
+    public void setRoutingAnalyzer(ESRoutingAnalyzer routingAnalyzer)
+    {
+        this.routingAnalyzer = routingAnalyzer;
+    }
+
+    public ESRoutingAnalyzer getRoutingAnalyzer()
+    {
+        return routingAnalyzer;
+    }
+
+    /**
+     * @return the routing the last query was sent with, <em>null</em> if it
+     * went to all the shards.
+     */
+    public String getSearchRouting()
+    {
+        return searchRouting;
+    }
+
+    /**
+     * Splits the date range of the hits searches in contiguous slices, with
+     * about the same number of hits each, that are scrolled at the same time.
+     * The slices are cut from a count of the hits over time, taken before
+     * scrolling.
+     * The slices of a sorted query are scrolled in the order of the sort
+     * and merged back in a single sorted stream.
+     *
+     * @param timeSliceField the date field to slice on, <em>null</em> to
+     *                       scroll the hits with a single search.
+     * @param timeSlices     the number of slices wanted.
+     */
+    public void setTimeSlicing(String timeSliceField, int timeSlices)
+    {
+        this.timeSliceField = timeSliceField;
+        this.timeSlices = timeSlices;
+    }
+
+    public String getTimeSliceField()
+    {
+        return timeSliceField;
+    }
+
+    public int getTimeSlices()
+    {
+        return timeSlices;
+    }
+
+    /**
+     * @param timeSliceOrdered true - the default - to return the rows of the
+     *                         slices oldest slice first, false to return
+     *                         them as soon as any slice has them.
+     */
+    public void setTimeSliceOrdered(boolean timeSliceOrdered)
+    {
+        this.timeSliceOrdered = timeSliceOrdered;
+    }
+
+    public boolean isTimeSliceOrdered()
+    {
+        return timeSliceOrdered;
+    }
+
+    /**
+     * Runs the searches on a client borrowed from a pool, closing this
+     * connection gives the client back.
+     *
+     * @param lease the client borrowed, it's released on close.
+     */
+    public void setClientLease(ESClientLease lease)
+    {
+        this.lease = lease;
+        this.esClient = lease.getClient();
+        this.keepClient = true;
+    }
+
+    private ESTraceSpan startSpan(String name)
+    {
+        return trace != null ? trace.startSpan(name) : null;
+    }
+
+    private void endSpan(ESTraceSpan span, String attribute, long value)
+    {
+        if (span != null)
+        {
+            span.set(attribute, value).end();
+        }
+    }
+
+    private void finishTrace()
+    {
+        if (trace != null)
+        {
+            ESTracer.getInstance().finish(trace);
+        }
+    }
+
+    private String getClusterKey()
+    {
+        return cluster + "@" + hostname + ":" + port;
+    }
+
+    private ExecutorService getConversionPool()
+    {
+        if (conversionPool == null)
+        {
+            conversionPool = Executors.newFixedThreadPool(conversionThreads, new ThreadFactory()
+            {
+                private final AtomicInteger threadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "elasticparser-conversion-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return conversionPool;
+    }
+
     public void setSearch(String search)
     {
         logger.debug("Setting ElasticSearch query: " + search);
@@ -350,6 +910,64 @@ public class ESSearch implements Connection
         return this.indexes;
     }
 
+    /**
+     * Declares the columns the consumer is going to read. In hits mode the
+     * query is rewritten to return only those fields, so less data travels
+     * over the wire and gets parsed for every hit.
+     *
+     * @param columns a comma separated list of fields. If <em>null</em> the
+     *                hits are returned as the query asks.
+     */
+    public void setColumns(String columns)
+    {
+        logger.debug("Setting search columns: " + columns);
+
+        this.columns = new String[0];
+        if (columns != null && columns.length() > 0)
+        {
+            this.columns = columns.split("\\s*,\\s*");
+        }
+    }
+
+    public void setColumns(String[] columns)
+    {
+        this.columns = columns != null ? columns : new String[0];
+    }
+
+    public String[] getColumns()
+    {
+        return this.columns;
+    }
+
+    /**
+     * Declares numeric, date and keyword columns that, in hits mode, are read
+     * from the doc values instead of the source. Their values come back
+     * typed - dates as epoch milliseconds - and are not parsed out of the
+     * JSON of every hit. The fields must have doc values enabled.
+     *
+     * @param docValueColumns a comma separated list of fields.
+     */
+    public void setDocValueColumns(String docValueColumns)
+    {
+        logger.debug("Setting doc value columns: " + docValueColumns);
+
+        this.docValueColumns = new String[0];
+        if (docValueColumns != null && docValueColumns.length() > 0)
+        {
+            this.docValueColumns = docValueColumns.split("\\s*,\\s*");
+        }
+    }
+
+    public void setDocValueColumns(String[] docValueColumns)
+    {
+        this.docValueColumns = docValueColumns != null ? docValueColumns : new String[0];
+    }
+
+    public String[] getDocValueColumns()
+    {
+        return this.docValueColumns;
+    }
+
     public void setTypes(String types)
     {
 
@@ -375,49 +993,52 @@ public class ESSearch implements Connection
     public void connect()
     {
 
+        if (closed || (lease != null && lease.isReleased()))
+        {
+            throw new IllegalStateException("This connection has been closed");
+        }
+
+        if (transport == ES_TRANSPORT_HTTP)
+        {
+            if (restClient == null)
+            {
+                logger.debug("Creating new REST client to connect to: " + this.hostname);
+                restClient = new ESRestClient(this.hostname, this.port, this.username, this.password,
+                        ESRestClient.DEFAULT_MAX_CONNECTIONS);
+            }
+            return;
+        }
+
         if (esClient != null && keepClient)
         {
             logger.debug("We are already connected with a passed on client - not creating a new one");
             return;
         }
 
-        logger.debug("Creating new client to connect to: " + this.hostname);
-
-        // Prepare a client for the ES Server
-        Settings.Builder settingBuilder = Settings.settingsBuilder();
-        settingBuilder.put("cluster.name", this.cluster)
-                .put("client.transport.sniff", true);
-
-        TransportClient.Builder clientBuilder = TransportClient.builder();
-
-        // Check if we need to use authentication if we have a username, password can
-        // be null or empty.
-        if (this.username != null && !this.username.isEmpty()) {
-            String password = this.password != null ? this.password : "";
-            settingBuilder.put("shield.user",  this.username + ":" + password);
-            // Add Shield plugin only if needed
-            clientBuilder.addPlugin(ShieldPlugin.class);
+        if (esClient != null)
+        {
+            logger.debug("Reusing the client of the previous search");
+            return;
         }
 
-        InetSocketTransportAddress transportAddress = new InetSocketTransportAddress(new InetSocketAddress(this.hostname, this.port));
-
-        TransportClient transportClient = clientBuilder
-                .settings(settingBuilder.build())
-                .build();
-
-        transportClient.addTransportAddress(transportAddress);
-        this.esClient = transportClient;
+        this.esClient = new ESClientFactory(this.hostname, this.port, this.cluster, this.username, this.password)
+                .createClient();
 
     }
 
     private SearchResponse getQueryCount(String query)
+    {
+        return getQuerySample(query, 0);
+    }
+
+    private SearchResponse getQuerySample(String query, int size)
     {
 
         SearchRequestBuilder searchBuilder;
 
-        if (indexes.length > 0)
+        if (searchedIndexes.length > 0)
         {
-            searchBuilder = esClient.prepareSearch(indexes);
+            searchBuilder = esClient.prepareSearch(searchedIndexes);
         }
         else
         {
@@ -428,8 +1049,12 @@ public class ESSearch implements Connection
         {
             searchBuilder.setTypes(types);
         }
+        if (searchRouting != null)
+        {
+            searchBuilder.setRouting(searchRouting);
+        }
 
-        searchBuilder.setSize(0);
+        searchBuilder.setSize(size);
 
         SearchResponse searchRes = searchBuilder.setSource(query.getBytes()).execute().actionGet();
 
@@ -437,6 +1062,85 @@ public class ESSearch implements Connection
 
     }
 
+    /**
+     * Applies the memory policy to the estimate of the results.
+     *
+     * @return true if the results need to be streamed to fit the budget.
+     */
+    private boolean checkMemoryBudget(ESResponseEstimate estimate)
+    {
+        lastEstimate = estimate;
+        logger.debug("The query is expected to return " + estimate);
+        if (estimate.getBytes() <= memoryBudget)
+        {
+            return false;
+        }
+        switch (memoryPolicy)
+        {
+            case ES_MEMORY_REFUSE:
+                throw new ESMemoryBudgetException(estimate, memoryBudget);
+            case ES_MEMORY_STREAM:
+                logger.info("The query would return " + estimate + ", streaming the results to fit the budget");
+                return true;
+            default:
+                logger.warn("The query would return " + estimate + ", over the memory budget of "
+                        + (memoryBudget / 1024) + "KB");
+                return false;
+        }
+    }
+
+    /**
+     * Samples the hits of the query to check them against the memory budget,
+     * and shrinks the pages if they need to be streamed.
+     */
+    private String fitHitsToBudget(String query)
+    {
+        ESResponseEstimate estimate;
+        int shards;
+        if (transport == ES_TRANSPORT_HTTP)
+        {
+            ESRestResponse sample = restClient.search(searchedIndexes, types, query, false,
+                    ESResponseEstimator.SAMPLE_SIZE, 0, searchRouting, new ESRestResponseParser());
+            estimate = ESResponseEstimator.fromRows(sample.getTotalHits(), sample.getHits(), maxRows);
+            shards = sample.getTotalShards();
+        }
+        else
+        {
+            SearchResponse sample = getQuerySample(query, ESResponseEstimator.SAMPLE_SIZE);
+            estimate = ESResponseEstimator.fromHits(sample, maxRows);
+            shards = sample.getTotalShards();
+        }
+
+        if (!checkMemoryBudget(estimate))
+        {
+            return query;
+        }
+
+        // Scrolled pages hold the page size of hits from every shard
+        int pageSize = Math.max(1, ESResponseEstimator.pageRowsWithin(estimate, memoryBudget) / Math.max(shards, 1));
+        if (pageSize >= getPageSize(query))
+        {
+            return query;
+        }
+        logger.info("Reading pages of " + pageSize + " hits per shard to fit the memory budget");
+        JSONObject queryObject = new JSONObject(query);
+        queryObject.put("size", pageSize);
+        return queryObject.toString();
+    }
+
+    /**
+     * @return the heap budget for the flattened aggregation rows, 0 to keep
+     * them all on the heap.
+     */
+    private long getSpillBudget(ESResponseEstimate estimate)
+    {
+        if (memoryBudget > 0 && checkMemoryBudget(estimate) && aggregationHeapBudget <= 0)
+        {
+            return memoryBudget;
+        }
+        return aggregationHeapBudget;
+    }
+
     private int getPageSize(String query) {
         /**
          * If not specified by the user, use a page size we
@@ -453,83 +1157,424 @@ public class ESSearch implements Connection
         return page_size;
     }
 
+    /**
+     * Shards can stop collecting once they have found enough documents only
+     * when the results don't depend on all of them: no aggregations, no
+     * post filters and no sorting other than the index order.
+     */
+    private boolean canTerminateEarly(String query) {
+        JSONObject queryObject = new JSONObject(query);
+        if (queryObject.has("terminate_after") || queryObject.has("aggs") || queryObject.has("aggregations")
+                || queryObject.has("post_filter"))
+        {
+            return false;
+        }
+        return hasIndexOrder(queryObject);
+    }
+
+    private boolean hasIndexOrder(JSONObject queryObject) {
+        if (queryObject.has("sort"))
+        {
+            String sort = queryObject.get("sort").toString().replaceAll("[\\s\\[\\]\"{}:]", "");
+            return sort.matches("_doc(order)?(asc)?");
+        }
+        return true;
+    }
+
+    /**
+     * Resumable searches scroll sorted by <em>_doc</em> on the primaries
+     * instead of scanning, so that running them again returns the hits in
+     * the same order.
+     */
+    private boolean isResumable(String query) {
+        return retryPolicy != null && retryPolicy.isResume() && hasIndexOrder(new JSONObject(query));
+    }
+
+    private int getRowLimit() {
+        return (int) Math.min(maxRows, Integer.MAX_VALUE);
+    }
+
     private String setQuerySize(String query) {
         JSONObject queryObject = new JSONObject(query);
         if (!queryObject.has("size"))
         {
-            queryObject.put("size", ESHitsPager.PAGE_SIZE);
+            queryObject.put("size", ESHitsPager.PAGE_SIZE);
+        }
+        return queryObject.toString();
+    }
+
+    /**
+     * @return true if the query sorts the hits on something other than the
+     * index order.
+     */
+    private boolean isSorted(String query) {
+        JSONObject queryObject = new JSONObject(query);
+        return queryObject.has("sort") && !hasIndexOrder(queryObject);
+    }
+
+    private SearchResponse executeSearch(String query, boolean isScrolling)
+    {
+        return executeSearch(query, isScrolling, false);
+    }
+
+    @SuppressWarnings("deprecation")
+	private SearchResponse executeSearch(String query, boolean isScrolling, boolean keepSort)
+    {
+
+        SearchRequestBuilder searchBuilder;
+
+        if (searchedIndexes.length > 0)
+        {
+            searchBuilder = esClient.prepareSearch(searchedIndexes);
+        }
+        else
+        {
+            searchBuilder = esClient.prepareSearch();
+
+        }
+
+        // Setup a scroll search for multi-paged results
+        if ( isScrolling ) {
+            logger.debug("Creating a scrolling query");
+            // SCAN has been deprecated - but the alternative method
+            // of sorting by _doc may not be applied if the user has
+            // chosen a different kind of sorting.
+           
+            if ( isResumable(query) ) {
+                logger.debug("Sorting by index order to be able to resume the scroll");
+                if ( !new JSONObject(query).has("sort") ) {
+                    searchBuilder.addSort("_doc", SortOrder.ASC);
+                }
+                searchBuilder
+                        .setPreference("_primary_first")
+                        .setScroll(new TimeValue(ESHitsPager.SCROLL_KEEPALIVE));
+            } else if ( keepSort ) {
+                logger.debug("Scrolling in the order of the sort to merge the hits");
+                searchBuilder.setScroll(new TimeValue(ESHitsPager.SCROLL_KEEPALIVE));
+            } else {
+                searchBuilder
+                        .setSearchType(SearchType.SCAN)
+                        .setScroll(new TimeValue(ESHitsPager.SCROLL_KEEPALIVE));
+            }
+
+        }  else {
+            logger.debug("The query is not scrolling");
+        }
+
+        // If types were specified restrict the search to those
+        if (types.length > 0)
+        {
+            searchBuilder.setTypes(types);
+        }
+
+        // Only the shards the query is routed to can have hits
+        if (searchRouting != null)
+        {
+            searchBuilder.setRouting(searchRouting);
+        }
+
+        setQuerySize(query);
+
+        // Execute the search
+        searchBuilder.setSource(query);
+
+        // Don't ask for more than we are going to return
+        if ( isScrolling && maxRows > 0 ) {
+            int limit = getRowLimit();
+            if ( limit < getPageSize(query) ) {
+                logger.debug("Capping the page size to the row limit: " + limit);
+                searchBuilder.setSize(limit);
+            }
+            if ( canTerminateEarly(query) ) {
+                logger.debug("Terminating shards after " + limit + " documents");
+                searchBuilder.setTerminateAfter(limit);
+            }
+        }
+        
+        logger.debug("Search: " + searchBuilder.toString());
+        
+        SearchResponse searchRes = ESHedgedSearch.execute(esClient, searchBuilder,
+                retryPolicy != null ? retryPolicy.getHedgeAfterMillis() : 0);
+
+        logger.debug("Search ready");
+        
+        if ( isScrolling ) {
+            logger.debug("ScrollId: " + searchRes.getScrollId());
+        }
+        
+        return searchRes;
+
+    }
+
+    private SearchResponse executeSearch(String query) {
+        return executeSearch(query, false);
+    }
+
+    private void runRestQuery(String query, boolean countOnly)
+    {
+
+        ESRestResponse searchRes;
+
+        switch (searchMode)
+        {
+            case ESSearch.ES_MODE_HITS:
+                if (countOnly)
+                {
+                    searchRes = restClient.search(searchedIndexes, types, query, false, 0, 0, searchRouting,
+                            new ESRestResponseParser());
+                }
+                else
+                {
+                    logger.debug("Executing scrolling REST query for hits");
+                    if (memoryBudget > 0)
+                    {
+                        query = fitHitsToBudget(query);
+                    }
+                    long searchStart = System.nanoTime();
+                    ESTraceSpan searchSpan = startSpan("search");
+                    searchRes = executeRestSearch(query);
+                    endSpan(searchSpan, "hits", searchRes.getTotalHits());
+                    profileRestResponse(searchRes, System.nanoTime() - searchStart);
+                }
+                logger.debug("The query returns " + searchRes.getTotalHits() + " total matches.");
+                ESRestHitsPager hitsPager = new ESRestHitsPager(searchRes, query, getPageSize(query), restClient);
+                hitsPager.setMaxRows(maxRows);
+                hitsPager.setTrace(trace);
+                pager = hitsPager;
+                break;
+            case ESSearch.ES_MODE_AGGS:
+                long searchStart = System.nanoTime();
+                ESTraceSpan searchSpan = startSpan("search");
+                searchRes = restClient.search(searchedIndexes, types, query, false, -1, 0, searchRouting,
+                        new ESRestResponseParser());
+                endSpan(searchSpan, "hits", searchRes.getTotalHits());
+                profileRestResponse(searchRes, System.nanoTime() - searchStart);
+                long explodeStart = System.nanoTime();
+                ESTraceSpan explodeSpan = startSpan("explode");
+                List<Map<String, Object>> values;
+                if (searchRes.getAggregations() != null)
+                {
+                    values = JsonAggregateResolver.getInstance().explode(searchRes.getAggregations());
+                }
+                else
+                {
+                    logger.warn("No aggregations have been found in the REST response");
+                    values = new ArrayList<Map<String, Object>>();
+                }
+                long spillBudget = getSpillBudget(ESResponseEstimator.fromRows(values.size(),
+                        values.subList(0, Math.min(values.size(), ESResponseEstimator.SAMPLE_SIZE)), 0));
+                if (spillBudget > 0)
+                {
+                    ESSpillingRowStore spillStore = new ESSpillingRowStore(spillBudget, spillCompression);
+                    for (Map<String, Object> value : values)
+                    {
+                        spillStore.add(value);
+                    }
+                    pager = new ESAggregationPager(spillStore, query);
+                }
+                else
+                {
+                    pager = new ESAggregationPager(values, query);
+                }
+                endSpan(explodeSpan, "rows", values.size());
+                if (lastProfile != null)
+                {
+                    lastProfile.setExplode(System.nanoTime() - explodeStart, values.size());
+                }
+                break;
+            default:
+                pager = new ESEmptyPager();
+        }
+        spoolResults();
+    }
+
+    private ESRestResponse executeRestSearch(String query)
+    {
+        int size = -1;
+        int terminateAfter = 0;
+        if (maxRows > 0)
+        {
+            if (getRowLimit() < getPageSize(query))
+            {
+                size = getRowLimit();
+            }
+            if (canTerminateEarly(query))
+            {
+                terminateAfter = getRowLimit();
+            }
+        }
+        return restClient.search(searchedIndexes, types, query, true, size, terminateAfter, searchRouting,
+                new ESRestResponseParser());
+    }
+
+    private void profileRestResponse(ESRestResponse searchRes, long searchNanos)
+    {
+        if (lastProfile != null)
+        {
+            lastProfile.setSearchNanos(searchNanos);
+            lastProfile.addJsonProfile(searchRes.getTookMillis(), searchRes.getProfile());
+        }
+    }
+
+    private void spoolResults()
+    {
+        if (spooling)
+        {
+            logger.debug("Spooling the results for rewinding");
+            pager = new ESSpoolingCursor(pager);
+        }
+    }
+
+    private void closePager()
+    {
+        ESResultsPager current = pager;
+        if (current instanceof ESSpoolingCursor)
+        {
+            ((ESSpoolingCursor) current).close();
+            current = ((ESSpoolingCursor) current).getSource();
+        }
+        if (current instanceof ESAggregationPager)
+        {
+            ((ESAggregationPager) current).close();
+        }
+        if (current instanceof ESSlicedHitsPager)
+        {
+            ((ESSlicedHitsPager) current).close();
+        }
+        if (current instanceof ESMergingPager)
+        {
+            ((ESMergingPager) current).close();
+        }
+    }
+
+    private ESSpoolingCursor getSpool()
+    {
+        if (!(pager instanceof ESSpoolingCursor))
+        {
+            throw new IllegalStateException("The results are not spooled - enable spooling before searching");
+        }
+        return (ESSpoolingCursor) pager;
+    }
+
+    /**
+     * Pushes down to the query what we know about the consumer.
+     */
+    private String rewriteQuery(String query)
+    {
+        if (searchMode == ES_MODE_HITS)
+        {
+            query = ESQueryRewriter.projectColumns(query, columns);
+            query = ESQueryRewriter.fetchDocValues(query, docValueColumns);
+        }
+        if (profiling)
+        {
+            query = ESQueryRewriter.enableProfile(query);
+        }
+        return query;
+    }
+
+    private void runQuery(final String query, final boolean countOnly)
+    {
+        lastQueryTiming = null;
+        lastEstimate = null;
+        lastProfile = null;
+        finishTrace();
+        trace = ESTracer.getInstance().start(query, traced);
+        ESTrace previousTrace = ESTracer.attach(trace);
+        ESInstrumentation instrumentation = ESInstrumentationProvider.get();
+        Object queryEvent = instrumentation.beginQuery();
+        try
+        {
+            if (scheduler == null)
+            {
+                executeQuery(query, countOnly);
+                endQueryEvent(instrumentation, queryEvent);
+                return;
+            }
+
+            lastQueryTiming = scheduler.execute(getClusterKey(), indexes, priority, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    executeQuery(query, countOnly);
+                }
+            });
+            logger.debug("Query " + lastQueryTiming);
+            if (trace != null)
+            {
+                trace.startSpan("admission").set("wait_ms", lastQueryTiming.getWaitMillis())
+                        .set("attempts", lastQueryTiming.getAttempts()).end();
+            }
+            endQueryEvent(instrumentation, queryEvent);
+        }
+        catch (RuntimeException ex)
+        {
+            if (trace != null)
+            {
+                trace.startSpan("failure").set("error", String.valueOf(ex.getMessage())).end();
+                finishTrace();
+            }
+            throw ex;
+        }
+        finally
+        {
+            ESTracer.restore(previousTrace);
         }
-        return queryObject.toString();
     }
 
-    @SuppressWarnings("deprecation")
-	private SearchResponse executeSearch(String query, boolean isScrolling)
+    private void endQueryEvent(ESInstrumentation instrumentation, Object queryEvent)
     {
-
-        SearchRequestBuilder searchBuilder;
-
-        if (indexes.length > 0)
+        if (queryEvent != null)
         {
-            searchBuilder = esClient.prepareSearch(indexes);
+            instrumentation.endQuery(queryEvent, indexes, searchMode, pager.getResultsCount());
         }
-        else
-        {
-            searchBuilder = esClient.prepareSearch();
+    }
 
-        }
+    private void executeQuery(String query, boolean countOnly)
+    {
 
-        // Setup a scroll search for multi-paged results
-        if ( isScrolling ) {
-            logger.debug("Creating a scrolling query");
-            // SCAN has been deprecated - but the alternative method
-            // of sorting by _doc may not be applied if the user has
-            // chosen a different kind of sorting.
-           
-            searchBuilder
-            		.setSearchType(SearchType.SCAN)
-                    .setScroll(new TimeValue(ESHitsPager.SCROLL_KEEPALIVE));
+        query = rewriteQuery(query);
 
-        }  else {
-            logger.debug("The query is not scrolling");
-        }
+        logger.debug("Complete search request: " + query);
 
-        // If types were specified restrict the search to those
-        if (types.length > 0)
+        closePager();
+
+        long connectStart = System.nanoTime();
+        connect();
+        if (profiling && !countOnly)
         {
-            searchBuilder.setTypes(types);
+            lastProfile = new ESProfileReport(query);
+            lastProfile.setConnectNanos(System.nanoTime() - connectStart);
         }
 
-        setQuerySize(query);
-
-        // Execute the search
-        searchBuilder.setSource(query);
-        
-        logger.debug("Search: " + searchBuilder.toString());
-        
-        SearchResponse searchRes = searchBuilder
-                                        .execute()
-                                        .actionGet();
-
-        logger.debug("Search ready");
-        
-        if ( isScrolling ) {
-            logger.debug("ScrollId: " + searchRes.getScrollId());
+        searchedIndexes = pruneIndexes(query);
+        if (indexes.length > 0 && searchedIndexes.length == 0)
+        {
+            if (searchMode == ES_MODE_HITS)
+            {
+                logger.info("None of the indexes can match the query, not searching");
+                pager = new ESEmptyPager();
+                spoolResults();
+                return;
+            }
+            // Aggregations return rows without hits too: zero counts, empty stats
+            logger.info("None of the indexes can match the query, searching them for the empty aggregations");
+            searchedIndexes = indexes;
         }
-        
-        return searchRes;
-
-    }
+        searchRouting = routingAnalyzer != null ? routingAnalyzer.getRouting(searchedIndexes, query) : null;
 
-    private SearchResponse executeSearch(String query) {
-        return executeSearch(query, false);
-    }
-
-    private void runQuery(String query, boolean countOnly)
-    {
-
-        logger.debug("Complete search request: " + query);
+        if (searchMode == ES_MODE_HITS && !countOnly && timeSliceField != null && timeSlices > 1)
+        {
+            runSlicedQuery(query);
+            return;
+        }
 
-        connect();
+        if (transport == ES_TRANSPORT_HTTP)
+        {
+            runRestQuery(query, countOnly);
+            return;
+        }
 
         SearchResponse searchRes;
 
@@ -543,26 +1588,271 @@ public class ESSearch implements Connection
                 else
                 {
                     logger.debug("Executing scrolling query for hits");
+                    if (memoryBudget > 0)
+                    {
+                        query = fitHitsToBudget(query);
+                    }
+                    long searchStart = System.nanoTime();
+                    ESTraceSpan searchSpan = startSpan("search");
                     searchRes = executeSearch(query, true);
+                    endSpan(searchSpan, "hits", searchRes.getHits().getTotalHits());
+                    if (lastProfile != null)
+                    {
+                        lastProfile.setSearchNanos(System.nanoTime() - searchStart);
+                        lastProfile.addResponse(searchRes);
+                    }
                 }
                 logger.debug("The query returns " + searchRes.getHits().getTotalHits() + " total matches.");
-                logger.debug("Response: " + searchRes.toString());
-                pager = new ESHitsPager(searchRes, query, getPageSize(query), esClient);
+                if (trace != null && logger.isDebugEnabled())
+                {
+                    logger.debug("Response: " + searchRes.toString());
+                }
+                ESHitsPager hitsPager = new ESHitsPager(searchRes, query, getPageSize(query), esClient);
+                hitsPager.setMaxRows(maxRows);
+                hitsPager.setLazySource(lazySource);
+                hitsPager.setDocValueFields(docValueColumns);
+                if (conversionThreads > 0)
+                {
+                    hitsPager.setConversionPool(getConversionPool(), conversionThreads * 2);
+                }
+                hitsPager.setProfileReport(lastProfile);
+                hitsPager.setTrace(trace);
+                if (retryPolicy != null && !countOnly)
+                {
+                    final String resumeQuery = query;
+                    hitsPager.setRetryPolicy(retryPolicy, !isResumable(query) ? null : new ESScrollResumer()
+                    {
+                        @Override
+                        public SearchResponse resume()
+                        {
+                            return executeSearch(resumeQuery, true);
+                        }
+                    });
+                }
+                pager = hitsPager;
                 break;
             case ESSearch.ES_MODE_AGGS:
                 // Aggregations will return all the results in one
                 // query
+                long searchStart = System.nanoTime();
+                ESTraceSpan searchSpan = startSpan("search");
                 searchRes = executeSearch(query);
-                pager = new ESAggregationPager(searchRes, query);
+                endSpan(searchSpan, "hits", searchRes.getHits().getTotalHits());
+                if (lastProfile != null)
+                {
+                    lastProfile.setSearchNanos(System.nanoTime() - searchStart);
+                    lastProfile.addResponse(searchRes);
+                }
+                long explodeStart = System.nanoTime();
+                ESTraceSpan explodeSpan = startSpan("explode");
+                long spillBudget = aggregationHeapBudget;
+                if (memoryBudget > 0 && searchRes.getAggregations() != null)
+                {
+                    spillBudget = getSpillBudget(ESResponseEstimator.fromAggregations(searchRes.getAggregations()));
+                }
+                if (spillBudget > 0)
+                {
+                    pager = new ESAggregationPager(searchRes, query,
+                            new ESSpillingRowStore(spillBudget, spillCompression));
+                }
+                else
+                {
+                    pager = new ESAggregationPager(searchRes, query);
+                }
+                endSpan(explodeSpan, "rows", pager.getResultsCount());
+                if (lastProfile != null)
+                {
+                    lastProfile.setExplode(System.nanoTime() - explodeStart, pager.getResultsCount());
+                }
                 break;
             default:
                 pager = new ESEmptyPager();
         }
 
+        spoolResults();
+
         logger.trace("OK, ready to process the results");
 
     }
 
+    /**
+     * Scrolls the hits in time slices, each search on its own thread.
+     */
+    private void runSlicedQuery(String query)
+    {
+        ESTimeSlicer slicer = new ESTimeSlicer(timeSliceField, timeSlices);
+        long searchStart = System.nanoTime();
+        ESTraceSpan sliceSpan = startSpan("slice");
+
+        long totalHits;
+        List<ESTimeSlice> slices;
+        if (transport == ES_TRANSPORT_HTTP)
+        {
+            ESRestResponse boundsRes = restClient.search(searchedIndexes, types, slicer.getBoundsQuery(query), false,
+                    0, 0, searchRouting, new ESRestResponseParser());
+            totalHits = boundsRes.getTotalHits();
+            ESTimeRange bounds = slicer.getBounds(boundsRes.getAggregations());
+            if (bounds.isEmpty())
+            {
+                slices = Arrays.asList(new ESTimeSlice(Long.MIN_VALUE, Long.MAX_VALUE, totalHits));
+            }
+            else
+            {
+                ESRestResponse histogramRes = restClient.search(searchedIndexes, types,
+                        slicer.getHistogramQuery(query, bounds), false, 0, 0, searchRouting,
+                        new ESRestResponseParser());
+                slices = slicer.getSlices(totalHits, histogramRes.getAggregations());
+            }
+        }
+        else
+        {
+            SearchResponse boundsRes = getQuerySample(slicer.getBoundsQuery(query), 0);
+            totalHits = boundsRes.getHits().getTotalHits();
+            ESTimeRange bounds = slicer.getBounds(boundsRes.getAggregations());
+            if (bounds.isEmpty())
+            {
+                slices = Arrays.asList(new ESTimeSlice(Long.MIN_VALUE, Long.MAX_VALUE, totalHits));
+            }
+            else
+            {
+                SearchResponse histogramRes = getQuerySample(slicer.getHistogramQuery(query, bounds), 0);
+                slices = slicer.getSlices(totalHits, histogramRes.getAggregations());
+            }
+        }
+        endSpan(sliceSpan, "slices", slices.size());
+        if (lastProfile != null)
+        {
+            lastProfile.setSearchNanos(System.nanoTime() - searchStart);
+        }
+        logger.debug("Scrolling " + totalHits + " hits in " + slices.size() + " slices of " + timeSliceField);
+
+        List<String> sliceQueries = new ArrayList<String>(slices.size());
+        for (ESTimeSlice slice : slices)
+        {
+            sliceQueries.add(slice.restrict(query, timeSliceField));
+        }
+
+        final boolean merged = isSorted(query) && transport == ES_TRANSPORT_NATIVE;
+        if (isSorted(query) && !merged)
+        {
+            logger.warn("REST hits don't carry their sort values, the slices can't be merged in sorted order");
+        }
+        final ESQueryScheduler sliceScheduler = scheduler;
+        final String[] sliceIndexes = searchedIndexes;
+        final int slicePriority = priority;
+        ESSliceOpener opener = new ESSliceOpener()
+        {
+            @Override
+            public ESResultsPager open(final String sliceQuery)
+            {
+                if (sliceScheduler == null)
+                {
+                    return openSlice(sliceQuery, merged);
+                }
+                // The slices open after the query has left the scheduler: each takes a turn of its own
+                final ESResultsPager[] opened = new ESResultsPager[1];
+                ESQueryTiming timing = sliceScheduler.execute(getClusterKey(), sliceIndexes, slicePriority,
+                        new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                opened[0] = openSlice(sliceQuery, merged);
+                            }
+                        });
+                logger.debug("Slice " + timing);
+                return opened[0];
+            }
+        };
+
+        if (merged)
+        {
+            logger.debug("Merging the sorted hits of the slices");
+            ESMergingPager mergingPager = new ESMergingPager(query, sliceQueries, totalHits, getPageSize(query),
+                    opener);
+            mergingPager.setMaxRows(maxRows);
+            pager = mergingPager;
+        }
+        else
+        {
+            ESSlicedHitsPager slicedPager = new ESSlicedHitsPager(query, sliceQueries, totalHits,
+                    getPageSize(query), opener, timeSliceOrdered);
+            slicedPager.setMaxRows(maxRows);
+            pager = slicedPager;
+        }
+        spoolResults();
+    }
+
+    /**
+     * Opens the scroll of a slice, on the thread that reads it: its hits are
+     * turned into rows there, not on the conversion pool.
+     *
+     * @param sorted true to scroll the hits in the order of the sort, so
+     *               that the slices can be merged.
+     */
+    private ESResultsPager openSlice(final String sliceQuery, final boolean sorted)
+    {
+        if (transport == ES_TRANSPORT_HTTP)
+        {
+            ESRestHitsPager slicePager = new ESRestHitsPager(executeRestSearch(sliceQuery), sliceQuery,
+                    getPageSize(sliceQuery), restClient);
+            slicePager.setMaxRows(maxRows);
+            slicePager.setTrace(trace);
+            return slicePager;
+        }
+
+        ESHitsPager slicePager = new ESHitsPager(executeSearch(sliceQuery, true, sorted), sliceQuery,
+                getPageSize(sliceQuery), esClient);
+        slicePager.setMaxRows(maxRows);
+        slicePager.setLazySource(lazySource);
+        slicePager.setDocValueFields(docValueColumns);
+        slicePager.setTrace(trace);
+        if (retryPolicy != null)
+        {
+            slicePager.setRetryPolicy(retryPolicy, !isResumable(sliceQuery) ? null : new ESScrollResumer()
+            {
+                @Override
+                public SearchResponse resume()
+                {
+                    return executeSearch(sliceQuery, true, sorted);
+                }
+            });
+        }
+        return slicePager;
+    }
+
+    /**
+     * @return the indexes the query can have hits in, all of the indexes set
+     * if there is no pruner or it could not read the indexes.
+     */
+    private String[] pruneIndexes(String query)
+    {
+        if (indexPruner == null || indexes.length == 0)
+        {
+            return indexes;
+        }
+        if (searchMode == ES_MODE_AGGS && ESQueryAnalyzer.hasGlobalAggregation(query))
+        {
+            logger.debug("Global aggregations cover all the documents, not pruning the indexes");
+            return indexes;
+        }
+
+        ESTraceSpan pruneSpan = startSpan("prune");
+        try
+        {
+            String[] pruned = indexPruner.prune(transport == ES_TRANSPORT_HTTP ? new ESRestIndexCatalog(restClient)
+                    : new ESClientIndexCatalog(esClient), indexes, query);
+            endSpan(pruneSpan, "indexes", pruned.length);
+            return pruned;
+        }
+        catch (ElasticsearchException ex)
+        {
+            logger.warn("Could not prune the indexes, searching all of them: " + ex.getMessage());
+            endSpan(pruneSpan, "indexes", indexes.length);
+            return indexes;
+        }
+    }
+
     private void runQuery(String query)
     {
         runQuery(query, false);
@@ -580,6 +1870,25 @@ public class ESSearch implements Connection
 
     public void close()
     {
+        closed = true;
+        closeSearch();
+        if (this.lease != null)
+        {
+            logger.debug("Giving the client back to the pool");
+            this.lease.release();
+            this.esClient = null;
+        }
+    }
+
+    private void closeSearch()
+    {
+        closePager();
+        finishTrace();
+        if (this.conversionPool != null)
+        {
+            this.conversionPool.shutdownNow();
+            this.conversionPool = null;
+        }
         if (this.esClient != null && !keepClient)
         {
             logger.debug("Disconnecting client");
@@ -590,27 +1899,167 @@ public class ESSearch implements Connection
         {
             logger.debug("Keeping client - it was not mine in the first place!");
         }
+        if (this.restClient != null)
+        {
+            logger.debug("Disconnecting REST client");
+            this.restClient.close();
+            this.restClient = null;
+        }
     }
 
-    public Map<String, Object> next()
+    private void disposeClients()
     {
+        logger.debug("Pager is done - disposing of client.");
+        if (this.esClient != null && !keepClient)
+        {
+            this.esClient.close();
+            this.esClient = null;
+        }
+        if (this.restClient != null)
+        {
+            this.restClient.close();
+            this.restClient = null;
+        }
+    }
 
-        logger.trace("Next!");
+    public Map<String, Object> next()
+    {
 
         if (pager.done())
         {
-            logger.debug("Pager is done - disposing of client.");
-            if (this.esClient != null)
+            finishTrace();
+            disposeClients();
+            return null;
+        }
+
+        if (trace != null)
+        {
+            trace.countRow();
+            if (logger.isTraceEnabled())
             {
-                this.esClient.close();
+                logger.trace("Returning hit at: " + (pager.current_hit_idx() + 1) + " of " + pager.getResultsCount());
             }
+        }
+
+        return pager.next();
+
+    }
+
+    /**
+     * Goes back to the first row of spooled results.
+     */
+    public void rewind()
+    {
+        getSpool().rewind();
+    }
+
+    /**
+     * Positions spooled results so that the next row returned is the one at
+     * the given, zero based, index.
+     *
+     * @param row the index of the row.
+     * @return false if there is no row at that index.
+     */
+    public boolean absolute(long row)
+    {
+        return getSpool().absolute(row);
+    }
+
+    /**
+     * Returns the next rows of the results column by column, with numbers
+     * in primitive arrays and keywords dictionary encoded.
+     *
+     * @param maxRows the maximum number of rows in the batch, at least one.
+     * @return the next batch, or <em>null</em> if there are no more rows.
+     */
+    public ESColumnBatch nextBatch(int maxRows)
+    {
+        if (maxRows <= 0)
+        {
+            throw new IllegalArgumentException("A batch needs room for at least one row, not " + maxRows);
+        }
+
+        if (pager.done())
+        {
+            finishTrace();
+            disposeClients();
             return null;
         }
 
-        logger.debug("Returning hit at: " + (pager.current_hit_idx() + 1) + " of " + pager.getResultsCount());
+        ESColumnBatch batch = pager.nextBatch(maxRows);
+        if (batch.getRowCount() == 0)
+        {
+            finishTrace();
+            disposeClients();
+            return null;
+        }
+        if (trace != null)
+        {
+            trace.countRows(batch.getRowCount());
+        }
+        return batch;
+    }
 
-        return pager.next();
+    /**
+     * Writes the remaining hits as newline delimited JSON, straight from the
+     * raw sources of the hits. Only available for hits searched through the
+     * native transport.
+     *
+     * @param channel         where to write the documents, it's not closed.
+     * @param includeMetadata true to add the index, type and id of each hit
+     *                        to its document.
+     * @return what has been exported.
+     * @throws IOException if writing to the channel fails.
+     */
+    public ESExportStats exportNdjson(WritableByteChannel channel, boolean includeMetadata) throws IOException
+    {
+        if (!(pager instanceof ESHitsPager))
+        {
+            throw new IllegalStateException("NDJSON export needs a hits search on the native transport");
+        }
+
+        ESNdjsonExporter exporter = new ESNdjsonExporter((ESHitsPager) pager);
+        exporter.setIncludeMetadata(includeMetadata);
+        try
+        {
+            return exporter.export(channel);
+        }
+        finally
+        {
+            disposeClients();
+        }
+    }
 
+    /**
+     * Streams the remaining rows as CSV or TSV, in constant memory.
+     *
+     * @param channel where to write the rows, it's not closed.
+     * @param columns the columns to export, in order. If <em>null</em> the
+     *                columns set with {@link #setColumns(String)} are used.
+     * @param format  ESDelimitedExporter.FORMAT_CSV or FORMAT_TSV
+     * @param gzip    true to compress the output.
+     * @return what has been exported.
+     * @throws IOException if writing to the channel fails.
+     */
+    public ESExportStats exportDelimited(WritableByteChannel channel, String[] columns, int format, boolean gzip)
+            throws IOException
+    {
+        String[] exportColumns = columns != null ? columns : this.columns;
+        if (exportColumns.length == 0)
+        {
+            throw new IllegalStateException("No columns to export have been specified");
+        }
+
+        ESDelimitedExporter exporter = new ESDelimitedExporter(pager, Arrays.asList(exportColumns), format);
+        exporter.setGzip(gzip);
+        try
+        {
+            return exporter.export(channel);
+        }
+        finally
+        {
+            disposeClients();
+        }
     }
 
     public Map<String, Class<?>> getFields(String query)
@@ -620,7 +2069,7 @@ public class ESSearch implements Connection
         logger.debug("Getting fields using " + query);
         runQuery(query);
         result = pager.getResponseFields();
-        close();
+        closeSearch();
 
         logger.debug("Fields: " + result.toString());
         return result;
@@ -641,12 +2090,16 @@ public class ESSearch implements Connection
 
     @Override public boolean isWrapperFor(Class<?> wrappedClass) throws SQLException
     {
-        return wrappedClass.equals(ESSearch.class);
+        return wrappedClass.isInstance(this);
     }
 
     @SuppressWarnings("unchecked") @Override public <T> T unwrap(Class<T> wrappedClass) throws SQLException
     {
-        return (T) wrappedClass;
+        if (!isWrapperFor(wrappedClass))
+        {
+            throw new SQLException("Not a wrapper for " + wrappedClass.getName());
+        }
+        return (T) this;
     }
 
     @Override public void clearWarnings() throws SQLException
@@ -941,9 +2394,13 @@ public class ESSearch implements Connection
         return null;
     }
 
+    /**
+     * @return true once the connection has been closed, it can't be searched
+     * anymore.
+     */
     @Override public boolean isClosed() throws SQLException
     {
-        return false;
+        return closed || (lease != null && lease.isReleased());
     }
 
     @Override public boolean isReadOnly() throws SQLException
@@ -951,9 +2408,54 @@ public class ESSearch implements Connection
         return false;
     }
 
-    @Override public boolean isValid(int arg0) throws SQLException
+    /**
+     * Checks the cluster answers, with the client of the connection or, if it
+     * has none yet, with one that only lives for the check.
+     *
+     * @param timeout how long to wait for the answer, in seconds. 0 waits
+     *                as long as it takes.
+     * @return true if the cluster answered in time.
+     */
+    @Override public boolean isValid(int timeout) throws SQLException
     {
-        return false;
+        if (timeout < 0)
+        {
+            throw new SQLException("The timeout can't be negative: " + timeout);
+        }
+        if (isClosed())
+        {
+            return false;
+        }
+
+        if (transport == ES_TRANSPORT_HTTP)
+        {
+            if (restClient != null)
+            {
+                return restClient.ping();
+            }
+            ESRestClient pingClient = new ESRestClient(hostname, port, username, password, 1);
+            try
+            {
+                return pingClient.ping();
+            }
+            finally
+            {
+                pingClient.close();
+            }
+        }
+        if (esClient != null)
+        {
+            return ESClientFactory.isAvailable(esClient, timeout * 1000L);
+        }
+        Client pingClient = new ESClientFactory(hostname, port, cluster, username, password).createClient();
+        try
+        {
+            return ESClientFactory.isAvailable(pingClient, timeout * 1000L);
+        }
+        finally
+        {
+            pingClient.close();
+        }
     }
 
     @Override public String nativeSQL(String arg0) throws SQLException
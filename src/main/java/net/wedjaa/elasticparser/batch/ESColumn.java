@@ -0,0 +1,82 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.batch;
+
+import java.util.BitSet;
+
+/**
+ * A column of an {@link ESColumnBatch}. Values are kept in typed arrays by
+ * the subclasses, this class only keeps track of which rows are null.
+ */
+public abstract class ESColumn {
+
+	public final static int TYPE_LONG = 0;
+	public final static int TYPE_DOUBLE = 1;
+	public final static int TYPE_STRING = 2;
+	public final static int TYPE_OBJECT = 3;
+
+	private final String name;
+	private final BitSet nulls;
+	private final int rowCount;
+
+	protected ESColumn(String name, BitSet nulls, int rowCount) {
+		this.name = name;
+		this.nulls = nulls;
+		this.rowCount = rowCount;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * @return one of the TYPE_ constants, telling which subclass this column
+	 * is.
+	 */
+	public abstract int getType();
+
+	public final boolean isNull(int row) {
+		return nulls.get(row);
+	}
+
+	/**
+	 * @return the rows that have no value, as a bitmap.
+	 */
+	public final BitSet getNulls() {
+		return nulls;
+	}
+
+	/**
+	 * @return the value of a row as an object. This boxes numeric values and
+	 * is meant for generic consumers, typed consumers should use the arrays
+	 * of the subclasses.
+	 */
+	public abstract Object getObject(int row);
+
+}
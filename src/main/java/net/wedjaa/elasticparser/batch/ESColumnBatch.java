@@ -0,0 +1,74 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.batch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of rows stored column by column. Numeric columns are kept in
+ * primitive arrays and keyword columns are dictionary encoded, so consumers
+ * that chart or aggregate the data don't pay for boxed values.
+ */
+public class ESColumnBatch {
+
+	private final int rowCount;
+	private final Map<String, ESColumn> columns;
+
+	ESColumnBatch(int rowCount, List<ESColumn> columns) {
+		this.rowCount = rowCount;
+		this.columns = new LinkedHashMap<String, ESColumn>();
+		for (ESColumn column : columns) {
+			this.columns.put(column.getName(), column);
+		}
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * @return the columns, in the order their fields were first found.
+	 */
+	public List<ESColumn> getColumns() {
+		return Collections.unmodifiableList(new ArrayList<ESColumn>(columns.values()));
+	}
+
+	public List<String> getColumnNames() {
+		return Collections.unmodifiableList(new ArrayList<String>(columns.keySet()));
+	}
+
+	/**
+	 * @return the column for a field, or <em>null</em> if no row of the
+	 * batch has it.
+	 */
+	public ESColumn getColumn(String name) {
+		return columns.get(name);
+	}
+
+}
@@ -0,0 +1,296 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.batch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.wedjaa.elasticparser.pager.ESResultsPager;
+
+/**
+ * Builds an {@link ESColumnBatch} one row at a time. The type of a column
+ * is picked from the first value found for it: integral numbers start a
+ * long column, which is promoted to double as soon as a decimal shows up;
+ * strings start a dictionary encoded column. Values that don't fit the
+ * type of their column turn it into an object column.
+ */
+public class ESColumnBatchBuilder {
+
+	private static final int TYPE_UNKNOWN = -1;
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	private final Map<String, ColumnBuilder> columns = new LinkedHashMap<String, ColumnBuilder>();
+	private final int capacity;
+	private int rowCount = 0;
+
+	public ESColumnBatchBuilder() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity the number of rows the columns are sized for, they
+	 *                 grow if more rows are added.
+	 */
+	public ESColumnBatchBuilder(int capacity) {
+		this.capacity = Math.max(capacity, 1);
+	}
+
+	/**
+	 * Reads up to maxRows rows from a pager, one at a time: pagers without a
+	 * faster way to fill a batch implement nextBatch with it.
+	 */
+	public static ESColumnBatch fromPager(ESResultsPager pager, int maxRows) {
+		ESColumnBatchBuilder batchBuilder = new ESColumnBatchBuilder(Math.min(maxRows, DEFAULT_CAPACITY));
+		while (batchBuilder.getRowCount() < maxRows && !pager.done()) {
+			Map<String, Object> row = pager.next();
+			if (row == null) {
+				break;
+			}
+			batchBuilder.append(row);
+		}
+		return batchBuilder.build();
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Sets the value of a column for the current row.
+	 */
+	public void set(String column, Object value) {
+		ColumnBuilder columnBuilder = columns.get(column);
+		if (columnBuilder == null) {
+			columnBuilder = new ColumnBuilder(column, capacity);
+			columns.put(column, columnBuilder);
+		}
+		columnBuilder.set(rowCount, value);
+	}
+
+	/**
+	 * Completes the current row, columns that have not been set are null.
+	 */
+	public void endRow() {
+		rowCount++;
+	}
+
+	public void append(Map<String, ?> row) {
+		for (Map.Entry<String, ?> value : row.entrySet()) {
+			set(value.getKey(), value.getValue());
+		}
+		endRow();
+	}
+
+	public ESColumnBatch build() {
+		List<ESColumn> batchColumns = new ArrayList<ESColumn>(columns.size());
+		for (ColumnBuilder columnBuilder : columns.values()) {
+			batchColumns.add(columnBuilder.build(rowCount));
+		}
+		return new ESColumnBatch(rowCount, batchColumns);
+	}
+
+	private static boolean isIntegral(Object value) {
+		return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+	}
+
+	private static boolean isDecimal(Object value) {
+		return value instanceof Double || value instanceof Float;
+	}
+
+	private static class ColumnBuilder {
+
+		private final String name;
+		private final BitSet present = new BitSet();
+		private int type = TYPE_UNKNOWN;
+		private int capacity;
+
+		private long[] longs;
+		private double[] doubles;
+		private int[] codes;
+		private Object[] objects;
+		private Map<String, Integer> dictionary;
+		private List<String> dictionaryValues;
+
+		ColumnBuilder(String name, int capacity) {
+			this.name = name;
+			this.capacity = capacity;
+		}
+
+		void set(int row, Object value) {
+			if (value == null) {
+				return;
+			}
+			if (type == TYPE_UNKNOWN) {
+				start(value);
+			}
+			if (row >= capacity) {
+				grow(row + 1);
+			}
+
+			switch (type) {
+				case ESColumn.TYPE_LONG:
+					if (isIntegral(value)) {
+						longs[row] = ((Number) value).longValue();
+					} else if (isDecimal(value)) {
+						toDoubles();
+						doubles[row] = ((Number) value).doubleValue();
+					} else {
+						toObjects();
+						objects[row] = value;
+					}
+					break;
+				case ESColumn.TYPE_DOUBLE:
+					if (isIntegral(value) || isDecimal(value)) {
+						doubles[row] = ((Number) value).doubleValue();
+					} else {
+						toObjects();
+						objects[row] = value;
+					}
+					break;
+				case ESColumn.TYPE_STRING:
+					if (value instanceof String) {
+						codes[row] = code((String) value);
+					} else {
+						toObjects();
+						objects[row] = value;
+					}
+					break;
+				default:
+					objects[row] = value;
+			}
+			present.set(row);
+		}
+
+		private void start(Object value) {
+			if (isIntegral(value)) {
+				type = ESColumn.TYPE_LONG;
+				longs = new long[capacity];
+			} else if (isDecimal(value)) {
+				type = ESColumn.TYPE_DOUBLE;
+				doubles = new double[capacity];
+			} else if (value instanceof String) {
+				type = ESColumn.TYPE_STRING;
+				codes = new int[capacity];
+				dictionary = new HashMap<String, Integer>();
+				dictionaryValues = new ArrayList<String>();
+			} else {
+				type = ESColumn.TYPE_OBJECT;
+				objects = new Object[capacity];
+			}
+		}
+
+		private int code(String value) {
+			Integer code = dictionary.get(value);
+			if (code == null) {
+				code = dictionaryValues.size();
+				dictionary.put(value, code);
+				dictionaryValues.add(value);
+			}
+			return code;
+		}
+
+		private void grow(int minCapacity) {
+			capacity = Math.max(capacity * 2, minCapacity);
+			if (longs != null) {
+				longs = Arrays.copyOf(longs, capacity);
+			}
+			if (doubles != null) {
+				doubles = Arrays.copyOf(doubles, capacity);
+			}
+			if (codes != null) {
+				codes = Arrays.copyOf(codes, capacity);
+			}
+			if (objects != null) {
+				objects = Arrays.copyOf(objects, capacity);
+			}
+		}
+
+		private void toDoubles() {
+			doubles = new double[capacity];
+			for (int row = 0; row < longs.length; row++) {
+				doubles[row] = longs[row];
+			}
+			longs = null;
+			type = ESColumn.TYPE_DOUBLE;
+		}
+
+		private void toObjects() {
+			objects = new Object[capacity];
+			for (int row = present.nextSetBit(0); row >= 0; row = present.nextSetBit(row + 1)) {
+				objects[row] = boxed(row);
+			}
+			longs = null;
+			doubles = null;
+			codes = null;
+			type = ESColumn.TYPE_OBJECT;
+		}
+
+		private Object boxed(int row) {
+			switch (type) {
+				case ESColumn.TYPE_LONG:
+					return longs[row];
+				case ESColumn.TYPE_DOUBLE:
+					return doubles[row];
+				case ESColumn.TYPE_STRING:
+					return dictionaryValues.get(codes[row]);
+				default:
+					return objects[row];
+			}
+		}
+
+		ESColumn build(int rowCount) {
+			BitSet nulls = new BitSet(rowCount);
+			nulls.set(0, rowCount);
+			nulls.andNot(present);
+			if (capacity < rowCount) {
+				grow(rowCount);
+			}
+
+			switch (type) {
+				case ESColumn.TYPE_LONG:
+					return new ESLongColumn(name, longs, nulls, rowCount);
+				case ESColumn.TYPE_DOUBLE:
+					return new ESDoubleColumn(name, doubles, nulls, rowCount);
+				case ESColumn.TYPE_STRING:
+					for (int row = nulls.nextSetBit(0); row >= 0; row = nulls.nextSetBit(row + 1)) {
+						codes[row] = -1;
+					}
+					return new ESStringColumn(name, codes, dictionaryValues.toArray(new String[dictionaryValues.size()]),
+							nulls, rowCount);
+				case ESColumn.TYPE_OBJECT:
+					return new ESObjectColumn(name, objects, nulls, rowCount);
+				default:
+					// Only nulls were found
+					return new ESObjectColumn(name, new Object[rowCount], nulls, rowCount);
+			}
+		}
+	}
+
+}
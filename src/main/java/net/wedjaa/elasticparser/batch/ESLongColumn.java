@@ -0,0 +1,63 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.batch;
+
+import java.util.BitSet;
+
+/**
+ * A column of long values. Null rows hold 0 in the values array.
+ */
+public class ESLongColumn extends ESColumn {
+
+	private final long[] values;
+
+	ESLongColumn(String name, long[] values, BitSet nulls, int rowCount) {
+		super(name, nulls, rowCount);
+		this.values = values;
+	}
+
+	@Override
+	public int getType() {
+		return TYPE_LONG;
+	}
+
+	public long getLong(int row) {
+		return values[row];
+	}
+
+	/**
+	 * @return the values of the column, the array may be longer than the
+	 * number of rows.
+	 */
+	public long[] getValues() {
+		return values;
+	}
+
+	@Override
+	public Object getObject(int row) {
+		return isNull(row) ? null : values[row];
+	}
+
+}
@@ -0,0 +1,70 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.batch;
+
+import java.util.BitSet;
+
+/**
+ * A dictionary encoded column of strings: each row holds the code of its
+ * value in the dictionary. Null rows hold -1.
+ */
+public class ESStringColumn extends ESColumn {
+
+	private final int[] codes;
+	private final String[] dictionary;
+
+	ESStringColumn(String name, int[] codes, String[] dictionary, BitSet nulls, int rowCount) {
+		super(name, nulls, rowCount);
+		this.codes = codes;
+		this.dictionary = dictionary;
+	}
+
+	@Override
+	public int getType() {
+		return TYPE_STRING;
+	}
+
+	public int getCode(int row) {
+		return codes[row];
+	}
+
+	public int[] getCodes() {
+		return codes;
+	}
+
+	public String[] getDictionary() {
+		return dictionary;
+	}
+
+	public String getString(int row) {
+		return isNull(row) ? null : dictionary[codes[row]];
+	}
+
+	@Override
+	public Object getObject(int row) {
+		return getString(row);
+	}
+
+}
@@ -0,0 +1,46 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.estimate;
+
+/**
+ * Thrown when the results of a query are expected not to fit the memory
+ * budget, and the query has been refused.
+ */
+public class ESMemoryBudgetException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final ESResponseEstimate estimate;
+
+	public ESMemoryBudgetException(ESResponseEstimate estimate, long budget) {
+		super("The query would return " + estimate + ", over the memory budget of " + (budget / 1024) + "KB");
+		this.estimate = estimate;
+	}
+
+	public ESResponseEstimate getEstimate() {
+		return estimate;
+	}
+
+}
@@ -0,0 +1,77 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.estimate;
+
+/**
+ * What a query is expected to return, before its results are read.
+ */
+public class ESResponseEstimate {
+
+	private final long rows;
+	private final long rowBytes;
+	private final int sampledRows;
+
+	public ESResponseEstimate(long rows, long rowBytes, int sampledRows) {
+		this.rows = rows;
+		this.rowBytes = rowBytes;
+		this.sampledRows = sampledRows;
+	}
+
+	/**
+	 * @return the number of rows the query is expected to return.
+	 */
+	public long getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return the estimated heap size of a row.
+	 */
+	public long getRowBytes() {
+		return rowBytes;
+	}
+
+	/**
+	 * @return the estimated heap size of all the rows.
+	 */
+	public long getBytes() {
+		return rows * rowBytes;
+	}
+
+	/**
+	 * @return how many rows the row size has been estimated from, 0 when it
+	 * is a fixed guess.
+	 */
+	public int getSampledRows() {
+		return sampledRows;
+	}
+
+	@Override
+	public String toString() {
+		return rows + " rows of about " + rowBytes + " bytes, " + (getBytes() / 1024) + "KB in total"
+				+ (sampledRows > 0 ? " (sampled " + sampledRows + " rows)" : "");
+	}
+
+}
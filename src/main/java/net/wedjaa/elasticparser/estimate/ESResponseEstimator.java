@@ -0,0 +1,147 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.estimate;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import net.wedjaa.elasticparser.resolver.AggregateResolver;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.Aggregations;
+
+/**
+ * Estimates the heap taken by the rows of a query from a small sample of
+ * its hits, or from the shape of its aggregations.
+ */
+public class ESResponseEstimator {
+
+	/**
+	 * The number of hits sampled to estimate the size of a row.
+	 */
+	public final static int SAMPLE_SIZE = 10;
+
+	// A parsed document takes a few times the bytes of its JSON source
+	private static final int SOURCE_HEAP_FACTOR = 4;
+	// Flattened aggregation rows are a handful of short keys and numbers
+	private static final int AGGREGATION_ROW_BYTES = 512;
+
+	// Rough JVM footprint of the pieces of a row
+	private static final int ROW_OVERHEAD = 48;
+	private static final int ENTRY_OVERHEAD = 32;
+	private static final int VALUE_OVERHEAD = 24;
+
+	private ESResponseEstimator() {
+	}
+
+	/**
+	 * @param sample  a search returning a few of the hits of the query.
+	 * @param maxRows the maximum number of rows that will be read, 0 for all.
+	 */
+	public static ESResponseEstimate fromHits(SearchResponse sample, long maxRows) {
+		long sourceBytes = 0;
+		long fieldBytes = 0;
+		int sampled = 0;
+		for (SearchHit hit : sample.getHits().getHits()) {
+			if (hit.sourceRef() != null) {
+				sourceBytes += hit.sourceRef().length();
+			} else if (hit.fields() != null) {
+				fieldBytes += ROW_OVERHEAD + hit.fields().size() * (ENTRY_OVERHEAD + VALUE_OVERHEAD);
+			}
+			sampled++;
+		}
+		long rowBytes = sampled > 0 ? (sourceBytes * SOURCE_HEAP_FACTOR + fieldBytes) / sampled : ROW_OVERHEAD;
+		return new ESResponseEstimate(limitRows(sample.getHits().getTotalHits(), maxRows), rowBytes, sampled);
+	}
+
+	/**
+	 * @param totalRows the rows the query matches.
+	 * @param sample    a few of the rows.
+	 * @param maxRows   the maximum number of rows that will be read, 0 for
+	 *                  all.
+	 */
+	public static ESResponseEstimate fromRows(long totalRows, List<Map<String, Object>> sample, long maxRows) {
+		long bytes = 0;
+		for (Map<String, Object> row : sample) {
+			bytes += estimateRowBytes(row);
+		}
+		long rowBytes = sample.isEmpty() ? ROW_OVERHEAD : bytes / sample.size();
+		return new ESResponseEstimate(limitRows(totalRows, maxRows), rowBytes, sample.size());
+	}
+
+	/**
+	 * Counts the rows the aggregations flatten to, without flattening them.
+	 */
+	public static ESResponseEstimate fromAggregations(Aggregations aggregations) {
+		long rows = AggregateResolver.getInstance().countRows(aggregations);
+		return new ESResponseEstimate(rows, AGGREGATION_ROW_BYTES, 0);
+	}
+
+	/**
+	 * @return the number of rows of a page of results that fits the budget.
+	 */
+	public static int pageRowsWithin(ESResponseEstimate estimate, long budget) {
+		long rows = budget / Math.max(estimate.getRowBytes(), 1);
+		return (int) Math.max(1, Math.min(rows, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * @return a rough estimate of the heap taken by a row.
+	 */
+	public static long estimateRowBytes(Map<?, ?> row) {
+		long size = ROW_OVERHEAD;
+		for (Map.Entry<?, ?> entry : row.entrySet()) {
+			size += ENTRY_OVERHEAD + estimateValueBytes(entry.getValue());
+		}
+		return size;
+	}
+
+	private static long estimateValueBytes(Object value) {
+		if (value == null) {
+			return 0;
+		}
+		if (value instanceof String) {
+			return VALUE_OVERHEAD + 2L * ((String) value).length();
+		}
+		if (value instanceof Map) {
+			return estimateRowBytes((Map<?, ?>) value);
+		}
+		if (value instanceof Collection) {
+			long size = ROW_OVERHEAD;
+			for (Object element : (Collection<?>) value) {
+				size += 8 + estimateValueBytes(element);
+			}
+			return size;
+		}
+		return VALUE_OVERHEAD;
+	}
+
+	private static long limitRows(long totalRows, long maxRows) {
+		return maxRows > 0 ? Math.min(totalRows, maxRows) : totalRows;
+	}
+
+}
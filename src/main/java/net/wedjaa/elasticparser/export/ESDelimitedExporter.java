@@ -0,0 +1,251 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import net.wedjaa.elasticparser.pager.ESResultsPager;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Streams the rows of a pager as delimited text - CSV or TSV - with a fixed
+ * column order. Rows are written one at a time through reusable buffers, so
+ * memory doesn't grow with the number of rows exported.
+ *
+ * CSV values are quoted when needed, TSV values have tabs, line breaks and
+ * backslashes escaped. Nested objects and lists are written as JSON.
+ */
+public class ESDelimitedExporter {
+
+	public final static int FORMAT_CSV = 0;
+	public final static int FORMAT_TSV = 1;
+
+	private static final Logger logger = Logger.getLogger(ESDelimitedExporter.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final ESResultsPager pager;
+	private final List<String> columns;
+	private final int format;
+	private final char delimiter;
+	private boolean header = true;
+	private boolean gzip = false;
+
+	private final StringBuilder line = new StringBuilder(1024);
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+	private long bytes = 0;
+
+	/**
+	 * @param pager   the pager to read the rows from.
+	 * @param columns the columns to write, in order.
+	 * @param format  FORMAT_CSV or FORMAT_TSV
+	 */
+	public ESDelimitedExporter(ESResultsPager pager, List<String> columns, int format) {
+		this.pager = pager;
+		this.columns = new ArrayList<String>(columns);
+		this.format = format;
+		this.delimiter = format == FORMAT_TSV ? '\t' : ',';
+	}
+
+	/**
+	 * @param header true - the default - to write the column names first.
+	 */
+	public void setHeader(boolean header) {
+		this.header = header;
+	}
+
+	/**
+	 * @param gzip true to compress the output.
+	 */
+	public void setGzip(boolean gzip) {
+		this.gzip = gzip;
+	}
+
+	public ESExportStats export(File file) throws IOException {
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			return export(output.getChannel());
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Writes all the remaining rows of the pager to the channel. The channel
+	 * is not closed.
+	 */
+	public ESExportStats export(WritableByteChannel channel) throws IOException {
+
+		long start = System.nanoTime();
+		long rows = 0;
+		bytes = 0;
+
+		GZIPOutputStream gzipStream = null;
+		WritableByteChannel output = channel;
+		if (gzip) {
+			gzipStream = new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+			output = Channels.newChannel(gzipStream);
+		}
+
+		if (header) {
+			line.setLength(0);
+			for (String column : columns) {
+				if (line.length() > 0) {
+					line.append(delimiter);
+				}
+				appendValue(column);
+			}
+			writeLine(output);
+		}
+
+		while (!pager.done()) {
+			Map<String, Object> row = pager.next();
+			if (row == null) {
+				break;
+			}
+			line.setLength(0);
+			for (int idx = 0; idx < columns.size(); idx++) {
+				if (idx > 0) {
+					line.append(delimiter);
+				}
+				appendValue(row.get(columns.get(idx)));
+			}
+			writeLine(output);
+			rows++;
+		}
+
+		flush(output);
+		if (gzipStream != null) {
+			// Completes the compressed stream, leaving the channel open
+			gzipStream.finish();
+			gzipStream.flush();
+		}
+
+		ESExportStats stats = new ESExportStats(rows, bytes, System.nanoTime() - start);
+		logger.info("Delimited export complete: " + stats);
+		return stats;
+	}
+
+	private void appendValue(Object value) {
+		if (value == null) {
+			return;
+		}
+
+		int start = line.length();
+		if (value instanceof Map) {
+			line.append(new JSONObject((Map<?, ?>) value).toString());
+		} else if (value instanceof Collection) {
+			line.append(new JSONArray((Collection<?>) value).toString());
+		} else {
+			line.append(value);
+		}
+
+		if (format == FORMAT_TSV) {
+			escapeTsv(start);
+		} else {
+			quoteCsv(start);
+		}
+	}
+
+	private void quoteCsv(int start) {
+		boolean quote = false;
+		for (int idx = start; idx < line.length() && !quote; idx++) {
+			char c = line.charAt(idx);
+			quote = c == delimiter || c == '"' || c == '\n' || c == '\r';
+		}
+		if (!quote) {
+			return;
+		}
+		for (int idx = line.length() - 1; idx >= start; idx--) {
+			if (line.charAt(idx) == '"') {
+				line.insert(idx, '"');
+			}
+		}
+		line.insert(start, '"').append('"');
+	}
+
+	private void escapeTsv(int start) {
+		for (int idx = start; idx < line.length(); idx++) {
+			char c = line.charAt(idx);
+			String escaped = null;
+			if (c == '\t') {
+				escaped = "\\t";
+			} else if (c == '\n') {
+				escaped = "\\n";
+			} else if (c == '\r') {
+				escaped = "\\r";
+			} else if (c == '\\') {
+				escaped = "\\\\";
+			}
+			if (escaped != null) {
+				line.replace(idx, idx + 1, escaped);
+				idx++;
+			}
+		}
+	}
+
+	private void writeLine(WritableByteChannel channel) throws IOException {
+		line.append(format == FORMAT_CSV ? "\r\n" : "\n");
+		CharBuffer chars = CharBuffer.wrap(line);
+		encoder.reset();
+		while (true) {
+			int position = buffer.position();
+			CoderResult result = encoder.encode(chars, buffer, true);
+			bytes += buffer.position() - position;
+			if (result.isOverflow()) {
+				flush(channel);
+			} else {
+				break;
+			}
+		}
+	}
+
+	private void flush(WritableByteChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+}
@@ -0,0 +1,67 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.export;
+
+/**
+ * What an export has done: rows, bytes and how long it took.
+ */
+public class ESExportStats {
+
+	private final long rows;
+	private final long bytes;
+	private final long elapsedNanos;
+
+	public ESExportStats(long rows, long bytes, long elapsedNanos) {
+		this.rows = rows;
+		this.bytes = bytes;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return the bytes written, before any compression.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedNanos / 1000000;
+	}
+
+	public double getRowsPerSecond() {
+		return elapsedNanos > 0 ? rows * 1e9 / elapsedNanos : 0;
+	}
+
+	@Override
+	public String toString() {
+		return rows + " rows, " + bytes + " bytes in " + getElapsedMillis() + "ms ("
+				+ String.format("%.1f", getRowsPerSecond()) + " rows/s)";
+	}
+
+}
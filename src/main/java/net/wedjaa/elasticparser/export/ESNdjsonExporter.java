@@ -0,0 +1,227 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import net.wedjaa.elasticparser.pager.ESHitsPager;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.search.SearchHit;
+
+/**
+ * Writes the hits of a pager as newline delimited JSON, one document per
+ * line. The raw <em>_source</em> bytes of each hit are written as they came
+ * from the cluster, they are never turned into a map and back.
+ *
+ * The index, type and id of each hit can be spliced in front of the fields
+ * of the document.
+ */
+public class ESNdjsonExporter {
+
+	private static final Logger logger = Logger.getLogger(ESNdjsonExporter.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final byte NEWLINE = '\n';
+
+	private final ESHitsPager pager;
+	private boolean includeMetadata = false;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final StringBuilder metadata = new StringBuilder();
+	private long bytes = 0;
+
+	public ESNdjsonExporter(ESHitsPager pager) {
+		this.pager = pager;
+	}
+
+	/**
+	 * @param includeMetadata true to add <em>_index</em>, <em>_type</em> and
+	 *                        <em>_id</em> to each document.
+	 */
+	public void setIncludeMetadata(boolean includeMetadata) {
+		this.includeMetadata = includeMetadata;
+	}
+
+	public ESExportStats export(File file) throws IOException {
+		FileOutputStream output = new FileOutputStream(file);
+		try {
+			return export(output.getChannel());
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Writes all the remaining hits of the pager to the channel. The channel
+	 * is not closed.
+	 */
+	public ESExportStats export(WritableByteChannel channel) throws IOException {
+
+		long start = System.nanoTime();
+		long rows = 0;
+		long skipped = 0;
+		bytes = 0;
+
+		SearchHit hit;
+		while ((hit = pager.nextHit()) != null) {
+			BytesReference source = hit.sourceRef();
+			if (source == null) {
+				skipped++;
+				continue;
+			}
+			if (XContentFactory.xContentType(source) != XContentType.JSON) {
+				source = new BytesArray(XContentHelper.convertToJson(source, false));
+			}
+			writeDocument(channel, hit, source.toBytesRef());
+			rows++;
+		}
+		flush(channel);
+
+		if (skipped > 0) {
+			logger.warn("Skipped " + skipped + " hits without a source");
+		}
+
+		ESExportStats stats = new ESExportStats(rows, bytes, System.nanoTime() - start);
+		logger.info("NDJSON export complete: " + stats);
+		return stats;
+	}
+
+	private void writeDocument(WritableByteChannel channel, SearchHit hit, BytesRef source) throws IOException {
+
+		int offset = source.offset;
+		int end = source.offset + source.length;
+
+		if (includeMetadata) {
+			// Skip to the opening brace, the metadata goes right after it
+			while (offset < end && source.bytes[offset] != '{') {
+				offset++;
+			}
+			offset++;
+			int next = offset;
+			while (next < end && isWhitespace(source.bytes[next])) {
+				next++;
+			}
+			boolean emptyDocument = next < end && source.bytes[next] == '}';
+
+			metadata.setLength(0);
+			metadata.append('{');
+			appendField(metadata, "_index", hit.getIndex()).append(',');
+			appendField(metadata, "_type", hit.getType()).append(',');
+			appendField(metadata, "_id", hit.getId());
+			if (!emptyDocument) {
+				metadata.append(',');
+			}
+			byte[] metadataBytes = metadata.toString().getBytes(StandardCharsets.UTF_8);
+			write(channel, metadataBytes, 0, metadataBytes.length);
+		}
+
+		writeSingleLine(channel, source.bytes, offset, end);
+		write(channel, NEWLINE);
+	}
+
+	/**
+	 * Sources can be pretty printed, but one document has to fit on a line.
+	 * Line breaks can only be whitespace between JSON tokens - they are
+	 * escaped inside strings - so they are replaced by blanks.
+	 */
+	private void writeSingleLine(WritableByteChannel channel, byte[] source, int offset, int end) throws IOException {
+		int from = offset;
+		for (int idx = offset; idx < end; idx++) {
+			if (source[idx] == '\n' || source[idx] == '\r') {
+				write(channel, source, from, idx - from);
+				write(channel, (byte) ' ');
+				from = idx + 1;
+			}
+		}
+		write(channel, source, from, end - from);
+	}
+
+	private static boolean isWhitespace(byte value) {
+		return value == ' ' || value == '\t' || value == '\n' || value == '\r';
+	}
+
+	private static StringBuilder appendField(StringBuilder builder, String name, String value) {
+		builder.append('"').append(name).append("\":");
+		if (value == null) {
+			return builder.append("null");
+		}
+		builder.append('"');
+		for (int idx = 0; idx < value.length(); idx++) {
+			char c = value.charAt(idx);
+			if (c == '"' || c == '\\') {
+				builder.append('\\').append(c);
+			} else if (c < 0x20) {
+				builder.append(String.format("\\u%04x", (int) c));
+			} else {
+				builder.append(c);
+			}
+		}
+		return builder.append('"');
+	}
+
+	private void write(WritableByteChannel channel, byte value) throws IOException {
+		if (!buffer.hasRemaining()) {
+			flush(channel);
+		}
+		buffer.put(value);
+		bytes++;
+	}
+
+	private void write(WritableByteChannel channel, byte[] source, int offset, int length) throws IOException {
+		if (length > buffer.remaining()) {
+			flush(channel);
+		}
+		if (length > buffer.capacity()) {
+			// Large documents go straight to the channel
+			ByteBuffer direct = ByteBuffer.wrap(source, offset, length);
+			while (direct.hasRemaining()) {
+				channel.write(direct);
+			}
+		} else {
+			buffer.put(source, offset, length);
+		}
+		bytes += length;
+	}
+
+	private void flush(WritableByteChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+}
@@ -0,0 +1,67 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.instrument;
+
+/**
+ * Receives the events of the parser - queries, scroll pages, aggregation
+ * explosions - to report them to a monitoring system.
+ *
+ * Each event is started with a <em>begin</em> method, which returns the
+ * handle later passed to the matching <em>end</em> method. An
+ * implementation not interested in an event returns <em>null</em> from the
+ * <em>begin</em> method, and the parser then skips computing what the
+ * <em>end</em> method would be told.
+ *
+ * Implementations are found with a {@link java.util.ServiceLoader}, see
+ * {@link ESInstrumentationProvider}.
+ */
+public interface ESInstrumentation {
+
+	public Object beginQuery();
+
+	/**
+	 * @param indexes   the indexes searched, <em>null</em> for all.
+	 * @param mode      the search mode, as in ESSearch.
+	 * @param totalHits the hits - or aggregation rows - of the results.
+	 */
+	public void endQuery(Object event, String[] indexes, int mode, long totalHits);
+
+	public Object beginPage();
+
+	/**
+	 * @param hits  the hits on the page.
+	 * @param bytes the size of their source, <em>-1</em> if unknown.
+	 */
+	public void endPage(Object event, int hits, long bytes);
+
+	public Object beginExplode();
+
+	/**
+	 * @param buckets the buckets of the aggregations.
+	 * @param rows    the rows they were exploded into.
+	 */
+	public void endExplode(Object event, long buckets, long rows);
+
+}
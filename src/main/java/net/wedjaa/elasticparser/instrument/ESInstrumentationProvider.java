@@ -0,0 +1,109 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.instrument;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Finds the {@link ESInstrumentation} on the classpath - the first
+ * registered in <em>META-INF/services</em> - or falls back to one that
+ * ignores every event.
+ */
+public class ESInstrumentationProvider {
+
+	private static final Logger logger = Logger.getLogger(ESInstrumentationProvider.class);
+
+	private static final ESInstrumentation NONE = new ESInstrumentation() {
+
+		@Override
+		public Object beginQuery() {
+			return null;
+		}
+
+		@Override
+		public void endQuery(Object event, String[] indexes, int mode, long totalHits) {
+		}
+
+		@Override
+		public Object beginPage() {
+			return null;
+		}
+
+		@Override
+		public void endPage(Object event, int hits, long bytes) {
+		}
+
+		@Override
+		public Object beginExplode() {
+			return null;
+		}
+
+		@Override
+		public void endExplode(Object event, long buckets, long rows) {
+		}
+	};
+
+	private static volatile ESInstrumentation instrumentation = load();
+
+	private ESInstrumentationProvider() {
+	}
+
+	private static ESInstrumentation load() {
+		try {
+			Iterator<ESInstrumentation> found = ServiceLoader.load(ESInstrumentation.class,
+					ESInstrumentationProvider.class.getClassLoader()).iterator();
+			if (found.hasNext()) {
+				ESInstrumentation first = found.next();
+				logger.info("Instrumenting with " + first.getClass().getName());
+				return first;
+			}
+		} catch (ServiceConfigurationError ex) {
+			// e.g. the JFR module on a JVM without Flight Recorder
+			logger.warn("Failed to load the instrumentation: " + ex.getMessage());
+		} catch (LinkageError ex) {
+			logger.warn("Failed to load the instrumentation: " + ex.getMessage());
+		}
+		return NONE;
+	}
+
+	public static ESInstrumentation get() {
+		return instrumentation;
+	}
+
+	/**
+	 * Replaces the instrumentation found on the classpath.
+	 *
+	 * @param instrumentation the instrumentation, or <em>null</em> to
+	 *                        ignore every event.
+	 */
+	public static void set(ESInstrumentation instrumentation) {
+		ESInstrumentationProvider.instrumentation = instrumentation != null ? instrumentation : NONE;
+	}
+
+}
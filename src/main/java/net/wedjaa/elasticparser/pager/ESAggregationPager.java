@@ -29,7 +29,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import net.wedjaa.elasticparser.batch.ESColumnBatch;
+import net.wedjaa.elasticparser.batch.ESColumnBatchBuilder;
 import net.wedjaa.elasticparser.resolver.AggregateResolver;
+import net.wedjaa.elasticparser.spool.ESSpillingRowStore;
 
 import org.apache.log4j.Logger;
 import org.elasticsearch.action.search.SearchResponse;
@@ -41,7 +44,9 @@ public class ESAggregationPager implements ESResultsPager {
 
 	private String query = "";
 	private final AggregateResolver aggregateResolver;
-	private List<Map<String,Object>> aggregate_values;
+	private Iterable<Map<String,Object>> aggregate_values;
+	private long values_count;
+	private ESSpillingRowStore spill_store = null;
 	private Iterator<Map<String, Object>> valueIterator;
 	private int current_idx = 0;
 
@@ -51,18 +56,82 @@ public class ESAggregationPager implements ESResultsPager {
 
 		this.aggregateResolver= AggregateResolver.getInstance();
 		Aggregations aggregations = initialResponse.getAggregations();
+		List<Map<String,Object>> values;
 		if ( aggregations != null ) {
 			logger.debug("Aggregations pager is being populated");
-	        this.aggregate_values = aggregateResolver.explode(aggregations);
+	        values = aggregateResolver.explode(aggregations);
 
 		} else {
 			logger.warn("Aggregation pager not being populated: no aggregations have been found in the result");
-			this.aggregate_values = new ArrayList<Map<String,Object>>();
+			values = new ArrayList<Map<String,Object>>();
 		}
 
+		this.aggregate_values = values;
+		this.values_count = values.size();
 		this.valueIterator = this.aggregate_values.iterator();
 	}
 
+	/**
+	 * Flattens the aggregations into a store that spills to disk the rows
+	 * over its heap budget, for aggregations too large to be held on the
+	 * heap.
+	 */
+	public ESAggregationPager(SearchResponse initialResponse, String query, ESSpillingRowStore spill_store) {
+
+		this.query = query;
+
+		this.aggregateResolver= AggregateResolver.getInstance();
+		Aggregations aggregations = initialResponse.getAggregations();
+		if ( aggregations != null ) {
+			logger.debug("Aggregations pager is being populated through a spilling store");
+			aggregateResolver.explode(aggregations, spill_store);
+		} else {
+			logger.warn("Aggregation pager not being populated: no aggregations have been found in the result");
+		}
+		spill_store.finish();
+
+		this.spill_store = spill_store;
+		this.aggregate_values = spill_store;
+		this.values_count = spill_store.size();
+		this.valueIterator = this.aggregate_values.iterator();
+	}
+
+	/**
+	 * Pages through entries that have already been flattened, like the ones
+	 * built from a REST response.
+	 */
+	public ESAggregationPager(List<Map<String, Object>> aggregate_values, String query) {
+
+		this.query = query;
+		this.aggregateResolver = AggregateResolver.getInstance();
+		this.aggregate_values = aggregate_values;
+		this.values_count = aggregate_values.size();
+		this.valueIterator = this.aggregate_values.iterator();
+	}
+
+	/**
+	 * Pages through entries already added to a spilling store.
+	 */
+	public ESAggregationPager(ESSpillingRowStore spill_store, String query) {
+
+		this.query = query;
+		this.aggregateResolver = AggregateResolver.getInstance();
+		spill_store.finish();
+		this.spill_store = spill_store;
+		this.aggregate_values = spill_store;
+		this.values_count = spill_store.size();
+		this.valueIterator = this.aggregate_values.iterator();
+	}
+
+	/**
+	 * Releases the rows spilled to disk, if any.
+	 */
+	public void close() {
+		if ( spill_store != null ) {
+			spill_store.close();
+		}
+	}
+
 	@Override
 	public boolean done() {
 		return !valueIterator.hasNext();
@@ -84,12 +153,12 @@ public class ESAggregationPager implements ESResultsPager {
 
 	@Override
 	public int page_size() {
-		return aggregate_values.size();
+		return (int) values_count;
 	}
 
     @Override
     public long getResultsCount() {
-        return aggregate_values.size();
+        return values_count;
     }
 
 	@Override
@@ -108,6 +177,11 @@ public class ESAggregationPager implements ESResultsPager {
 		return valueIterator.next();
 	}
 
+	@Override
+	public ESColumnBatch nextBatch(int maxRows) {
+		return ESColumnBatchBuilder.fromPager(this, maxRows);
+	}
+
 	@Override
 	public Map<String,Class<?>> getResponseFields() {
 		Map<String,Class<?>> result = new HashMap<String,Class<?>>();
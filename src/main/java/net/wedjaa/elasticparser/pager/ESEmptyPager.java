@@ -26,6 +26,9 @@ package net.wedjaa.elasticparser.pager;
 import java.util.HashMap;
 import java.util.Map;
 
+import net.wedjaa.elasticparser.batch.ESColumnBatch;
+import net.wedjaa.elasticparser.batch.ESColumnBatchBuilder;
+
 import org.apache.log4j.Logger;
 
 public class ESEmptyPager implements ESResultsPager {
@@ -80,6 +83,11 @@ public class ESEmptyPager implements ESResultsPager {
 		return new HashMap<String, Object>();
 	}
 
+	@Override
+	public ESColumnBatch nextBatch(int maxRows) {
+		return new ESColumnBatchBuilder().build();
+	}
+
 	@Override
 	public Map<String,Class<?>> getResponseFields() {
 		Map<String,Class<?>> result = new HashMap<String,Class<?>>();
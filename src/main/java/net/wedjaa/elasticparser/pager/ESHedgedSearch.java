@@ -0,0 +1,127 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.pager;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+
+/**
+ * Sends a search and, if it hasn't answered within a delay, a second copy of
+ * it: the first to answer wins. The scroll context opened by the losing
+ * search, if any, is released once it answers.
+ *
+ * Only searches can be hedged. Fetching a page of a scroll moves the scroll
+ * forward on the cluster, so two requests for the same page would each
+ * consume a page.
+ */
+public class ESHedgedSearch {
+
+	private static final Logger logger = Logger.getLogger(ESHedgedSearch.class);
+
+	private ESHedgedSearch() {
+	}
+
+	public static SearchResponse execute(final Client esClient, SearchRequestBuilder searchBuilder,
+			long hedgeAfterMillis) {
+
+		ListenableActionFuture<SearchResponse> first = searchBuilder.execute();
+		if (hedgeAfterMillis <= 0) {
+			return first.actionGet();
+		}
+
+		try {
+			return first.get(hedgeAfterMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			logger.debug("Search slower than " + hedgeAfterMillis + "ms, sending it again");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ElasticsearchException("Interrupted while waiting for the search", e);
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		}
+
+		ListenableActionFuture<SearchResponse> second = searchBuilder.execute();
+
+		final BlockingQueue<Object> outcomes = new LinkedBlockingQueue<Object>();
+		final AtomicBoolean answered = new AtomicBoolean(false);
+		ActionListener<SearchResponse> collector = new ActionListener<SearchResponse>() {
+			@Override
+			public void onResponse(SearchResponse response) {
+				if (answered.compareAndSet(false, true)) {
+					outcomes.add(response);
+				} else if (response.getScrollId() != null) {
+					// The losing search opened a scroll nobody is going to read
+					esClient.prepareClearScroll().addScrollId(response.getScrollId()).execute();
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable error) {
+				outcomes.add(error);
+			}
+		};
+		first.addListener(collector);
+		second.addListener(collector);
+
+		Throwable failure = null;
+		try {
+			for (int received = 0; received < 2; received++) {
+				Object outcome = outcomes.take();
+				if (outcome instanceof SearchResponse) {
+					return (SearchResponse) outcome;
+				}
+				failure = (Throwable) outcome;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ElasticsearchException("Interrupted while waiting for the search", e);
+		}
+
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		throw new ElasticsearchException("Hedged search failed", failure);
+	}
+
+	private static RuntimeException unwrap(ExecutionException e) {
+		if (e.getCause() instanceof RuntimeException) {
+			return (RuntimeException) e.getCause();
+		}
+		return new ElasticsearchException("Search failed", e.getCause());
+	}
+
+}
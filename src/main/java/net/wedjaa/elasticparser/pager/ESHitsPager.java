@@ -23,10 +23,31 @@
 
 package net.wedjaa.elasticparser.pager;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.wedjaa.elasticparser.batch.ESColumnBatch;
+import net.wedjaa.elasticparser.batch.ESColumnBatchBuilder;
+import net.wedjaa.elasticparser.instrument.ESInstrumentation;
+import net.wedjaa.elasticparser.instrument.ESInstrumentationProvider;
+import net.wedjaa.elasticparser.profile.ESProfileReport;
+import net.wedjaa.elasticparser.row.ESLazySourceMap;
+import net.wedjaa.elasticparser.row.ESRowBuilder;
+import net.wedjaa.elasticparser.row.ESRowSchema;
+import net.wedjaa.elasticparser.trace.ESTrace;
+import net.wedjaa.elasticparser.trace.ESTraceSpan;
+
 import org.apache.log4j.Logger;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
@@ -43,14 +64,37 @@ public class ESHitsPager implements ESResultsPager {
 
 	// Time to keep the scrollid active: 1hr
 	public final static long SCROLL_KEEPALIVE = 3600000;
+
+	/**
+	 * The number of hits each conversion task turns into rows when
+	 * converting on a pool.
+	 */
+	public final static int CONVERSION_CHUNK_SIZE = 64;
+
 	private Iterator<SearchHit> hits;
 	private final Client esClient;
 	private long total_hits = 0;
 	private int page = 0;
 	private int page_size = 0;
 	private long hits_count = 0;
+	private long max_rows = 0;
+	private boolean scroll_released = false;
+	private boolean lazy_source = false;
+	private String[] doc_value_fields = new String[0];
 	private String query;
 	private SearchResponse searchResponse;
+	private final ESRowBuilder fieldsRowBuilder = new ESRowBuilder(new ESRowSchema());
+	private ExecutorService conversion_pool = null;
+	private int conversion_depth = 0;
+	private final ArrayDeque<Future<List<Map<String, Object>>>> converting =
+			new ArrayDeque<Future<List<Map<String, Object>>>>();
+	private Iterator<Map<String, Object>> converted = Collections.emptyIterator();
+	private boolean hits_exhausted = false;
+	private long delivered_count = 0;
+	private ESRetryPolicy retry_policy = null;
+	private ESScrollResumer resumer = null;
+	private ESProfileReport profile_report = null;
+	private ESTrace trace = null;
 	private Logger logger = Logger.getLogger(ESHitsPager.class);
 
 	public ESHitsPager(SearchResponse searchResponse, String query, int page_size, Client esClient) {
@@ -76,11 +120,11 @@ public class ESHitsPager implements ESResultsPager {
 	}
 
 	public boolean hit_available() {
-		return hits_count < total_hits;
+		return hits_count < deliverable_hits();
 	}
 
 	public long current_hit_idx() {
-		return hits_count;
+		return conversion_pool != null ? delivered_count : hits_count;
 	}
 
 	public int next_hit_idx() {
@@ -102,8 +146,132 @@ public class ESHitsPager implements ESResultsPager {
 		this.page_size = page_size;
 	}
 
+	/**
+	 * Limits the number of hits this pager will deliver. Once the limit
+	 * has been reached no more scroll requests are issued and the scroll
+	 * context is released on the cluster.
+	 *
+	 * @param max_rows the maximum number of hits to return, 0 means no limit.
+	 */
+	public void setMaxRows(long max_rows) {
+		this.max_rows = max_rows > 0 ? max_rows : 0;
+	}
+
+	public long getMaxRows() {
+		return max_rows;
+	}
+
+	/**
+	 * When enabled, rows are views on the raw source of the hits that only
+	 * parse the fields that are actually read, instead of the whole document.
+	 */
+	public void setLazySource(boolean lazy_source) {
+		this.lazy_source = lazy_source;
+	}
+
+	public boolean isLazySource() {
+		return lazy_source;
+	}
+
+	/**
+	 * Sets the fields that are fetched from the doc values. Their typed
+	 * values are merged in the rows, replacing the ones in the source.
+	 */
+	public void setDocValueFields(String[] doc_value_fields) {
+		this.doc_value_fields = doc_value_fields != null ? doc_value_fields : new String[0];
+	}
+
+	/**
+	 * Converts hits to rows on a pool instead of the thread reading the
+	 * rows: the hits are handed to the pool in chunks as they are fetched,
+	 * and rows are returned in the order of the hits as their chunk is
+	 * ready.
+	 *
+	 * @param conversion_pool  the pool converting the hits.
+	 * @param conversion_depth the maximum number of chunks being converted
+	 *                         ahead of the reader.
+	 */
+	public void setConversionPool(ExecutorService conversion_pool, int conversion_depth) {
+		this.conversion_pool = conversion_pool;
+		this.conversion_depth = Math.max(conversion_depth, 1);
+	}
+
+	/**
+	 * Makes the pager resilient to failures while scrolling: transient
+	 * errors are retried, a lost scroll context is resumed when a resumer
+	 * is given, and a page that can't be fetched throws an
+	 * {@link ESScrollException} instead of ending the results.
+	 *
+	 * @param retry_policy how to retry.
+	 * @param resumer      runs the search again, in the same order, or
+	 *                     <em>null</em> if the search can't be resumed.
+	 */
+	public void setRetryPolicy(ESRetryPolicy retry_policy, ESScrollResumer resumer) {
+		this.retry_policy = retry_policy;
+		this.resumer = resumer;
+	}
+
+	/**
+	 * Accounts the round trips fetching the following pages of the scroll
+	 * in the profile of the query.
+	 */
+	public void setProfileReport(ESProfileReport profile_report) {
+		this.profile_report = profile_report;
+	}
+
+	/**
+	 * Records a span for each page fetched from the scroll.
+	 */
+	public void setTrace(ESTrace trace) {
+		this.trace = trace;
+	}
+
+	private SearchResponse scroll() throws InterruptedException, ExecutionException {
+		long start = System.nanoTime();
+		ESTraceSpan span = trace != null ? trace.startSpan("page") : null;
+		ESInstrumentation instrumentation = ESInstrumentationProvider.get();
+		Object pageEvent = instrumentation.beginPage();
+		SearchResponse response = esClient.prepareSearchScroll(searchResponse.getScrollId())
+				.setScroll(new TimeValue(SCROLL_KEEPALIVE)).execute().get();
+		if (pageEvent != null) {
+			SearchHit[] pageHits = response.getHits().getHits();
+			long bytes = 0;
+			for (SearchHit hit : pageHits) {
+				bytes += hit.sourceRef() != null ? hit.sourceRef().length() : 0;
+			}
+			instrumentation.endPage(pageEvent, pageHits.length, bytes);
+		}
+		if (span != null) {
+			span.set("hits", response.getHits().getHits().length).end();
+		}
+		if (profile_report != null) {
+			profile_report.addPageFetch(System.nanoTime() - start);
+		}
+		return response;
+	}
+
+	private long deliverable_hits() {
+		if (max_rows > 0 && max_rows < total_hits) {
+			return max_rows;
+		}
+		return total_hits;
+	}
+
+	private boolean limit_reached() {
+		return max_rows > 0 && hits_count >= max_rows;
+	}
+
 	public boolean done() {
-		logger.trace("Checking if done: current hits: " + hits_count + " of " + total_hits);
+		if (trace != null && logger.isTraceEnabled()) {
+			logger.trace("Checking if done: current hits: " + hits_count + " of " + total_hits);
+		}
+		if (conversion_pool != null && !converted.hasNext() && converting.isEmpty()
+				&& (hits_exhausted || limit_reached())) {
+			return true;
+		}
+		if (conversion_pool == null && limit_reached()) {
+			return true;
+		}
 		return hits_count > total_hits;
 	}
 
@@ -111,16 +279,57 @@ public class ESHitsPager implements ESResultsPager {
 		return query;
 	}
 
-	@Override
-	public Map<String, Object> next() {
+	/**
+	 * Releases the scroll context held on the cluster. This happens as soon
+	 * as the row limit has been reached, so that reports that read only
+	 * the first rows don't keep a scroll open until it expires.
+	 */
+	private void release_scroll() {
+		if (scroll_released || esClient == null || searchResponse == null
+				|| searchResponse.getScrollId() == null) {
+			return;
+		}
+		scroll_released = true;
+		try {
+			logger.debug("Releasing ScrollID: " + searchResponse.getScrollId());
+			esClient.prepareClearScroll().addScrollId(searchResponse.getScrollId()).execute().actionGet();
+		} catch (Exception ex) {
+			logger.warn("Failed to release the scroll context [" + ex.getMessage() + "]");
+		}
+	}
+
+	/**
+	 * Stops reading the hits, releasing the scroll context held on the
+	 * cluster instead of letting it expire.
+	 */
+	public void close() {
+		release_scroll();
+	}
+
+	/**
+	 * Returns the next hit as it came from the cluster, without turning it
+	 * into a row. Consumers that only pass documents along can use the raw
+	 * source of the hit - {@link SearchHit#sourceRef()} - directly.
+	 *
+	 * @return the next hit, fetching the next page of the scroll if needed,
+	 * or <em>null</em> if there are no more hits to return.
+	 */
+	public SearchHit nextHit() {
+
+		// Don't go back to the cluster for rows nobody is going to read.
+		if (limit_reached()) {
+			release_scroll();
+			return null;
+		}
 
 		// Get the next page_size of results if we have exhausted the
 		// current list.
-		if (!hits.hasNext()) {
+		if (!hits.hasNext() && retry_policy != null) {
+			next_page_resilient(true);
+		} else if (!hits.hasNext()) {
 			try {
 				logger.debug("Using ScrollID: " + searchResponse.getScrollId());
-				searchResponse = esClient.prepareSearchScroll(searchResponse.getScrollId())
-						.setScroll(new TimeValue(SCROLL_KEEPALIVE)).execute().get();
+				searchResponse = scroll();
 				logger.debug("Got another " + searchResponse.getHits().getHits().length + " results.");
 			} catch (Exception ex) {
 				logger.warn("Failed to get the next bunch of results! [" + ex.getMessage() + "]");
@@ -137,19 +346,230 @@ public class ESHitsPager implements ESResultsPager {
 
 		hits_count++;
 		SearchHit hit = hits.next();
+		if (limit_reached()) {
+			release_scroll();
+		}
+		return hit;
+	}
+
+	/**
+	 * Turns a hit returned by {@link #nextHit()} into a row, the same way
+	 * {@link #next()} does.
+	 *
+	 * @return the row, or <em>null</em> if the hit has neither a source nor
+	 * fields.
+	 */
+	public Map<String, Object> toRow(SearchHit hit) {
+		return hit_row(hit);
+	}
+
+	/**
+	 * Gets the next page of the scroll, retrying transient errors and
+	 * resuming the search if the scroll context has been lost.
+	 */
+	private void next_page_resilient(boolean can_resume) {
+		int attempt = 0;
+		while (true) {
+			try {
+				logger.debug("Using ScrollID: " + searchResponse.getScrollId());
+				searchResponse = scroll();
+				hits = searchResponse.getHits().iterator();
+				return;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new ESScrollException("Interrupted while getting the next page of hits", hits_count, ex);
+			} catch (Exception ex) {
+				Throwable cause = ex instanceof ExecutionException && ex.getCause() != null ? ex.getCause() : ex;
+				if (can_resume && resumer != null && retry_policy.isResume() && ESRetryPolicy.isContextLost(cause)) {
+					resume_scroll();
+					return;
+				}
+				if (attempt >= retry_policy.getMaxRetries() || !ESRetryPolicy.isTransient(cause)) {
+					throw new ESScrollException("Failed to get the next page of hits", hits_count, cause);
+				}
+				back_off(attempt++, cause);
+			}
+		}
+	}
+
+	/**
+	 * Runs the search again and skips the hits already returned.
+	 */
+	private void resume_scroll() {
+		logger.warn("Scroll context lost after " + hits_count + " hits, running the search again");
+		int attempt = 0;
+		while (true) {
+			try {
+				searchResponse = resumer.resume();
+				break;
+			} catch (RuntimeException ex) {
+				if (attempt >= retry_policy.getMaxRetries() || !ESRetryPolicy.isTransient(ex)) {
+					throw new ESScrollException("Failed to resume the search", hits_count, ex);
+				}
+				back_off(attempt++, ex);
+			}
+		}
+
+		hits = searchResponse.getHits().iterator();
+		long skipped = 0;
+		while (skipped < hits_count) {
+			if (!hits.hasNext()) {
+				next_page_resilient(false);
+				if (!hits.hasNext()) {
+					throw new ESScrollException("The resumed search returned fewer hits than already read",
+							hits_count, null);
+				}
+			}
+			hits.next();
+			skipped++;
+		}
+		logger.info("Search resumed, skipped the " + skipped + " hits already read");
+	}
+
+	private void back_off(int attempt, Throwable cause) {
+		long backoff = retry_policy.getBackoffMillis(attempt);
+		logger.warn("Scroll request failed [" + cause.getMessage() + "], retrying in " + backoff + "ms");
+		try {
+			Thread.sleep(backoff);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ESScrollException("Interrupted while retrying", hits_count, e);
+		}
+	}
+
+	private Map<String, Object> hit_row(SearchHit hit) {
+		return hit_row(hit, fieldsRowBuilder);
+	}
+
+	private Map<String, Object> hit_row(SearchHit hit, ESRowBuilder rowBuilder) {
+		if (lazy_source && hit.sourceRef() != null) {
+			ESLazySourceMap source = new ESLazySourceMap(hit.sourceRef());
+			for (String field : doc_value_fields) {
+				SearchHitField docValue = hit.fields() != null ? hit.fields().get(field) : null;
+				if (docValue != null) {
+					source.overlay(field, docValue.getValue());
+				}
+			}
+			return source;
+		}
 		if(hit.getSource() != null) {
-			return hit.getSource();
+			Map<String, Object> source = hit.getSource();
+			// Doc values are typed, they replace what the source says
+			for (String field : doc_value_fields) {
+				SearchHitField docValue = hit.fields() != null ? hit.fields().get(field) : null;
+				if (docValue != null) {
+					source.put(field, docValue.getValue());
+				}
+			}
+			return source;
 		}
 		if(hit.fields() != null) {
-			Map<String, Object> fields = new HashMap<>();
 			for(Map.Entry<String, SearchHitField> field : hit.fields().entrySet()) {
-				fields.put(field.getKey(), field.getValue().getValue());
+				rowBuilder.set(field.getKey(), field.getValue().getValue());
 			}
-			return fields;
+			return rowBuilder.build();
 		}
 		return null;
 	}
 
+	/**
+	 * Hands chunks of hits to the conversion pool, until enough chunks are
+	 * being converted or there are no more hits.
+	 */
+	private void fill_pipeline() {
+		while (!hits_exhausted && converting.size() < conversion_depth) {
+			final List<SearchHit> chunk = new ArrayList<SearchHit>(CONVERSION_CHUNK_SIZE);
+			while (chunk.size() < CONVERSION_CHUNK_SIZE) {
+				SearchHit hit = nextHit();
+				if (hit == null) {
+					hits_exhausted = true;
+					break;
+				}
+				chunk.add(hit);
+			}
+			if (chunk.isEmpty()) {
+				break;
+			}
+			final ESRowSchema schema = fieldsRowBuilder.getSchema();
+			converting.add(conversion_pool.submit(new Callable<List<Map<String, Object>>>() {
+				@Override
+				public List<Map<String, Object>> call() {
+					// Builders aren't thread safe, the schema is
+					ESRowBuilder rowBuilder = new ESRowBuilder(schema);
+					List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(chunk.size());
+					for (SearchHit hit : chunk) {
+						Map<String, Object> row = hit_row(hit, rowBuilder);
+						if (row != null) {
+							rows.add(row);
+						}
+					}
+					return rows;
+				}
+			}));
+		}
+	}
+
+	private Map<String, Object> next_converted() {
+		while (!converted.hasNext()) {
+			fill_pipeline();
+			Future<List<Map<String, Object>>> chunk = converting.poll();
+			if (chunk == null) {
+				return null;
+			}
+			try {
+				converted = chunk.get().iterator();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for hits to be converted", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Failed to convert hits to rows: " + e.getCause().getMessage(),
+						e.getCause());
+			}
+		}
+		// Keep the pool busy while the reader works on this row
+		fill_pipeline();
+		delivered_count++;
+		return converted.next();
+	}
+
+	@Override
+	public Map<String, Object> next() {
+		if (conversion_pool != null) {
+			return next_converted();
+		}
+		SearchHit hit = nextHit();
+		if (hit == null) {
+			return null;
+		}
+		return hit_row(hit);
+	}
+
+	@Override
+	public ESColumnBatch nextBatch(int maxRows) {
+		if (conversion_pool != null) {
+			return ESColumnBatchBuilder.fromPager(this, maxRows);
+		}
+		ESColumnBatchBuilder batchBuilder = new ESColumnBatchBuilder(Math.min(maxRows, page_size > 0 ? page_size : PAGE_SIZE));
+		while (batchBuilder.getRowCount() < maxRows) {
+			SearchHit hit = nextHit();
+			if (hit == null) {
+				break;
+			}
+			if (hit.sourceRef() != null) {
+				batchBuilder.append(hit_row(hit));
+			} else if (hit.fields() != null) {
+				// No need to build a row, fields go straight in the columns
+				for (Map.Entry<String, SearchHitField> field : hit.fields().entrySet()) {
+					batchBuilder.set(field.getKey(), field.getValue().getValue());
+				}
+				batchBuilder.endRow();
+			} else {
+				break;
+			}
+		}
+		return batchBuilder.build();
+	}
+
 	@Override
 	public Map<String, Class<?>> getResponseFields() {
 		logger.debug("Hit Parser - Getting fields");
@@ -165,51 +585,87 @@ public class ESHitsPager implements ESResultsPager {
 		}
 
 		/**
-		 * The searchResponse we have received when initialized is an empty one,
-		 * we need to run the first search to get results from the scroll.
+		 * A scan search starts with an empty response, we need to run the
+		 * first scroll to get results. Other searches already have their first
+		 * page: scrolling would skip it.
 		 */
-		try {
-			logger.debug("Getting the first scroll results");
-			searchResponse = esClient.prepareSearchScroll(searchResponse.getScrollId())
-					.setScroll(new TimeValue(SCROLL_KEEPALIVE)).execute().get();
-		} catch (Exception ex) {
-			/**
-			 * Return an empty set of fields in case of errors.
-			 */
-			logger.warn("Error fetching results for fields: " + ex.getLocalizedMessage());
-			return result;
+		if (searchResponse.getHits() != null && searchResponse.getHits().getHits().length == 0) {
+			try {
+				logger.debug("Getting the first scroll results");
+				searchResponse = scroll();
+			} catch (Exception ex) {
+				/**
+				 * Return an empty set of fields in case of errors.
+				 */
+				logger.warn("Error fetching results for fields: " + ex.getLocalizedMessage());
+				return result;
+			}
+			// The rows start from this page too
+			hits = searchResponse.getHits().iterator();
 		}
 
 		if (searchResponse.getHits() != null) {
 			logger.debug("Response has hits...");
-			SearchHit[] hits = searchResponse.getHits().getHits();
-			logger.debug("Hits on this page: " + hits.length);
-			for (SearchHit hit : hits) {
-				try {
-					if(hit.getSource() != null) {
-						Set<String> field_names = hit.getSource().keySet();
-						for (String field_name : field_names) {
-							if (!result.containsKey(field_name)) {
-								if (hit.getSource().get(field_name) != null) {
-									result.put(field_name, hit.getSource().get(field_name).getClass());
-								}
+			return getHitsFields(searchResponse.getHits().getHits(), doc_value_fields);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return the fields found in the hits - in their source or, if there is
+	 * none, their fields - with the class of their first non null value.
+	 */
+	public static Map<String, Class<?>> getHitsFields(SearchHit[] hits) {
+		return getHitsFields(hits, new String[0]);
+	}
+
+	/**
+	 * @param hits             the hits to inspect.
+	 * @param doc_value_fields the fields read from the doc values: the rows
+	 *                         take them from the hit fields even when there
+	 *                         is a source, so their class is the one of the
+	 *                         doc value.
+	 * @return the fields found in the hits - in their source or, if there is
+	 * none, their fields - with the class of their first non null value.
+	 */
+	public static Map<String, Class<?>> getHitsFields(SearchHit[] hits, String[] doc_value_fields) {
+		Map<String, Class<?>> result = new HashMap<String, Class<?>>();
+		Set<String> typed_fields = new HashSet<String>();
+		Logger logger = Logger.getLogger(ESHitsPager.class);
+		logger.debug("Hits on this page: " + hits.length);
+		for (SearchHit hit : hits) {
+			try {
+				if(hit.getSource() != null) {
+					Set<String> field_names = hit.getSource().keySet();
+					for (String field_name : field_names) {
+						if (!result.containsKey(field_name)) {
+							if (hit.getSource().get(field_name) != null) {
+								result.put(field_name, hit.getSource().get(field_name).getClass());
 							}
 						}
-					} else if(hit.fields() != null) {
-						for(Map.Entry<String, SearchHitField> field : hit.fields().entrySet()) {
-							if(!result.containsKey(field.getKey())) {
-								if(field.getValue().getValue() != null) {
-									result.put(field.getKey(), field.getValue().getValue().getClass());
-								}
+					}
+					// Doc values replace what the source says, as in the rows
+					for (String field_name : doc_value_fields) {
+						SearchHitField doc_value = hit.fields() != null ? hit.fields().get(field_name) : null;
+						if (!typed_fields.contains(field_name) && doc_value != null && doc_value.getValue() != null) {
+							result.put(field_name, doc_value.getValue().getClass());
+							typed_fields.add(field_name);
+						}
+					}
+				} else if(hit.fields() != null) {
+					for(Map.Entry<String, SearchHitField> field : hit.fields().entrySet()) {
+						if(!result.containsKey(field.getKey())) {
+							if(field.getValue().getValue() != null) {
+								result.put(field.getKey(), field.getValue().getValue().getClass());
 							}
 						}
 					}
-				} catch (Exception ex) {
-					logger.warn("Exception while handling hit:\n" + hit.getSourceAsString() + "\nError: "
-							+ ex.getMessage());
 				}
+			} catch (Exception ex) {
+				logger.warn("Exception while handling hit:\n" + hit.getSourceAsString() + "\nError: "
+						+ ex.getMessage());
 			}
-
 		}
 
 		return result;
@@ -0,0 +1,419 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.pager;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.wedjaa.elasticparser.batch.ESColumnBatch;
+import net.wedjaa.elasticparser.batch.ESColumnBatchBuilder;
+
+import org.apache.log4j.Logger;
+import org.elasticsearch.search.SearchHit;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Merges the hits of several sorted scrolls - over shards, indexes or
+ * slices of the same query - in a single sorted stream of rows.
+ *
+ * Every stream is scrolled on a thread of its own, prefetching its rows in
+ * a bounded buffer, and the rows are merged on the sort values of their
+ * hits: the heads of the streams are kept in a heap and the smallest one
+ * is returned, then replaced by the next row of its stream. The sort of
+ * the query - the order of each of its keys - decides what smallest
+ * means. Rows with the same sort values are returned in the order of
+ * their streams.
+ */
+public class ESMergingPager implements ESResultsPager {
+
+	/**
+	 * The rows prefetched for each stream by default.
+	 */
+	public final static int DEFAULT_BUFFER_ROWS = 1000;
+
+	// Marks the end of the rows of a stream in its buffer
+	private final static Object END_OF_STREAM = new Object();
+
+	private final String query;
+	private final List<String> stream_queries;
+	private final ESSliceOpener opener;
+	private final long total_hits;
+	private final boolean[] descending;
+	private int buffer_rows = DEFAULT_BUFFER_ROWS;
+	private final List<BlockingQueue<Object>> buffers = new ArrayList<BlockingQueue<Object>>();
+	private final PriorityQueue<StreamHead> heads;
+	private ExecutorService stream_pool = null;
+	private volatile boolean closed = false;
+	private boolean finished = false;
+	private long delivered_count = 0;
+	private long max_rows = 0;
+	private int page = -1;
+	private int page_size = 0;
+	private Logger logger = Logger.getLogger(ESMergingPager.class);
+
+	/**
+	 * @param query          the sorted query, its sort decides the order
+	 *                       of the merge.
+	 * @param stream_queries the queries of the streams, each returning its
+	 *                       hits in the order of the sort.
+	 * @param total_hits     the number of hits of all the streams.
+	 * @param page_size      the page size of the scrolls.
+	 * @param opener         opens the scroll of a stream, it must return
+	 *                       an {@link ESHitsPager} - its hits carry their
+	 *                       sort values.
+	 */
+	public ESMergingPager(String query, List<String> stream_queries, long total_hits, int page_size,
+			ESSliceOpener opener) {
+		this.query = query;
+		this.stream_queries = stream_queries;
+		this.total_hits = total_hits;
+		this.page_size = page_size;
+		this.opener = opener;
+		this.descending = getSortOrders(query);
+		this.heads = new PriorityQueue<StreamHead>(Math.max(stream_queries.size(), 1), new Comparator<StreamHead>() {
+			@Override
+			public int compare(StreamHead first, StreamHead second) {
+				int result = compareSortValues(first.sort_values, second.sort_values, descending);
+				return result != 0 ? result : first.stream - second.stream;
+			}
+		});
+	}
+
+	/**
+	 * @param buffer_rows the rows prefetched for each stream.
+	 */
+	public void setBufferRows(int buffer_rows) {
+		this.buffer_rows = Math.max(buffer_rows, 1);
+	}
+
+	/**
+	 * @see ESHitsPager#setMaxRows(long)
+	 */
+	public void setMaxRows(long max_rows) {
+		this.max_rows = max_rows > 0 ? max_rows : 0;
+	}
+
+	public int getStreamCount() {
+		return stream_queries.size();
+	}
+
+	/**
+	 * @return for each key of the sort of the query, true if it's in
+	 * descending order. The score is sorted descending unless told
+	 * otherwise, everything else ascending.
+	 */
+	static boolean[] getSortOrders(String query) {
+		Object sort = new JSONObject(query).opt("sort");
+		JSONArray keys;
+		if (sort instanceof JSONArray) {
+			keys = (JSONArray) sort;
+		} else {
+			keys = new JSONArray();
+			if (sort != null) {
+				keys.put(sort);
+			}
+		}
+		boolean[] orders = new boolean[keys.length()];
+		for (int idx = 0; idx < keys.length(); idx++) {
+			Object key = keys.get(idx);
+			if (key instanceof JSONObject) {
+				JSONObject keyObject = (JSONObject) key;
+				Iterator<String> names = keyObject.keys();
+				String name = names.next();
+				Object order = keyObject.get(name);
+				if (order instanceof JSONObject) {
+					order = ((JSONObject) order).optString("order", "_score".equals(name) ? "desc" : "asc");
+				}
+				orders[idx] = "desc".equalsIgnoreCase(String.valueOf(order));
+			} else {
+				orders[idx] = "_score".equals(key);
+			}
+		}
+		return orders;
+	}
+
+	/**
+	 * Compares the sort values of two hits, key by key. Numbers are compared
+	 * by value, values of the same class by their natural order and
+	 * anything else by its text. Missing values go last.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static int compareSortValues(Object[] first, Object[] second, boolean[] descending) {
+		int keys = Math.min(first.length, second.length);
+		for (int idx = 0; idx < keys; idx++) {
+			Object left = first[idx];
+			Object right = second[idx];
+			int result;
+			if (left == null || right == null) {
+				// Missing values are last whatever the order
+				if (left == right) {
+					continue;
+				}
+				return left == null ? 1 : -1;
+			} else if (left instanceof Number && right instanceof Number) {
+				if ((left instanceof Long || left instanceof Integer) && (right instanceof Long || right instanceof Integer)) {
+					long leftValue = ((Number) left).longValue();
+					long rightValue = ((Number) right).longValue();
+					result = leftValue < rightValue ? -1 : (leftValue == rightValue ? 0 : 1);
+				} else {
+					result = Double.compare(((Number) left).doubleValue(), ((Number) right).doubleValue());
+				}
+			} else if (left instanceof Comparable && left.getClass() == right.getClass()) {
+				result = ((Comparable) left).compareTo(right);
+			} else {
+				result = left.toString().compareTo(right.toString());
+			}
+			if (result != 0) {
+				return idx < descending.length && descending[idx] ? -result : result;
+			}
+		}
+		return 0;
+	}
+
+	private void start() {
+		if (stream_pool != null || stream_queries.isEmpty()) {
+			return;
+		}
+		logger.debug("Merging " + stream_queries.size() + " sorted streams");
+		// Every stream has to be read for the heads to be compared
+		stream_pool = Executors.newFixedThreadPool(stream_queries.size(), new ThreadFactory() {
+			private final AtomicInteger threadCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "elasticparser-merge-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for (int idx = 0; idx < stream_queries.size(); idx++) {
+			final int stream = idx;
+			final BlockingQueue<Object> buffer = new ArrayBlockingQueue<Object>(buffer_rows + 1);
+			buffers.add(buffer);
+			stream_pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					read_stream(stream, buffer);
+				}
+			});
+		}
+		stream_pool.shutdown();
+		for (int idx = 0; idx < stream_queries.size(); idx++) {
+			advance(idx);
+		}
+	}
+
+	private void read_stream(int stream, BlockingQueue<Object> buffer) {
+		ESHitsPager streamPager = null;
+		try {
+			if (closed) {
+				return;
+			}
+			ESResultsPager opened = opener.open(stream_queries.get(stream));
+			if (!(opened instanceof ESHitsPager)) {
+				throw new IllegalArgumentException("Only the hits of native searches carry their sort values");
+			}
+			streamPager = (ESHitsPager) opened;
+			long expected = streamPager.getResultsCount();
+			if (max_rows > 0) {
+				// The streams stop at the rows wanted, like the pager
+				expected = Math.min(expected, max_rows);
+			}
+			logger.debug("Stream " + stream + " has " + streamPager.getResultsCount() + " hits");
+			long read = 0;
+			SearchHit hit;
+			while (!closed && (hit = streamPager.nextHit()) != null) {
+				Map<String, Object> row = streamPager.toRow(hit);
+				if (row != null) {
+					buffer.put(new StreamHead(stream, hit.getSortValues(), row));
+				}
+				read++;
+			}
+			if (!closed && read < expected) {
+				// A missing hit would go unnoticed in the merged order
+				throw new ESScrollException("Stream " + stream + " ended before its " + expected + " hits", read,
+						null);
+			}
+			buffer.put(END_OF_STREAM);
+		} catch (InterruptedException e) {
+			// The pager is being closed
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			logger.warn("Failed to read stream " + stream + " [" + e.getMessage() + "]");
+			try {
+				buffer.put(e);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		} finally {
+			if (streamPager != null) {
+				streamPager.close();
+			}
+		}
+	}
+
+	/**
+	 * Puts the next row of a stream in the heap, waiting for the stream to
+	 * read it.
+	 */
+	private void advance(int stream) {
+		Object item;
+		try {
+			item = buffers.get(stream).take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the rows of the streams", e);
+		}
+		if (item instanceof RuntimeException) {
+			close();
+			throw new ESScrollException("Failed to read stream " + stream, delivered_count, (RuntimeException) item);
+		}
+		if (item != END_OF_STREAM) {
+			heads.add((StreamHead) item);
+		}
+	}
+
+	private boolean limit_reached() {
+		return max_rows > 0 && delivered_count >= max_rows;
+	}
+
+	/**
+	 * Stops scrolling the streams, releasing their scroll contexts.
+	 */
+	public void close() {
+		closed = true;
+		finished = true;
+		if (stream_pool != null) {
+			stream_pool.shutdownNow();
+		}
+	}
+
+	public boolean done() {
+		return finished || limit_reached();
+	}
+
+	public boolean hit_available() {
+		return !done();
+	}
+
+	public void set_page_size(int page_size) {
+		this.page = 0;
+		this.page_size = page_size;
+	}
+
+	public long current_hit_idx() {
+		return delivered_count;
+	}
+
+	public int page_size() {
+		return page_size;
+	}
+
+	public int next_page() {
+		page++;
+		return page * page_size;
+	}
+
+	@Override
+	public long getResultsCount() {
+		return total_hits;
+	}
+
+	public String get_query() {
+		return query;
+	}
+
+	@Override
+	public Map<String, Object> next() {
+		if (finished || limit_reached()) {
+			close();
+			return null;
+		}
+		start();
+		StreamHead head = heads.poll();
+		if (head == null) {
+			finished = true;
+			return null;
+		}
+		advance(head.stream);
+		delivered_count++;
+		if (limit_reached()) {
+			// No more rows will be read, stop the scrolls
+			close();
+		}
+		return head.row;
+	}
+
+	@Override
+	public ESColumnBatch nextBatch(int maxRows) {
+		return ESColumnBatchBuilder.fromPager(this, maxRows);
+	}
+
+	@Override
+	public Map<String, Class<?>> getResponseFields() {
+		logger.debug("Merging Hit Parser - Getting fields");
+
+		Map<String, Class<?>> result = new HashMap<String, Class<?>>();
+
+		if (!finished) {
+			start();
+		}
+		StreamHead head = heads.peek();
+		if (head != null) {
+			for (Map.Entry<String, Object> field : head.row.entrySet()) {
+				if (field.getValue() != null) {
+					result.put(field.getKey(), field.getValue().getClass());
+				}
+			}
+		}
+
+		return result;
+	}
+
+	private static class StreamHead {
+		private final int stream;
+		private final Object[] sort_values;
+		private final Map<String, Object> row;
+
+		StreamHead(int stream, Object[] sort_values, Map<String, Object> row) {
+			this.stream = stream;
+			this.sort_values = sort_values != null ? sort_values : new Object[0];
+			this.row = row;
+		}
+	}
+
+}
@@ -0,0 +1,243 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.pager;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import net.wedjaa.elasticparser.batch.ESColumnBatch;
+import net.wedjaa.elasticparser.batch.ESColumnBatchBuilder;
+import net.wedjaa.elasticparser.instrument.ESInstrumentation;
+import net.wedjaa.elasticparser.instrument.ESInstrumentationProvider;
+import net.wedjaa.elasticparser.rest.ESRestClient;
+import net.wedjaa.elasticparser.rest.ESRestResponse;
+import net.wedjaa.elasticparser.rest.ESRestResponseParser;
+import net.wedjaa.elasticparser.row.ESRowSchema;
+import net.wedjaa.elasticparser.trace.ESTrace;
+import net.wedjaa.elasticparser.trace.ESTraceSpan;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pages through the hits of a scan scroll opened through the REST
+ * endpoints. It behaves like {@link ESHitsPager}, rows are built while the
+ * responses are parsed.
+ */
+public class ESRestHitsPager implements ESResultsPager {
+
+	private Iterator<Map<String, Object>> hits;
+	private final ESRestClient restClient;
+	private final ESRestResponseParser responseParser = new ESRestResponseParser(new ESRowSchema());
+	private long total_hits = 0;
+	private int page = 0;
+	private int page_size = 0;
+	private long hits_count = 0;
+	private long max_rows = 0;
+	private boolean scroll_released = false;
+	private String query;
+	private ESRestResponse searchResponse;
+	private ESTrace trace = null;
+	private Logger logger = Logger.getLogger(ESRestHitsPager.class);
+
+	public ESRestHitsPager(ESRestResponse searchResponse, String query, int page_size, ESRestClient restClient) {
+		this.total_hits = searchResponse.getTotalHits();
+		this.hits_count = 0;
+		this.page_size = page_size;
+		this.query = query;
+		this.page = -1;
+		this.searchResponse = searchResponse;
+		this.hits = searchResponse.getHits().iterator();
+		this.restClient = restClient;
+	}
+
+	public int next_page() {
+		page++;
+		return page * page_size;
+	}
+
+	public boolean hit_available() {
+		return hits_count < deliverable_hits();
+	}
+
+	public long current_hit_idx() {
+		return hits_count;
+	}
+
+	public int page_size() {
+		return page_size;
+	}
+
+	@Override
+	public long getResultsCount() {
+		return total_hits;
+	}
+
+	public void set_page_size(int page_size) {
+		this.page = 0;
+		this.page_size = page_size;
+	}
+
+	/**
+	 * @see ESHitsPager#setMaxRows(long)
+	 */
+	public void setMaxRows(long max_rows) {
+		this.max_rows = max_rows > 0 ? max_rows : 0;
+	}
+
+	/**
+	 * @see ESHitsPager#setTrace(ESTrace)
+	 */
+	public void setTrace(ESTrace trace) {
+		this.trace = trace;
+	}
+
+	private long deliverable_hits() {
+		if (max_rows > 0 && max_rows < total_hits) {
+			return max_rows;
+		}
+		return total_hits;
+	}
+
+	private boolean limit_reached() {
+		return max_rows > 0 && hits_count >= max_rows;
+	}
+
+	public boolean done() {
+		if (limit_reached()) {
+			return true;
+		}
+		return hits_count > total_hits;
+	}
+
+	public String get_query() {
+		return query;
+	}
+
+	private void release_scroll() {
+		if (scroll_released || searchResponse.getScrollId() == null) {
+			return;
+		}
+		scroll_released = true;
+		try {
+			if (!restClient.clearScroll(searchResponse.getScrollId())) {
+				logger.warn("The cluster did not release the scroll context");
+			}
+		} catch (Exception ex) {
+			logger.warn("Failed to release the scroll context [" + ex.getMessage() + "]");
+		}
+	}
+
+	/**
+	 * @see ESHitsPager#close()
+	 */
+	public void close() {
+		release_scroll();
+	}
+
+	@Override
+	public Map<String, Object> next() {
+
+		if (limit_reached()) {
+			release_scroll();
+			return null;
+		}
+
+		// Get the next page of results if we have exhausted the
+		// current list.
+		if (!hits.hasNext()) {
+			if (searchResponse.getScrollId() == null) {
+				return null;
+			}
+			try {
+				ESTraceSpan span = trace != null ? trace.startSpan("page") : null;
+				ESInstrumentation instrumentation = ESInstrumentationProvider.get();
+				Object pageEvent = instrumentation.beginPage();
+				searchResponse = restClient.scroll(searchResponse.getScrollId(), responseParser);
+				if (pageEvent != null) {
+					// The source is parsed while it's read, its size is unknown
+					instrumentation.endPage(pageEvent, searchResponse.getHits().size(), -1);
+				}
+				if (span != null) {
+					span.set("hits", searchResponse.getHits().size()).end();
+				}
+				logger.debug("Got another " + searchResponse.getHits().size() + " results.");
+			} catch (Exception ex) {
+				logger.warn("Failed to get the next bunch of results! [" + ex.getMessage() + "]");
+				return null;
+			}
+
+			hits = searchResponse.getHits().iterator();
+		}
+
+		if (!hits.hasNext()) {
+			// Nothing else to return, the search result was empty!
+			return null;
+		}
+
+		hits_count++;
+		Map<String, Object> hit = hits.next();
+		if (limit_reached()) {
+			release_scroll();
+		}
+		return hit;
+	}
+
+	@Override
+	public ESColumnBatch nextBatch(int maxRows) {
+		return ESColumnBatchBuilder.fromPager(this, maxRows);
+	}
+
+	@Override
+	public Map<String, Class<?>> getResponseFields() {
+		logger.debug("REST Hit Parser - Getting fields");
+
+		Map<String, Class<?>> result = new HashMap<String, Class<?>>();
+
+		/**
+		 * The scan search returns no hits, we need to run the first scroll
+		 * to get some results.
+		 */
+		try {
+			if (searchResponse.getScrollId() != null) {
+				searchResponse = restClient.scroll(searchResponse.getScrollId(), responseParser);
+			}
+		} catch (Exception ex) {
+			logger.warn("Error fetching results for fields: " + ex.getLocalizedMessage());
+			return result;
+		}
+
+		for (Map<String, Object> hit : searchResponse.getHits()) {
+			for (Map.Entry<String, Object> field : hit.entrySet()) {
+				if (!result.containsKey(field.getKey()) && field.getValue() != null) {
+					result.put(field.getKey(), field.getValue().getClass());
+				}
+			}
+		}
+
+		return result;
+	}
+
+}
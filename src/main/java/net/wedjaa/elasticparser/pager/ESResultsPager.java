@@ -25,6 +25,8 @@ package net.wedjaa.elasticparser.pager;
 
 import java.util.Map;
 
+import net.wedjaa.elasticparser.batch.ESColumnBatch;
+
 public interface ESResultsPager {
 	public boolean done();
 	public boolean hit_available();
@@ -35,5 +37,14 @@ public interface ESResultsPager {
     public long getResultsCount();
 	public String get_query();
 	public Map<String, Object> next();
+	/**
+	 * Reads up to maxRows rows at once, in columns. Added after the other
+	 * methods: pagers written against the interface before it have to
+	 * implement it now, {@link net.wedjaa.elasticparser.batch.ESColumnBatchBuilder#fromPager}
+	 * builds the batch from {@link #next()} for them.
+	 *
+	 * @return the rows read, an empty batch once there are no more.
+	 */
+	public ESColumnBatch nextBatch(int maxRows);
 	public Map<String, Class<?>> getResponseFields();
 }
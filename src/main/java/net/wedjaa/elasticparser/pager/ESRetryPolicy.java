@@ -0,0 +1,156 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.pager;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.search.SearchContextMissingException;
+import org.elasticsearch.transport.ConnectTransportException;
+import org.elasticsearch.transport.ReceiveTimeoutTransportException;
+
+/**
+ * How a pager deals with failures while scrolling: transient errors are
+ * retried with an exponential backoff, a scroll context lost on the cluster
+ * is resumed by running the search again and skipping the hits already
+ * read, and slow searches can be hedged with a second request.
+ */
+public class ESRetryPolicy {
+
+	public final static int DEFAULT_MAX_RETRIES = 3;
+	public final static long DEFAULT_BACKOFF_MILLIS = 200;
+	public final static long DEFAULT_MAX_BACKOFF_MILLIS = 10000;
+
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private long backoffMillis = DEFAULT_BACKOFF_MILLIS;
+	private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+	private long hedgeAfterMillis = 0;
+	private boolean resume = true;
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * @param maxRetries how many times a failed request is sent again.
+	 */
+	public ESRetryPolicy setMaxRetries(int maxRetries) {
+		this.maxRetries = Math.max(maxRetries, 0);
+		return this;
+	}
+
+	/**
+	 * @param backoffMillis the wait before the first retry, doubling for
+	 *                      each retry that follows.
+	 */
+	public ESRetryPolicy setBackoffMillis(long backoffMillis) {
+		this.backoffMillis = backoffMillis;
+		return this;
+	}
+
+	public ESRetryPolicy setMaxBackoffMillis(long maxBackoffMillis) {
+		this.maxBackoffMillis = maxBackoffMillis;
+		return this;
+	}
+
+	public long getHedgeAfterMillis() {
+		return hedgeAfterMillis;
+	}
+
+	/**
+	 * @param hedgeAfterMillis how long to wait for a search before sending a
+	 *                         second one and taking whichever answers first,
+	 *                         0 - the default - never to hedge.
+	 */
+	public ESRetryPolicy setHedgeAfterMillis(long hedgeAfterMillis) {
+		this.hedgeAfterMillis = hedgeAfterMillis;
+		return this;
+	}
+
+	public boolean isResume() {
+		return resume;
+	}
+
+	/**
+	 * @param resume true - the default - to run the search again when the
+	 *               scroll context has been lost.
+	 */
+	public ESRetryPolicy setResume(boolean resume) {
+		this.resume = resume;
+		return this;
+	}
+
+	/**
+	 * @return how long to wait before a retry, with some jitter so that
+	 * pagers failing together don't retry together.
+	 */
+	public long getBackoffMillis(int attempt) {
+		long backoff = Math.min(backoffMillis << Math.min(attempt, 30), maxBackoffMillis);
+		return backoff + ThreadLocalRandom.current().nextLong(backoff / 4 + 1);
+	}
+
+	/**
+	 * @return true if the request that failed with this error can simply be
+	 * sent again.
+	 */
+	public static boolean isTransient(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof NoNodeAvailableException || cause instanceof ConnectTransportException
+					|| cause instanceof ReceiveTimeoutTransportException
+					|| cause instanceof EsRejectedExecutionException
+					|| cause instanceof ElasticsearchTimeoutException) {
+				return true;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the error says the scroll context is gone - expired,
+	 * or lost with the node holding it.
+	 */
+	public static boolean isContextLost(Throwable error) {
+		for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SearchContextMissingException) {
+				return true;
+			}
+			// Shard failures only carry the description of the error
+			if (cause.getMessage() != null && (cause.getMessage().contains("SearchContextMissingException")
+					|| cause.getMessage().contains("No search context found"))) {
+				return true;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+
+}
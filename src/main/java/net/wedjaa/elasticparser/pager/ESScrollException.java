@@ -0,0 +1,49 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.pager;
+
+/**
+ * Thrown by a resilient pager that couldn't get the next page of hits, so
+ * that the results don't silently end short.
+ */
+public class ESScrollException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long hitsRead;
+
+	public ESScrollException(String message, long hitsRead, Throwable cause) {
+		super(message + " after " + hitsRead + " hits", cause);
+		this.hitsRead = hitsRead;
+	}
+
+	/**
+	 * @return the number of hits returned before the failure.
+	 */
+	public long getHitsRead() {
+		return hitsRead;
+	}
+
+}
@@ -0,0 +1,37 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.pager;
+
+import org.elasticsearch.action.search.SearchResponse;
+
+/**
+ * Runs a scrolling search again from the start, for a pager that lost its
+ * scroll context. The search must return the hits in the same order as the
+ * original one - sorted by <em>_doc</em>, on the same shard copies - so the
+ * hits already read can be skipped.
+ */
+public interface ESScrollResumer {
+	public SearchResponse resume();
+}
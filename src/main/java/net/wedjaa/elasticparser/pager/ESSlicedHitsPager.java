@@ -0,0 +1,367 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.pager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.wedjaa.elasticparser.batch.ESColumnBatch;
+import net.wedjaa.elasticparser.batch.ESColumnBatchBuilder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads the hits of a query split in slices - each with its own scroll -
+ * scrolling the slices at the same time.
+ *
+ * Every slice is read on a thread of its own into a bounded buffer. Rows
+ * are returned either in the order of the slices, all the rows of a slice
+ * before the ones of the next, or as soon as any slice has them. Slices
+ * further ahead stop scrolling when their buffer is full, so the rows held
+ * on the heap don't depend on how fast the reader is.
+ *
+ * A slice that ends before returning all of its hits fails the pager,
+ * rather than leaving a gap in the rows.
+ */
+public class ESSlicedHitsPager implements ESResultsPager {
+
+	/**
+	 * The rows buffered for each slice by default.
+	 */
+	public final static int DEFAULT_BUFFER_ROWS = 1000;
+
+	/**
+	 * The slices read ahead of the one being returned by default, when the
+	 * rows are returned in order: a slice waiting for the reader keeps its
+	 * scroll open, so it must not wait longer than the scroll keepalive.
+	 */
+	public final static int DEFAULT_ORDERED_READ_AHEAD = 2;
+
+	// Marks the end of the rows of a slice in its buffer
+	private final static Object END_OF_SLICE = new Object();
+
+	private final String query;
+	private final List<String> slice_queries;
+	private final ESSliceOpener opener;
+	private final boolean ordered;
+	private final long total_hits;
+	private int parallelism;
+	private int buffer_rows = DEFAULT_BUFFER_ROWS;
+	private final List<BlockingQueue<Object>> buffers = new ArrayList<BlockingQueue<Object>>();
+	private ExecutorService slice_pool = null;
+	private volatile boolean closed = false;
+	private boolean finished = false;
+	private int ended_slices = 0;
+	private Map<String, Object> peeked = null;
+	private long delivered_count = 0;
+	private long max_rows = 0;
+	private int page = -1;
+	private int page_size = 0;
+	private Logger logger = Logger.getLogger(ESSlicedHitsPager.class);
+
+	/**
+	 * @param query         the query that was sliced.
+	 * @param slice_queries the queries of the slices, in order.
+	 * @param total_hits    the number of hits of the query.
+	 * @param page_size     the page size of the scrolls.
+	 * @param opener        opens the scroll of a slice.
+	 * @param ordered       true to return the rows in the order of the
+	 *                      slices, false to return them as they are read.
+	 */
+	public ESSlicedHitsPager(String query, List<String> slice_queries, long total_hits, int page_size,
+			ESSliceOpener opener, boolean ordered) {
+		this.query = query;
+		this.slice_queries = slice_queries;
+		this.total_hits = total_hits;
+		this.page_size = page_size;
+		this.opener = opener;
+		this.ordered = ordered;
+		this.parallelism = ordered ? DEFAULT_ORDERED_READ_AHEAD + 1 : slice_queries.size();
+	}
+
+	/**
+	 * @param parallelism the number of slices scrolled at the same time. By
+	 *                    default all of them or, when the rows are returned
+	 *                    in order, the current slice and the
+	 *                    {@link #DEFAULT_ORDERED_READ_AHEAD} after it - the
+	 *                    first slices are scrolled first.
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(parallelism, 1);
+	}
+
+	/**
+	 * @param buffer_rows the rows read ahead for each slice.
+	 */
+	public void setBufferRows(int buffer_rows) {
+		this.buffer_rows = Math.max(buffer_rows, 1);
+	}
+
+	/**
+	 * @see ESHitsPager#setMaxRows(long)
+	 */
+	public void setMaxRows(long max_rows) {
+		this.max_rows = max_rows > 0 ? max_rows : 0;
+	}
+
+	public int getSliceCount() {
+		return slice_queries.size();
+	}
+
+	public boolean isOrdered() {
+		return ordered;
+	}
+
+	private void start() {
+		if (slice_pool != null || slice_queries.isEmpty()) {
+			return;
+		}
+		logger.debug("Scrolling " + slice_queries.size() + " slices, " + parallelism + " at a time");
+		if (ordered) {
+			for (int idx = 0; idx < slice_queries.size(); idx++) {
+				buffers.add(new ArrayBlockingQueue<Object>(buffer_rows + 1));
+			}
+		} else {
+			buffers.add(new ArrayBlockingQueue<Object>(buffer_rows * Math.min(parallelism, slice_queries.size()) + 1));
+		}
+		slice_pool = Executors.newFixedThreadPool(Math.min(parallelism, slice_queries.size()), new ThreadFactory() {
+			private final AtomicInteger threadCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "elasticparser-slice-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for (int idx = 0; idx < slice_queries.size(); idx++) {
+			final int slice = idx;
+			final BlockingQueue<Object> buffer = buffers.get(ordered ? idx : 0);
+			slice_pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					read_slice(slice, buffer);
+				}
+			});
+		}
+		slice_pool.shutdown();
+	}
+
+	private void read_slice(int slice, BlockingQueue<Object> buffer) {
+		ESResultsPager slicePager = null;
+		try {
+			if (closed) {
+				return;
+			}
+			slicePager = opener.open(slice_queries.get(slice));
+			long expected = slicePager.getResultsCount();
+			if (max_rows > 0) {
+				// The slices stop at the rows wanted, like the pager
+				expected = Math.min(expected, max_rows);
+			}
+			logger.debug("Slice " + slice + " has " + slicePager.getResultsCount() + " hits");
+			long read = 0;
+			Map<String, Object> row;
+			while (!closed && (row = slicePager.next()) != null) {
+				buffer.put(row);
+				read++;
+			}
+			if (!closed && read < expected) {
+				throw new ESScrollException("Slice " + slice + " ended before its " + expected + " hits", read, null);
+			}
+			buffer.put(END_OF_SLICE);
+		} catch (InterruptedException e) {
+			// The pager is being closed
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			logger.warn("Failed to read slice " + slice + " [" + e.getMessage() + "]");
+			try {
+				buffer.put(new SliceFailure(slice, e));
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		} finally {
+			close_slice(slicePager);
+		}
+	}
+
+	private static void close_slice(ESResultsPager slicePager) {
+		if (slicePager instanceof ESHitsPager) {
+			((ESHitsPager) slicePager).close();
+		} else if (slicePager instanceof ESRestHitsPager) {
+			((ESRestHitsPager) slicePager).close();
+		}
+	}
+
+	private boolean limit_reached() {
+		return max_rows > 0 && delivered_count >= max_rows;
+	}
+
+	/**
+	 * @return the next row from the buffers, null once all the slices have
+	 * been read.
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> take() {
+		if (finished) {
+			return null;
+		}
+		start();
+		while (ended_slices < slice_queries.size()) {
+			Object item;
+			try {
+				item = buffers.get(ordered ? ended_slices : 0).take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for the rows of the slices", e);
+			}
+			if (item == END_OF_SLICE) {
+				ended_slices++;
+				continue;
+			}
+			if (item instanceof SliceFailure) {
+				SliceFailure failure = (SliceFailure) item;
+				close();
+				throw new ESScrollException("Failed to read slice " + failure.slice, delivered_count, failure.cause);
+			}
+			return (Map<String, Object>) item;
+		}
+		finished = true;
+		return null;
+	}
+
+	/**
+	 * Stops scrolling the slices, releasing their scroll contexts.
+	 */
+	public void close() {
+		closed = true;
+		finished = true;
+		if (slice_pool != null) {
+			slice_pool.shutdownNow();
+		}
+	}
+
+	public boolean done() {
+		return finished || limit_reached();
+	}
+
+	public boolean hit_available() {
+		return !done();
+	}
+
+	public void set_page_size(int page_size) {
+		this.page = 0;
+		this.page_size = page_size;
+	}
+
+	public long current_hit_idx() {
+		return delivered_count;
+	}
+
+	public int page_size() {
+		return page_size;
+	}
+
+	public int next_page() {
+		page++;
+		return page * page_size;
+	}
+
+	@Override
+	public long getResultsCount() {
+		return total_hits;
+	}
+
+	public String get_query() {
+		return query;
+	}
+
+	@Override
+	public Map<String, Object> next() {
+		if (limit_reached()) {
+			close();
+			return null;
+		}
+		Map<String, Object> row = peeked;
+		peeked = null;
+		if (row == null) {
+			row = take();
+		}
+		if (row == null) {
+			return null;
+		}
+		delivered_count++;
+		if (limit_reached()) {
+			// No more rows will be read, stop the scrolls
+			close();
+		}
+		return row;
+	}
+
+	@Override
+	public ESColumnBatch nextBatch(int maxRows) {
+		return ESColumnBatchBuilder.fromPager(this, maxRows);
+	}
+
+	@Override
+	public Map<String, Class<?>> getResponseFields() {
+		logger.debug("Sliced Hit Parser - Getting fields");
+
+		Map<String, Class<?>> result = new HashMap<String, Class<?>>();
+
+		// The row looked at is still returned by next()
+		if (peeked == null) {
+			peeked = take();
+		}
+		if (peeked != null) {
+			for (Map.Entry<String, Object> field : peeked.entrySet()) {
+				if (field.getValue() != null) {
+					result.put(field.getKey(), field.getValue().getClass());
+				}
+			}
+		}
+
+		return result;
+	}
+
+	private static class SliceFailure {
+		private final int slice;
+		private final RuntimeException cause;
+
+		SliceFailure(int slice, RuntimeException cause) {
+			this.slice = slice;
+			this.cause = cause;
+		}
+	}
+
+}
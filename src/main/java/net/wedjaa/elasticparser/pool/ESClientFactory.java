@@ -0,0 +1,118 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.pool;
+
+import java.net.InetSocketAddress;
+
+import org.apache.log4j.Logger;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.shield.ShieldPlugin;
+
+/**
+ * Creates the transport clients for a cluster, and checks they can still
+ * reach it.
+ */
+public class ESClientFactory {
+
+	private static final Logger logger = Logger.getLogger(ESClientFactory.class);
+
+	private final String hostname;
+	private final int port;
+	private final String cluster;
+	private final String username;
+	private final String password;
+
+	public ESClientFactory(String hostname, int port, String cluster, String username, String password) {
+		this.hostname = hostname;
+		this.port = port;
+		this.cluster = cluster;
+		this.username = username;
+		this.password = password;
+	}
+
+	public TransportClient createClient() {
+
+		logger.debug("Creating new client to connect to: " + hostname);
+
+		// Prepare a client for the ES Server
+		Settings.Builder settingBuilder = Settings.settingsBuilder();
+		settingBuilder.put("cluster.name", cluster)
+				.put("client.transport.sniff", true);
+
+		TransportClient.Builder clientBuilder = TransportClient.builder();
+
+		// Check if we need to use authentication if we have a username, password can
+		// be null or empty.
+		if (username != null && !username.isEmpty()) {
+			settingBuilder.put("shield.user", username + ":" + (password != null ? password : ""));
+			// Add Shield plugin only if needed
+			clientBuilder.addPlugin(ShieldPlugin.class);
+		}
+
+		TransportClient transportClient = clientBuilder
+				.settings(settingBuilder.build())
+				.build();
+
+		transportClient.addTransportAddress(new InetSocketTransportAddress(new InetSocketAddress(hostname, port)));
+		return transportClient;
+	}
+
+	/**
+	 * Asks the cluster for its health, whatever it is.
+	 *
+	 * @param timeoutMillis how long to wait for the answer, 0 to wait as
+	 *                      long as it takes.
+	 * @return true if the cluster answered in time.
+	 */
+	public static boolean isAvailable(Client client, long timeoutMillis) {
+		if (client instanceof TransportClient && ((TransportClient) client).connectedNodes().isEmpty()) {
+			return false;
+		}
+		try {
+			ListenableActionFuture<ClusterHealthResponse> health = client.admin().cluster().prepareHealth().execute();
+			if (timeoutMillis > 0) {
+				health.actionGet(timeoutMillis);
+			} else {
+				health.actionGet();
+			}
+			return true;
+		} catch (ElasticsearchException ex) {
+			logger.debug("Cluster not available: " + ex.getMessage());
+			return false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return cluster + "@" + hostname + ":" + port;
+	}
+
+}
@@ -0,0 +1,77 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.pool;
+
+import org.elasticsearch.client.Client;
+
+/**
+ * A client borrowed from an {@link ESClientPool}. Other leases can share
+ * the same client at the same time, the client must not be closed by who
+ * borrowed it: releasing the lease gives it back.
+ */
+public class ESClientLease {
+
+	private final ESClientPool pool;
+	private final ESClientPool.PooledClient pooled;
+	private boolean released = false;
+
+	ESClientLease(ESClientPool pool, ESClientPool.PooledClient pooled) {
+		this.pool = pool;
+		this.pooled = pooled;
+	}
+
+	public Client getClient() {
+		return pooled.client;
+	}
+
+	/**
+	 * Borrows another client from the pool this lease comes from - which
+	 * may well be the same client.
+	 *
+	 * @throws IllegalStateException if this lease has been released.
+	 */
+	public ESClientLease acquireAnother() {
+		if (isReleased()) {
+			throw new IllegalStateException("This pooled connection has been closed");
+		}
+		return pool.acquire();
+	}
+
+	/**
+	 * Gives the client back to the pool. Releasing a lease more than once
+	 * does nothing.
+	 */
+	public synchronized void release() {
+		if (!released) {
+			released = true;
+			pool.release(pooled);
+		}
+	}
+
+	public synchronized boolean isReleased() {
+		return released;
+	}
+
+}
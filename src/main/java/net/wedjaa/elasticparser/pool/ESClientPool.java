@@ -0,0 +1,388 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.pool;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.elasticsearch.client.Client;
+
+/**
+ * Transport clients to a cluster, shared by the connections. A transport
+ * client is thread safe and costly to build, so a connection borrows one
+ * instead of creating its own.
+ *
+ * A new client is created for a connection while all the clients are
+ * busy and the pool has less than {@link #setMaxSize(int)} of them, after
+ * that connections share the least used one. Clients that stay idle for
+ * longer than {@link #setIdleTimeoutMillis(long)} are closed, down to
+ * {@link #setMinSize(int)} clients, and the pool is topped up to that
+ * size in the background.
+ */
+public class ESClientPool {
+
+	public final static int DEFAULT_MIN_SIZE = 1;
+	public final static int DEFAULT_MAX_SIZE = 4;
+	public final static long DEFAULT_IDLE_TIMEOUT_MILLIS = 300000;
+	public final static long DEFAULT_EVICTION_INTERVAL_MILLIS = 30000;
+	public final static long DEFAULT_VALIDATION_TIMEOUT_MILLIS = 5000;
+
+	private static final Logger logger = Logger.getLogger(ESClientPool.class);
+
+	private final ESClientFactory factory;
+
+	// All the state is guarded by the pool itself
+	private final List<PooledClient> clients = new ArrayList<PooledClient>();
+	private int minSize = DEFAULT_MIN_SIZE;
+	private int maxSize = DEFAULT_MAX_SIZE;
+	private long idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+	private long evictionIntervalMillis = DEFAULT_EVICTION_INTERVAL_MILLIS;
+	private boolean validateOnBorrow = true;
+	private long validationTimeoutMillis = DEFAULT_VALIDATION_TIMEOUT_MILLIS;
+	private int creating = 0;
+	private int activeConnections = 0;
+	private long connectionsOpened = 0;
+	private long clientsCreated = 0;
+	private long clientsEvicted = 0;
+	private long validationFailures = 0;
+	private ScheduledExecutorService evictor;
+	private boolean closed = false;
+
+	public ESClientPool(ESClientFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * @param minSize the clients kept even when idle.
+	 */
+	public synchronized void setMinSize(int minSize) {
+		this.minSize = Math.max(minSize, 0);
+		this.maxSize = Math.max(this.maxSize, this.minSize);
+	}
+
+	public synchronized int getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * @param maxSize the most clients the pool creates, connections share
+	 *                them beyond that.
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = Math.max(maxSize, 1);
+		this.minSize = Math.min(this.minSize, this.maxSize);
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param idleTimeoutMillis how long a client no connection uses is kept,
+	 *                          0 to keep it until the pool is closed.
+	 */
+	public synchronized void setIdleTimeoutMillis(long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public synchronized long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	/**
+	 * @param evictionIntervalMillis how often idle clients are looked for,
+	 *                               it takes effect when the pool starts.
+	 */
+	public synchronized void setEvictionIntervalMillis(long evictionIntervalMillis) {
+		this.evictionIntervalMillis = Math.max(evictionIntervalMillis, 1);
+	}
+
+	public synchronized long getEvictionIntervalMillis() {
+		return evictionIntervalMillis;
+	}
+
+	/**
+	 * @param validateOnBorrow true to check an idle client can still reach
+	 *                         the cluster before handing it out.
+	 */
+	public synchronized void setValidateOnBorrow(boolean validateOnBorrow) {
+		this.validateOnBorrow = validateOnBorrow;
+	}
+
+	public synchronized boolean isValidateOnBorrow() {
+		return validateOnBorrow;
+	}
+
+	public synchronized void setValidationTimeoutMillis(long validationTimeoutMillis) {
+		this.validationTimeoutMillis = validationTimeoutMillis;
+	}
+
+	public synchronized long getValidationTimeoutMillis() {
+		return validationTimeoutMillis;
+	}
+
+	/**
+	 * Borrows a client, creating it if needed.
+	 *
+	 * @return the lease to release once done with the client.
+	 */
+	public ESClientLease acquire() {
+		while (true) {
+			PooledClient pooled;
+			boolean validate;
+			synchronized (this) {
+				pooled = borrow();
+				if (pooled == null) {
+					creating++;
+				}
+				validate = pooled != null && pooled.leases == 1 && validateOnBorrow;
+			}
+
+			if (pooled == null) {
+				return new ESClientLease(this, create(true));
+			}
+
+			if (validate && !ESClientFactory.isAvailable(pooled.client, validationTimeoutMillis)) {
+				logger.info("Client to " + factory + " can no longer reach the cluster, replacing it");
+				synchronized (this) {
+					clients.remove(pooled);
+					validationFailures++;
+				}
+				// Closed once the connections sharing it meanwhile are done
+				release(pooled);
+				continue;
+			}
+
+			return new ESClientLease(this, pooled);
+		}
+	}
+
+	/**
+	 * Picks the least used client, or returns null when a new one should be
+	 * created - waiting if clients are being created and there is no room
+	 * for another.
+	 */
+	private PooledClient borrow() {
+		while (true) {
+			checkOpen();
+			startEvictor();
+
+			PooledClient leastUsed = null;
+			for (PooledClient pooled : clients) {
+				if (leastUsed == null || pooled.leases < leastUsed.leases) {
+					leastUsed = pooled;
+				}
+			}
+
+			boolean busy = leastUsed == null || leastUsed.leases > 0;
+			if (busy && clients.size() + creating < maxSize) {
+				return null;
+			}
+			if (leastUsed != null) {
+				leastUsed.leases++;
+				activeConnections++;
+				connectionsOpened++;
+				return leastUsed;
+			}
+
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for a client", e);
+			}
+		}
+	}
+
+	/**
+	 * Creates a client outside of the lock, the caller has counted it in
+	 * {@link #creating}.
+	 */
+	private PooledClient create(boolean leased) {
+		Client client = null;
+		try {
+			client = factory.createClient();
+		} finally {
+			synchronized (this) {
+				creating--;
+				notifyAll();
+			}
+		}
+
+		PooledClient pooled = new PooledClient(client);
+		synchronized (this) {
+			if (!closed) {
+				clientsCreated++;
+				clients.add(pooled);
+				if (leased) {
+					pooled.leases++;
+					activeConnections++;
+					connectionsOpened++;
+				}
+				return pooled;
+			}
+		}
+		client.close();
+		throw new IllegalStateException("The client pool for " + factory + " has been closed");
+	}
+
+	synchronized void release(PooledClient pooled) {
+		pooled.leases--;
+		activeConnections--;
+		if (pooled.leases == 0) {
+			pooled.idleSince = System.nanoTime();
+			if (closed || !clients.contains(pooled)) {
+				pooled.client.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes the clients idle for too long, down to the minimum size, then
+	 * creates the clients missing to reach it.
+	 */
+	void evict() {
+		List<PooledClient> evicted = new ArrayList<PooledClient>();
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			long now = System.nanoTime();
+			Iterator<PooledClient> iterator = clients.iterator();
+			while (idleTimeoutMillis > 0 && iterator.hasNext() && clients.size() > minSize) {
+				PooledClient pooled = iterator.next();
+				if (pooled.leases == 0 && now - pooled.idleSince > TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis)) {
+					iterator.remove();
+					evicted.add(pooled);
+					clientsEvicted++;
+				}
+			}
+		}
+
+		for (PooledClient pooled : evicted) {
+			logger.debug("Closing client to " + factory + ", idle for too long");
+			pooled.client.close();
+		}
+
+		while (true) {
+			synchronized (this) {
+				if (closed || clients.size() + creating >= minSize) {
+					return;
+				}
+				creating++;
+			}
+			create(false);
+		}
+	}
+
+	public synchronized ESPoolStats getStats() {
+		int idleClients = 0;
+		for (PooledClient pooled : clients) {
+			if (pooled.leases == 0) {
+				idleClients++;
+			}
+		}
+		return new ESPoolStats(clients.size(), idleClients, activeConnections, connectionsOpened, clientsCreated,
+				clientsEvicted, validationFailures);
+	}
+
+	/**
+	 * Closes the idle clients at once, the others once their connections
+	 * are closed.
+	 */
+	public void close() {
+		List<PooledClient> idle = new ArrayList<PooledClient>();
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (evictor != null) {
+				evictor.shutdownNow();
+				evictor = null;
+			}
+			for (PooledClient pooled : clients) {
+				if (pooled.leases == 0) {
+					idle.add(pooled);
+				}
+			}
+			notifyAll();
+		}
+		for (PooledClient pooled : idle) {
+			pooled.client.close();
+		}
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("The client pool for " + factory + " has been closed");
+		}
+	}
+
+	private void startEvictor() {
+		if (evictor != null) {
+			return;
+		}
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "elasticparser-pool-evictor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					evict();
+				} catch (RuntimeException ex) {
+					logger.warn("Failed to maintain the client pool for " + factory + ": " + ex.getMessage());
+				}
+			}
+		}, evictionIntervalMillis, evictionIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	static class PooledClient {
+		final Client client;
+		int leases = 0;
+		long idleSince = System.nanoTime();
+
+		PooledClient(Client client) {
+			this.client = client;
+		}
+	}
+
+}
@@ -0,0 +1,293 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.pool;
+
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+import javax.sql.DataSource;
+
+import net.wedjaa.elasticparser.ESSearch;
+
+/**
+ * Hands out ESSearch connections that share the transport clients of a
+ * pool, so opening a connection costs next to nothing. Closing a
+ * connection gives its client back to the pool.
+ *
+ * The data source is configured through its properties, before the first
+ * connection is opened. Connections always use the native transport.
+ */
+public class ESDataSource implements DataSource {
+
+	private String hostname = ESSearch.ES_DEFAULT_HOST;
+	private int port = ESSearch.ES_DEFAULT_PORT;
+	private String cluster = ESSearch.ES_DEFAULT_CLUSTER;
+	private String username;
+	private String password;
+	private String indexes;
+	private String types;
+	private int searchMode = ESSearch.ES_DEFAULT_SEARCH_MODE;
+	private int minPoolSize = ESClientPool.DEFAULT_MIN_SIZE;
+	private int maxPoolSize = ESClientPool.DEFAULT_MAX_SIZE;
+	private long idleTimeoutMillis = ESClientPool.DEFAULT_IDLE_TIMEOUT_MILLIS;
+	private long evictionIntervalMillis = ESClientPool.DEFAULT_EVICTION_INTERVAL_MILLIS;
+	private boolean validateOnBorrow = true;
+	private int loginTimeout = 0;
+	private PrintWriter logWriter;
+	private ESClientPool pool;
+
+	public ESDataSource() {
+	}
+
+	public ESDataSource(String hostname, int port, String cluster) {
+		this.hostname = hostname;
+		this.port = port;
+		this.cluster = cluster;
+	}
+
+	@Override
+	public ESSearch getConnection() throws SQLException {
+		ESSearch connection = new ESSearch(indexes, types, searchMode, hostname, port, username, password, cluster);
+		try {
+			connection.setClientLease(getPool().acquire());
+		} catch (RuntimeException ex) {
+			throw new SQLException("Could not connect to " + cluster + "@" + hostname + ":" + port, ex);
+		}
+		return connection;
+	}
+
+	/**
+	 * The clients are shared, so they all authenticate as the user set on
+	 * the data source: connecting as someone else is not supported.
+	 */
+	@Override
+	public ESSearch getConnection(String username, String password) throws SQLException {
+		if (!equals(username, this.username) || !equals(password, this.password)) {
+			throw new SQLFeatureNotSupportedException("Pooled connections all use the user of the data source");
+		}
+		return getConnection();
+	}
+
+	public synchronized ESPoolStats getPoolStats() {
+		if (pool == null) {
+			return new ESPoolStats(0, 0, 0, 0, 0, 0, 0);
+		}
+		return pool.getStats();
+	}
+
+	/**
+	 * Closes the pool: its idle clients at once, the others when the
+	 * connections using them are closed. The next connection starts a new
+	 * pool.
+	 */
+	public synchronized void close() {
+		if (pool != null) {
+			pool.close();
+			pool = null;
+		}
+	}
+
+	private synchronized ESClientPool getPool() {
+		if (pool == null) {
+			pool = new ESClientPool(new ESClientFactory(hostname, port, cluster, username, password));
+			pool.setMinSize(minPoolSize);
+			pool.setMaxSize(maxPoolSize);
+			pool.setIdleTimeoutMillis(idleTimeoutMillis);
+			pool.setEvictionIntervalMillis(evictionIntervalMillis);
+			pool.setValidateOnBorrow(validateOnBorrow);
+			if (loginTimeout > 0) {
+				pool.setValidationTimeoutMillis(loginTimeout * 1000L);
+			}
+		}
+		return pool;
+	}
+
+	private static boolean equals(String first, String second) {
+		return first == null ? second == null : first.equals(second);
+	}
+
+	public String getHostname() {
+		return hostname;
+	}
+
+	public void setHostname(String hostname) {
+		this.hostname = hostname;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	public String getCluster() {
+		return cluster;
+	}
+
+	public void setCluster(String cluster) {
+		this.cluster = cluster;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public void setUsername(String username) {
+		this.username = username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public void setPassword(String password) {
+		this.password = password;
+	}
+
+	public String getIndexes() {
+		return indexes;
+	}
+
+	/**
+	 * @param indexes a comma separated list of the indexes the connections
+	 *                search by default, <em>null</em> for all of them.
+	 */
+	public void setIndexes(String indexes) {
+		this.indexes = indexes;
+	}
+
+	public String getTypes() {
+		return types;
+	}
+
+	public void setTypes(String types) {
+		this.types = types;
+	}
+
+	public int getSearchMode() {
+		return searchMode;
+	}
+
+	public void setSearchMode(int searchMode) {
+		this.searchMode = searchMode;
+	}
+
+	public int getMinPoolSize() {
+		return minPoolSize;
+	}
+
+	/**
+	 * @param minPoolSize the clients kept even when no connection uses them.
+	 */
+	public void setMinPoolSize(int minPoolSize) {
+		this.minPoolSize = minPoolSize;
+	}
+
+	public int getMaxPoolSize() {
+		return maxPoolSize;
+	}
+
+	/**
+	 * @param maxPoolSize the most clients created, connections share them
+	 *                    beyond that.
+	 */
+	public void setMaxPoolSize(int maxPoolSize) {
+		this.maxPoolSize = maxPoolSize;
+	}
+
+	public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public long getEvictionIntervalMillis() {
+		return evictionIntervalMillis;
+	}
+
+	public void setEvictionIntervalMillis(long evictionIntervalMillis) {
+		this.evictionIntervalMillis = evictionIntervalMillis;
+	}
+
+	public boolean isValidateOnBorrow() {
+		return validateOnBorrow;
+	}
+
+	public void setValidateOnBorrow(boolean validateOnBorrow) {
+		this.validateOnBorrow = validateOnBorrow;
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return logWriter;
+	}
+
+	/**
+	 * Kept for the containers that set it, logging goes through log4j.
+	 */
+	@Override
+	public void setLogWriter(PrintWriter logWriter) throws SQLException {
+		this.logWriter = logWriter;
+	}
+
+	/**
+	 * @param seconds how long to wait for the cluster when checking an idle
+	 *                client, before the pool starts.
+	 */
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException {
+		this.loginTimeout = seconds;
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return loginTimeout;
+	}
+
+	@Override
+	public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException("Logging goes through log4j");
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T unwrap(Class<T> wrappedClass) throws SQLException {
+		if (!isWrapperFor(wrappedClass)) {
+			throw new SQLException("Not a wrapper for " + wrappedClass.getName());
+		}
+		return (T) this;
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> wrappedClass) throws SQLException {
+		return wrappedClass.isInstance(this);
+	}
+
+}
@@ -0,0 +1,102 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.pool;
+
+/**
+ * A snapshot of what a client pool holds and what it has done so far.
+ */
+public class ESPoolStats {
+
+	private final int clients;
+	private final int idleClients;
+	private final int activeConnections;
+	private final long connectionsOpened;
+	private final long clientsCreated;
+	private final long clientsEvicted;
+	private final long validationFailures;
+
+	public ESPoolStats(int clients, int idleClients, int activeConnections, long connectionsOpened,
+			long clientsCreated, long clientsEvicted, long validationFailures) {
+		this.clients = clients;
+		this.idleClients = idleClients;
+		this.activeConnections = activeConnections;
+		this.connectionsOpened = connectionsOpened;
+		this.clientsCreated = clientsCreated;
+		this.clientsEvicted = clientsEvicted;
+		this.validationFailures = validationFailures;
+	}
+
+	/**
+	 * @return the clients in the pool, busy or idle.
+	 */
+	public int getClients() {
+		return clients;
+	}
+
+	/**
+	 * @return the clients no connection is using.
+	 */
+	public int getIdleClients() {
+		return idleClients;
+	}
+
+	/**
+	 * @return the connections handed out and not closed yet.
+	 */
+	public int getActiveConnections() {
+		return activeConnections;
+	}
+
+	public long getConnectionsOpened() {
+		return connectionsOpened;
+	}
+
+	public long getClientsCreated() {
+		return clientsCreated;
+	}
+
+	/**
+	 * @return the clients closed because they were idle for too long.
+	 */
+	public long getClientsEvicted() {
+		return clientsEvicted;
+	}
+
+	/**
+	 * @return the clients closed because they could no longer reach the
+	 * cluster.
+	 */
+	public long getValidationFailures() {
+		return validationFailures;
+	}
+
+	@Override
+	public String toString() {
+		return clients + " clients (" + idleClients + " idle), " + activeConnections + " active connections, "
+				+ connectionsOpened + " opened, " + clientsCreated + " clients created, " + clientsEvicted
+				+ " evicted, " + validationFailures + " failed validation";
+	}
+
+}
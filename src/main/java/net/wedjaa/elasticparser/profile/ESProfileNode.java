@@ -0,0 +1,165 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.profile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.search.profile.CollectorResult;
+import org.elasticsearch.search.profile.ProfileResult;
+
+/**
+ * A node of the timing tree of a shard: a query - with the breakdown of
+ * its time in the Lucene phases - or a collector.
+ */
+public class ESProfileNode {
+
+	private final String name;
+	private final String description;
+	private final long timeNanos;
+	private final Map<String, Long> breakdown;
+	private final List<ESProfileNode> children;
+
+	public ESProfileNode(String name, String description, long timeNanos, Map<String, Long> breakdown,
+			List<ESProfileNode> children) {
+		this.name = name;
+		this.description = description;
+		this.timeNanos = timeNanos;
+		this.breakdown = breakdown != null ? breakdown : Collections.<String, Long> emptyMap();
+		this.children = children != null ? children : Collections.<ESProfileNode> emptyList();
+	}
+
+	static ESProfileNode fromQuery(ProfileResult result) {
+		List<ESProfileNode> children = new ArrayList<ESProfileNode>();
+		if (result.getProfiledChildren() != null) {
+			for (ProfileResult child : result.getProfiledChildren()) {
+				children.add(fromQuery(child));
+			}
+		}
+		return new ESProfileNode(result.getQueryName(), result.getLuceneDescription(), result.getTime(),
+				result.getTimeBreakdown(), children);
+	}
+
+	static ESProfileNode fromCollector(CollectorResult result) {
+		List<ESProfileNode> children = new ArrayList<ESProfileNode>();
+		if (result.getProfiledChildren() != null) {
+			for (CollectorResult child : result.getProfiledChildren()) {
+				children.add(fromCollector(child));
+			}
+		}
+		return new ESProfileNode(result.getName(), result.getReason(), result.getTime(), null, children);
+	}
+
+	/**
+	 * Builds a node from the JSON of a query or collector of a profile.
+	 */
+	@SuppressWarnings("unchecked")
+	static ESProfileNode fromJson(Map<String, Object> json) {
+		String name = json.containsKey("query_type") ? (String) json.get("query_type") : (String) json.get("name");
+		String description = json.containsKey("lucene") ? (String) json.get("lucene") : (String) json.get("reason");
+
+		Map<String, Long> breakdown = null;
+		if (json.get("breakdown") instanceof Map) {
+			breakdown = new LinkedHashMap<String, Long>();
+			for (Map.Entry<String, Object> entry : ((Map<String, Object>) json.get("breakdown")).entrySet()) {
+				if (entry.getValue() instanceof Number) {
+					breakdown.put(entry.getKey(), ((Number) entry.getValue()).longValue());
+				}
+			}
+		}
+
+		List<ESProfileNode> children = new ArrayList<ESProfileNode>();
+		if (json.get("children") instanceof List) {
+			for (Object child : (List<Object>) json.get("children")) {
+				children.add(fromJson((Map<String, Object>) child));
+			}
+		}
+		return new ESProfileNode(name, description, parseNanos(json), breakdown, children);
+	}
+
+	/**
+	 * Times are either in nanoseconds or, as rendered by ES 2.x, a string of
+	 * milliseconds.
+	 */
+	static long parseNanos(Map<String, Object> json) {
+		Object nanos = json.get("time_in_nanos");
+		if (nanos instanceof Number) {
+			return ((Number) nanos).longValue();
+		}
+		Object time = json.get("time");
+		if (time instanceof Number) {
+			return ((Number) time).longValue();
+		}
+		if (time instanceof String && ((String) time).endsWith("ms")) {
+			String millis = ((String) time).substring(0, ((String) time).length() - 2);
+			try {
+				return (long) (Double.parseDouble(millis) * 1000000);
+			} catch (NumberFormatException ex) {
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the Lucene query, or the reason of a collector.
+	 */
+	public String getDescription() {
+		return description;
+	}
+
+	public long getTimeNanos() {
+		return timeNanos;
+	}
+
+	/**
+	 * @return the time spent in each phase - create_weight, build_scorer,
+	 * next_doc, advance, match, score - in nanoseconds. Empty for
+	 * collectors.
+	 */
+	public Map<String, Long> getBreakdown() {
+		return breakdown;
+	}
+
+	public List<ESProfileNode> getChildren() {
+		return children;
+	}
+
+	void appendTo(StringBuilder builder, String indent) {
+		builder.append(indent).append(name).append(" [").append(description).append("] ")
+				.append(ESProfileReport.millis(timeNanos)).append('\n');
+		for (ESProfileNode child : children) {
+			child.appendTo(builder, indent + "  ");
+		}
+	}
+
+}
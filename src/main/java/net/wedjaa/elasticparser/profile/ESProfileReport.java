@@ -0,0 +1,206 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.profile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.profile.ProfileShardResult;
+
+/**
+ * The profile of the execution of a query: what the cluster reported for
+ * each shard, together with the time the client spent connecting, waiting
+ * for the search, fetching the following pages and exploding the
+ * aggregations into rows. The slices of a query add to its report from
+ * their own threads.
+ */
+public class ESProfileReport {
+
+	private final String query;
+	private final List<ESShardProfile> shards = new ArrayList<ESShardProfile>();
+
+	private long connectNanos;
+	private long searchNanos;
+	private long tookMillis;
+	private long explodeNanos;
+	private long explodedRows;
+	private int pageFetches;
+	private long pageFetchNanos;
+
+	public ESProfileReport(String query) {
+		this.query = query;
+	}
+
+	/**
+	 * Records the timings the cluster reported with a native search
+	 * response.
+	 */
+	public synchronized void addResponse(SearchResponse response) {
+		tookMillis = response.getTookInMillis();
+		Map<String, List<ProfileShardResult>> results = response.getProfileResults();
+		if (results == null) {
+			return;
+		}
+		for (Map.Entry<String, List<ProfileShardResult>> shard : results.entrySet()) {
+			for (ProfileShardResult result : shard.getValue()) {
+				shards.add(ESShardProfile.fromResult(shard.getKey(), result));
+			}
+		}
+	}
+
+	/**
+	 * Records the timings found in the <em>profile</em> section of a JSON
+	 * search response.
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void addJsonProfile(long tookMillis, Map<String, Object> profile) {
+		this.tookMillis = tookMillis;
+		if (profile == null || !(profile.get("shards") instanceof List)) {
+			return;
+		}
+		for (Object shardObject : (List<Object>) profile.get("shards")) {
+			Map<String, Object> shard = (Map<String, Object>) shardObject;
+			String shardId = (String) shard.get("id");
+			if (shard.get("searches") instanceof List) {
+				for (Object search : (List<Object>) shard.get("searches")) {
+					shards.add(ESShardProfile.fromJson(shardId, (Map<String, Object>) search));
+				}
+			}
+		}
+	}
+
+	public synchronized void setConnectNanos(long connectNanos) {
+		this.connectNanos = connectNanos;
+	}
+
+	public synchronized void setSearchNanos(long searchNanos) {
+		this.searchNanos = searchNanos;
+	}
+
+	public synchronized void setExplode(long explodeNanos, long explodedRows) {
+		this.explodeNanos = explodeNanos;
+		this.explodedRows = explodedRows;
+	}
+
+	/**
+	 * Accounts for a round trip fetching a further page of results.
+	 */
+	public synchronized void addPageFetch(long nanos) {
+		pageFetches++;
+		pageFetchNanos += nanos;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	public synchronized List<ESShardProfile> getShards() {
+		return Collections.unmodifiableList(new ArrayList<ESShardProfile>(shards));
+	}
+
+	public synchronized long getConnectNanos() {
+		return connectNanos;
+	}
+
+	/**
+	 * @return the time, as seen by the client, of the first round trip of
+	 * the search.
+	 */
+	public synchronized long getSearchNanos() {
+		return searchNanos;
+	}
+
+	/**
+	 * @return the time the cluster reported for the search.
+	 */
+	public synchronized long getTookMillis() {
+		return tookMillis;
+	}
+
+	/**
+	 * @return the part of the first round trip not spent searching on the
+	 * cluster: network, serialization and queueing.
+	 */
+	public synchronized long getOverheadNanos() {
+		return Math.max(0, searchNanos - tookMillis * 1000000);
+	}
+
+	public synchronized long getExplodeNanos() {
+		return explodeNanos;
+	}
+
+	public synchronized long getExplodedRows() {
+		return explodedRows;
+	}
+
+	public synchronized int getPageFetches() {
+		return pageFetches;
+	}
+
+	public synchronized long getPageFetchNanos() {
+		return pageFetchNanos;
+	}
+
+	/**
+	 * @return the shard whose queries took the longest, <em>null</em> if
+	 * the cluster didn't return a profile.
+	 */
+	public synchronized ESShardProfile getSlowestShard() {
+		ESShardProfile slowest = null;
+		for (ESShardProfile shard : shards) {
+			if (slowest == null || shard.getQueryNanos() > slowest.getQueryNanos()) {
+				slowest = shard;
+			}
+		}
+		return slowest;
+	}
+
+	static String millis(long nanos) {
+		return String.format("%.3fms", nanos / 1000000.0);
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("Profile of ").append(query).append('\n');
+		builder.append("  Connect: ").append(millis(connectNanos)).append('\n');
+		builder.append("  Search: ").append(millis(searchNanos)).append(" (took ").append(tookMillis)
+				.append("ms on the cluster)\n");
+		builder.append("  Page fetches: ").append(getPageFetches()).append(" in ")
+				.append(millis(getPageFetchNanos())).append('\n');
+		if (explodedRows > 0) {
+			builder.append("  Aggregations: ").append(explodedRows).append(" rows in ").append(millis(explodeNanos))
+					.append('\n');
+		}
+		for (ESShardProfile shard : shards) {
+			shard.appendTo(builder);
+		}
+		return builder.toString();
+	}
+
+}
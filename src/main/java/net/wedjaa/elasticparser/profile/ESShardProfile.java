@@ -0,0 +1,130 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.profile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.search.profile.ProfileResult;
+import org.elasticsearch.search.profile.ProfileShardResult;
+
+/**
+ * The timing of a search on a single shard.
+ */
+public class ESShardProfile {
+
+	private final String shardId;
+	private final long rewriteNanos;
+	private final List<ESProfileNode> queries;
+	private final ESProfileNode collector;
+
+	public ESShardProfile(String shardId, long rewriteNanos, List<ESProfileNode> queries, ESProfileNode collector) {
+		this.shardId = shardId;
+		this.rewriteNanos = rewriteNanos;
+		this.queries = queries;
+		this.collector = collector;
+	}
+
+	static ESShardProfile fromResult(String shardId, ProfileShardResult result) {
+		List<ESProfileNode> queries = new ArrayList<ESProfileNode>();
+		if (result.getQueryResults() != null) {
+			for (ProfileResult query : result.getQueryResults()) {
+				queries.add(ESProfileNode.fromQuery(query));
+			}
+		}
+		ESProfileNode collector = result.getCollectorResult() != null
+				? ESProfileNode.fromCollector(result.getCollectorResult()) : null;
+		return new ESShardProfile(shardId, result.getRewriteTime(), queries, collector);
+	}
+
+	/**
+	 * Builds the profile of a shard from a search of the JSON profile, which
+	 * holds the query trees, the rewrite time and the collector tree.
+	 */
+	@SuppressWarnings("unchecked")
+	static ESShardProfile fromJson(String shardId, Map<String, Object> search) {
+		List<ESProfileNode> queries = new ArrayList<ESProfileNode>();
+		if (search.get("query") instanceof List) {
+			for (Object query : (List<Object>) search.get("query")) {
+				queries.add(ESProfileNode.fromJson((Map<String, Object>) query));
+			}
+		}
+		ESProfileNode collector = null;
+		if (search.get("collector") instanceof List && !((List<Object>) search.get("collector")).isEmpty()) {
+			collector = ESProfileNode.fromJson((Map<String, Object>) ((List<Object>) search.get("collector")).get(0));
+		}
+		long rewriteNanos = search.get("rewrite_time") instanceof Number
+				? ((Number) search.get("rewrite_time")).longValue() : 0;
+		return new ESShardProfile(shardId, rewriteNanos, queries, collector);
+	}
+
+	/**
+	 * @return the shard, as [node][index][shard]
+	 */
+	public String getShardId() {
+		return shardId;
+	}
+
+	public long getRewriteNanos() {
+		return rewriteNanos;
+	}
+
+	public List<ESProfileNode> getQueries() {
+		return queries;
+	}
+
+	/**
+	 * @return the collectors tree, <em>null</em> if the shard didn't report
+	 * one.
+	 */
+	public ESProfileNode getCollector() {
+		return collector;
+	}
+
+	/**
+	 * @return the time spent executing the queries on the shard, without
+	 * the rewrite.
+	 */
+	public long getQueryNanos() {
+		long nanos = 0;
+		for (ESProfileNode query : queries) {
+			nanos += query.getTimeNanos();
+		}
+		return nanos;
+	}
+
+	void appendTo(StringBuilder builder) {
+		builder.append("  Shard ").append(shardId).append(": rewrite ").append(ESProfileReport.millis(rewriteNanos))
+				.append('\n');
+		for (ESProfileNode query : queries) {
+			query.appendTo(builder, "    ");
+		}
+		if (collector != null) {
+			collector.appendTo(builder, "    ");
+		}
+	}
+
+}
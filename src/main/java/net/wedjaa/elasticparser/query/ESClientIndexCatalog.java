@@ -0,0 +1,80 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.query;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.action.fieldstats.FieldStats;
+import org.elasticsearch.client.Client;
+
+/**
+ * Reads the catalog of the indexes through the transport client.
+ */
+public class ESClientIndexCatalog implements ESIndexCatalog {
+
+	private final Client client;
+
+	public ESClientIndexCatalog(Client client) {
+		this.client = client;
+	}
+
+	@Override
+	public String[] resolveIndexes(String[] patterns) {
+		return client.admin().indices().prepareGetIndex()
+				.setIndices(patterns)
+				.setFeatures(GetIndexRequest.Feature.ALIASES)
+				.execute().actionGet()
+				.getIndices();
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public Map<String, long[]> getFieldRanges(String[] indexes, String field) {
+		Map<String, Map<String, FieldStats>> indexStats = client.prepareFieldStats()
+				.setIndices(indexes)
+				.setFields(field)
+				.setLevel("indices")
+				.execute().actionGet()
+				.getIndicesMergedFieldStats();
+
+		Map<String, long[]> ranges = new HashMap<String, long[]>();
+		for (Map.Entry<String, Map<String, FieldStats>> index : indexStats.entrySet()) {
+			FieldStats stats = index.getValue().get(field);
+			if (stats == null) {
+				continue;
+			}
+			if (stats.getMinValue() instanceof Number && stats.getMaxValue() instanceof Number) {
+				ranges.put(index.getKey(), new long[] { ((Number) stats.getMinValue()).longValue(),
+						((Number) stats.getMaxValue()).longValue() });
+			} else {
+				ranges.put(index.getKey(), null);
+			}
+		}
+		return ranges;
+	}
+
+}
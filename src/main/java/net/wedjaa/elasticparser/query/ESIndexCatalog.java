@@ -0,0 +1,51 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.query;
+
+import java.util.Map;
+
+/**
+ * What the cluster knows about its indexes, as needed to prune the ones a
+ * query can't match.
+ */
+public interface ESIndexCatalog {
+
+	/**
+	 * @param patterns index names, wildcard patterns or aliases.
+	 * @return the concrete indexes they stand for. They tell which indexes
+	 * an alias covers, they are not searched in its place.
+	 */
+	String[] resolveIndexes(String[] patterns);
+
+	/**
+	 * @param indexes concrete indexes.
+	 * @param field   a numeric or date field.
+	 * @return the lowest and highest value of the field in each index, by
+	 * index - null if the values are not numbers. Indexes where no document
+	 * has the field are left out.
+	 */
+	Map<String, long[]> getFieldRanges(String[] indexes, String field);
+
+}
@@ -0,0 +1,341 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.query;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Narrows the indexes a query is sent to down to the ones that can hold
+ * hits, when the query restricts a timestamp field to a range. Patterns
+ * and aliases are resolved to their concrete indexes and each index is
+ * then kept only if its time span overlaps the range.
+ *
+ * Only wildcard patterns are replaced by the indexes they keep. Index
+ * names and aliases are searched as they are, or left out when none of
+ * their indexes can have hits: an alias can filter or route the search,
+ * which its indexes don't.
+ *
+ * The time span of an index is read from the date at the end of its name,
+ * when {@link #setIndexDateFormat(String)} is set, or else from the
+ * lowest and highest timestamp it holds. The index with the latest
+ * timestamps is taken to be still written to, and is never pruned for
+ * ranges later than what it held when last asked.
+ *
+ * What is read from the cluster is kept for {@link #setRefreshMillis(long)}.
+ * A pruner can be shared by connections to the same cluster.
+ */
+public class ESIndexPruner {
+
+	public final static long DEFAULT_REFRESH_MILLIS = 60000;
+
+	private static final Logger logger = Logger.getLogger(ESIndexPruner.class);
+	private static final long[] NO_VALUES = new long[0];
+
+	private final String timestampField;
+	private String indexDateFormat;
+	private int indexDateLength;
+	private int indexDateUnit;
+	private boolean useFieldStats = true;
+	private long refreshMillis = DEFAULT_REFRESH_MILLIS;
+
+	// The caches are guarded by the pruner
+	private final Map<String, Cached<String[]>> resolvedPatterns = new HashMap<String, Cached<String[]>>();
+	private final Map<String, Cached<long[]>> fieldRanges = new HashMap<String, Cached<long[]>>();
+
+	/**
+	 * @param timestampField the date field the indexes are split by.
+	 */
+	public ESIndexPruner(String timestampField) {
+		this.timestampField = timestampField;
+	}
+
+	public String getTimestampField() {
+		return timestampField;
+	}
+
+	/**
+	 * @param indexDateFormat the format, as in SimpleDateFormat, of the
+	 *                        date the index names end with - like
+	 *                        <em>yyyy.MM.dd</em> for <em>logs-2016.05.01</em>.
+	 *                        The index spans the finest unit of the format,
+	 *                        in UTC.
+	 */
+	public synchronized void setIndexDateFormat(String indexDateFormat) {
+		this.indexDateFormat = indexDateFormat;
+		if (indexDateFormat == null) {
+			return;
+		}
+		this.indexDateLength = newIndexDateFormat().format(new Date(0)).length();
+		if (indexDateFormat.indexOf('H') >= 0 || indexDateFormat.indexOf('k') >= 0) {
+			this.indexDateUnit = Calendar.HOUR_OF_DAY;
+		} else if (indexDateFormat.indexOf('d') >= 0 || indexDateFormat.indexOf('D') >= 0) {
+			this.indexDateUnit = Calendar.DAY_OF_MONTH;
+		} else if (indexDateFormat.indexOf('w') >= 0) {
+			this.indexDateUnit = Calendar.WEEK_OF_YEAR;
+		} else if (indexDateFormat.indexOf('M') >= 0) {
+			this.indexDateUnit = Calendar.MONTH;
+		} else {
+			this.indexDateUnit = Calendar.YEAR;
+		}
+	}
+
+	public synchronized String getIndexDateFormat() {
+		return indexDateFormat;
+	}
+
+	/**
+	 * @param useFieldStats true to ask the cluster for the timestamps held by
+	 *                      the indexes whose name has no date.
+	 */
+	public synchronized void setUseFieldStats(boolean useFieldStats) {
+		this.useFieldStats = useFieldStats;
+	}
+
+	public synchronized boolean isUseFieldStats() {
+		return useFieldStats;
+	}
+
+	/**
+	 * @param refreshMillis how long the indexes behind a pattern and the
+	 *                      timestamps they hold are remembered.
+	 */
+	public synchronized void setRefreshMillis(long refreshMillis) {
+		this.refreshMillis = refreshMillis;
+	}
+
+	public synchronized long getRefreshMillis() {
+		return refreshMillis;
+	}
+
+	/**
+	 * Forgets what was read from the cluster.
+	 */
+	public synchronized void refresh() {
+		resolvedPatterns.clear();
+		fieldRanges.clear();
+	}
+
+	/**
+	 * @param catalog where to read the indexes from.
+	 * @param indexes the indexes, patterns or aliases to search.
+	 * @param query   the query, as JSON.
+	 * @return the indexes to search, empty if none can have hits. The
+	 * indexes are returned as they are if there are none, the query doesn't
+	 * restrict the timestamp or none of their indexes is pruned.
+	 */
+	public String[] prune(ESIndexCatalog catalog, String[] indexes, String query) {
+
+		if (indexes.length == 0) {
+			return indexes;
+		}
+		ESTimeRange range = ESQueryAnalyzer.getTimeRange(query, timestampField);
+		if (!range.isBounded()) {
+			return indexes;
+		}
+		if (range.isEmpty()) {
+			logger.debug("The query can't match any " + timestampField);
+			return new String[0];
+		}
+
+		Map<String, String[]> resolved = new HashMap<String, String[]>();
+		Set<String> concrete = new LinkedHashSet<String>();
+		for (String index : indexes) {
+			resolved.put(index, resolve(catalog, index));
+			concrete.addAll(Arrays.asList(resolved.get(index)));
+		}
+
+		Set<String> kept = new HashSet<String>();
+		List<String> undated = new ArrayList<String>();
+		for (String index : concrete) {
+			ESTimeRange span = getNameSpan(index);
+			if (span == null) {
+				undated.add(index);
+			} else if (span.overlaps(range)) {
+				kept.add(index);
+			}
+		}
+		if (!undated.isEmpty()) {
+			if (isUseFieldStats()) {
+				kept.addAll(pruneByFieldStats(catalog, undated, range));
+			} else {
+				kept.addAll(undated);
+			}
+		}
+
+		if (kept.size() == concrete.size()) {
+			logger.debug("All the " + concrete.size() + " indexes of " + Arrays.toString(indexes) + " can have "
+					+ timestampField + " in " + range);
+			return indexes;
+		}
+
+		Set<String> searched = new LinkedHashSet<String>();
+		for (String index : indexes) {
+			if (isPattern(index)) {
+				for (String patternIndex : resolved.get(index)) {
+					if (kept.contains(patternIndex)) {
+						searched.add(patternIndex);
+					}
+				}
+				continue;
+			}
+			for (String aliasIndex : resolved.get(index)) {
+				if (kept.contains(aliasIndex)) {
+					searched.add(index);
+					break;
+				}
+			}
+		}
+		logger.debug("Searching " + searched + " for the " + kept.size() + " of the " + concrete.size()
+				+ " indexes of " + Arrays.toString(indexes) + " with " + timestampField + " in " + range);
+		return searched.toArray(new String[searched.size()]);
+	}
+
+	private static boolean isPattern(String index) {
+		return index.indexOf('*') >= 0 || index.indexOf('?') >= 0;
+	}
+
+	private String[] resolve(ESIndexCatalog catalog, String pattern) {
+		synchronized (this) {
+			Cached<String[]> cached = resolvedPatterns.get(pattern);
+			if (cached != null && cached.isFresh(refreshMillis)) {
+				return cached.value;
+			}
+		}
+
+		String[] concrete = catalog.resolveIndexes(new String[] { pattern });
+		logger.debug(pattern + " stands for " + concrete.length + " indexes");
+		synchronized (this) {
+			resolvedPatterns.put(pattern, new Cached<String[]>(concrete));
+		}
+		return concrete;
+	}
+
+	private List<String> pruneByFieldStats(ESIndexCatalog catalog, List<String> indexes, ESTimeRange range) {
+
+		Map<String, long[]> ranges = new HashMap<String, long[]>();
+		List<String> missing = new ArrayList<String>();
+		synchronized (this) {
+			for (String index : indexes) {
+				Cached<long[]> cached = fieldRanges.get(index);
+				if (cached != null && cached.isFresh(refreshMillis)) {
+					ranges.put(index, cached.value);
+				} else {
+					missing.add(index);
+				}
+			}
+		}
+
+		if (!missing.isEmpty()) {
+			Map<String, long[]> read = catalog.getFieldRanges(missing.toArray(new String[missing.size()]),
+					timestampField);
+			synchronized (this) {
+				for (String index : missing) {
+					long[] indexRange = read.containsKey(index) ? read.get(index) : NO_VALUES;
+					fieldRanges.put(index, new Cached<long[]>(indexRange));
+					ranges.put(index, indexRange);
+				}
+			}
+		}
+
+		String latest = null;
+		for (String index : indexes) {
+			long[] indexRange = ranges.get(index);
+			if (indexRange != null && indexRange.length == 2
+					&& (latest == null || indexRange[1] > ranges.get(latest)[1])) {
+				latest = index;
+			}
+		}
+
+		List<String> kept = new ArrayList<String>();
+		for (String index : indexes) {
+			long[] indexRange = ranges.get(index);
+			if (indexRange == null) {
+				// Not a date, we can't tell
+				kept.add(index);
+			} else if (indexRange.length == 2) {
+				long to = index.equals(latest) ? Long.MAX_VALUE : indexRange[1];
+				if (new ESTimeRange(indexRange[0], to).overlaps(range)) {
+					kept.add(index);
+				}
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * @return the time span of an index from its name, null if the name
+	 * doesn't end with a date.
+	 */
+	private synchronized ESTimeRange getNameSpan(String index) {
+		if (indexDateFormat == null || index.length() < indexDateLength) {
+			return null;
+		}
+		String date = index.substring(index.length() - indexDateLength);
+		ParsePosition position = new ParsePosition(0);
+		Date start = newIndexDateFormat().parse(date, position);
+		if (start == null || position.getIndex() != date.length()) {
+			return null;
+		}
+		Calendar end = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		end.setTimeInMillis(start.getTime());
+		end.add(indexDateUnit, 1);
+		return new ESTimeRange(start.getTime(), end.getTimeInMillis() - 1);
+	}
+
+	private SimpleDateFormat newIndexDateFormat() {
+		SimpleDateFormat dateFormat = new SimpleDateFormat(indexDateFormat);
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		dateFormat.setLenient(false);
+		return dateFormat;
+	}
+
+	private static class Cached<T> {
+		final T value;
+		final long loaded = System.currentTimeMillis();
+
+		Cached(T value) {
+			this.value = value;
+		}
+
+		boolean isFresh(long refreshMillis) {
+			return System.currentTimeMillis() - loaded < refreshMillis;
+		}
+	}
+
+}
@@ -0,0 +1,412 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.query;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Reads from the JSON of a query the conditions every hit has to meet, so
+ * the search can be narrowed down before it's sent.
+ *
+ * Only the clauses that must match are looked at: <em>must</em> and
+ * <em>filter</em> of a bool query, the filter and query of
+ * <em>filtered</em> and <em>constant_score</em> queries and <em>and</em>
+ * filters. Clauses in <em>should</em>, <em>must_not</em>, nested and
+ * parent-child queries or the <em>post_filter</em> never narrow anything.
+ */
+public class ESQueryAnalyzer {
+
+	private static final Logger logger = Logger.getLogger(ESQueryAnalyzer.class);
+
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+	private static final long ONE_DAY_MILLIS = 24L * 60 * 60 * 1000;
+	private static final Pattern EPOCH = Pattern.compile("-?\\d+");
+	// What the date fields are mapped with, unless they say otherwise
+	private static final String DEFAULT_DATE_FORMAT = "strict_date_optional_time||epoch_millis";
+	private static final Pattern DATE_MATH = Pattern.compile("([+-])(\\d*)([yMwdhHms])|/([yMwdhHms])");
+
+	// The date formats we can parse, from the most to the least precise
+	private static final String[] DATE_FORMATS = {
+			"yyyy-MM-dd'T'HH:mm:ss.SSSXXX", "yyyy-MM-dd'T'HH:mm:ssXXX", "yyyy-MM-dd'T'HH:mmXXX",
+			"yyyy-MM-dd'T'HH:mm:ss.SSS", "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd'T'HH:mm",
+			"yyyy-MM-dd'T'HH", "yyyy-MM-dd", "yyyy-MM", "yyyy" };
+	private static final int[] DATE_PRECISIONS = {
+			Calendar.MILLISECOND, Calendar.SECOND, Calendar.MINUTE,
+			Calendar.MILLISECOND, Calendar.SECOND, Calendar.SECOND, Calendar.MINUTE,
+			Calendar.HOUR_OF_DAY, Calendar.DAY_OF_MONTH, Calendar.MONTH, Calendar.YEAR };
+
+	/**
+	 * @param query the query, as JSON.
+	 * @return the clauses of the query that every hit has to match,
+	 * compound ones included.
+	 */
+	public static List<JSONObject> getRequiredClauses(String query) {
+		List<JSONObject> clauses = new ArrayList<JSONObject>();
+		JSONObject queryObject = new JSONObject(query);
+		addRequired(queryObject.opt("query"), clauses);
+		return clauses;
+	}
+
+	/**
+	 * Works out the times a date field can have in the hits, from the range
+	 * clauses on it. A bound we can't make sense of is left open, so the
+	 * range returned is never narrower than the real one.
+	 *
+	 * @param query the query, as JSON.
+	 * @param field the date field.
+	 * @return the range the field is restricted to, ESTimeRange.UNBOUNDED if
+	 * it isn't.
+	 */
+	public static ESTimeRange getTimeRange(String query, String field) {
+		long now = System.currentTimeMillis();
+		ESTimeRange range = ESTimeRange.UNBOUNDED;
+		for (JSONObject clause : getRequiredClauses(query)) {
+			JSONObject rangeClause = clause.optJSONObject("range");
+			if (rangeClause != null && rangeClause.optJSONObject(field) != null) {
+				range = range.intersect(parseRange(rangeClause.getJSONObject(field), now));
+			}
+		}
+		logger.debug("The query restricts " + field + " to " + range);
+		return range;
+	}
+
+	/**
+	 * Works out the values a field can have in the hits, from the
+	 * <em>term</em> and <em>terms</em> clauses on it.
+	 *
+	 * @param query the query, as JSON.
+	 * @param field the field.
+	 * @return the values the field is restricted to, null if it isn't.
+	 */
+	public static Set<String> getTermValues(String query, String field) {
+		Set<String> values = null;
+		for (JSONObject clause : getRequiredClauses(query)) {
+			Set<String> clauseValues = null;
+			JSONObject term = clause.optJSONObject("term");
+			if (term != null && term.has(field)) {
+				Object value = term.get(field);
+				if (value instanceof JSONObject) {
+					value = ((JSONObject) value).opt("value");
+				}
+				if (value != null && !(value instanceof JSONObject) && !(value instanceof JSONArray)) {
+					clauseValues = new HashSet<String>(Arrays.asList(value.toString()));
+				}
+			}
+			JSONObject terms = clause.optJSONObject("terms");
+			if (terms != null && terms.optJSONArray(field) != null) {
+				JSONArray termValues = terms.getJSONArray(field);
+				clauseValues = new HashSet<String>();
+				for (int idx = 0; idx < termValues.length(); idx++) {
+					clauseValues.add(termValues.get(idx).toString());
+				}
+			}
+			if (clauseValues != null) {
+				if (values == null) {
+					values = clauseValues;
+				} else {
+					values.retainAll(clauseValues);
+				}
+			}
+		}
+		logger.debug("The query restricts " + field + " to " + (values != null ? values : "any value"));
+		return values;
+	}
+
+	/**
+	 * @param query the query, as JSON.
+	 * @return true if some aggregation of the query is <em>global</em>: it
+	 * runs on all the documents of the indexes searched, whatever the query
+	 * matches.
+	 */
+	public static boolean hasGlobalAggregation(String query) {
+		return hasGlobalAggregation(new JSONObject(query));
+	}
+
+	private static boolean hasGlobalAggregation(JSONObject parent) {
+		for (String key : new String[] { "aggs", "aggregations" }) {
+			JSONObject aggregations = parent.optJSONObject(key);
+			if (aggregations == null) {
+				continue;
+			}
+			for (String name : aggregations.keySet()) {
+				JSONObject aggregation = aggregations.optJSONObject(name);
+				if (aggregation != null && (aggregation.has("global") || hasGlobalAggregation(aggregation))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static void addRequired(Object value, List<JSONObject> clauses) {
+		if (value instanceof JSONArray) {
+			JSONArray values = (JSONArray) value;
+			for (int idx = 0; idx < values.length(); idx++) {
+				addRequired(values.opt(idx), clauses);
+			}
+			return;
+		}
+		if (!(value instanceof JSONObject)) {
+			return;
+		}
+
+		JSONObject clause = (JSONObject) value;
+		clauses.add(clause);
+		for (String type : clause.keySet()) {
+			JSONObject body = clause.optJSONObject(type);
+			switch (type) {
+			case "bool":
+				if (body != null) {
+					addRequired(body.opt("must"), clauses);
+					addRequired(body.opt("filter"), clauses);
+				}
+				break;
+			case "filtered":
+			case "constant_score":
+				if (body != null) {
+					addRequired(body.opt("query"), clauses);
+					addRequired(body.opt("filter"), clauses);
+				}
+				break;
+			case "and":
+				addRequired(body != null ? body.opt("filters") : clause.opt(type), clauses);
+				break;
+			case "query":
+				addRequired(body, clauses);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	private static ESTimeRange parseRange(JSONObject bounds, long now) {
+		String format = bounds.has("format") ? bounds.getString("format") : null;
+		long from = Long.MIN_VALUE;
+		long to = Long.MAX_VALUE;
+
+		// Excluded bounds are taken as included, it only widens the range
+		for (String lower : new String[] { "gte", "gt", "from" }) {
+			Long bound = parseDate(bounds.opt(lower), format, now, false);
+			if (bound != null) {
+				from = Math.max(from, bound);
+			}
+		}
+		for (String upper : new String[] { "lte", "lt", "to" }) {
+			Long bound = parseDate(bounds.opt(upper), format, now, true);
+			if (bound != null) {
+				to = Math.min(to, bound);
+			}
+		}
+
+		// Days are cut at midnight in the time zone, wherever that is
+		if (bounds.has("time_zone")) {
+			from = from == Long.MIN_VALUE ? from : from - ONE_DAY_MILLIS;
+			to = to == Long.MAX_VALUE ? to : to + ONE_DAY_MILLIS;
+		}
+		return new ESTimeRange(from, to);
+	}
+
+	/**
+	 * Parses a date the way the cluster would: epoch milliseconds, a date
+	 * or date math like <em>now-1d/d</em>.
+	 *
+	 * @param roundUp true for an upper bound: the date is taken as the
+	 *                last millisecond it can mean.
+	 * @return the date in epoch milliseconds, or null if it can't be parsed.
+	 */
+	static Long parseDate(Object value, String format, long now, boolean roundUp) {
+		if (value == null || JSONObject.NULL.equals(value)) {
+			return null;
+		}
+		long epochScale = format != null && format.contains("epoch_second") ? 1000 : 1;
+		if (value instanceof Number) {
+			return ((Number) value).longValue() * epochScale;
+		}
+
+		String date = value.toString().trim();
+		if (EPOCH.matcher(date).matches()) {
+			return parseDigits(date, format, roundUp);
+		}
+
+		Calendar calendar = Calendar.getInstance(UTC);
+		calendar.setFirstDayOfWeek(Calendar.MONDAY);
+		String math;
+		if (date.startsWith("now")) {
+			calendar.setTimeInMillis(now);
+			math = date.substring(3);
+		} else {
+			int anchorEnd = date.indexOf("||");
+			boolean hasMath = anchorEnd >= 0;
+			Long anchor = parseAbsolute(hasMath ? date.substring(0, anchorEnd) : date, roundUp && !hasMath);
+			if (anchor == null) {
+				logger.debug("Can't parse the date " + date + ", leaving the range open");
+				return null;
+			}
+			calendar.setTimeInMillis(anchor);
+			math = hasMath ? date.substring(anchorEnd + 2) : "";
+		}
+
+		Matcher matcher = DATE_MATH.matcher(math);
+		int parsed = 0;
+		while (matcher.find() && matcher.start() == parsed) {
+			if (matcher.group(4) != null) {
+				int unit = getCalendarField(matcher.group(4).charAt(0));
+				truncate(calendar, unit);
+				if (roundUp) {
+					calendar.add(unit, 1);
+					calendar.add(Calendar.MILLISECOND, -1);
+				}
+			} else {
+				int amount = matcher.group(2).isEmpty() ? 1 : Integer.parseInt(matcher.group(2));
+				calendar.add(getCalendarField(matcher.group(3).charAt(0)),
+						"-".equals(matcher.group(1)) ? -amount : amount);
+			}
+			parsed = matcher.end();
+		}
+		if (parsed != math.length()) {
+			logger.debug("Can't parse the date math " + math + ", leaving the range open");
+			return null;
+		}
+		return calendar.getTimeInMillis();
+	}
+
+	/**
+	 * Digits are a year for the date formats and a number for the epoch
+	 * ones: they mean what the first format that reads them says.
+	 */
+	private static Long parseDigits(String date, String format, boolean roundUp) {
+		for (String name : (format != null ? format : DEFAULT_DATE_FORMAT).split("\\|\\|")) {
+			name = name.trim();
+			if (name.equals("epoch_millis")) {
+				return Long.parseLong(date);
+			}
+			if (name.equals("epoch_second")) {
+				return Long.parseLong(date) * 1000;
+			}
+			if (!name.startsWith("strict_")) {
+				// The lenient formats read digits as a year of any length
+				logger.debug("Can't tell what " + date + " means as " + format + ", leaving the range open");
+				return null;
+			}
+			// The strict formats have years of four digits and nothing shorter
+			if (date.length() == 4) {
+				return parseAbsolute(date, roundUp);
+			}
+		}
+		logger.debug("Can't parse " + date + " as " + format + ", leaving the range open");
+		return null;
+	}
+
+	private static Long parseAbsolute(String date, boolean roundUp) {
+		for (int idx = 0; idx < DATE_FORMATS.length; idx++) {
+			SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMATS[idx]);
+			dateFormat.setTimeZone(UTC);
+			dateFormat.setLenient(false);
+			ParsePosition position = new ParsePosition(0);
+			Date parsed = dateFormat.parse(date, position);
+			if (parsed == null || position.getIndex() != date.length()) {
+				continue;
+			}
+			if (!roundUp) {
+				return parsed.getTime();
+			}
+			// A partial date as upper bound means up to its end
+			Calendar calendar = Calendar.getInstance(UTC);
+			calendar.setTimeInMillis(parsed.getTime());
+			calendar.add(DATE_PRECISIONS[idx], 1);
+			return calendar.getTimeInMillis() - 1;
+		}
+		return null;
+	}
+
+	private static int getCalendarField(char unit) {
+		switch (unit) {
+		case 'y':
+			return Calendar.YEAR;
+		case 'M':
+			return Calendar.MONTH;
+		case 'w':
+			return Calendar.WEEK_OF_YEAR;
+		case 'd':
+			return Calendar.DAY_OF_MONTH;
+		case 'h':
+		case 'H':
+			return Calendar.HOUR_OF_DAY;
+		case 'm':
+			return Calendar.MINUTE;
+		default:
+			return Calendar.SECOND;
+		}
+	}
+
+	private static void truncate(Calendar calendar, int unit) {
+		switch (unit) {
+		case Calendar.YEAR:
+			calendar.set(Calendar.MONTH, Calendar.JANUARY);
+			// fall through
+		case Calendar.MONTH:
+			calendar.set(Calendar.DAY_OF_MONTH, 1);
+			break;
+		case Calendar.WEEK_OF_YEAR:
+			calendar.set(Calendar.DAY_OF_WEEK, Calendar.MONDAY);
+			break;
+		default:
+			break;
+		}
+		switch (unit) {
+		case Calendar.YEAR:
+		case Calendar.MONTH:
+		case Calendar.WEEK_OF_YEAR:
+		case Calendar.DAY_OF_MONTH:
+			calendar.set(Calendar.HOUR_OF_DAY, 0);
+			// fall through
+		case Calendar.HOUR_OF_DAY:
+			calendar.set(Calendar.MINUTE, 0);
+			// fall through
+		case Calendar.MINUTE:
+			calendar.set(Calendar.SECOND, 0);
+			// fall through
+		default:
+			calendar.set(Calendar.MILLISECOND, 0);
+		}
+	}
+
+}
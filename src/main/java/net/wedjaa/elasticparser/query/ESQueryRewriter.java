@@ -0,0 +1,224 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.query;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Rewrites the JSON of a query before it's sent to the cluster, pushing
+ * down what the consumer of the results has told us.
+ */
+public class ESQueryRewriter {
+
+	private static final Logger logger = Logger.getLogger(ESQueryRewriter.class);
+
+	/**
+	 * Restricts the hits to the columns the consumer is going to read. If the
+	 * query asks for stored <em>fields</em> the columns replace them,
+	 * otherwise the <em>_source</em> is filtered to include only the columns
+	 * - keeping any excludes the query already has. A query that disabled
+	 * the source is left alone.
+	 *
+	 * @param query   the query, as JSON.
+	 * @param columns the fields the consumer needs; nothing is rewritten if
+	 *                empty.
+	 * @return the rewritten query.
+	 */
+	public static String projectColumns(String query, String[] columns) {
+
+		if (columns == null || columns.length == 0) {
+			return query;
+		}
+
+		JSONObject queryObject = new JSONObject(query);
+		JSONArray columnList = new JSONArray(Arrays.asList(columns));
+
+		if (queryObject.has("fields")) {
+			logger.debug("Projecting columns on the stored fields");
+			queryObject.put("fields", columnList);
+			return queryObject.toString();
+		}
+
+		JSONObject sourceFilter = new JSONObject();
+		if (queryObject.has("_source")) {
+			Object source = queryObject.get("_source");
+			if (Boolean.FALSE.equals(source)) {
+				logger.debug("The query disabled the source, not projecting columns");
+				return query;
+			}
+			if (source instanceof JSONObject) {
+				JSONObject userFilter = (JSONObject) source;
+				for (String excludes : new String[] { "excludes", "exclude" }) {
+					if (userFilter.has(excludes)) {
+						sourceFilter.put("excludes", userFilter.get(excludes));
+					}
+				}
+			}
+		}
+
+		logger.debug("Projecting columns on the source");
+		sourceFilter.put("includes", columnList);
+		queryObject.put("_source", sourceFilter);
+		return queryObject.toString();
+	}
+
+	/**
+	 * Fetches some columns from the doc values, through
+	 * <em>fielddata_fields</em>, instead of parsing them out of the source:
+	 * numbers come back as numbers and dates as epoch milliseconds. Columns
+	 * read from the doc values are removed from the <em>_source</em>
+	 * includes and if none are left the source is not fetched at all.
+	 *
+	 * @param query           the query, as JSON.
+	 * @param docValueColumns the numeric, date or keyword fields to read from
+	 *                        the doc values.
+	 * @return the rewritten query.
+	 */
+	public static String fetchDocValues(String query, String[] docValueColumns) {
+
+		if (docValueColumns == null || docValueColumns.length == 0) {
+			return query;
+		}
+
+		JSONObject queryObject = new JSONObject(query);
+		List<String> docValues = Arrays.asList(docValueColumns);
+
+		JSONArray fielddataFields = queryObject.optJSONArray("fielddata_fields");
+		if (fielddataFields == null) {
+			fielddataFields = new JSONArray();
+		}
+		Set<String> requested = new HashSet<String>();
+		for (int idx = 0; idx < fielddataFields.length(); idx++) {
+			requested.add(fielddataFields.getString(idx));
+		}
+		for (String column : docValues) {
+			if (requested.add(column)) {
+				fielddataFields.put(column);
+			}
+		}
+		queryObject.put("fielddata_fields", fielddataFields);
+
+		// Don't parse from the source what we get from the doc values
+		JSONObject sourceFilter = queryObject.optJSONObject("_source");
+		if (sourceFilter != null && sourceFilter.optJSONArray("includes") != null) {
+			JSONArray includes = sourceFilter.getJSONArray("includes");
+			JSONArray sourceColumns = new JSONArray();
+			for (int idx = 0; idx < includes.length(); idx++) {
+				if (!docValues.contains(includes.getString(idx))) {
+					sourceColumns.put(includes.getString(idx));
+				}
+			}
+			if (sourceColumns.length() == 0) {
+				logger.debug("All the columns come from doc values, not fetching the source");
+				queryObject.put("_source", false);
+			} else {
+				sourceFilter.put("includes", sourceColumns);
+			}
+		}
+
+		return queryObject.toString();
+	}
+
+	/**
+	 * Asks the cluster to profile the execution of the query on each shard,
+	 * returning the timing of every query and collector with the response.
+	 *
+	 * @param query the query, as JSON.
+	 * @return the rewritten query.
+	 */
+	public static String enableProfile(String query) {
+		JSONObject queryObject = new JSONObject(query);
+		queryObject.put("profile", true);
+		return queryObject.toString();
+	}
+
+	/**
+	 * Restricts the hits to a range of a date field, on top of what the query
+	 * already asks for. The range is a filter, it doesn't change the scores.
+	 *
+	 * @param query the query, as JSON.
+	 * @param field the date field.
+	 * @param from  the first instant, in epoch milliseconds, Long.MIN_VALUE
+	 *              to leave the range open.
+	 * @param to    the instant the range ends before, Long.MAX_VALUE to leave
+	 *              the range open.
+	 * @return the rewritten query.
+	 */
+	public static String restrictRange(String query, String field, long from, long to) {
+		if (from == Long.MIN_VALUE && to == Long.MAX_VALUE) {
+			return query;
+		}
+		JSONObject bounds = new JSONObject();
+		if (from != Long.MIN_VALUE) {
+			bounds.put("gte", from);
+		}
+		if (to != Long.MAX_VALUE) {
+			bounds.put("lt", to);
+		}
+		bounds.put("format", "epoch_millis");
+		return addFilter(query, "filter", new JSONObject().put("range", new JSONObject().put(field, bounds)));
+	}
+
+	/**
+	 * Restricts the hits to the documents without a value for a field.
+	 *
+	 * @param query the query, as JSON.
+	 * @param field the field.
+	 * @return the rewritten query.
+	 */
+	public static String requireMissing(String query, String field) {
+		return addFilter(query, "must_not", new JSONObject().put("exists", new JSONObject().put("field", field)));
+	}
+
+	/**
+	 * Restricts the hits to the documents with a value for a field.
+	 *
+	 * @param query the query, as JSON.
+	 * @param field the field.
+	 * @return the rewritten query.
+	 */
+	public static String requireExists(String query, String field) {
+		return addFilter(query, "filter", new JSONObject().put("exists", new JSONObject().put("field", field)));
+	}
+
+	static String addFilter(String query, String occurrence, JSONObject filter) {
+		JSONObject queryObject = new JSONObject(query);
+		JSONObject bool = new JSONObject();
+		if (queryObject.has("query")) {
+			bool.put("must", queryObject.get("query"));
+		}
+		bool.put(occurrence, filter);
+		queryObject.put("query", new JSONObject().put("bool", bool));
+		return queryObject.toString();
+	}
+
+}
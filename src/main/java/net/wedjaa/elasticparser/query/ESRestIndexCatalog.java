@@ -0,0 +1,71 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.query;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.wedjaa.elasticparser.rest.ESRestClient;
+
+import org.json.JSONObject;
+
+/**
+ * Reads the catalog of the indexes through the REST client.
+ */
+public class ESRestIndexCatalog implements ESIndexCatalog {
+
+	private final ESRestClient restClient;
+
+	public ESRestIndexCatalog(ESRestClient restClient) {
+		this.restClient = restClient;
+	}
+
+	@Override
+	public String[] resolveIndexes(String[] patterns) {
+		return restClient.resolveIndexes(patterns);
+	}
+
+	@Override
+	public Map<String, long[]> getFieldRanges(String[] indexes, String field) {
+		JSONObject indexStats = restClient.fieldStats(indexes, field);
+
+		Map<String, long[]> ranges = new HashMap<String, long[]>();
+		for (String index : indexStats.keySet()) {
+			JSONObject fields = indexStats.getJSONObject(index).optJSONObject("fields");
+			JSONObject stats = fields != null ? fields.optJSONObject(field) : null;
+			if (stats == null) {
+				continue;
+			}
+			if (stats.opt("min_value") instanceof Number && stats.opt("max_value") instanceof Number) {
+				ranges.put(index, new long[] { ((Number) stats.get("min_value")).longValue(),
+						((Number) stats.get("max_value")).longValue() });
+			} else {
+				ranges.put(index, null);
+			}
+		}
+		return ranges;
+	}
+
+}
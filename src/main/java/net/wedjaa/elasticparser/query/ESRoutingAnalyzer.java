@@ -0,0 +1,127 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.query;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Works out the routing of a query from the <em>term</em> and
+ * <em>terms</em> clauses on the field the documents of each index are
+ * routed by, so the query only goes to the shards that can hold its hits.
+ *
+ * A query is routed only when every index it searches has a routing field
+ * and the query restricts each of those fields to a set of values.
+ */
+public class ESRoutingAnalyzer {
+
+	private static final Logger logger = Logger.getLogger(ESRoutingAnalyzer.class);
+
+	// Guarded by the analyzer, in the order they were set
+	private final Map<String, String> routingFields = new LinkedHashMap<String, String>();
+	private final Map<String, Pattern> indexPatterns = new LinkedHashMap<String, Pattern>();
+
+	/**
+	 * @param index the index, a wildcard pattern like <em>tenants-*</em>
+	 *              or an alias - as searched.
+	 * @param field the field whose value the documents are routed by.
+	 */
+	public synchronized void setRoutingField(String index, String field) {
+		routingFields.put(index, field);
+		indexPatterns.put(index, Pattern.compile(Pattern.quote(index).replace("*", "\\E.*\\Q")));
+	}
+
+	public synchronized String getRoutingField(String index) {
+		String field = routingFields.get(index);
+		if (field != null) {
+			return field;
+		}
+		for (Map.Entry<String, Pattern> pattern : indexPatterns.entrySet()) {
+			if (pattern.getValue().matcher(index).matches()) {
+				return routingFields.get(pattern.getKey());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param indexes the indexes searched, all of them if empty.
+	 * @param query   the query, as JSON.
+	 * @return the comma separated routing values, null if the query can't
+	 * be routed.
+	 */
+	public String getRouting(String[] indexes, String query) {
+		if (indexes.length == 0) {
+			return null;
+		}
+
+		Set<String> fields = new TreeSet<String>();
+		for (String index : indexes) {
+			String field = getRoutingField(index);
+			if (field == null) {
+				logger.debug("Index " + index + " has no routing field, not routing the query");
+				return null;
+			}
+			fields.add(field);
+		}
+
+		// Each index gets the shards of all the values: a superset of its own
+		Set<String> values = new TreeSet<String>();
+		for (String field : fields) {
+			Set<String> fieldValues = ESQueryAnalyzer.getTermValues(query, field);
+			if (fieldValues == null) {
+				return null;
+			}
+			values.addAll(fieldValues);
+		}
+		for (String routingValue : values) {
+			// Commas separate the routing values
+			if (routingValue.indexOf(',') >= 0) {
+				return null;
+			}
+		}
+		if (values.isEmpty()) {
+			return null;
+		}
+
+		StringBuilder routing = new StringBuilder();
+		Iterator<String> value = values.iterator();
+		while (value.hasNext()) {
+			routing.append(value.next());
+			if (value.hasNext()) {
+				routing.append(',');
+			}
+		}
+		logger.debug("Routing the query to " + routing);
+		return routing.toString();
+	}
+
+}
@@ -0,0 +1,79 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.query;
+
+/**
+ * A span of time, in epoch milliseconds, bounds included. Either side can
+ * be open.
+ */
+public class ESTimeRange {
+
+	public final static ESTimeRange UNBOUNDED = new ESTimeRange(Long.MIN_VALUE, Long.MAX_VALUE);
+
+	private final long from;
+	private final long to;
+
+	public ESTimeRange(long from, long to) {
+		this.from = from;
+		this.to = to;
+	}
+
+	public long getFrom() {
+		return from;
+	}
+
+	public long getTo() {
+		return to;
+	}
+
+	public boolean isBounded() {
+		return from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return true if no instant is within the range.
+	 */
+	public boolean isEmpty() {
+		return from > to;
+	}
+
+	public ESTimeRange intersect(ESTimeRange other) {
+		return new ESTimeRange(Math.max(from, other.from), Math.min(to, other.to));
+	}
+
+	/**
+	 * @return true if some instant is in both ranges.
+	 */
+	public boolean overlaps(ESTimeRange other) {
+		return from <= other.to && other.from <= to;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + (from == Long.MIN_VALUE ? "*" : String.valueOf(from)) + ", "
+				+ (to == Long.MAX_VALUE ? "*" : String.valueOf(to)) + "]";
+	}
+
+}
@@ -0,0 +1,123 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.query;
+
+/**
+ * A contiguous part of the date range of a query, searched on its own.
+ * The first and last slices are open, so that together the slices match
+ * exactly what the query matches - the slice of the documents that don't
+ * have the field included.
+ */
+public class ESTimeSlice {
+
+	private final long from;
+	private final long to;
+	private final long hits;
+	private final boolean missing;
+	private final boolean existing;
+
+	/**
+	 * @param from the first instant of the slice, Long.MIN_VALUE if open.
+	 * @param to   the instant the slice ends before, Long.MAX_VALUE if open.
+	 * @param hits the number of hits expected in the slice.
+	 */
+	public ESTimeSlice(long from, long to, long hits) {
+		this(from, to, hits, false, false);
+	}
+
+	private ESTimeSlice(long from, long to, long hits, boolean missing, boolean existing) {
+		this.from = from;
+		this.to = to;
+		this.hits = hits;
+		this.missing = missing;
+		this.existing = existing;
+	}
+
+	/**
+	 * @return the slice of the hits without a value for the field.
+	 */
+	public static ESTimeSlice missing(long hits) {
+		return new ESTimeSlice(Long.MIN_VALUE, Long.MAX_VALUE, hits, true, false);
+	}
+
+	/**
+	 * @return the slice of all the hits with a value for the field, at any
+	 * date. An open range doesn't restrict the query at all, so it would
+	 * also match the hits of the missing slice.
+	 */
+	public static ESTimeSlice existing(long hits) {
+		return new ESTimeSlice(Long.MIN_VALUE, Long.MAX_VALUE, hits, false, true);
+	}
+
+	public long getFrom() {
+		return from;
+	}
+
+	public long getTo() {
+		return to;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public boolean isMissing() {
+		return missing;
+	}
+
+	public boolean isExisting() {
+		return existing;
+	}
+
+	/**
+	 * Restricts a query to the hits of this slice.
+	 *
+	 * @param query the query, as JSON.
+	 * @param field the date field the query is sliced on.
+	 * @return the query of the slice.
+	 */
+	public String restrict(String query, String field) {
+		if (missing) {
+			return ESQueryRewriter.requireMissing(query, field);
+		}
+		if (existing) {
+			return ESQueryRewriter.requireExists(query, field);
+		}
+		return ESQueryRewriter.restrictRange(query, field, from, to);
+	}
+
+	@Override
+	public String toString() {
+		if (missing) {
+			return "[missing] " + hits + " hits";
+		}
+		if (existing) {
+			return "[existing] " + hits + " hits";
+		}
+		return "[" + (from == Long.MIN_VALUE ? "*" : String.valueOf(from)) + ", "
+				+ (to == Long.MAX_VALUE ? "*" : String.valueOf(to)) + ") " + hits + " hits";
+	}
+
+}
@@ -0,0 +1,251 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.elasticsearch.search.aggregations.metrics.max.Max;
+import org.elasticsearch.search.aggregations.metrics.min.Min;
+import org.joda.time.ReadableInstant;
+import org.json.JSONObject;
+
+/**
+ * Splits the date range of a query in contiguous slices that can be
+ * scrolled at the same time.
+ *
+ * The slices are cut from the counts of the hits over time, so that each
+ * holds about the same number of hits: a first search finds the dates of
+ * the oldest and newest hits, a second one counts the hits in a
+ * <em>date_histogram</em> with {@link #BUCKETS_PER_SLICE} buckets for each
+ * slice, and the buckets are then grouped in slices.
+ */
+public class ESTimeSlicer {
+
+	/**
+	 * The buckets of the histogram for each slice wanted: the more there
+	 * are, the closer the slices get to an even number of hits.
+	 */
+	public final static int BUCKETS_PER_SLICE = 16;
+
+	final static String MIN_AGGREGATION = "slice_min";
+	final static String MAX_AGGREGATION = "slice_max";
+	final static String HISTOGRAM_AGGREGATION = "slice_histogram";
+
+	// What doesn't change the hits a query matches
+	private final static String[] PRESENTATION_KEYS = { "aggs", "aggregations", "sort", "_source", "fields",
+			"fielddata_fields", "script_fields", "highlight", "from", "size", "profile", "rescore" };
+
+	private static final Logger logger = Logger.getLogger(ESTimeSlicer.class);
+
+	private final String field;
+	private final int slices;
+
+	/**
+	 * @param field  the date field to slice on.
+	 * @param slices the number of slices wanted.
+	 */
+	public ESTimeSlicer(String field, int slices) {
+		this.field = field;
+		this.slices = Math.max(slices, 1);
+	}
+
+	public String getField() {
+		return field;
+	}
+
+	public int getSlices() {
+		return slices;
+	}
+
+	/**
+	 * @param query the query, as JSON.
+	 * @return a search for the dates of the oldest and newest hits of the
+	 * query, returning no hits.
+	 */
+	public String getBoundsQuery(String query) {
+		JSONObject aggregations = new JSONObject();
+		aggregations.put(MIN_AGGREGATION, new JSONObject().put("min", new JSONObject().put("field", field)));
+		aggregations.put(MAX_AGGREGATION, new JSONObject().put("max", new JSONObject().put("field", field)));
+		return countingQuery(query, aggregations);
+	}
+
+	/**
+	 * @param query  the query, as JSON.
+	 * @param bounds the dates of the oldest and newest hits.
+	 * @return a search counting the hits of the query over time, returning
+	 * no hits.
+	 */
+	public String getHistogramQuery(String query, ESTimeRange bounds) {
+		long span = bounds.isEmpty() ? 1 : bounds.getTo() - bounds.getFrom() + 1;
+		long interval = Math.max(1, span / ((long) slices * BUCKETS_PER_SLICE));
+		JSONObject histogram = new JSONObject();
+		histogram.put("field", field);
+		histogram.put("interval", interval + "ms");
+		histogram.put("min_doc_count", 1);
+		JSONObject aggregations = new JSONObject();
+		aggregations.put(HISTOGRAM_AGGREGATION, new JSONObject().put("date_histogram", histogram));
+		return countingQuery(query, aggregations);
+	}
+
+	private String countingQuery(String query, JSONObject aggregations) {
+		JSONObject queryObject = new JSONObject(query);
+		for (String key : PRESENTATION_KEYS) {
+			queryObject.remove(key);
+		}
+		// The post filter drops hits, but not from the aggregations
+		Object postFilter = queryObject.remove("post_filter");
+		if (postFilter != null) {
+			queryObject = new JSONObject(ESQueryRewriter.addFilter(queryObject.toString(), "filter",
+					(JSONObject) postFilter));
+		}
+		queryObject.put("size", 0);
+		queryObject.put("aggs", aggregations);
+		return queryObject.toString();
+	}
+
+	/**
+	 * @param aggregations the aggregations of the bounds search.
+	 * @return the dates of the oldest and newest hits, an empty range if no
+	 * hit has the field.
+	 */
+	public ESTimeRange getBounds(Aggregations aggregations) {
+		Min min = aggregations.get(MIN_AGGREGATION);
+		Max max = aggregations.get(MAX_AGGREGATION);
+		return toRange(min != null ? min.getValue() : null, max != null ? max.getValue() : null);
+	}
+
+	/**
+	 * @param aggregations the aggregations of the bounds search, as parsed
+	 *                     from the REST response.
+	 * @see #getBounds(Aggregations)
+	 */
+	@SuppressWarnings("unchecked")
+	public ESTimeRange getBounds(Map<String, Object> aggregations) {
+		Map<String, Object> min = (Map<String, Object>) aggregations.get(MIN_AGGREGATION);
+		Map<String, Object> max = (Map<String, Object>) aggregations.get(MAX_AGGREGATION);
+		return toRange(min != null ? (Number) min.get("value") : null, max != null ? (Number) max.get("value") : null);
+	}
+
+	private ESTimeRange toRange(Number min, Number max) {
+		if (min == null || max == null || Double.isInfinite(min.doubleValue())
+				|| Double.isInfinite(max.doubleValue())) {
+			return new ESTimeRange(Long.MAX_VALUE, Long.MIN_VALUE);
+		}
+		return new ESTimeRange(min.longValue(), max.longValue());
+	}
+
+	/**
+	 * @param totalHits    the number of hits of the query.
+	 * @param aggregations the aggregations of the histogram search.
+	 * @return the slices, oldest first.
+	 */
+	public List<ESTimeSlice> getSlices(long totalHits, Aggregations aggregations) {
+		Histogram histogram = aggregations.get(HISTOGRAM_AGGREGATION);
+		List<? extends Histogram.Bucket> buckets = histogram != null ? histogram.getBuckets()
+				: new ArrayList<Histogram.Bucket>();
+		long[] keys = new long[buckets.size()];
+		long[] counts = new long[buckets.size()];
+		for (int idx = 0; idx < keys.length; idx++) {
+			Object key = buckets.get(idx).getKey();
+			keys[idx] = key instanceof ReadableInstant ? ((ReadableInstant) key).getMillis() : ((Number) key)
+					.longValue();
+			counts[idx] = buckets.get(idx).getDocCount();
+		}
+		return getSlices(totalHits, keys, counts);
+	}
+
+	/**
+	 * @param totalHits    the number of hits of the query.
+	 * @param aggregations the aggregations of the histogram search, as
+	 *                     parsed from the REST response.
+	 * @see #getSlices(long, Aggregations)
+	 */
+	@SuppressWarnings("unchecked")
+	public List<ESTimeSlice> getSlices(long totalHits, Map<String, Object> aggregations) {
+		Map<String, Object> histogram = (Map<String, Object>) aggregations.get(HISTOGRAM_AGGREGATION);
+		List<Map<String, Object>> buckets = histogram != null ? (List<Map<String, Object>>) histogram.get("buckets")
+				: new ArrayList<Map<String, Object>>();
+		long[] keys = new long[buckets.size()];
+		long[] counts = new long[buckets.size()];
+		for (int idx = 0; idx < keys.length; idx++) {
+			keys[idx] = ((Number) buckets.get(idx).get("key")).longValue();
+			counts[idx] = ((Number) buckets.get(idx).get("doc_count")).longValue();
+		}
+		return getSlices(totalHits, keys, counts);
+	}
+
+	/**
+	 * Groups consecutive buckets in slices, cutting a slice as soon as it
+	 * holds its share of the hits not yet sliced. A bucket is never split,
+	 * so a burst of hits in a single bucket can leave fewer slices than
+	 * wanted.
+	 */
+	List<ESTimeSlice> getSlices(long totalHits, long[] keys, long[] counts) {
+		List<ESTimeSlice> result = new ArrayList<ESTimeSlice>();
+
+		long dated = 0;
+		for (long count : counts) {
+			dated += count;
+		}
+		if (dated == 0) {
+			// Nothing to cut on, a single slice is the whole query
+			result.add(new ESTimeSlice(Long.MIN_VALUE, Long.MAX_VALUE, totalHits));
+			return result;
+		}
+
+		long from = Long.MIN_VALUE;
+		long hits = 0;
+		long remaining = dated;
+		for (int idx = 0; idx < keys.length; idx++) {
+			hits += counts[idx];
+			long share = (remaining + (slices - result.size()) - 1) / (slices - result.size());
+			if (hits >= share && idx + 1 < keys.length && result.size() < slices - 1) {
+				result.add(new ESTimeSlice(from, keys[idx + 1], hits));
+				from = keys[idx + 1];
+				remaining -= hits;
+				hits = 0;
+			}
+		}
+		if (totalHits > dated && result.isEmpty()) {
+			// Nothing was cut: an open range would match the missing hits too
+			result.add(ESTimeSlice.existing(hits));
+		} else {
+			result.add(new ESTimeSlice(from, Long.MAX_VALUE, hits));
+		}
+
+		if (totalHits > dated) {
+			result.add(ESTimeSlice.missing(totalHits - dated));
+		}
+
+		logger.debug("Sliced " + totalHits + " hits on " + field + ": " + result);
+		return result;
+	}
+
+}
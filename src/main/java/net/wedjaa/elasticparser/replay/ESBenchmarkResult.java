@@ -0,0 +1,103 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.replay;
+
+import java.util.Arrays;
+
+/**
+ * The timings of the runs of a benchmark.
+ */
+public class ESBenchmarkResult {
+
+	private final long[] firstRowNanos;
+	private final long[] totalNanos;
+	private final long rows;
+
+	public ESBenchmarkResult(long[] firstRowNanos, long[] totalNanos, long rows) {
+		this.firstRowNanos = firstRowNanos.clone();
+		this.totalNanos = totalNanos.clone();
+		this.rows = rows;
+		Arrays.sort(this.firstRowNanos);
+		Arrays.sort(this.totalNanos);
+	}
+
+	public int getRuns() {
+		return totalNanos.length;
+	}
+
+	/**
+	 * @return the rows read, over all the runs.
+	 */
+	public long getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return the rows read per second, over all the runs.
+	 */
+	public double getRowsPerSecond() {
+		long nanos = 0;
+		for (long runNanos : totalNanos) {
+			nanos += runNanos;
+		}
+		return nanos > 0 ? rows * 1e9 / nanos : 0;
+	}
+
+	/**
+	 * @param percentile from <em>0</em> to <em>100</em>.
+	 * @return the time from the query to its first row.
+	 */
+	public long getFirstRowNanos(double percentile) {
+		return percentile(firstRowNanos, percentile);
+	}
+
+	/**
+	 * @param percentile from <em>0</em> to <em>100</em>.
+	 * @return the time from the query to its last row.
+	 */
+	public long getTotalNanos(double percentile) {
+		return percentile(totalNanos, percentile);
+	}
+
+	private static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int idx = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.2fms", nanos / 1e6);
+	}
+
+	@Override
+	public String toString() {
+		return getRuns() + " runs, " + rows + " rows, " + String.format("%.0f", getRowsPerSecond()) + " rows/s"
+				+ "; first row p50 " + millis(getFirstRowNanos(50)) + " p99 " + millis(getFirstRowNanos(99))
+				+ "; all rows p50 " + millis(getTotalNanos(50)) + " p99 " + millis(getTotalNanos(99));
+	}
+
+}
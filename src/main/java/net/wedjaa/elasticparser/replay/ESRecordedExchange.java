@@ -0,0 +1,141 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.replay;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+
+/**
+ * A request sent to the cluster and the response it got, as recorded by
+ * {@link ESRecordingClient}.
+ *
+ * A recording is a header followed by the exchanges, each one being the
+ * action name, the key of the request, the latency of the response in
+ * nanoseconds and the response in the transport serialization.
+ */
+public class ESRecordedExchange {
+
+	static final int MAGIC = 0x45535252;
+	static final int VERSION = 1;
+
+	private final String action;
+	private final String key;
+	private final long latencyNanos;
+	private final byte[] response;
+
+	public ESRecordedExchange(String action, String key, long latencyNanos, byte[] response) {
+		this.action = action;
+		this.key = key;
+		this.latencyNanos = latencyNanos;
+		this.response = response;
+	}
+
+	/**
+	 * Identifies a request by its action and a digest of its transport
+	 * serialization: the same search sent again, or a scroll asking for the
+	 * same scroll id, has the same key.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static String requestKey(String action, ActionRequest request) throws IOException {
+		BytesStreamOutput requestBytes = new BytesStreamOutput();
+		request.writeTo(requestBytes);
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(requestBytes.bytes().toBytes());
+			StringBuilder key = new StringBuilder(action).append(':');
+			for (byte b : hash) {
+				key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
+
+	static void writeHeader(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+	}
+
+	static void readHeader(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a recording of ElasticSearch responses");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported recording version " + version);
+		}
+	}
+
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeUTF(action);
+		out.writeUTF(key);
+		out.writeLong(latencyNanos);
+		out.writeInt(response.length);
+		out.write(response);
+	}
+
+	/**
+	 * @return the next exchange, or <em>null</em> at the end of the
+	 * recording.
+	 */
+	static ESRecordedExchange readFrom(DataInputStream in) throws IOException {
+		String action;
+		try {
+			action = in.readUTF();
+		} catch (EOFException e) {
+			return null;
+		}
+		String key = in.readUTF();
+		long latencyNanos = in.readLong();
+		byte[] response = new byte[in.readInt()];
+		in.readFully(response);
+		return new ESRecordedExchange(action, key, latencyNanos, response);
+	}
+
+	public String getAction() {
+		return action;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public long getLatencyNanos() {
+		return latencyNanos;
+	}
+
+	public byte[] getResponse() {
+		return response;
+	}
+
+}
@@ -0,0 +1,124 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+
+/**
+ * A client that records the responses of the cluster - searches, scrolls
+ * and anything else - to a file that {@link ESReplayClient} can serve back
+ * without a cluster.
+ *
+ * Closing the recording client closes the client it wraps.
+ */
+public class ESRecordingClient extends FilterClient {
+
+	private static final Logger logger = Logger.getLogger(ESRecordingClient.class);
+
+	private final DataOutputStream recording;
+	private long recordedExchanges = 0;
+
+	public ESRecordingClient(Client in, File recordingFile) throws IOException {
+		super(in);
+		this.recording = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recordingFile)));
+		ESRecordedExchange.writeHeader(recording);
+	}
+
+	@Override
+	protected <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+			final Action<Request, Response, RequestBuilder> action, Request request,
+			final ActionListener<Response> listener) {
+
+		final String key;
+		try {
+			key = ESRecordedExchange.requestKey(action.name(), request);
+		} catch (IOException e) {
+			listener.onFailure(e);
+			return;
+		}
+
+		final long start = System.nanoTime();
+		super.doExecute(action, request, new ActionListener<Response>() {
+			@Override
+			public void onResponse(Response response) {
+				record(action.name(), key, System.nanoTime() - start, response);
+				listener.onResponse(response);
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				listener.onFailure(e);
+			}
+		});
+	}
+
+	private void record(String action, String key, long latencyNanos, ActionResponse response) {
+		try {
+			BytesStreamOutput responseBytes = new BytesStreamOutput();
+			response.writeTo(responseBytes);
+			ESRecordedExchange exchange = new ESRecordedExchange(action, key, latencyNanos,
+					responseBytes.bytes().toBytes());
+			synchronized (recording) {
+				exchange.writeTo(recording);
+				recordedExchanges++;
+			}
+		} catch (IOException e) {
+			logger.warn("Failed to record the response to " + action + ": " + e.getMessage());
+		}
+	}
+
+	public long getRecordedExchanges() {
+		synchronized (recording) {
+			return recordedExchanges;
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (recording) {
+			try {
+				recording.close();
+			} catch (IOException e) {
+				logger.warn("Failed to close the recording: " + e.getMessage());
+			}
+		}
+		super.close();
+	}
+
+}
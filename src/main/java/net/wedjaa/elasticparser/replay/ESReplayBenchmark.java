@@ -0,0 +1,127 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import net.wedjaa.elasticparser.ESSearch;
+
+import org.apache.log4j.Logger;
+import org.elasticsearch.client.Client;
+
+/**
+ * Runs a query again and again through {@link ESSearch}, reading all of its
+ * rows, and times the runs. With an {@link ESReplayClient} the runs are
+ * deterministic and need no cluster.
+ */
+public class ESReplayBenchmark {
+
+	private static final Logger logger = Logger.getLogger(ESReplayBenchmark.class);
+
+	private final Client client;
+	private final int searchMode;
+
+	public ESReplayBenchmark(Client client, int searchMode) {
+		this.client = client;
+		this.searchMode = searchMode;
+	}
+
+	/**
+	 * @param query      the query, as JSON.
+	 * @param warmupRuns runs not timed, to let the JIT settle.
+	 * @param runs       runs timed.
+	 */
+	public ESBenchmarkResult run(String query, int warmupRuns, int runs) {
+		long[] timings = new long[2];
+		for (int run = 0; run < warmupRuns; run++) {
+			runQuery(query, timings);
+		}
+
+		long[] firstRowNanos = new long[runs];
+		long[] totalNanos = new long[runs];
+		long rows = 0;
+		for (int run = 0; run < runs; run++) {
+			rows += runQuery(query, timings);
+			firstRowNanos[run] = timings[0];
+			totalNanos[run] = timings[1];
+		}
+		return new ESBenchmarkResult(firstRowNanos, totalNanos, rows);
+	}
+
+	/**
+	 * @param timings where to put the time to the first row and to the
+	 *                last one.
+	 * @return the rows read.
+	 */
+	private long runQuery(String query, long[] timings) {
+		ESSearch search = new ESSearch(client, searchMode);
+		try {
+			long start = System.nanoTime();
+			search.search(query);
+			long rows = 0;
+			timings[0] = 0;
+			while (search.next() != null) {
+				if (rows++ == 0) {
+					timings[0] = System.nanoTime() - start;
+				}
+			}
+			timings[1] = System.nanoTime() - start;
+			return rows;
+		} finally {
+			search.close();
+		}
+	}
+
+	/**
+	 * Replays a recording: <em>recording mode query-file [runs]
+	 * [latency-ms]</em>, where mode is <em>hits</em> or
+	 * <em>aggregations</em>.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("Usage: ESReplayBenchmark <recording> <hits|aggregations> <query file> [runs] [latency ms]");
+			System.exit(1);
+		}
+		int searchMode = args[1].startsWith("agg") ? ESSearch.ES_MODE_AGGS : ESSearch.ES_MODE_HITS;
+		String query = new String(Files.readAllBytes(new File(args[2]).toPath()), Charset.forName("UTF-8"));
+		int runs = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+		ESReplayClient replayClient = new ESReplayClient(new File(args[0]));
+		try {
+			if (args.length > 4) {
+				replayClient.setLatencyMillis(Long.parseLong(args[4]));
+			}
+			ESBenchmarkResult result = new ESReplayBenchmark(replayClient, searchMode).run(query, runs / 10, runs);
+			logger.info(result);
+			System.out.println(result);
+		} finally {
+			replayClient.close();
+		}
+	}
+
+}
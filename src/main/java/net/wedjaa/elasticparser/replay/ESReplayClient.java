@@ -0,0 +1,221 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.replay;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.client.support.Headers;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * A client that answers requests with the responses recorded by
+ * {@link ESRecordingClient}, without a cluster. Requests are matched to
+ * the recorded ones by their content; a request recorded more than once -
+ * like the pages of a scroll - gets its responses in the recorded order,
+ * starting over when they run out or when the search that opened the
+ * scroll is replayed.
+ *
+ * Responses are served as fast as possible unless a latency is set: a
+ * fixed one, a multiple of the recorded one, or both.
+ */
+public class ESReplayClient extends AbstractClient {
+
+	private static final Logger logger = Logger.getLogger(ESReplayClient.class);
+
+	private static boolean streamsRegistered = false;
+
+	private final Map<String, List<ESRecordedExchange>> exchanges = new HashMap<String, List<ESRecordedExchange>>();
+	private final Map<String, Integer> cursors = new HashMap<String, Integer>();
+	private final Map<String, String> scrollKeys = new HashMap<String, String>();
+	private final ScheduledExecutorService delayedResponses;
+	private volatile long latencyNanos = 0;
+	private volatile double recordedLatencyScale = 0;
+
+	public ESReplayClient(File recordingFile) throws IOException {
+		this(recordingFile, new ThreadPool("elasticparser-replay"));
+	}
+
+	private ESReplayClient(File recordingFile, ThreadPool threadPool) throws IOException {
+		super(Settings.EMPTY, threadPool, Headers.EMPTY);
+		registerStreams();
+		int recorded = 0;
+		DataInputStream recording = new DataInputStream(new BufferedInputStream(new FileInputStream(recordingFile)));
+		try {
+			ESRecordedExchange.readHeader(recording);
+			ESRecordedExchange exchange;
+			while ((exchange = ESRecordedExchange.readFrom(recording)) != null) {
+				List<ESRecordedExchange> keyExchanges = exchanges.get(exchange.getKey());
+				if (keyExchanges == null) {
+					keyExchanges = new ArrayList<ESRecordedExchange>();
+					exchanges.put(exchange.getKey(), keyExchanges);
+				}
+				keyExchanges.add(exchange);
+				recorded++;
+			}
+		} finally {
+			recording.close();
+		}
+		logger.debug("Replaying " + recorded + " recorded responses to " + exchanges.size() + " requests");
+
+		delayedResponses = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "elasticparser-replay-latency");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Aggregations are read back through the streams ElasticSearch
+	 * registers while building a client: build one, without connecting it,
+	 * if nothing in this JVM did.
+	 */
+	private static synchronized void registerStreams() {
+		if (!streamsRegistered) {
+			TransportClient.builder().settings(Settings.settingsBuilder().put("client.transport.sniff", false).build())
+					.build().close();
+			streamsRegistered = true;
+		}
+	}
+
+	/**
+	 * @param latencyMillis a latency added to every response.
+	 */
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, latencyMillis));
+	}
+
+	public long getLatencyMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+	}
+
+	/**
+	 * @param recordedLatencyScale how much of the recorded latency of each
+	 *                             response to reproduce: <em>0</em> - the
+	 *                             default - for none, <em>1</em> for all of
+	 *                             it.
+	 */
+	public void setRecordedLatencyScale(double recordedLatencyScale) {
+		this.recordedLatencyScale = Math.max(0, recordedLatencyScale);
+	}
+
+	public double getRecordedLatencyScale() {
+		return recordedLatencyScale;
+	}
+
+	@Override
+	protected <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+			Action<Request, Response, RequestBuilder> action, Request request, final ActionListener<Response> listener) {
+
+		final Response response;
+		ESRecordedExchange exchange;
+		try {
+			String key = ESRecordedExchange.requestKey(action.name(), request);
+			if (request instanceof SearchScrollRequest) {
+				synchronized (this) {
+					scrollKeys.put(((SearchScrollRequest) request).scrollId(), key);
+				}
+			}
+			exchange = nextExchange(key);
+			if (exchange == null) {
+				listener.onFailure(new IllegalStateException("No recorded response to " + action.name()));
+				return;
+			}
+			response = action.newResponse();
+			response.readFrom(StreamInput.wrap(exchange.getResponse()));
+		} catch (IOException e) {
+			listener.onFailure(e);
+			return;
+		}
+
+		if (!(request instanceof SearchScrollRequest) && response instanceof SearchResponse
+				&& ((SearchResponse) response).getScrollId() != null) {
+			// A new scroll starts from its first page - the pages answer
+			// with the scroll id too, they must not reset it
+			synchronized (this) {
+				String scrollKey = scrollKeys.get(((SearchResponse) response).getScrollId());
+				if (scrollKey != null) {
+					cursors.remove(scrollKey);
+				}
+			}
+		}
+
+		long delayNanos = latencyNanos + (long) (exchange.getLatencyNanos() * recordedLatencyScale);
+		if (delayNanos <= 0) {
+			listener.onResponse(response);
+			return;
+		}
+		delayedResponses.schedule(new Runnable() {
+			@Override
+			public void run() {
+				listener.onResponse(response);
+			}
+		}, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private synchronized ESRecordedExchange nextExchange(String key) {
+		List<ESRecordedExchange> keyExchanges = exchanges.get(key);
+		if (keyExchanges == null) {
+			return null;
+		}
+		Integer cursor = cursors.get(key);
+		int position = cursor != null && cursor < keyExchanges.size() ? cursor : 0;
+		cursors.put(key, position + 1);
+		return keyExchanges.get(position);
+	}
+
+	@Override
+	public void close() {
+		delayedResponses.shutdownNow();
+		ThreadPool.terminate(threadPool(), 10, TimeUnit.SECONDS);
+	}
+
+}
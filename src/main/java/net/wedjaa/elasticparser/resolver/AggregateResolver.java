@@ -31,6 +31,15 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.wedjaa.elasticparser.instrument.ESInstrumentation;
+import net.wedjaa.elasticparser.instrument.ESInstrumentationProvider;
+import net.wedjaa.elasticparser.row.ESRowBuilder;
+import net.wedjaa.elasticparser.row.ESRowSchema;
+import net.wedjaa.elasticparser.row.ESRowSink;
+import net.wedjaa.elasticparser.trace.ESTracer;
 
 import org.apache.log4j.Logger;
 import org.elasticsearch.search.aggregations.Aggregation;
@@ -45,11 +54,27 @@ public class AggregateResolver {
 
     private ClassFinder classFinder;
 
+    // Entry keys by aggregation name and bucket property, so that
+    // every bucket doesn't build its own copy of the same key. The
+    // names come from the queries: the cache starts over rather than
+    // keeping the names of every query ever run.
+    private static final int MAX_CACHED_AGGREGATIONS = 256;
+    private final ConcurrentMap<String, ConcurrentMap<String, String>> entryKeys =
+            new ConcurrentHashMap<String, ConcurrentMap<String, String>>();
+
 
 	private static AggregateResolver instance = null;
 
 	private static final Logger logger = Logger.getLogger(AggregateResolver.class);
 
+	/**
+	 * The per-bucket logging is only for traced executions: building the
+	 * messages would otherwise slow down every query.
+	 */
+	private static boolean tracing() {
+		return ESTracer.isTracing() && logger.isDebugEnabled();
+	}
+
 	protected AggregateResolver() {
 		this.classFinder = new ClassFinder();
 	}
@@ -91,7 +116,9 @@ public class AggregateResolver {
 		try {
 			buckets = (List<Class<?>>) getBucketsMethod.invoke(aggregation);
 			if (buckets.size() > 0) {
-				logger.debug("Returning " + buckets.size() + " buckets.");
+				if (tracing()) {
+					logger.debug("Returning " + buckets.size() + " buckets.");
+				}
 			}
 		} catch (IllegalAccessException e) {
 			logger.trace("Failed to get entries on aggregation of type " + aggregation.getName() + ": " + e
@@ -109,6 +136,26 @@ public class AggregateResolver {
 
 
 
+	private String getEntryKey(String aggregationName, String key) {
+		ConcurrentMap<String, String> aggregationKeys = entryKeys.get(aggregationName);
+		if (aggregationKeys == null) {
+			if (entryKeys.size() >= MAX_CACHED_AGGREGATIONS) {
+				entryKeys.clear();
+			}
+			aggregationKeys = new ConcurrentHashMap<String, String>();
+			ConcurrentMap<String, String> existing = entryKeys.putIfAbsent(aggregationName, aggregationKeys);
+			if (existing != null) {
+				aggregationKeys = existing;
+			}
+		}
+		String entryKey = aggregationKeys.get(key);
+		if (entryKey == null) {
+			entryKey = aggregationName + " " + key;
+			aggregationKeys.put(key, entryKey);
+		}
+		return entryKey;
+	}
+
 	private Map<String, Object> createBucketsMap(
 			Aggregation aggregation, Object bucket,
 			Class<?> bucketClass, String parentAggregation) {
@@ -117,7 +164,9 @@ public class AggregateResolver {
 
         String aggregationName = aggregation.getName();
 
-		logger.debug("createBucketsMap - entry[" + parentAggregation + "] = " + aggregationName);
+		if (tracing()) {
+			logger.debug("createBucketsMap - entry[" + parentAggregation + "] = " + aggregationName);
+		}
 		result.put(parentAggregation, aggregation.getName());
 
 		List<Method> bucketMethods = classFinder.getClassMethods(bucketClass);
@@ -131,9 +180,11 @@ public class AggregateResolver {
                         // default.
                         method.setAccessible(true);
 						Object value = method.invoke(bucket);
-                        String effectiveKey =  aggregationName + " " + key;
+                        String effectiveKey = getEntryKey(aggregationName, key);
 						if (value != null && !value.toString().equals("NaN")) {
-							logger.debug("   entry["  + effectiveKey + "] = " + value);
+							if (tracing()) {
+								logger.debug("   entry["  + effectiveKey + "] = " + value);
+							}
 							result.put( effectiveKey , value);
 						} else {
 							// We need to fill in missing data in aggregations
@@ -168,7 +219,9 @@ public class AggregateResolver {
 			parentAggregation = "";
 		}
 
-		logger.debug("unrollSimple: " + aggregation.getName() + "; Parent: " + parentAggregation +"; Depth: " + depth);
+		if (tracing()) {
+			logger.debug("unrollSimple: " + aggregation.getName() + "; Parent: " + parentAggregation +"; Depth: " + depth);
+		}
 		Class<?> aggClass = aggregation.getClass();
 		List<Map<String, Object>> subValues = null;
 		if ( classFinder.hasMethod("getAggregations", aggClass) ) {
@@ -192,7 +245,9 @@ public class AggregateResolver {
 		Class<?> aggregationClass = getAggregationClass(aggregation);
 		result.add(createBucketsMap(aggregation, aggregation, aggregationClass, parentAggregation));
 		if ( subValues != null  && subValues.size() > 0) {
-			logger.debug("Extending simple " + aggregation.getName() + " with contained aggregations.");
+			if (tracing()) {
+				logger.debug("Extending simple " + aggregation.getName() + " with contained aggregations.");
+			}
 			Iterator<Map<String, Object>> subIter = subValues.iterator();
 			while ( subIter.hasNext() ) {
 				Map<String, Object> subMap = subIter.next();
@@ -211,7 +266,9 @@ public class AggregateResolver {
 			}
 			result = subValues;
 		}
-		logger.debug("Simple Returning: " + result);
+		if (tracing()) {
+			logger.debug("Simple Returning: " + result);
+		}
 		return result;
 	}
 
@@ -243,7 +300,9 @@ public class AggregateResolver {
 			parentAggregation = aggregation.getName();
 		}
 
-        logger.debug("unrollBucket: " + aggregation.getName() + "; Parent: " + parentAggregation +"; Depth: " + depth);
+        if (tracing()) {
+            logger.debug("unrollBucket: " + aggregation.getName() + "; Parent: " + parentAggregation +"; Depth: " + depth);
+        }
 
 		List<Class<?>> buckets = getBuckets(aggregation);
 
@@ -251,86 +310,112 @@ public class AggregateResolver {
 
 
 			for (Object bucket : buckets) {
+				unrollBucket(aggregation, bucket, parentAggregation, depth, result);
+			}
+		}
+		if (tracing()) {
+			logger.debug("Unrolled Returning: " + result);
+		}
 
-                //  These are the buckets that need to be split into
-                //  multiple entries.
-                List<List<Map<String, Object>>> splitBuckets = new ArrayList<>();
-                Map<String, Object> entryMap = createBucketsMap(aggregation, bucket, bucket.getClass(), parentAggregation);
+		return result;
+	}
+
+    /**
+     * Unrolls a single bucket of a bucket aggregation, adding its entries to
+     * the results.
+     */
+	private void unrollBucket(Aggregation aggregation, Object bucket, String parentAggregation, int depth,
+			List<Map<String, Object>> result) {
 
-				logger.debug("Bucket Class: " + bucket.getClass());
+        //  These are the buckets that need to be split into
+        //  multiple entries.
+        List<List<Map<String, Object>>> splitBuckets = new ArrayList<>();
+        Map<String, Object> entryMap = createBucketsMap(aggregation, bucket, bucket.getClass(), parentAggregation);
 
-				Method getAggregationsMethod = classFinder.getMethod("getAggregations", bucket.getClass());
-				if ( getAggregationsMethod != null )
+		if (tracing()) {
+			logger.debug("Bucket Class: " + bucket.getClass());
+		}
+
+		Method getAggregationsMethod = classFinder.getMethod("getAggregations", bucket.getClass());
+		if ( getAggregationsMethod != null )
+        {
+            try
+            {
+                if (tracing()) {
+                    logger.debug("Processing " + aggregation.getName() + " buckets.");
+                }
+                Aggregations bucketAggregations = (Aggregations) getAggregationsMethod.invoke(bucket);
+                for (Aggregation bucketAggregation : bucketAggregations.asList())
                 {
-                    try
+                    if (tracing()) {
+                        logger.debug("Bucket " +  bucketAggregation.getName() +", " + bucketAggregation.getClass().getName());
+                    }
+                    if (getAggregationType(bucketAggregation).equals(AGGREGATION_SIMPLE)
+                            && !bucketAggregation.getClass().getName().endsWith("Nested") )
                     {
-                        logger.debug("Processing " + aggregation.getName() + " buckets.");
-                        Aggregations bucketAggregations = (Aggregations) getAggregationsMethod.invoke(bucket);
-                        for (Aggregation bucketAggregation : bucketAggregations.asList())
-                        {
-                            logger.debug("Bucket " +  bucketAggregation.getName() +", " + bucketAggregation.getClass().getName());
-                            if (getAggregationType(bucketAggregation).equals(AGGREGATION_SIMPLE)
-                                    && !bucketAggregation.getClass().getName().endsWith("Nested") )
-                            {
-                                logger.debug("This bucket ["+ bucketAggregation.getName() +"] goes into entry: " + aggregation.getName());
-                                addBucket(entryMap, bucketAggregation, aggregation.getName(), depth + 1);
-                            }
-                            else
-                            {
-
-                                logger.debug("This bucket [" + bucketAggregation.getName() + "] gets split into multiple entries.");
-                                if ( bucketAggregation.getClass().getName().endsWith("Nested") )   {
-                                    splitBuckets.add(unrollSimpleAggregation(bucketAggregation, aggregation.getName(), depth + 1));
-                                } else
-                                {
-                                    splitBuckets.add(unrollAggregationBuckets(bucketAggregation, aggregation.getName(),
-                                            depth + 1));
-                                }
-                            }
+                        if (tracing()) {
+                            logger.debug("This bucket ["+ bucketAggregation.getName() +"] goes into entry: " + aggregation.getName());
                         }
-                        logger.debug(aggregation.getName() + " buckets exploration complete!");
+                        addBucket(entryMap, bucketAggregation, aggregation.getName(), depth + 1);
+                    }
+                    else
+                    {
 
-                        if (splitBuckets.size() > 0)
-                        {
-                            logger.debug("Splitting into multiple entries");
-                            Iterator<List<Map<String, Object>>> splitBucketsIter = splitBuckets.iterator();
-                            while (splitBucketsIter.hasNext())
-                            {
-                                Iterator<Map<String, Object>> subEntryIter = splitBucketsIter.next().iterator();
-                                while (subEntryIter.hasNext())
-                                {
-                                    Map<String, Object> subMap = subEntryIter.next();
-                                    subMap.putAll(entryMap);
-                                    logger.debug("Adding " + subMap + " to results for " + aggregation.getName());
-                                    result.add(subMap);
-                                }
-                            }
+                        if (tracing()) {
+                            logger.debug("This bucket [" + bucketAggregation.getName() + "] gets split into multiple entries.");
                         }
-                        else
+                        if ( bucketAggregation.getClass().getName().endsWith("Nested") )   {
+                            splitBuckets.add(unrollSimpleAggregation(bucketAggregation, aggregation.getName(), depth + 1));
+                        } else
                         {
-                            logger.debug("["+aggregation.getName()+"] Returning a single entry: " + entryMap);
-                            result.add(entryMap);
+                            splitBuckets.add(unrollAggregationBuckets(bucketAggregation, aggregation.getName(),
+                                    depth + 1));
                         }
                     }
-                    catch (IllegalArgumentException e)
-                    {
-                        logger.trace("Illegal argument exception calling getAggregations on " + bucket);
-                    }
-                    catch (IllegalAccessException e)
+                }
+                if (tracing()) {
+                    logger.debug(aggregation.getName() + " buckets exploration complete!");
+                }
+
+                if (splitBuckets.size() > 0)
+                {
+                    logger.debug("Splitting into multiple entries");
+                    Iterator<List<Map<String, Object>>> splitBucketsIter = splitBuckets.iterator();
+                    while (splitBucketsIter.hasNext())
                     {
-                        logger.trace("Illegal access exception calling getAggregations on " + bucket);
+                        Iterator<Map<String, Object>> subEntryIter = splitBucketsIter.next().iterator();
+                        while (subEntryIter.hasNext())
+                        {
+                            Map<String, Object> subMap = subEntryIter.next();
+                            subMap.putAll(entryMap);
+                            if (tracing()) {
+                                logger.debug("Adding " + subMap + " to results for " + aggregation.getName());
+                            }
+                            result.add(subMap);
+                        }
                     }
-                    catch (InvocationTargetException e)
-                    {
-                        logger.trace("Illegal Invocation Target exception calling getAggregations on " + bucket);
+                }
+                else
+                {
+                    if (tracing()) {
+                        logger.debug("["+aggregation.getName()+"] Returning a single entry: " + entryMap);
                     }
+                    result.add(entryMap);
                 }
-
-			}
-		}
-		logger.debug("Unrolled Returning: " + result);
-
-		return result;
+            }
+            catch (IllegalArgumentException e)
+            {
+                logger.trace("Illegal argument exception calling getAggregations on " + bucket);
+            }
+            catch (IllegalAccessException e)
+            {
+                logger.trace("Illegal access exception calling getAggregations on " + bucket);
+            }
+            catch (InvocationTargetException e)
+            {
+                logger.trace("Illegal Invocation Target exception calling getAggregations on " + bucket);
+            }
+        }
 	}
 
     public String getAggregationType(Aggregation aggregation) {
@@ -373,19 +458,187 @@ public class AggregateResolver {
 		return explode(aggregations.asMap(), parentAggregation, depth);
 	}
 
+	/**
+	 * @return the rows of the aggregations, immutable and sharing a single
+	 * column dictionary.
+	 */
 	public List<Map<String, Object>> explode(Aggregations aggregations) {
-		return explode(aggregations.asMap(), "Aggregation", 0);
+		final List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		explode(aggregations, new ESRowSink() {
+			@Override
+			public void add(Map<String, Object> row) {
+				rows.add(row);
+			}
+		});
+		return rows;
 	}
 
 	public List<Map<String, Object>> explode(Map<String, Aggregation> aggregations) {
-		return  explode(aggregations, "Aggregation", 0);
+		final List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		explode(aggregations, new ESRowSink() {
+			@Override
+			public void add(Map<String, Object> row) {
+				rows.add(row);
+			}
+		});
+		return rows;
+	}
+
+	/**
+	 * Flattens the aggregations handing the rows to the sink as they are
+	 * built, one top level bucket at a time: only the rows of a single top
+	 * level bucket are held at once, instead of the whole result.
+	 *
+	 * @return the number of rows handed to the sink.
+	 */
+	public long explode(Aggregations aggregations, ESRowSink sink) {
+		ESInstrumentation instrumentation = ESInstrumentationProvider.get();
+		Object explodeEvent = instrumentation.beginExplode();
+		long rows = explode(aggregations.asMap(), sink);
+		if (explodeEvent != null) {
+			instrumentation.endExplode(explodeEvent, countBuckets(aggregations), rows);
+		}
+		return rows;
+	}
+
+	/**
+	 * The entries of a top level bucket are turned into rows as soon as
+	 * the bucket has been unrolled, so the entries of the other buckets
+	 * are never held at the same time.
+	 */
+	private long explode(Map<String, Aggregation> aggregationsMap, ESRowSink sink) {
+		ESRowBuilder rowBuilder = new ESRowBuilder(new ESRowSchema());
+		long rows = 0;
+		for (String aggregation_name : aggregationsMap.keySet()) {
+			Aggregation aggregation = aggregationsMap.get(aggregation_name);
+			if (getAggregationType(aggregation).equals(AGGREGATION_BUCKETS)) {
+				List<Class<?>> buckets = getBuckets(aggregation);
+				if (buckets == null) {
+					continue;
+				}
+				for (Object bucket : buckets) {
+					List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+					unrollBucket(aggregation, bucket, "Aggregation", 0, entries);
+					rows += emit(entries, rowBuilder, sink);
+				}
+			} else {
+				rows += emit(unrollAggregation((InternalAggregation) aggregation, "Aggregation", 0), rowBuilder, sink);
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Counts the buckets of the aggregations, at every level.
+	 */
+	public long countBuckets(Aggregations aggregations) {
+		long count = 0;
+		for (Aggregation aggregation : aggregations.asMap().values()) {
+			if (getAggregationType(aggregation).equals(AGGREGATION_BUCKETS)) {
+				List<Class<?>> buckets = getBuckets(aggregation);
+				if (buckets == null) {
+					continue;
+				}
+				for (Object bucket : buckets) {
+					count++;
+					Aggregations bucketAggregations = getSubAggregations(bucket);
+					if (bucketAggregations != null) {
+						count += countBuckets(bucketAggregations);
+					}
+				}
+			} else {
+				Aggregations subAggregations = getSubAggregations(aggregation);
+				if (subAggregations != null) {
+					count += countBuckets(subAggregations);
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Counts the rows flattening the aggregations would produce, walking
+	 * the buckets the same way {@link #explode(Aggregations)} does but
+	 * without building any row.
+	 */
+	public long countRows(Aggregations aggregations) {
+		long rows = 0;
+		for (Aggregation aggregation : aggregations.asMap().values()) {
+			if (getAggregationType(aggregation).equals(AGGREGATION_BUCKETS)) {
+				rows += countBucketAggregationRows(aggregation);
+			} else {
+				rows += countSimpleAggregationRows(aggregation);
+			}
+		}
+		return rows;
+	}
+
+	private long countSimpleAggregationRows(Aggregation aggregation) {
+		Aggregations subAggregations = getSubAggregations(aggregation);
+		long subRows = subAggregations != null ? countRows(subAggregations) : 0;
+		// The entry of the aggregation is replaced by the ones it contains
+		return subRows > 0 ? subRows : 1;
+	}
+
+	private long countBucketAggregationRows(Aggregation aggregation) {
+		List<Class<?>> buckets = getBuckets(aggregation);
+		if (buckets == null) {
+			return 0;
+		}
+		long rows = 0;
+		for (Object bucket : buckets) {
+			Aggregations bucketAggregations = getSubAggregations(bucket);
+			if (bucketAggregations == null) {
+				continue;
+			}
+			boolean split = false;
+			long bucketRows = 0;
+			for (Aggregation bucketAggregation : bucketAggregations.asList()) {
+				boolean nested = bucketAggregation.getClass().getName().endsWith("Nested");
+				if (getAggregationType(bucketAggregation).equals(AGGREGATION_SIMPLE) && !nested) {
+					continue;
+				}
+				split = true;
+				bucketRows += nested ? countSimpleAggregationRows(bucketAggregation)
+						: countBucketAggregationRows(bucketAggregation);
+			}
+			rows += split ? bucketRows : 1;
+		}
+		return rows;
+	}
+
+	private Aggregations getSubAggregations(Object aggregation) {
+		Method getAggregationsMethod = classFinder.getMethod("getAggregations", aggregation.getClass());
+		if (getAggregationsMethod == null) {
+			return null;
+		}
+		try {
+			getAggregationsMethod.setAccessible(true);
+			return (Aggregations) getAggregationsMethod.invoke(aggregation);
+		} catch (IllegalAccessException e) {
+			logger.trace("Illegal access exception calling getAggregations on " + aggregation.getClass());
+		} catch (IllegalArgumentException e) {
+			logger.trace("Illegal argument exception calling getAggregations on " + aggregation.getClass());
+		} catch (InvocationTargetException e) {
+			logger.trace("Illegal Invocation Target exception calling getAggregations on " + aggregation.getClass());
+		}
+		return null;
+	}
+
+	private long emit(List<Map<String, Object>> entries, ESRowBuilder rowBuilder, ESRowSink sink) {
+		for (Map<String, Object> entry : entries) {
+			sink.add(rowBuilder.setAll(entry).build());
+		}
+		return entries.size();
 	}
 
 	private List<Map<String, Object>> explode(Map<String, Aggregation> aggregations, String parentAggregation, int depth) {
 
 		List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
 
-		logger.debug("exploder - Parent: " + parentAggregation);
+		if (tracing()) {
+			logger.debug("exploder - Parent: " + parentAggregation);
+		}
 
 		Set<String> aggregation_names = aggregations.keySet();
 		for (String aggregation_name : aggregation_names) {
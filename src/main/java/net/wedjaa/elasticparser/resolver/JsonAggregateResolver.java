@@ -0,0 +1,307 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.resolver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import net.wedjaa.elasticparser.row.ESRowBuilder;
+import net.wedjaa.elasticparser.row.ESRowSchema;
+import net.wedjaa.elasticparser.trace.ESTracer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Flattens aggregations received as JSON - through the REST endpoints - into
+ * the same table like entries {@link AggregateResolver} produces from the
+ * transport client results. Keys are built the same way: the aggregation
+ * name followed by the camel cased property, e.g. "People Groups DocCount".
+ *
+ * Only the properties found in the JSON response are returned, so entries
+ * may lack some of the accessors the transport classes expose.
+ */
+public class JsonAggregateResolver {
+
+	private static JsonAggregateResolver instance = null;
+
+	private static final Logger logger = Logger.getLogger(JsonAggregateResolver.class);
+
+	/**
+	 * The per-bucket logging is only for traced executions: building the
+	 * messages would otherwise slow down every query.
+	 */
+	private static boolean tracing() {
+		return ESTracer.isTracing() && logger.isTraceEnabled();
+	}
+
+	protected JsonAggregateResolver() {
+	}
+
+	public static JsonAggregateResolver getInstance() {
+
+		if (instance == null) {
+			instance = new JsonAggregateResolver();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * Turns doc_count into DocCount.
+	 */
+	private String propertyName(String jsonName) {
+		StringBuilder property = new StringBuilder(jsonName.length());
+		boolean upper = true;
+		for (int idx = 0; idx < jsonName.length(); idx++) {
+			char c = jsonName.charAt(idx);
+			if (c == '_') {
+				upper = true;
+			} else if (upper) {
+				property.append(Character.toUpperCase(c));
+				upper = false;
+			} else {
+				property.append(c);
+			}
+		}
+		return property.toString();
+	}
+
+	private boolean isAggregation(Object value) {
+		return value instanceof Map;
+	}
+
+	/**
+	 * Objects contained in an aggregation are other aggregations, unless
+	 * they are the metadata attached to it.
+	 */
+	private boolean isSubAggregation(String name, Object value) {
+		return isAggregation(value) && !name.equals("meta");
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> asMap(Object value) {
+		return (Map<String, Object>) value;
+	}
+
+	private boolean hasBuckets(Map<String, Object> aggregation) {
+		return aggregation.containsKey("buckets");
+	}
+
+	/**
+	 * Single bucket aggregations - filter, nested, global... - have a
+	 * document count and contain other aggregations.
+	 */
+	private boolean hasSubAggregations(Map<String, Object> aggregation) {
+		if (!aggregation.containsKey("doc_count")) {
+			return false;
+		}
+		for (Map.Entry<String, Object> property : aggregation.entrySet()) {
+			if (isSubAggregation(property.getKey(), property.getValue())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Map<String, Object> createBucketsMap(String aggregationName, Map<String, Object> bucket,
+			String parentAggregation) {
+
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put(parentAggregation, aggregationName);
+
+		for (Map.Entry<String, Object> property : bucket.entrySet()) {
+			Object value = property.getValue();
+			if (value instanceof Map || value instanceof List) {
+				continue;
+			}
+			String effectiveKey = aggregationName + " " + propertyName(property.getKey());
+			if (value == null || value.toString().equals("NaN")) {
+				// We need to fill in missing data in aggregations
+				// or Jasper will choke on it at times.
+				result.put(effectiveKey, property.getKey().endsWith("_as_string") ? "" : 0.0);
+			} else if (value instanceof Integer) {
+				// The transport client returns counts as longs
+				result.put(effectiveKey, ((Integer) value).longValue());
+			} else {
+				result.put(effectiveKey, value);
+			}
+		}
+
+		return result;
+	}
+
+	private List<Map<String, Object>> unrollSimpleAggregation(String aggregationName,
+			Map<String, Object> aggregation, String parentAggregation, int depth) {
+
+		if (tracing()) {
+			logger.trace("unrollSimple: " + aggregationName + "; Parent: " + parentAggregation + "; Depth: " + depth);
+		}
+
+		List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+		Map<String, Object> entry = createBucketsMap(aggregationName, aggregation, parentAggregation);
+
+		if (!hasSubAggregations(aggregation)) {
+			result.add(entry);
+			return result;
+		}
+
+		List<Map<String, Object>> subValues = explode(aggregation, aggregationName, depth + 1);
+		if (subValues.isEmpty()) {
+			result.add(entry);
+			return result;
+		}
+
+		for (Map<String, Object> subMap : subValues) {
+			for (Map.Entry<String, Object> property : entry.entrySet()) {
+				// Don't overwrite inner values
+				if (!subMap.containsKey(property.getKey())) {
+					subMap.put(property.getKey(), property.getValue());
+				}
+			}
+		}
+
+		return subValues;
+	}
+
+	private List<Map<String, Object>> getBuckets(Map<String, Object> aggregation) {
+
+		List<Map<String, Object>> buckets = new ArrayList<Map<String, Object>>();
+		Object jsonBuckets = aggregation.get("buckets");
+
+		if (jsonBuckets instanceof List) {
+			for (Object bucket : (List<?>) jsonBuckets) {
+				if (isAggregation(bucket)) {
+					buckets.add(asMap(bucket));
+				}
+			}
+		} else if (jsonBuckets instanceof Map) {
+			// Keyed buckets: the key is the name of the bucket
+			for (Map.Entry<String, Object> keyed : asMap(jsonBuckets).entrySet()) {
+				if (isAggregation(keyed.getValue())) {
+					Map<String, Object> bucket = asMap(keyed.getValue());
+					if (!bucket.containsKey("key")) {
+						bucket.put("key", keyed.getKey());
+					}
+					buckets.add(bucket);
+				}
+			}
+		}
+
+		return buckets;
+	}
+
+	private List<Map<String, Object>> unrollAggregationBuckets(String aggregationName,
+			Map<String, Object> aggregation, String parentAggregation, int depth) {
+
+		if (tracing()) {
+			logger.trace("unrollBucket: " + aggregationName + "; Parent: " + parentAggregation + "; Depth: " + depth);
+		}
+
+		List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+
+		for (Map<String, Object> bucket : getBuckets(aggregation)) {
+
+			// These are the buckets that need to be split into
+			// multiple entries.
+			List<List<Map<String, Object>>> splitBuckets = new ArrayList<List<Map<String, Object>>>();
+			Map<String, Object> entryMap = createBucketsMap(aggregationName, bucket, parentAggregation);
+
+			for (Map.Entry<String, Object> property : bucket.entrySet()) {
+				if (!isSubAggregation(property.getKey(), property.getValue())) {
+					continue;
+				}
+				String subName = property.getKey();
+				Map<String, Object> subAggregation = asMap(property.getValue());
+				if (hasBuckets(subAggregation)) {
+					splitBuckets.add(unrollAggregationBuckets(subName, subAggregation, aggregationName, depth + 1));
+				} else if (hasSubAggregations(subAggregation)) {
+					splitBuckets.add(unrollSimpleAggregation(subName, subAggregation, aggregationName, depth + 1));
+				} else {
+					for (Map<String, Object> subMap : unrollSimpleAggregation(subName, subAggregation,
+							aggregationName, depth + 1)) {
+						entryMap.putAll(subMap);
+					}
+				}
+			}
+
+			if (splitBuckets.size() > 0) {
+				for (List<Map<String, Object>> split : splitBuckets) {
+					for (Map<String, Object> subMap : split) {
+						subMap.putAll(entryMap);
+						result.add(subMap);
+					}
+				}
+			} else {
+				result.add(entryMap);
+			}
+		}
+
+		return result;
+	}
+
+	private List<Map<String, Object>> unrollAggregation(String aggregationName, Map<String, Object> aggregation,
+			String parentAggregation, int depth) {
+
+		if (hasBuckets(aggregation)) {
+			return unrollAggregationBuckets(aggregationName, aggregation, parentAggregation, depth);
+		}
+
+		return unrollSimpleAggregation(aggregationName, aggregation, parentAggregation, depth);
+	}
+
+	/**
+	 * @param aggregations the content of the <em>aggregations</em> object of a
+	 *                     search response.
+	 * @return the flattened entries, as rows sharing a single schema.
+	 */
+	public List<Map<String, Object>> explode(Map<String, Object> aggregations) {
+		List<Map<String, Object>> entries = explode(aggregations, "Aggregation", 0);
+		ESRowBuilder rowBuilder = new ESRowBuilder(new ESRowSchema());
+		ListIterator<Map<String, Object>> entryIter = entries.listIterator();
+		while (entryIter.hasNext()) {
+			entryIter.set(rowBuilder.setAll(entryIter.next()).build());
+		}
+		return entries;
+	}
+
+	private List<Map<String, Object>> explode(Map<String, Object> aggregations, String parentAggregation,
+			int depth) {
+
+		List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+
+		for (Map.Entry<String, Object> aggregation : aggregations.entrySet()) {
+			if (isSubAggregation(aggregation.getKey(), aggregation.getValue())) {
+				entries.addAll(unrollAggregation(aggregation.getKey(), asMap(aggregation.getValue()),
+						parentAggregation, depth));
+			}
+		}
+
+		return entries;
+	}
+
+}
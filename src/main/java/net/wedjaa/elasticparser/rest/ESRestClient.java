@@ -0,0 +1,311 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.rest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.log4j.Logger;
+import org.elasticsearch.ElasticsearchException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A lightweight client talking to the ElasticSearch REST endpoints. It keeps
+ * a pool of keep-alive connections to a single node and asks for gzipped
+ * responses - they are only compressed if <em>http.compression</em> is
+ * enabled on the node. Responses are handed to a {@link ResponseHandler}, so
+ * they can be parsed while they are read from the wire.
+ *
+ * The client is thread safe and is meant to be shared.
+ */
+public class ESRestClient {
+
+	public final static int DEFAULT_MAX_CONNECTIONS = 20;
+	public final static int DEFAULT_CONNECT_TIMEOUT = 5000;
+	public final static int DEFAULT_SOCKET_TIMEOUT = 60000;
+
+	// Keep the scroll active as long as the transport client does: 1hr
+	public final static String SCROLL_KEEPALIVE = "1h";
+
+	private static final Logger logger = Logger.getLogger(ESRestClient.class);
+
+	private final HttpHost host;
+	private final CloseableHttpClient httpClient;
+	private final PoolingHttpClientConnectionManager connectionManager;
+
+	public ESRestClient(String hostname, int port) {
+		this(hostname, port, null, null, DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * @param hostname       the node to connect to.
+	 * @param port           the HTTP port of the node, usually 9200.
+	 * @param username       the user to authenticate as, <em>null</em> for no
+	 *                       authentication.
+	 * @param password       the password of the user.
+	 * @param maxConnections the maximum number of pooled connections.
+	 */
+	public ESRestClient(String hostname, int port, String username, String password, int maxConnections) {
+
+		this.host = new HttpHost(hostname, port);
+
+		this.connectionManager = new PoolingHttpClientConnectionManager();
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT)
+				.setSocketTimeout(DEFAULT_SOCKET_TIMEOUT)
+				.build();
+
+		// Content compression is enabled by default on the builder: requests
+		// carry Accept-Encoding and responses are inflated transparently.
+		HttpClientBuilder clientBuilder = HttpClientBuilder.create()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE);
+
+		if (username != null && !username.isEmpty()) {
+			CredentialsProvider credentials = new BasicCredentialsProvider();
+			credentials.setCredentials(new AuthScope(hostname, port),
+					new UsernamePasswordCredentials(username, password != null ? password : ""));
+			clientBuilder.setDefaultCredentialsProvider(credentials);
+		}
+
+		this.httpClient = clientBuilder.build();
+		logger.debug("REST client ready for " + host.toURI());
+	}
+
+	/**
+	 * Runs a search on the given indexes and types.
+	 *
+	 * @param indexes     the indexes to search, all of them if empty.
+	 * @param types       the types to search, all of them if empty.
+	 * @param query       the query, as JSON.
+	 * @param isScrolling whether to open a scan scroll for the results.
+	 * @param size        overrides the size of the query if not negative.
+	 * @param terminateAfter asks the shards to stop collecting after this
+	 *                    many documents if greater than 0.
+	 * @param handler     the handler that will parse the response.
+	 */
+	public <T> T search(String[] indexes, String[] types, String query, boolean isScrolling, int size,
+			int terminateAfter, ResponseHandler<T> handler) {
+		return search(indexes, types, query, isScrolling, size, terminateAfter, null, handler);
+	}
+
+	/**
+	 * Runs a search on the shards of the given routing values only.
+	 *
+	 * @param routing the comma separated routing values, <em>null</em> to
+	 *                search all the shards.
+	 * @see #search(String[], String[], String, boolean, int, int, ResponseHandler)
+	 */
+	public <T> T search(String[] indexes, String[] types, String query, boolean isScrolling, int size,
+			int terminateAfter, String routing, ResponseHandler<T> handler) {
+
+		StringBuilder path = new StringBuilder("/");
+		if (indexes != null && indexes.length > 0) {
+			path.append(join(indexes)).append("/");
+		} else if (types != null && types.length > 0) {
+			path.append("_all/");
+		}
+		if (types != null && types.length > 0) {
+			path.append(join(types)).append("/");
+		}
+		path.append("_search");
+
+		try {
+			URIBuilder uriBuilder = new URIBuilder(host.toURI()).setPath(path.toString());
+			if (isScrolling) {
+				uriBuilder.addParameter("search_type", "scan").addParameter("scroll", SCROLL_KEEPALIVE);
+			}
+			if (size >= 0) {
+				uriBuilder.addParameter("size", String.valueOf(size));
+			}
+			if (terminateAfter > 0) {
+				uriBuilder.addParameter("terminate_after", String.valueOf(terminateAfter));
+			}
+			if (routing != null) {
+				uriBuilder.addParameter("routing", routing);
+			}
+			return execute(post(uriBuilder.build(), query), handler);
+		} catch (URISyntaxException ex) {
+			throw new ElasticsearchException("Invalid search path: " + path, ex);
+		}
+	}
+
+	/**
+	 * Fetches the next page of a scroll.
+	 */
+	public <T> T scroll(String scrollId, ResponseHandler<T> handler) {
+		try {
+			URI uri = new URIBuilder(host.toURI()).setPath("/_search/scroll")
+					.addParameter("scroll", SCROLL_KEEPALIVE).build();
+			return execute(post(uri, scrollId), handler);
+		} catch (URISyntaxException ex) {
+			throw new ElasticsearchException("Invalid scroll path", ex);
+		}
+	}
+
+	/**
+	 * Releases a scroll context on the cluster. The id goes in the body: a
+	 * scroll id can be longer than the cluster accepts in a URL.
+	 *
+	 * @return true if the cluster released the scroll.
+	 */
+	public boolean clearScroll(String scrollId) {
+		try {
+			URI uri = new URIBuilder(host.toURI()).setPath("/_search/scroll").build();
+			HttpDeleteWithBody delete = new HttpDeleteWithBody(uri);
+			delete.setEntity(new StringEntity(new JSONObject().put("scroll_id", new JSONArray().put(scrollId))
+					.toString(), ContentType.APPLICATION_JSON));
+			return execute(delete, new ESRestStatusHandler()) < 300;
+		} catch (URISyntaxException ex) {
+			throw new ElasticsearchException("Invalid scroll path", ex);
+		}
+	}
+
+	/**
+	 * Lists the concrete indexes behind index names, wildcard patterns or
+	 * aliases.
+	 */
+	public String[] resolveIndexes(String[] patterns) {
+		try {
+			URI uri = new URIBuilder(host.toURI()).setPath("/" + join(patterns) + "/_settings/index.number_of_shards")
+					.build();
+			JSONObject settings = execute(new HttpGet(uri), new ESRestJsonHandler());
+			return settings.keySet().toArray(new String[settings.length()]);
+		} catch (URISyntaxException ex) {
+			throw new ElasticsearchException("Invalid settings path", ex);
+		}
+	}
+
+	/**
+	 * Gets the lowest and highest values of a field in each index.
+	 *
+	 * @return the statistics of the field by index, as the cluster returns
+	 * them in <em>indices</em>.
+	 */
+	public JSONObject fieldStats(String[] indexes, String field) {
+		try {
+			URI uri = new URIBuilder(host.toURI()).setPath("/" + join(indexes) + "/_field_stats")
+					.addParameter("fields", field)
+					.addParameter("level", "indices")
+					.build();
+			JSONObject stats = execute(new HttpGet(uri), new ESRestJsonHandler());
+			return stats.has("indices") ? stats.getJSONObject("indices") : new JSONObject();
+		} catch (URISyntaxException ex) {
+			throw new ElasticsearchException("Invalid field stats path", ex);
+		}
+	}
+
+	/**
+	 * @return true if the node answers on its root endpoint.
+	 */
+	public boolean ping() {
+		try {
+			return execute(new HttpGet(host.toURI() + "/"), new ESRestStatusHandler()) < 300;
+		} catch (ElasticsearchException ex) {
+			logger.debug("Ping to " + host.toURI() + " failed: " + ex.getMessage());
+			return false;
+		}
+	}
+
+	public HttpHost getHost() {
+		return host;
+	}
+
+	public void close() {
+		try {
+			httpClient.close();
+		} catch (IOException ex) {
+			logger.warn("Failed to close the REST client: " + ex.getMessage());
+		}
+		connectionManager.shutdown();
+	}
+
+	private HttpPost post(URI uri, String body) {
+		HttpPost post = new HttpPost(uri);
+		post.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+		return post;
+	}
+
+	private <T> T execute(HttpUriRequest request, ResponseHandler<T> handler) {
+		logger.debug("REST request: " + request.getRequestLine());
+		try {
+			return httpClient.execute(host, request, handler);
+		} catch (IOException ex) {
+			throw new ElasticsearchException("REST request " + request.getRequestLine() + " failed: "
+					+ ex.getMessage(), ex);
+		}
+	}
+
+	private static String join(String[] values) {
+		StringBuilder joined = new StringBuilder();
+		for (String value : values) {
+			if (joined.length() > 0) {
+				joined.append(",");
+			}
+			joined.append(value);
+		}
+		return joined.toString();
+	}
+
+	/**
+	 * HttpDelete can't carry a body, the clear scroll request needs one.
+	 */
+	private static class HttpDeleteWithBody extends HttpEntityEnclosingRequestBase {
+
+		HttpDeleteWithBody(URI uri) {
+			setURI(uri);
+		}
+
+		@Override
+		public String getMethod() {
+			return "DELETE";
+		}
+	}
+
+}
@@ -0,0 +1,55 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.rest;
+
+import java.io.IOException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+
+/**
+ * Reads the whole body of a small response as a JSON object.
+ */
+public class ESRestJsonHandler implements ResponseHandler<JSONObject> {
+
+	@Override
+	public JSONObject handleResponse(HttpResponse response) throws IOException {
+
+		HttpEntity entity = response.getEntity();
+		String body = entity != null ? EntityUtils.toString(entity, "UTF-8") : "";
+		int status = response.getStatusLine().getStatusCode();
+
+		if (status >= 300) {
+			throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase() + ": " + body);
+		}
+
+		return body.isEmpty() ? new JSONObject() : new JSONObject(body);
+	}
+
+}
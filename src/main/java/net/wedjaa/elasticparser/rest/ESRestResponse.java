@@ -0,0 +1,108 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parts of a search response the pagers care about.
+ */
+public class ESRestResponse {
+
+	private String scrollId;
+	private long totalHits = 0;
+	private int totalShards = 0;
+	private long tookMillis = 0;
+	private List<Map<String, Object>> hits = new ArrayList<Map<String, Object>>();
+	private Map<String, Object> aggregations;
+	private Map<String, Object> profile;
+
+	public String getScrollId() {
+		return scrollId;
+	}
+
+	void setScrollId(String scrollId) {
+		this.scrollId = scrollId;
+	}
+
+	public long getTotalHits() {
+		return totalHits;
+	}
+
+	void setTotalHits(long totalHits) {
+		this.totalHits = totalHits;
+	}
+
+	public int getTotalShards() {
+		return totalShards;
+	}
+
+	void setTotalShards(int totalShards) {
+		this.totalShards = totalShards;
+	}
+
+	public long getTookMillis() {
+		return tookMillis;
+	}
+
+	void setTookMillis(long tookMillis) {
+		this.tookMillis = tookMillis;
+	}
+
+	/**
+	 * @return the rows of this page of results: the <em>_source</em> of each
+	 * hit or, if the source was not returned, its fields.
+	 */
+	public List<Map<String, Object>> getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the aggregations as ordered maps, or <em>null</em> if the
+	 * response has none.
+	 */
+	public Map<String, Object> getAggregations() {
+		return aggregations;
+	}
+
+	void setAggregations(Map<String, Object> aggregations) {
+		this.aggregations = aggregations;
+	}
+
+	/**
+	 * @return the <em>profile</em> section of the response, <em>null</em> if
+	 * the search was not profiled.
+	 */
+	public Map<String, Object> getProfile() {
+		return profile;
+	}
+
+	void setProfile(Map<String, Object> profile) {
+		this.profile = profile;
+	}
+
+}
@@ -0,0 +1,202 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.wedjaa.elasticparser.row.ESRowBuilder;
+import net.wedjaa.elasticparser.row.ESRowSchema;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentParser.Token;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * Parses a search or scroll response while it is being read, building the
+ * rows of the hits directly from the token stream. Nothing but the
+ * <em>_source</em> or the fields of each hit is kept.
+ */
+public class ESRestResponseParser implements ResponseHandler<ESRestResponse> {
+
+	private final ESRowBuilder fieldsRowBuilder;
+
+	public ESRestResponseParser() {
+		this(new ESRowSchema());
+	}
+
+	/**
+	 * @param fieldsSchema the schema shared by the rows built from the
+	 *                     fields of the hits of a result set.
+	 */
+	public ESRestResponseParser(ESRowSchema fieldsSchema) {
+		this.fieldsRowBuilder = new ESRowBuilder(fieldsSchema);
+	}
+
+	@Override
+	public ESRestResponse handleResponse(HttpResponse response) throws IOException {
+
+		HttpEntity entity = response.getEntity();
+		int status = response.getStatusLine().getStatusCode();
+
+		if (status >= 300) {
+			String body = entity != null ? EntityUtils.toString(entity) : "";
+			throw new HttpResponseException(status, response.getStatusLine().getReasonPhrase() + ": " + body);
+		}
+
+		ESRestResponse result = new ESRestResponse();
+		if (entity == null) {
+			return result;
+		}
+
+		InputStream content = entity.getContent();
+		XContentParser parser = XContentFactory.xContent(XContentType.JSON).createParser(content);
+		try {
+			parseResponse(parser, result);
+		} finally {
+			parser.close();
+			content.close();
+		}
+
+		return result;
+	}
+
+	private void parseResponse(XContentParser parser, ESRestResponse result) throws IOException {
+
+		if (parser.nextToken() != Token.START_OBJECT) {
+			throw new IOException("Malformed search response");
+		}
+
+		String fieldName = null;
+		Token token;
+		while ((token = parser.nextToken()) != Token.END_OBJECT && token != null) {
+			if (token == Token.FIELD_NAME) {
+				fieldName = parser.currentName();
+			} else if ("_scroll_id".equals(fieldName) && token == Token.VALUE_STRING) {
+				result.setScrollId(parser.text());
+			} else if ("hits".equals(fieldName) && token == Token.START_OBJECT) {
+				parseHits(parser, result);
+			} else if ("_shards".equals(fieldName) && token == Token.START_OBJECT) {
+				Object totalShards = parser.map().get("total");
+				if (totalShards instanceof Number) {
+					result.setTotalShards(((Number) totalShards).intValue());
+				}
+			} else if ("aggregations".equals(fieldName) && token == Token.START_OBJECT) {
+				result.setAggregations(parser.mapOrdered());
+			} else if ("took".equals(fieldName) && token == Token.VALUE_NUMBER) {
+				result.setTookMillis(parser.longValue());
+			} else if ("profile".equals(fieldName) && token == Token.START_OBJECT) {
+				result.setProfile(parser.map());
+			} else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	private void parseHits(XContentParser parser, ESRestResponse result) throws IOException {
+
+		String fieldName = null;
+		Token token;
+		while ((token = parser.nextToken()) != Token.END_OBJECT && token != null) {
+			if (token == Token.FIELD_NAME) {
+				fieldName = parser.currentName();
+			} else if ("total".equals(fieldName) && token == Token.VALUE_NUMBER) {
+				result.setTotalHits(parser.longValue());
+			} else if ("hits".equals(fieldName) && token == Token.START_ARRAY) {
+				while (parser.nextToken() == Token.START_OBJECT) {
+					result.getHits().add(parseHit(parser));
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	private Map<String, Object> parseHit(XContentParser parser) throws IOException {
+
+		Map<String, Object> source = null;
+		Map<String, Object> fields = null;
+
+		String fieldName = null;
+		Token token;
+		while ((token = parser.nextToken()) != Token.END_OBJECT && token != null) {
+			if (token == Token.FIELD_NAME) {
+				fieldName = parser.currentName();
+			} else if ("_source".equals(fieldName) && token == Token.START_OBJECT) {
+				source = parser.map();
+			} else if ("fields".equals(fieldName) && token == Token.START_OBJECT) {
+				fields = parseFields(parser);
+			} else {
+				parser.skipChildren();
+			}
+		}
+
+		if (source != null) {
+			// Fields are what was asked for explicitly, like doc values
+			if (fields != null) {
+				source.putAll(fields);
+			}
+			return source;
+		}
+		if (fields != null) {
+			return fields;
+		}
+		return new HashMap<String, Object>();
+	}
+
+	/**
+	 * Fields are always returned as arrays, like the transport client we
+	 * only keep the first value.
+	 */
+	private Map<String, Object> parseFields(XContentParser parser) throws IOException {
+
+		String fieldName = null;
+		Token token;
+		while ((token = parser.nextToken()) != Token.END_OBJECT && token != null) {
+			if (token == Token.FIELD_NAME) {
+				fieldName = parser.currentName();
+			} else if (token == Token.START_ARRAY) {
+				List<Object> values = parser.list();
+				fieldsRowBuilder.set(fieldName, values.isEmpty() ? null : values.get(0));
+			} else if (token == Token.START_OBJECT) {
+				fieldsRowBuilder.set(fieldName, parser.map());
+			} else {
+				fieldsRowBuilder.set(fieldName, parser.objectText());
+			}
+		}
+
+		return fieldsRowBuilder.build();
+	}
+
+}
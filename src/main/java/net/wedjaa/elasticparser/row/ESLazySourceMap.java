@@ -0,0 +1,227 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.row;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentParser.Token;
+
+/**
+ * A read only view of the <em>_source</em> of a hit that parses the raw
+ * source only when a field is accessed. Each lookup streams through the top
+ * level of the document, skipping over the values of the other fields
+ * without building them, and caches the value it was looking for.
+ *
+ * Iterating over the entries parses the whole document, like
+ * {@code SearchHit.getSource()} would.
+ *
+ * Values obtained elsewhere - like doc values - can be overlaid on the
+ * source: they are returned without looking at the source at all.
+ */
+public class ESLazySourceMap extends AbstractMap<String, Object> {
+
+	private static final Logger logger = Logger.getLogger(ESLazySourceMap.class);
+
+	// Caches the lookups of fields the document doesn't have
+	private static final Object MISSING = new Object();
+
+	private final BytesReference source;
+	private final Map<String, Object> values = new HashMap<String, Object>();
+	private final Map<String, Object> overlay = new LinkedHashMap<String, Object>();
+	private List<String> fieldNames;
+	private Set<Map.Entry<String, Object>> entrySet;
+
+	public ESLazySourceMap(BytesReference source) {
+		this.source = source;
+	}
+
+	/**
+	 * @return the raw source this map reads from.
+	 */
+	public BytesReference getSourceRef() {
+		return source;
+	}
+
+	/**
+	 * Sets the value of a field, replacing whatever the source has for it.
+	 */
+	public void overlay(String key, Object value) {
+		overlay.put(key, value);
+		values.put(key, value);
+		fieldNames = null;
+		entrySet = null;
+	}
+
+	private Object lookup(Object key) {
+		if (!(key instanceof String)) {
+			return MISSING;
+		}
+		Object value = values.get(key);
+		if (value == null && !values.containsKey(key)) {
+			value = parseField((String) key);
+			values.put((String) key, value);
+		}
+		return value;
+	}
+
+	private XContentParser createParser() throws IOException {
+		XContentParser parser = XContentFactory.xContent(source).createParser(source);
+		if (parser.nextToken() != Token.START_OBJECT) {
+			parser.close();
+			throw new IOException("The source is not an object");
+		}
+		return parser;
+	}
+
+	private Object readValue(XContentParser parser, Token token) throws IOException {
+		switch (token) {
+			case START_OBJECT:
+				return parser.map();
+			case START_ARRAY:
+				return parser.list();
+			case VALUE_NULL:
+				return null;
+			default:
+				return parser.objectText();
+		}
+	}
+
+	private Object parseField(String key) {
+		try {
+			XContentParser parser = createParser();
+			try {
+				Token token;
+				while ((token = parser.nextToken()) == Token.FIELD_NAME) {
+					String fieldName = parser.currentName();
+					token = parser.nextToken();
+					if (fieldName.equals(key)) {
+						return readValue(parser, token);
+					}
+					parser.skipChildren();
+				}
+			} finally {
+				parser.close();
+			}
+		} catch (IOException ex) {
+			logger.warn("Failed to read field " + key + " from source: " + ex.getMessage());
+		}
+		return MISSING;
+	}
+
+	private List<String> fieldNames() {
+		if (fieldNames != null) {
+			return fieldNames;
+		}
+		List<String> names = new ArrayList<String>();
+		try {
+			XContentParser parser = createParser();
+			try {
+				while (parser.nextToken() == Token.FIELD_NAME) {
+					names.add(parser.currentName());
+					parser.nextToken();
+					parser.skipChildren();
+				}
+			} finally {
+				parser.close();
+			}
+		} catch (IOException ex) {
+			logger.warn("Failed to read field names from source: " + ex.getMessage());
+		}
+		for (String overlaid : overlay.keySet()) {
+			if (!names.contains(overlaid)) {
+				names.add(overlaid);
+			}
+		}
+		fieldNames = names;
+		return fieldNames;
+	}
+
+	@Override
+	public Object get(Object key) {
+		Object value = lookup(key);
+		return value != MISSING ? value : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return lookup(key) != MISSING;
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return Collections.unmodifiableSet(new LinkedHashSet<String>(fieldNames()));
+	}
+
+	@Override
+	public int size() {
+		return fieldNames().size();
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		if (entrySet == null) {
+			Map<String, Object> document = new LinkedHashMap<String, Object>();
+			try {
+				XContentParser parser = createParser();
+				try {
+					Token token;
+					while ((token = parser.nextToken()) == Token.FIELD_NAME) {
+						String fieldName = parser.currentName();
+						token = parser.nextToken();
+						Object cached = values.get(fieldName);
+						if (cached != null || values.containsKey(fieldName)) {
+							parser.skipChildren();
+							document.put(fieldName, cached);
+						} else {
+							document.put(fieldName, readValue(parser, token));
+						}
+					}
+				} finally {
+					parser.close();
+				}
+			} catch (IOException ex) {
+				logger.warn("Failed to read source: " + ex.getMessage());
+			}
+			document.putAll(overlay);
+			values.putAll(document);
+			entrySet = Collections.unmodifiableMap(document).entrySet();
+		}
+		return entrySet;
+	}
+
+}
@@ -0,0 +1,138 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.row;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable row of a result set. Values are kept in a flat array indexed
+ * by the positions of the columns in an {@link ESRowSchema} shared with all
+ * the other rows, instead of a hash table per row.
+ */
+public class ESRow extends AbstractMap<String, Object> {
+
+	/**
+	 * Marks the columns of the schema this row has no value for, to tell
+	 * them apart from columns whose value is null.
+	 */
+	static final Object ABSENT = new Object();
+
+	private final ESRowSchema schema;
+	private final Object[] values;
+	private final int size;
+	private Set<Map.Entry<String, Object>> entrySet;
+
+	ESRow(ESRowSchema schema, Object[] values, int size) {
+		this.schema = schema;
+		this.values = values;
+		this.size = size;
+	}
+
+	public ESRowSchema getSchema() {
+		return schema;
+	}
+
+	private Object valueAt(Object key) {
+		int position = schema.indexOf(key);
+		if (position < 0 || position >= values.length) {
+			return ABSENT;
+		}
+		return values[position];
+	}
+
+	@Override
+	public Object get(Object key) {
+		Object value = valueAt(key);
+		return value != ABSENT ? value : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return valueAt(key) != ABSENT;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Map.Entry<String, Object>>() {
+
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					return new EntryIterator();
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+
+		private int position = advance(0);
+
+		private int advance(int from) {
+			while (from < values.length && values[from] == ABSENT) {
+				from++;
+			}
+			return from;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return position < values.length;
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String, Object> entry = new AbstractMap.SimpleImmutableEntry<String, Object>(
+					schema.columnName(position), values[position]);
+			position = advance(position + 1);
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Rows are immutable");
+		}
+	}
+
+}
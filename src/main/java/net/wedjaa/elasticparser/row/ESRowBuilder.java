@@ -0,0 +1,86 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.row;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Builds {@link ESRow}s sharing the same schema. The builder reuses its
+ * buffer, it's meant to be used by a single thread to build one row after
+ * the other.
+ */
+public class ESRowBuilder {
+
+	private final ESRowSchema schema;
+	private Object[] values;
+	private int size = 0;
+	private int length = 0;
+
+	public ESRowBuilder(ESRowSchema schema) {
+		this.schema = schema;
+		this.values = new Object[Math.max(schema.size(), 8)];
+		Arrays.fill(values, ESRow.ABSENT);
+	}
+
+	public ESRowSchema getSchema() {
+		return schema;
+	}
+
+	public ESRowBuilder set(String column, Object value) {
+		int position = schema.columnIndex(column);
+		if (position >= values.length) {
+			int length = values.length;
+			values = Arrays.copyOf(values, Math.max(length * 2, position + 1));
+			Arrays.fill(values, length, values.length, ESRow.ABSENT);
+		}
+		if (values[position] == ESRow.ABSENT) {
+			size++;
+		}
+		values[position] = value;
+		length = Math.max(length, position + 1);
+		return this;
+	}
+
+	public ESRowBuilder setAll(Map<String, ?> row) {
+		for (Map.Entry<String, ?> entry : row.entrySet()) {
+			set(entry.getKey(), entry.getValue());
+		}
+		return this;
+	}
+
+	/**
+	 * @return a row with the values set so far, the builder is then ready
+	 * for the next row.
+	 */
+	public ESRow build() {
+		ESRow row = new ESRow(schema, Arrays.copyOf(values, length), size);
+		Arrays.fill(values, 0, length, ESRow.ABSENT);
+		size = 0;
+		length = 0;
+		return row;
+	}
+
+}
@@ -0,0 +1,90 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.row;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The dictionary of column names shared by all the rows of a result set.
+ * Each name is stored once, rows only keep the position of their values.
+ *
+ * Columns can only be added, so a position never changes once assigned. It
+ * is safe to add columns and look them up from different threads.
+ */
+public class ESRowSchema {
+
+	private final ConcurrentMap<String, Integer> positions = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] names = new String[0];
+
+	/**
+	 * @return the position of the column, or -1 if the schema doesn't have
+	 * it.
+	 */
+	public int indexOf(Object name) {
+		Integer position = positions.get(name);
+		return position != null ? position : -1;
+	}
+
+	/**
+	 * @return the position of the column, adding it to the schema if it's
+	 * not there yet.
+	 */
+	public int columnIndex(String name) {
+		Integer position = positions.get(name);
+		if (position != null) {
+			return position;
+		}
+		synchronized (this) {
+			position = positions.get(name);
+			if (position == null) {
+				String[] extended = Arrays.copyOf(names, names.length + 1);
+				extended[names.length] = name;
+				position = names.length;
+				names = extended;
+				positions.put(name, position);
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * @return the canonical instance of a column name, so that rows built
+	 * from different sources don't keep copies of the same string.
+	 */
+	public String intern(String name) {
+		return columnName(columnIndex(name));
+	}
+
+	public String columnName(int position) {
+		return names[position];
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+}
@@ -0,0 +1,364 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.scheduler;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.client.HttpResponseException;
+import org.apache.log4j.Logger;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+/**
+ * Admission control for the queries sent to the clusters: queries wait for
+ * their turn so that no more than a given number run at once on a cluster,
+ * and optionally on an index.
+ *
+ * Waiting queries are admitted by priority class, interactive first. A
+ * batch query is ranked as if it had arrived {@link #setAgingMillis(long)}
+ * later than it did, so interactive queries go ahead of it but a batch
+ * query waiting long enough isn't passed over forever.
+ *
+ * When a cluster rejects a query the number of queries allowed to run on
+ * that cluster is halved, and it grows back by one query at a time as
+ * queries succeed. The rejected query is sent again after a backoff.
+ */
+public class ESQueryScheduler {
+
+	public final static int PRIORITY_INTERACTIVE = 0;
+	public final static int PRIORITY_BATCH = 1;
+
+	public final static int DEFAULT_CLUSTER_LIMIT = 8;
+	public final static long DEFAULT_AGING_MILLIS = 30000;
+
+	private static final int MAX_REJECTION_RETRIES = 5;
+	private static final long REJECTION_BACKOFF_MILLIS = 100;
+	private static final long MAX_BACKOFF_MILLIS = 10000;
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	private static ESQueryScheduler instance = null;
+
+	private static final Logger logger = Logger.getLogger(ESQueryScheduler.class);
+
+	// All the state is guarded by the scheduler itself
+	private final Map<String, ClusterQueue> clusters = new HashMap<String, ClusterQueue>();
+	private final Map<String, Integer> clusterLimits = new HashMap<String, Integer>();
+	private final Map<String, Integer> indexLimits = new HashMap<String, Integer>();
+	private int defaultClusterLimit = DEFAULT_CLUSTER_LIMIT;
+	private long agingMillis = DEFAULT_AGING_MILLIS;
+	private long ticketSequence = 0;
+
+	protected ESQueryScheduler() {
+	}
+
+	public static synchronized ESQueryScheduler getInstance() {
+
+		if (instance == null) {
+			instance = new ESQueryScheduler();
+		}
+
+		return instance;
+
+	}
+
+	/**
+	 * @param defaultClusterLimit the number of queries that can run at once
+	 *                            on clusters without a limit of their own.
+	 */
+	public synchronized void setDefaultClusterLimit(int defaultClusterLimit) {
+		this.defaultClusterLimit = Math.max(defaultClusterLimit, 1);
+	}
+
+	public synchronized void setClusterLimit(String cluster, int limit) {
+		clusterLimits.put(cluster, Math.max(limit, 1));
+		ClusterQueue queue = clusters.get(cluster);
+		if (queue != null) {
+			queue.maxLimit = Math.max(limit, 1);
+			queue.limit = queue.maxLimit;
+			admit(queue);
+		}
+	}
+
+	/**
+	 * Limits the queries that can run at once on an index, on any cluster.
+	 * Queries on more indexes wait until all of them are available.
+	 */
+	public synchronized void setIndexLimit(String index, int limit) {
+		indexLimits.put(index, Math.max(limit, 1));
+	}
+
+	/**
+	 * @param agingMillis how much later than their arrival batch queries are
+	 *                    ranked, compared to interactive ones.
+	 */
+	public synchronized void setAgingMillis(long agingMillis) {
+		this.agingMillis = agingMillis;
+	}
+
+	/**
+	 * Runs a query once its turn has come.
+	 *
+	 * @param cluster  identifies the cluster the query runs on.
+	 * @param indexes  the indexes the query runs on.
+	 * @param priority PRIORITY_INTERACTIVE or PRIORITY_BATCH
+	 * @param query    sends the query, exceptions it throws are passed on.
+	 * @return how long the query waited and ran.
+	 */
+	public ESQueryTiming execute(String cluster, String[] indexes, int priority, Runnable query) {
+
+		long waitNanos = 0;
+		long executionNanos = 0;
+		int attempts = 0;
+
+		while (true) {
+			long queued = System.nanoTime();
+			Ticket ticket = acquire(cluster, indexes != null ? indexes : new String[0], priority);
+			waitNanos += System.nanoTime() - queued;
+			attempts++;
+
+			long started = System.nanoTime();
+			boolean rejected = false;
+			try {
+				query.run();
+			} catch (RuntimeException ex) {
+				rejected = isRejection(ex);
+				if (!rejected || attempts > MAX_REJECTION_RETRIES) {
+					throw ex;
+				}
+			} finally {
+				executionNanos += System.nanoTime() - started;
+				release(ticket, rejected);
+			}
+
+			if (!rejected) {
+				break;
+			}
+
+			long backoff = Math.min(REJECTION_BACKOFF_MILLIS << (attempts - 1), MAX_BACKOFF_MILLIS);
+			backoff += ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+			logger.warn("Query rejected by cluster " + cluster + ", sending it again in " + backoff + "ms");
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while backing off from a rejected query", e);
+			}
+		}
+
+		ESQueryTiming timing = new ESQueryTiming(waitNanos, executionNanos, attempts);
+		logger.debug("Query on " + cluster + " " + timing);
+		return timing;
+	}
+
+	public synchronized int getRunning(String cluster) {
+		ClusterQueue queue = clusters.get(cluster);
+		return queue != null ? queue.running : 0;
+	}
+
+	public synchronized int getWaiting(String cluster) {
+		ClusterQueue queue = clusters.get(cluster);
+		return queue != null ? queue.waiting.size() : 0;
+	}
+
+	/**
+	 * @return the number of queries currently allowed to run on the cluster,
+	 * lower than its limit after rejections.
+	 */
+	public synchronized int getCurrentLimit(String cluster) {
+		ClusterQueue queue = clusters.get(cluster);
+		return queue != null ? queue.currentLimit() : getClusterLimit(cluster);
+	}
+
+	public synchronized long getRejections(String cluster) {
+		ClusterQueue queue = clusters.get(cluster);
+		return queue != null ? queue.rejections : 0;
+	}
+
+	private int getClusterLimit(String cluster) {
+		Integer limit = clusterLimits.get(cluster);
+		return limit != null ? limit : defaultClusterLimit;
+	}
+
+	private synchronized Ticket acquire(String cluster, String[] indexes, int priority) {
+		ClusterQueue queue = clusters.get(cluster);
+		if (queue == null) {
+			queue = new ClusterQueue(getClusterLimit(cluster));
+			clusters.put(cluster, queue);
+		}
+
+		long rank = System.currentTimeMillis() + (priority > PRIORITY_INTERACTIVE ? priority * agingMillis : 0);
+		Ticket ticket = new Ticket(queue, indexes, rank, ticketSequence++);
+		queue.waiting.add(ticket);
+		admit(queue);
+
+		if (!ticket.admitted) {
+			logger.debug("Query on " + cluster + " waiting, " + queue.running + " running and "
+					+ queue.waiting.size() + " waiting");
+		}
+		while (!ticket.admitted) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				queue.waiting.remove(ticket);
+				if (ticket.admitted) {
+					release(ticket, false);
+				}
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting to run a query", e);
+			}
+		}
+		return ticket;
+	}
+
+	private synchronized void release(Ticket ticket, boolean rejected) {
+		ClusterQueue queue = ticket.queue;
+		queue.running--;
+		for (String index : ticket.indexes) {
+			Integer running = queue.runningByIndex.get(index);
+			if (running != null && running > 1) {
+				queue.runningByIndex.put(index, running - 1);
+			} else {
+				queue.runningByIndex.remove(index);
+			}
+		}
+
+		// Additive increase, multiplicative decrease
+		if (rejected) {
+			queue.rejections++;
+			queue.limit = Math.max(1.0, queue.limit / 2);
+			logger.info("Cluster rejected a query, now running up to " + queue.currentLimit() + " queries at once");
+		} else {
+			queue.limit = Math.min(queue.maxLimit, queue.limit + 1.0 / queue.limit);
+		}
+
+		admit(queue);
+	}
+
+	/**
+	 * Lets waiting queries run, best ranked first, as long as their cluster
+	 * and indexes have room. Queries waiting on a busy index don't hold up
+	 * the ones that follow.
+	 */
+	private void admit(ClusterQueue queue) {
+		boolean admitted = false;
+		List<Ticket> blocked = new ArrayList<Ticket>();
+		while (queue.running < queue.currentLimit() && !queue.waiting.isEmpty()) {
+			Ticket ticket = queue.waiting.poll();
+			if (!indexesAvailable(queue, ticket)) {
+				blocked.add(ticket);
+				continue;
+			}
+			ticket.admitted = true;
+			admitted = true;
+			queue.running++;
+			for (String index : ticket.indexes) {
+				Integer running = queue.runningByIndex.get(index);
+				queue.runningByIndex.put(index, running != null ? running + 1 : 1);
+			}
+		}
+		queue.waiting.addAll(blocked);
+		if (admitted) {
+			notifyAll();
+		}
+	}
+
+	private boolean indexesAvailable(ClusterQueue queue, Ticket ticket) {
+		for (String index : ticket.indexes) {
+			Integer limit = indexLimits.get(index);
+			Integer running = queue.runningByIndex.get(index);
+			if (limit != null && running != null && running >= limit) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isRejection(Throwable ex) {
+		for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+			if (cause instanceof EsRejectedExecutionException) {
+				return true;
+			}
+			if (cause instanceof HttpResponseException
+					&& ((HttpResponseException) cause).getStatusCode() == HTTP_TOO_MANY_REQUESTS) {
+				return true;
+			}
+			// Shard failures only carry the description of the rejection
+			if (cause.getMessage() != null && cause.getMessage().contains("EsRejectedExecutionException")) {
+				return true;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	private static class ClusterQueue {
+		int maxLimit;
+		double limit;
+		int running = 0;
+		long rejections = 0;
+		final Map<String, Integer> runningByIndex = new HashMap<String, Integer>();
+		final PriorityQueue<Ticket> waiting = new PriorityQueue<Ticket>(16, new Comparator<Ticket>() {
+			@Override
+			public int compare(Ticket first, Ticket second) {
+				if (first.rank != second.rank) {
+					return first.rank < second.rank ? -1 : 1;
+				}
+				return first.sequence < second.sequence ? -1 : (first.sequence == second.sequence ? 0 : 1);
+			}
+		});
+
+		ClusterQueue(int maxLimit) {
+			this.maxLimit = maxLimit;
+			this.limit = maxLimit;
+		}
+
+		int currentLimit() {
+			return Math.max(1, (int) limit);
+		}
+	}
+
+	private static class Ticket {
+		final ClusterQueue queue;
+		final String[] indexes;
+		final long rank;
+		final long sequence;
+		boolean admitted = false;
+
+		Ticket(ClusterQueue queue, String[] indexes, long rank, long sequence) {
+			this.queue = queue;
+			this.indexes = indexes;
+			this.rank = rank;
+			this.sequence = sequence;
+		}
+	}
+
+}
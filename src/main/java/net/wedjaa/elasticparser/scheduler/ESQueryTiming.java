@@ -0,0 +1,73 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.scheduler;
+
+/**
+ * How long a query waited for its turn in the scheduler, and how long it
+ * then took to run - retries after rejections included.
+ */
+public class ESQueryTiming {
+
+	private final long waitNanos;
+	private final long executionNanos;
+	private final int attempts;
+
+	public ESQueryTiming(long waitNanos, long executionNanos, int attempts) {
+		this.waitNanos = waitNanos;
+		this.executionNanos = executionNanos;
+		this.attempts = attempts;
+	}
+
+	public long getWaitMillis() {
+		return waitNanos / 1000000;
+	}
+
+	public long getExecutionMillis() {
+		return executionNanos / 1000000;
+	}
+
+	public long getWaitNanos() {
+		return waitNanos;
+	}
+
+	public long getExecutionNanos() {
+		return executionNanos;
+	}
+
+	/**
+	 * @return the number of times the query was sent, more than one when
+	 * the cluster rejected it.
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	@Override
+	public String toString() {
+		return "waited " + getWaitMillis() + "ms, executed in " + getExecutionMillis() + "ms"
+				+ (attempts > 1 ? " after " + attempts + " attempts" : "");
+	}
+
+}
@@ -0,0 +1,336 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.spool;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.wedjaa.elasticparser.row.ESRow;
+import net.wedjaa.elasticparser.row.ESRowBuilder;
+import net.wedjaa.elasticparser.row.ESRowSchema;
+
+import org.elasticsearch.common.text.StringText;
+import org.elasticsearch.common.text.Text;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Compact binary encoding of rows. The top level column names are written
+ * as their position in a schema shared by all the rows, values are tagged
+ * and lengths and positions are variable length integers.
+ *
+ * Values keep their class through a round trip, values of a type without an
+ * encoding are refused rather than stored as something else.
+ * A codec reuses its buffers, it's meant to be used by one thread at a time.
+ */
+public class ESRowCodec {
+
+	private static final byte TYPE_NULL = 0;
+	private static final byte TYPE_STRING = 1;
+	private static final byte TYPE_LONG = 2;
+	private static final byte TYPE_INT = 3;
+	private static final byte TYPE_DOUBLE = 4;
+	private static final byte TYPE_FLOAT = 5;
+	private static final byte TYPE_TRUE = 6;
+	private static final byte TYPE_FALSE = 7;
+	private static final byte TYPE_MAP = 8;
+	private static final byte TYPE_LIST = 9;
+	private static final byte TYPE_DATE = 10;
+	private static final byte TYPE_SHORT = 11;
+	private static final byte TYPE_BYTE = 12;
+	private static final byte TYPE_DATE_TIME = 13;
+	private static final byte TYPE_BIG_INTEGER = 14;
+	private static final byte TYPE_BIG_DECIMAL = 15;
+	private static final byte TYPE_TEXT = 16;
+
+	private final ESRowSchema schema;
+	private final ESRowBuilder rowBuilder;
+	private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+	public ESRowCodec(ESRowSchema schema) {
+		this.schema = schema;
+		this.rowBuilder = new ESRowBuilder(schema);
+	}
+
+	public ESRowSchema getSchema() {
+		return schema;
+	}
+
+	/**
+	 * Encodes a row.
+	 *
+	 * @return a buffer ready to be read, only valid until the next call.
+	 */
+	public ByteBuffer encode(Map<String, Object> row) {
+		buffer.clear();
+		writeVarInt(row.size());
+		for (Map.Entry<String, Object> entry : row.entrySet()) {
+			writeVarInt(schema.columnIndex(entry.getKey()));
+			writeValue(entry.getValue());
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Decodes the row at the position of the buffer, leaving the buffer
+	 * positioned right after it.
+	 */
+	public ESRow decode(ByteBuffer input) {
+		int size = readVarInt(input);
+		for (int idx = 0; idx < size; idx++) {
+			String column = schema.columnName(readVarInt(input));
+			rowBuilder.set(column, readValue(input));
+		}
+		return rowBuilder.build();
+	}
+
+	private void writeValue(Object value) {
+		if (value == null) {
+			writeByte(TYPE_NULL);
+		} else if (value instanceof String) {
+			writeByte(TYPE_STRING);
+			writeString((String) value);
+		} else if (value instanceof Long) {
+			writeByte(TYPE_LONG);
+			writeLong((Long) value);
+		} else if (value instanceof Integer) {
+			writeByte(TYPE_INT);
+			writeVarInt(zigZag((Integer) value));
+		} else if (value instanceof Double) {
+			writeByte(TYPE_DOUBLE);
+			ensure(8);
+			buffer.putDouble((Double) value);
+		} else if (value instanceof Float) {
+			writeByte(TYPE_FLOAT);
+			ensure(4);
+			buffer.putFloat((Float) value);
+		} else if (value instanceof Boolean) {
+			writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+		} else if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			writeByte(TYPE_MAP);
+			writeVarInt(map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				writeString(String.valueOf(entry.getKey()));
+				writeValue(entry.getValue());
+			}
+		} else if (value instanceof Collection) {
+			Collection<?> list = (Collection<?>) value;
+			writeByte(TYPE_LIST);
+			writeVarInt(list.size());
+			for (Object element : list) {
+				writeValue(element);
+			}
+		} else if (value instanceof Date) {
+			writeByte(TYPE_DATE);
+			writeLong(((Date) value).getTime());
+		} else if (value instanceof Short) {
+			writeByte(TYPE_SHORT);
+			writeVarInt(zigZag((Short) value));
+		} else if (value instanceof Byte) {
+			writeByte(TYPE_BYTE);
+			writeByte((Byte) value);
+		} else if (value instanceof DateTime) {
+			// The keys of date histograms, in the time zone of the aggregation
+			DateTime dateTime = (DateTime) value;
+			writeByte(TYPE_DATE_TIME);
+			writeLong(dateTime.getMillis());
+			writeString(dateTime.getZone().getID());
+		} else if (value instanceof BigInteger) {
+			writeByte(TYPE_BIG_INTEGER);
+			writeBytes(((BigInteger) value).toByteArray());
+		} else if (value instanceof BigDecimal) {
+			BigDecimal decimal = (BigDecimal) value;
+			writeByte(TYPE_BIG_DECIMAL);
+			writeVarInt(zigZag(decimal.scale()));
+			writeBytes(decimal.unscaledValue().toByteArray());
+		} else if (value instanceof Text) {
+			writeByte(TYPE_TEXT);
+			writeString(((Text) value).string());
+		} else {
+			throw new IllegalArgumentException("Can't spool values of type " + value.getClass().getName());
+		}
+	}
+
+	private Object readValue(ByteBuffer input) {
+		byte type = input.get();
+		switch (type) {
+		case TYPE_NULL:
+			return null;
+		case TYPE_STRING:
+			return readString(input);
+		case TYPE_LONG:
+			return readLong(input);
+		case TYPE_INT:
+			return unZigZag(readVarInt(input));
+		case TYPE_DOUBLE:
+			return input.getDouble();
+		case TYPE_FLOAT:
+			return input.getFloat();
+		case TYPE_TRUE:
+			return Boolean.TRUE;
+		case TYPE_FALSE:
+			return Boolean.FALSE;
+		case TYPE_MAP:
+			int mapSize = readVarInt(input);
+			Map<String, Object> map = new LinkedHashMap<String, Object>(mapSize * 2);
+			for (int idx = 0; idx < mapSize; idx++) {
+				String key = readString(input);
+				map.put(key, readValue(input));
+			}
+			return map;
+		case TYPE_LIST:
+			int listSize = readVarInt(input);
+			List<Object> list = new ArrayList<Object>(listSize);
+			for (int idx = 0; idx < listSize; idx++) {
+				list.add(readValue(input));
+			}
+			return list;
+		case TYPE_DATE:
+			return new Date(readLong(input));
+		case TYPE_SHORT:
+			return (short) unZigZag(readVarInt(input));
+		case TYPE_BYTE:
+			return input.get();
+		case TYPE_DATE_TIME:
+			long millis = readLong(input);
+			return new DateTime(millis, DateTimeZone.forID(readString(input)));
+		case TYPE_BIG_INTEGER:
+			return new BigInteger(readBytes(input));
+		case TYPE_BIG_DECIMAL:
+			int scale = unZigZag(readVarInt(input));
+			return new BigDecimal(new BigInteger(readBytes(input)), scale);
+		case TYPE_TEXT:
+			return new StringText(readString(input));
+		default:
+			throw new IllegalStateException("Unknown value type in spooled row: " + type);
+		}
+	}
+
+	private void writeString(String value) {
+		writeBytes(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void writeBytes(byte[] bytes) {
+		writeVarInt(bytes.length);
+		ensure(bytes.length);
+		buffer.put(bytes);
+	}
+
+	private byte[] readBytes(ByteBuffer input) {
+		byte[] bytes = new byte[readVarInt(input)];
+		input.get(bytes);
+		return bytes;
+	}
+
+	private String readString(ByteBuffer input) {
+		int length = readVarInt(input);
+		String value;
+		if (input.hasArray()) {
+			value = new String(input.array(), input.arrayOffset() + input.position(), length, StandardCharsets.UTF_8);
+			input.position(input.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			input.get(bytes);
+			value = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return value;
+	}
+
+	private void writeLong(long value) {
+		long zigZag = (value << 1) ^ (value >> 63);
+		ensure(10);
+		while ((zigZag & ~0x7FL) != 0) {
+			buffer.put((byte) ((zigZag & 0x7F) | 0x80));
+			zigZag >>>= 7;
+		}
+		buffer.put((byte) zigZag);
+	}
+
+	private long readLong(ByteBuffer input) {
+		long zigZag = 0;
+		int shift = 0;
+		byte current;
+		do {
+			current = input.get();
+			zigZag |= (long) (current & 0x7F) << shift;
+			shift += 7;
+		} while ((current & 0x80) != 0);
+		return (zigZag >>> 1) ^ -(zigZag & 1);
+	}
+
+	private void writeVarInt(int value) {
+		ensure(5);
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private int readVarInt(ByteBuffer input) {
+		int value = 0;
+		int shift = 0;
+		byte current;
+		do {
+			current = input.get();
+			value |= (current & 0x7F) << shift;
+			shift += 7;
+		} while ((current & 0x80) != 0);
+		return value;
+	}
+
+	private static int zigZag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unZigZag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private void writeByte(byte value) {
+		ensure(1);
+		buffer.put(value);
+	}
+
+	private void ensure(int bytes) {
+		if (buffer.remaining() < bytes) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+	}
+
+}
@@ -0,0 +1,324 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.spool;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.wedjaa.elasticparser.estimate.ESResponseEstimator;
+import net.wedjaa.elasticparser.row.ESRowSchema;
+import net.wedjaa.elasticparser.row.ESRowSink;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps rows on the heap up to a budget, and the rows that follow in blocks
+ * on a temporary file - optionally compressed - in the compact format of
+ * {@link ESRowCodec}. Iterating returns the rows in the order they have been
+ * added, reading the spilled blocks back one at a time.
+ *
+ * Rows are added by a single thread, and the store is only iterated once
+ * all the rows have been added.
+ */
+public class ESSpillingRowStore implements ESRowSink, Iterable<Map<String, Object>> {
+
+	private static final Logger logger = Logger.getLogger(ESSpillingRowStore.class);
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+	private static final int BLOCK_HEADER = 8;
+
+	private final long heapBudget;
+	private final boolean compress;
+
+	private final List<Map<String, Object>> heapRows = new ArrayList<Map<String, Object>>();
+	private long heapBytes = 0;
+	private long spilledRows = 0;
+
+	private final ESRowCodec codec = new ESRowCodec(new ESRowSchema());
+	private ByteBuffer block;
+	private Deflater deflater;
+	private byte[] deflated;
+
+	private File spillFile;
+	private RandomAccessFile spillStore;
+	private FileChannel spillChannel;
+	private long spilledBytes = 0;
+
+	/**
+	 * @param heapBudget the estimated bytes of rows to keep on the heap before
+	 *                   spilling to disk.
+	 * @param compress   true to compress the spilled blocks.
+	 */
+	public ESSpillingRowStore(long heapBudget, boolean compress) {
+		this.heapBudget = heapBudget;
+		this.compress = compress;
+	}
+
+	@Override
+	public void add(Map<String, Object> row) {
+		if (spillChannel == null) {
+			long rowBytes = ESResponseEstimator.estimateRowBytes(row);
+			if (heapBytes + rowBytes <= heapBudget) {
+				heapRows.add(row);
+				heapBytes += rowBytes;
+				return;
+			}
+			logger.info("Rows are over the heap budget of " + heapBudget + " bytes after " + heapRows.size()
+					+ " rows, spilling the rest to disk");
+			openSpill();
+		}
+		spill(row);
+	}
+
+	/**
+	 * Writes out the rows still buffered, call once all the rows have been
+	 * added.
+	 */
+	public void finish() {
+		if (block != null && block.position() > 0) {
+			writeBlock();
+		}
+		if (spilledRows > 0) {
+			logger.debug("Spilled " + spilledRows + " rows in " + spilledBytes + " bytes to "
+					+ spillFile.getAbsolutePath());
+		}
+	}
+
+	public long size() {
+		return heapRows.size() + spilledRows;
+	}
+
+	public long getSpilledRows() {
+		return spilledRows;
+	}
+
+	public long getSpilledBytes() {
+		return spilledBytes;
+	}
+
+	@Override
+	public Iterator<Map<String, Object>> iterator() {
+		return new RowIterator();
+	}
+
+	/**
+	 * Releases the spill file.
+	 */
+	public void close() {
+		if (spillStore != null) {
+			try {
+				spillStore.close();
+			} catch (IOException e) {
+				logger.warn("Failed to close the spill file: " + e.getLocalizedMessage());
+			}
+			spillStore = null;
+			spillChannel = null;
+		}
+		if (spillFile != null) {
+			if (!spillFile.delete()) {
+				spillFile.deleteOnExit();
+			}
+			spillFile = null;
+		}
+		if (deflater != null) {
+			deflater.end();
+			deflater = null;
+		}
+	}
+
+	private void openSpill() {
+		try {
+			spillFile = File.createTempFile("elasticparser", ".spill");
+			spillStore = new RandomAccessFile(spillFile, "rw");
+			spillChannel = spillStore.getChannel();
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to create the spill file: " + e.getLocalizedMessage(), e);
+		}
+		block = ByteBuffer.allocate(BLOCK_SIZE);
+		if (compress) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			deflated = new byte[BLOCK_SIZE];
+		}
+	}
+
+	private void spill(Map<String, Object> row) {
+		ByteBuffer encoded = codec.encode(row);
+		if (block.remaining() < encoded.remaining()) {
+			if (block.position() > 0) {
+				writeBlock();
+			}
+			if (block.capacity() < encoded.remaining()) {
+				block = ByteBuffer.allocate(encoded.remaining());
+			}
+		}
+		block.put(encoded);
+		spilledRows++;
+	}
+
+	private void writeBlock() {
+		block.flip();
+		int rawLength = block.remaining();
+		ByteBuffer stored = block;
+		if (compress) {
+			deflater.reset();
+			deflater.setInput(block.array(), 0, rawLength);
+			deflater.finish();
+			int storedLength = 0;
+			while (!deflater.finished()) {
+				if (storedLength == deflated.length) {
+					deflated = Arrays.copyOf(deflated, deflated.length * 2);
+				}
+				storedLength += deflater.deflate(deflated, storedLength, deflated.length - storedLength);
+			}
+			stored = ByteBuffer.wrap(deflated, 0, storedLength);
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER);
+		header.putInt(rawLength).putInt(stored.remaining()).flip();
+		try {
+			spilledBytes += BLOCK_HEADER + stored.remaining();
+			while (header.hasRemaining()) {
+				spillChannel.write(header);
+			}
+			while (stored.hasRemaining()) {
+				spillChannel.write(stored);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to spill rows to disk: " + e.getLocalizedMessage(), e);
+		}
+
+		if (block.capacity() > BLOCK_SIZE) {
+			block = ByteBuffer.allocate(BLOCK_SIZE);
+		} else {
+			block.clear();
+		}
+	}
+
+	private class RowIterator implements Iterator<Map<String, Object>> {
+
+		private final Iterator<Map<String, Object>> heapIterator = heapRows.iterator();
+		private final ESRowCodec reader = new ESRowCodec(codec.getSchema());
+		private final Inflater inflater = compress ? new Inflater() : null;
+		private final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER);
+		private ByteBuffer stored = ByteBuffer.allocate(BLOCK_SIZE);
+		private ByteBuffer rows = ByteBuffer.allocate(0);
+		private long filePosition = 0;
+		private long rowsRead = 0;
+
+		@Override
+		public boolean hasNext() {
+			if (heapIterator.hasNext() || rowsRead < spilledRows) {
+				return true;
+			}
+			if (inflater != null) {
+				inflater.end();
+			}
+			return false;
+		}
+
+		@Override
+		public Map<String, Object> next() {
+			if (heapIterator.hasNext()) {
+				return heapIterator.next();
+			}
+			if (rowsRead >= spilledRows) {
+				throw new NoSuchElementException();
+			}
+			if (!rows.hasRemaining()) {
+				readBlock();
+			}
+			rowsRead++;
+			return reader.decode(rows);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("Stored rows can't be removed");
+		}
+
+		private void readBlock() {
+			try {
+				header.clear();
+				read(header);
+				header.flip();
+				int rawLength = header.getInt();
+				int storedLength = header.getInt();
+
+				if (stored.capacity() < storedLength) {
+					stored = ByteBuffer.allocate(storedLength);
+				}
+				stored.clear().limit(storedLength);
+				read(stored);
+
+				if (inflater == null) {
+					stored.flip();
+					rows = stored;
+					return;
+				}
+
+				byte[] raw = rows.capacity() >= rawLength ? rows.array() : new byte[rawLength];
+				inflater.reset();
+				inflater.setInput(stored.array(), 0, storedLength);
+				int inflated = 0;
+				while (inflated < rawLength) {
+					int count = inflater.inflate(raw, inflated, rawLength - inflated);
+					if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+						throw new IOException("Truncated spill block");
+					}
+					inflated += count;
+				}
+				rows = ByteBuffer.wrap(raw, 0, rawLength);
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to read spilled rows: " + e.getLocalizedMessage(), e);
+			} catch (DataFormatException e) {
+				throw new IllegalStateException("Corrupted spilled rows: " + e.getLocalizedMessage(), e);
+			}
+		}
+
+		private void read(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				int count = spillChannel.read(buffer, filePosition);
+				if (count < 0) {
+					throw new EOFException("Spill file ended before all the rows were read");
+				}
+				filePosition += count;
+			}
+		}
+	}
+
+}
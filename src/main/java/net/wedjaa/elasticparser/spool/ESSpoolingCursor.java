@@ -0,0 +1,272 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.spool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import net.wedjaa.elasticparser.batch.ESColumnBatch;
+import net.wedjaa.elasticparser.batch.ESColumnBatchBuilder;
+import net.wedjaa.elasticparser.pager.ESResultsPager;
+import net.wedjaa.elasticparser.row.ESRowSchema;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A pager that can go back. The rows read from the wrapped pager are
+ * written, in the compact format of {@link ESRowCodec}, to a memory mapped
+ * temporary file; once rewound - or positioned on a row already read - the
+ * rows come from the file instead of the cluster.
+ *
+ * Reading past the rows already spooled continues reading from the wrapped
+ * pager.
+ */
+public class ESSpoolingCursor implements ESResultsPager {
+
+	private static final Logger logger = Logger.getLogger(ESSpoolingCursor.class);
+
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private final ESResultsPager source;
+	private final ESRowCodec codec = new ESRowCodec(new ESRowSchema());
+	private final int segmentSize;
+
+	private File spoolFile;
+	private RandomAccessFile spoolStore;
+	private FileChannel spoolChannel;
+
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private long[] segmentStarts = new long[8];
+	private long fileLength = 0;
+
+	// Where each spooled row starts, in the file
+	private long[] rowOffsets = new long[1024];
+	private int spooledRows = 0;
+	private int position = 0;
+
+	public ESSpoolingCursor(ESResultsPager source) {
+		this(source, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param source      the pager to read the rows from.
+	 * @param segmentSize the size of each mapped region of the spool file.
+	 */
+	public ESSpoolingCursor(ESResultsPager source, int segmentSize) {
+		this.source = source;
+		this.segmentSize = segmentSize;
+	}
+
+	public ESResultsPager getSource() {
+		return source;
+	}
+
+	/**
+	 * Goes back to the first row.
+	 */
+	public void rewind() {
+		position = 0;
+	}
+
+	/**
+	 * Positions the cursor so that the next row returned is the one at the
+	 * given, zero based, index. Reaching a row that hasn't been read yet
+	 * reads - and spools - the rows before it.
+	 *
+	 * @return false if there is no row at that index.
+	 */
+	public boolean absolute(long row) {
+		if (row < 0) {
+			throw new IllegalArgumentException("Rows are numbered from 0, got " + row);
+		}
+		while (spooledRows <= row && fetch() != null) {
+			// Spooling the rows up to the requested one
+		}
+		if (row >= spooledRows) {
+			position = spooledRows;
+			return false;
+		}
+		position = (int) row;
+		return true;
+	}
+
+	/**
+	 * @return the number of rows written to the spool so far.
+	 */
+	public long getSpooledRows() {
+		return spooledRows;
+	}
+
+	/**
+	 * Releases the spool file.
+	 */
+	public void close() {
+		segments.clear();
+		if (spoolStore != null) {
+			try {
+				spoolStore.close();
+			} catch (IOException e) {
+				logger.warn("Failed to close the spool file: " + e.getLocalizedMessage());
+			}
+			spoolStore = null;
+			spoolChannel = null;
+		}
+		if (spoolFile != null) {
+			// Mapped regions may keep the file around until they are collected
+			if (!spoolFile.delete()) {
+				spoolFile.deleteOnExit();
+			}
+			spoolFile = null;
+		}
+	}
+
+	@Override
+	public boolean done() {
+		return position >= spooledRows && source.done();
+	}
+
+	@Override
+	public boolean hit_available() {
+		return position < spooledRows || source.hit_available();
+	}
+
+	@Override
+	public void set_page_size(int page_size) {
+		source.set_page_size(page_size);
+	}
+
+	@Override
+	public long current_hit_idx() {
+		return position;
+	}
+
+	@Override
+	public int page_size() {
+		return source.page_size();
+	}
+
+	@Override
+	public int next_page() {
+		return source.next_page();
+	}
+
+	@Override
+	public long getResultsCount() {
+		return source.getResultsCount();
+	}
+
+	@Override
+	public String get_query() {
+		return source.get_query();
+	}
+
+	@Override
+	public Map<String, Object> next() {
+		if (position < spooledRows) {
+			return read(position++);
+		}
+		Map<String, Object> row = fetch();
+		if (row != null) {
+			position = spooledRows;
+		}
+		return row;
+	}
+
+	@Override
+	public ESColumnBatch nextBatch(int maxRows) {
+		return ESColumnBatchBuilder.fromPager(this, maxRows);
+	}
+
+	@Override
+	public Map<String, Class<?>> getResponseFields() {
+		return source.getResponseFields();
+	}
+
+	private Map<String, Object> fetch() {
+		if (source.done()) {
+			return null;
+		}
+		Map<String, Object> row = source.next();
+		if (row != null) {
+			write(row);
+		}
+		return row;
+	}
+
+	private Map<String, Object> read(int row) {
+		long offset = rowOffsets[row];
+		int segment = Arrays.binarySearch(segmentStarts, 0, segments.size(), offset);
+		if (segment < 0) {
+			segment = -segment - 2;
+		}
+		ByteBuffer input = segments.get(segment).duplicate();
+		input.position((int) (offset - segmentStarts[segment]));
+		return codec.decode(input);
+	}
+
+	private void write(Map<String, Object> row) {
+		ByteBuffer encoded = codec.encode(row);
+		try {
+			MappedByteBuffer segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+			if (segment == null || segment.remaining() < encoded.remaining()) {
+				segment = map(Math.max(segmentSize, encoded.remaining()));
+			}
+			if (spooledRows == rowOffsets.length) {
+				rowOffsets = Arrays.copyOf(rowOffsets, spooledRows * 2);
+			}
+			rowOffsets[spooledRows++] = segmentStarts[segments.size() - 1] + segment.position();
+			segment.put(encoded);
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to spool row " + spooledRows + ": " + e.getLocalizedMessage(), e);
+		}
+	}
+
+	private MappedByteBuffer map(int size) throws IOException {
+		if (spoolChannel == null) {
+			spoolFile = File.createTempFile("elasticparser", ".spool");
+			spoolStore = new RandomAccessFile(spoolFile, "rw");
+			spoolChannel = spoolStore.getChannel();
+			logger.debug("Spooling rows to " + spoolFile.getAbsolutePath());
+		}
+		// Rows never span two segments: the unused end of the last one is skipped
+		MappedByteBuffer segment = spoolChannel.map(FileChannel.MapMode.READ_WRITE, fileLength, size);
+		if (segments.size() == segmentStarts.length) {
+			segmentStarts = Arrays.copyOf(segmentStarts, segments.size() * 2);
+		}
+		segmentStarts[segments.size()] = fileLength;
+		segments.add(segment);
+		fileLength += size;
+		return segment;
+	}
+
+}
@@ -0,0 +1,121 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The trace of the execution of a query: the spans of its steps and the
+ * number of rows read from its results. The threads reading the slices of
+ * a query share its trace.
+ */
+public class ESTrace {
+
+	private final long id;
+	private final String query;
+	private final long startNanos;
+	private final List<ESTraceSpan> spans = new ArrayList<ESTraceSpan>();
+	private final AtomicLong rows = new AtomicLong();
+	private volatile long durationNanos = -1;
+
+	ESTrace(long id, String query) {
+		this.id = id;
+		this.query = query;
+		this.startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Starts a span of this trace, the caller ends it.
+	 */
+	public synchronized ESTraceSpan startSpan(String name) {
+		ESTraceSpan span = new ESTraceSpan(name);
+		spans.add(span);
+		return span;
+	}
+
+	/**
+	 * Accounts for a row read from the results.
+	 */
+	public void countRow() {
+		rows.incrementAndGet();
+	}
+
+	/**
+	 * Accounts for a batch of rows read from the results.
+	 */
+	public void countRows(long count) {
+		rows.addAndGet(count);
+	}
+
+	synchronized boolean finish() {
+		if (durationNanos >= 0) {
+			return false;
+		}
+		durationNanos = System.nanoTime() - startNanos;
+		return true;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getQuery() {
+		return query;
+	}
+
+	public synchronized List<ESTraceSpan> getSpans() {
+		return new ArrayList<ESTraceSpan>(spans);
+	}
+
+	public long getRows() {
+		return rows.get();
+	}
+
+	/**
+	 * @return the time from the start of the query to the last row, or
+	 * <em>-1</em> while the results are being read.
+	 */
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("Trace ").append(id).append(": ").append(rows.get()).append(" rows");
+		long duration = durationNanos;
+		if (duration >= 0) {
+			builder.append(" in ").append(duration / 1000000).append("ms");
+		}
+		for (ESTraceSpan span : getSpans()) {
+			builder.append("\n  ").append(span);
+		}
+		builder.append("\n  Query: ").append(query);
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,82 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.trace;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A timed step of a traced execution - the search, a page fetch, the
+ * explosion of the aggregations - with the attributes describing it.
+ */
+public class ESTraceSpan {
+
+	private final String name;
+	private final long startNanos;
+	private long endNanos = -1;
+	private final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+
+	ESTraceSpan(String name) {
+		this.name = name;
+		this.startNanos = System.nanoTime();
+	}
+
+	public synchronized ESTraceSpan set(String attribute, Object value) {
+		attributes.put(attribute, value);
+		return this;
+	}
+
+	public synchronized void end() {
+		if (endNanos < 0) {
+			endNanos = System.nanoTime();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	/**
+	 * @return how long the span lasted, or has lasted so far if it hasn't
+	 * ended.
+	 */
+	public synchronized long getDurationNanos() {
+		return (endNanos < 0 ? System.nanoTime() : endNanos) - startNanos;
+	}
+
+	public synchronized Map<String, Object> getAttributes() {
+		return new LinkedHashMap<String, Object>(attributes);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return name + " " + (getDurationNanos() / 1000) + "us" + (attributes.isEmpty() ? "" : " " + attributes);
+	}
+
+}
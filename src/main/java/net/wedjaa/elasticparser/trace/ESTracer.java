@@ -0,0 +1,160 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+
+package net.wedjaa.elasticparser.trace;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Traces a sample of the query executions, and those explicitly flagged.
+ *
+ * A traced execution records spans for its steps and, while it runs on a
+ * thread, makes the detailed debug logging of that thread available: code
+ * in the per-row and per-bucket paths checks {@link #isTracing()} before
+ * building any message, so that enabling debug logging doesn't slow down
+ * the queries that are not traced.
+ *
+ * Finished traces go to the listener, which by default logs them on the
+ * <em>net.wedjaa.elasticparser.trace.ESTrace</em> logger.
+ */
+public class ESTracer {
+
+	private static ESTracer instance = null;
+
+	private static final ThreadLocal<ESTrace> current = new ThreadLocal<ESTrace>();
+
+	private static final Logger traceLogger = Logger.getLogger(ESTrace.class);
+
+	private final AtomicLong traceSequence = new AtomicLong();
+	private volatile double sampleRate = 0;
+	private volatile ESTraceListener listener = new ESTraceListener() {
+		@Override
+		public void traceFinished(ESTrace trace) {
+			traceLogger.info(trace);
+		}
+	};
+
+	protected ESTracer() {
+	}
+
+	public static synchronized ESTracer getInstance() {
+		if (instance == null) {
+			instance = new ESTracer();
+		}
+		return instance;
+	}
+
+	/**
+	 * @param sampleRate the fraction of the executions to trace, from
+	 *                   <em>0</em> - the default, only flagged queries are
+	 *                   traced - to <em>1</em>.
+	 */
+	public void setSampleRate(double sampleRate) {
+		this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+	}
+
+	public double getSampleRate() {
+		return sampleRate;
+	}
+
+	public void setListener(ESTraceListener listener) {
+		this.listener = listener;
+	}
+
+	public ESTraceListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Starts the trace of an execution, if it's sampled.
+	 *
+	 * @param query  the query being executed.
+	 * @param forced <em>true</em> to trace the execution regardless of the
+	 *               sampling.
+	 * @return the trace, or <em>null</em> if the execution is not traced.
+	 */
+	public ESTrace start(String query, boolean forced) {
+		double rate = sampleRate;
+		if (!forced && (rate <= 0 || ThreadLocalRandom.current().nextDouble() >= rate)) {
+			return null;
+		}
+		return new ESTrace(traceSequence.incrementAndGet(), query);
+	}
+
+	/**
+	 * Ends a trace and hands it to the listener, once.
+	 */
+	public void finish(ESTrace trace) {
+		if (trace == null || !trace.finish()) {
+			return;
+		}
+		ESTraceListener traceListener = listener;
+		if (traceListener != null) {
+			try {
+				traceListener.traceFinished(trace);
+			} catch (RuntimeException ex) {
+				traceLogger.warn("Trace listener failed: " + ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Makes a trace the one of the current thread.
+	 *
+	 * @return the trace the thread had before, to be restored.
+	 */
+	public static ESTrace attach(ESTrace trace) {
+		ESTrace previous = current.get();
+		current.set(trace);
+		return previous;
+	}
+
+	public static void restore(ESTrace previous) {
+		if (previous == null) {
+			current.remove();
+		} else {
+			current.set(previous);
+		}
+	}
+
+	/**
+	 * @return the trace of the execution running on this thread, or
+	 * <em>null</em>.
+	 */
+	public static ESTrace current() {
+		return current.get();
+	}
+
+	/**
+	 * @return <em>true</em> if the execution running on this thread is
+	 * traced.
+	 */
+	public static boolean isTracing() {
+		return current.get() != null;
+	}
+
+}
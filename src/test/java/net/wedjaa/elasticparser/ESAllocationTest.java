@@ -0,0 +1,398 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+package net.wedjaa.elasticparser;
+
+import net.wedjaa.elasticparser.pager.ESAggregationPager;
+import net.wedjaa.elasticparser.pager.ESHitsPager;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.text.StringText;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.InternalAggregations;
+import org.elasticsearch.search.aggregations.bucket.terms.InternalTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.LongTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.StringTerms;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.stats.InternalStats;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.aggregations.support.format.ValueFormatter;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHitField;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Measures the bytes allocated for each row delivered by the pagers, on
+ * responses built offline from the documents of the bulk insert, and fails
+ * when a scenario allocates more than its budget in
+ * <em>allocation-budgets.properties</em> - plus the tolerance.
+ *
+ * The measured values are always written to
+ * <em>target/allocation-budgets.properties</em>. Run with
+ * <em>-Dallocation.record=true</em> to write them without checking them,
+ * and commit them with a change that is meant to allocate differently.
+ */
+public class ESAllocationTest
+{
+
+    private static final int HIT_COPIES = 20;
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int MEASURED_ITERATIONS = 100;
+
+    private static final String BUDGETS = "allocation-budgets.properties";
+    private static final String RECORD_PROPERTY = "allocation.record";
+    private static final String RECORDED_KEY = "recorded";
+
+    static Logger logger = Logger.getLogger(ESAllocationTest.class);
+
+    static com.sun.management.ThreadMXBean threadBean;
+    static List<JSONObject> documents = new ArrayList<JSONObject>();
+    static Properties budgets = new Properties();
+    static Properties measured = new Properties();
+
+    /**
+     * A scenario is prepared - building its fixtures, which is not measured
+     * - before every run.
+     */
+    private static abstract class AllocationScenario
+    {
+        abstract void prepare();
+
+        /**
+         * @return the rows delivered.
+         */
+        abstract long run();
+    }
+
+    @BeforeClass public static void setup() throws IOException
+    {
+        Assume.assumeTrue("Thread allocation accounting is not available",
+                ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("Thread allocation accounting is not supported",
+                threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        InputStream budgetStream = Thread.currentThread().getContextClassLoader().getResourceAsStream(BUDGETS);
+        budgets.load(budgetStream);
+        budgetStream.close();
+        if (!Boolean.parseBoolean(budgets.getProperty(RECORDED_KEY)))
+        {
+            // Ceilings only catch the gross regressions, a recorded run catches the rest
+            logger.warn("The allocation budgets are provisional ceilings, not measured values: record them with -D"
+                    + RECORD_PROPERTY + "=true and check target/" + BUDGETS + " in");
+        }
+
+        // The bulk insert alternates actions and documents
+        InputStream bulkStream = Thread.currentThread().getContextClassLoader().getResourceAsStream("bulk-insert.json");
+        JSONTokener bulkTokener = new JSONTokener(new InputStreamReader(bulkStream, "UTF-8"));
+        while (bulkTokener.nextClean() != 0)
+        {
+            bulkTokener.back();
+            bulkTokener.nextValue();
+            documents.add((JSONObject) bulkTokener.nextValue());
+        }
+        bulkStream.close();
+        logger.info("Allocation fixtures built from " + documents.size() + " documents");
+    }
+
+    @Test
+    public void testSourceHitsAllocation()
+    {
+        checkBudget("hits.source", new AllocationScenario()
+        {
+            ESHitsPager pager;
+
+            @Override
+            void prepare()
+            {
+                pager = hitsPager(hitsResponse(true));
+            }
+
+            @Override
+            long run()
+            {
+                long rows = 0;
+                while (pager.next() != null)
+                {
+                    rows++;
+                }
+                return rows;
+            }
+        });
+    }
+
+    @Test
+    public void testFieldsHitsAllocation()
+    {
+        checkBudget("hits.fields", new AllocationScenario()
+        {
+            ESHitsPager pager;
+
+            @Override
+            void prepare()
+            {
+                pager = hitsPager(hitsResponse(false));
+            }
+
+            @Override
+            long run()
+            {
+                long rows = 0;
+                while (pager.next() != null)
+                {
+                    rows++;
+                }
+                return rows;
+            }
+        });
+    }
+
+    @Test
+    public void testResponseFieldsAllocation()
+    {
+        checkBudget("hits.response_fields", new AllocationScenario()
+        {
+            SearchResponse response;
+
+            @Override
+            void prepare()
+            {
+                response = hitsResponse(true);
+            }
+
+            @Override
+            long run()
+            {
+                Map<String, Class<?>> fields = ESHitsPager.getHitsFields(response.getHits().getHits());
+                Assert.assertTrue("Fields found", !fields.isEmpty());
+                return response.getHits().getHits().length;
+            }
+        });
+    }
+
+    @Test
+    public void testAggregationsAllocation()
+    {
+        checkBudget("aggregations.explode", new AllocationScenario()
+        {
+            SearchResponse response;
+
+            @Override
+            void prepare()
+            {
+                response = aggregationsResponse();
+            }
+
+            @Override
+            long run()
+            {
+                ESAggregationPager pager = new ESAggregationPager(response, "{}");
+                long rows = 0;
+                while (pager.next() != null)
+                {
+                    rows++;
+                }
+                return rows;
+            }
+        });
+    }
+
+    private void checkBudget(String scenarioName, AllocationScenario scenario)
+    {
+        for (int iteration = 0; iteration < WARMUP_ITERATIONS; iteration++)
+        {
+            scenario.prepare();
+            scenario.run();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long bytes = 0;
+        long rows = 0;
+        for (int iteration = 0; iteration < MEASURED_ITERATIONS; iteration++)
+        {
+            scenario.prepare();
+            long start = threadBean.getThreadAllocatedBytes(threadId);
+            rows += scenario.run();
+            bytes += threadBean.getThreadAllocatedBytes(threadId) - start;
+        }
+        Assert.assertTrue("The scenario delivered rows", rows > 0);
+
+        long bytesPerRow = bytes / rows;
+        logger.info("Allocation of " + scenarioName + ": " + bytesPerRow + " bytes per row");
+
+        // Every run leaves what it measured in target, ready to be checked in
+        recordBudget(scenarioName, bytesPerRow);
+        if (Boolean.getBoolean(RECORD_PROPERTY))
+        {
+            return;
+        }
+
+        String budget = budgets.getProperty(scenarioName);
+        Assert.assertNotNull("No allocation budget for " + scenarioName + ", measured " + bytesPerRow
+                + " bytes per row", budget);
+        double tolerance = Double.parseDouble(budgets.getProperty("tolerance", "0.1"));
+        long limit = (long) (Long.parseLong(budget.trim()) * (1 + tolerance));
+        Assert.assertTrue(scenarioName + " allocates " + bytesPerRow + " bytes per row, over its budget of " + budget
+                + " bytes and " + (int) (tolerance * 100) + "% tolerance", bytesPerRow <= limit);
+    }
+
+    private static synchronized void recordBudget(String scenarioName, long bytesPerRow)
+    {
+        measured.setProperty(scenarioName, String.valueOf(bytesPerRow));
+        measured.setProperty("tolerance", budgets.getProperty("tolerance", "0.1"));
+        measured.setProperty(RECORDED_KEY, "true");
+        File recorded = new File("target", BUDGETS);
+        recorded.getParentFile().mkdirs();
+        try
+        {
+            OutputStream recordStream = new FileOutputStream(recorded);
+            measured.store(recordStream, "Bytes allocated per row, recorded by ESAllocationTest");
+            recordStream.close();
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to record the allocation budgets: " + e);
+        }
+    }
+
+    private static ESHitsPager hitsPager(SearchResponse response)
+    {
+        ESHitsPager pager = new ESHitsPager(response, "{}", response.getHits().getHits().length, null);
+        // All the hits are in the response: don't go looking for a scroll
+        pager.setMaxRows(response.getHits().getHits().length);
+        return pager;
+    }
+
+    private static SearchResponse hitsResponse(boolean withSource)
+    {
+        InternalSearchHit[] hits = new InternalSearchHit[documents.size() * HIT_COPIES];
+        for (int idx = 0; idx < hits.length; idx++)
+        {
+            JSONObject document = documents.get(idx % documents.size());
+            if (withSource)
+            {
+                hits[idx] = new InternalSearchHit(idx, String.valueOf(idx), new StringText("test"), null);
+                hits[idx].sourceRef(new BytesArray(document.toString()));
+            }
+            else
+            {
+                Map<String, SearchHitField> fields = new HashMap<String, SearchHitField>();
+                for (String field : document.keySet())
+                {
+                    fields.put(field, new InternalSearchHitField(field,
+                            Collections.singletonList(document.get(field))));
+                }
+                hits[idx] = new InternalSearchHit(idx, String.valueOf(idx), new StringText("test"), fields);
+            }
+        }
+        InternalSearchHits searchHits = new InternalSearchHits(hits, hits.length, 1.0f);
+        return new SearchResponse(new InternalSearchResponse(searchHits, null, null, null, false, null), null, 1, 1, 1,
+                ShardSearchFailure.EMPTY_ARRAY);
+    }
+
+    /**
+     * The aggregations of test-aggs.json: stats of the <em>stat</em> by
+     * <em>number</em> within each <em>group</em>.
+     */
+    private static SearchResponse aggregationsResponse()
+    {
+        Map<String, Map<Long, List<Double>>> groups = new TreeMap<String, Map<Long, List<Double>>>();
+        for (JSONObject document : documents)
+        {
+            if (!document.has("group") || !document.has("number") || !document.has("stat"))
+            {
+                continue;
+            }
+            String group = document.getString("group");
+            if (!groups.containsKey(group))
+            {
+                groups.put(group, new TreeMap<Long, List<Double>>());
+            }
+            Map<Long, List<Double>> numbers = groups.get(group);
+            long number = document.getLong("number");
+            if (!numbers.containsKey(number))
+            {
+                numbers.put(number, new ArrayList<Double>());
+            }
+            numbers.get(number).add(document.getDouble("stat"));
+        }
+
+        List<PipelineAggregator> noPipelines = Collections.emptyList();
+        List<InternalTerms.Bucket> groupBuckets = new ArrayList<InternalTerms.Bucket>();
+        for (Map.Entry<String, Map<Long, List<Double>>> group : groups.entrySet())
+        {
+            List<InternalTerms.Bucket> numberBuckets = new ArrayList<InternalTerms.Bucket>();
+            long groupCount = 0;
+            for (Map.Entry<Long, List<Double>> number : group.getValue().entrySet())
+            {
+                List<Double> stats = number.getValue();
+                double sum = 0;
+                for (Double stat : stats)
+                {
+                    sum += stat;
+                }
+                InternalStats groupStats = new InternalStats("Group Stats", stats.size(), sum, Collections.min(stats),
+                        Collections.max(stats), ValueFormatter.RAW, noPipelines, null);
+                numberBuckets.add(new LongTerms.Bucket(number.getKey(), stats.size(),
+                        new InternalAggregations(Collections.<InternalAggregation> singletonList(groupStats)), false, 0,
+                        ValueFormatter.RAW));
+                groupCount += stats.size();
+            }
+            LongTerms numberTerms = new LongTerms("Group Number", Terms.Order.count(false), ValueFormatter.RAW, 10, 10,
+                    1, numberBuckets, false, 0, 0, noPipelines, null);
+            groupBuckets.add(new StringTerms.Bucket(new BytesRef(group.getKey()), groupCount,
+                    new InternalAggregations(Collections.<InternalAggregation> singletonList(numberTerms)), false, 0));
+        }
+        StringTerms groupTerms = new StringTerms("People Groups", Terms.Order.count(false), 10, 10, 1, groupBuckets,
+                false, 0, 0, noPipelines, null);
+
+        InternalSearchHits noHits = new InternalSearchHits(new InternalSearchHit[0], 0, 0);
+        InternalAggregations aggregations = new InternalAggregations(
+                Collections.<InternalAggregation> singletonList(groupTerms));
+        return new SearchResponse(new InternalSearchResponse(noHits, aggregations, null, null, false, null), null, 1, 1,
+                1, ShardSearchFailure.EMPTY_ARRAY);
+    }
+
+}
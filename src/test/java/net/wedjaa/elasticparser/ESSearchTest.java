@@ -23,6 +23,31 @@
 
 package net.wedjaa.elasticparser;
 
+import net.wedjaa.elasticparser.batch.ESColumn;
+import net.wedjaa.elasticparser.batch.ESColumnBatch;
+import net.wedjaa.elasticparser.estimate.ESMemoryBudgetException;
+import net.wedjaa.elasticparser.export.ESDelimitedExporter;
+import net.wedjaa.elasticparser.export.ESExportStats;
+import net.wedjaa.elasticparser.instrument.ESInstrumentation;
+import net.wedjaa.elasticparser.instrument.ESInstrumentationProvider;
+import net.wedjaa.elasticparser.pager.ESRetryPolicy;
+import net.wedjaa.elasticparser.pool.ESDataSource;
+import net.wedjaa.elasticparser.pool.ESPoolStats;
+import net.wedjaa.elasticparser.profile.ESProfileReport;
+import net.wedjaa.elasticparser.query.ESIndexPruner;
+import net.wedjaa.elasticparser.query.ESRoutingAnalyzer;
+import net.wedjaa.elasticparser.replay.ESBenchmarkResult;
+import net.wedjaa.elasticparser.replay.ESRecordingClient;
+import net.wedjaa.elasticparser.replay.ESReplayBenchmark;
+import net.wedjaa.elasticparser.replay.ESReplayClient;
+import net.wedjaa.elasticparser.rest.ESRestClient;
+import net.wedjaa.elasticparser.rest.ESRestResponse;
+import net.wedjaa.elasticparser.rest.ESRestResponseParser;
+import net.wedjaa.elasticparser.scheduler.ESQueryScheduler;
+import net.wedjaa.elasticparser.scheduler.ESQueryTiming;
+import net.wedjaa.elasticparser.trace.ESTrace;
+import net.wedjaa.elasticparser.trace.ESTraceSpan;
+
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpDelete;
@@ -44,10 +69,15 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Created by mrwho on 17/03/15.
@@ -74,10 +104,12 @@ public class ESSearchTest
     static final int LARGE_NUM_HITS = 1;
     static final int LARGE_NUM_FIELDS = 28;
     static final int MULTIPLE_TYPES_NUM_HITS = 25;
+    static final int LIMITED_NUM_HITS = 5;
 
 	private static final String SIMPLE_AGG_NAME = "total";
 	private static final Long SIMPLE_AGG_COUNT = (long) 20;
 
+    private static final int HTTP_PORT = 9500;
     private static final int SHIELD_LISTENER_PORT = 12000;
     private static final String SHIELD_USER = "shield_user";
     private static final String SHIELD_PASSWORD = "shield_password";
@@ -156,6 +188,34 @@ public class ESSearchTest
 
     }
 
+    @Test
+    public void testLazyLargeHitDocument()
+    {
+      int hitCount = 0;
+
+      logger.info("Testing Lazy Large Document");
+      ESSearch search = new ESSearch("unit", "large", ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+      search.setLazySource(true);
+      search.search(getQuery("test-hits.json"));
+      Map<String, Object> hit;
+      while ((hit = search.next()) != null)
+      {
+          int valuedFields = 0;
+          for (String fieldName : hit.keySet())
+          {
+              Assert.assertTrue("Lazy source has " + fieldName, hit.containsKey(fieldName));
+              if (hit.get(fieldName) != null)
+              {
+                  valuedFields++;
+              }
+          }
+          Assert.assertEquals("Lazy source fields with a value", LARGE_NUM_FIELDS, valuedFields);
+          hitCount++;
+      }
+      search.close();
+      Assert.assertEquals("Lazy large document number of hits", LARGE_NUM_HITS, hitCount);
+    }
+
     @Test
     public void testLargeHitFields()
     {
@@ -219,6 +279,249 @@ public class ESSearchTest
         Assert.assertEquals("Multi page number of hits", GENERAL_NUM_HITS, hitCount);
     }
 
+    @Test
+    public void testLimitedHits()
+    {
+        int hitCount = 0;
+
+        logger.info("Testing Limited Hits Mode");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        search.setMaxRows(LIMITED_NUM_HITS);
+        /**
+         * Small pages make sure the limit has to stop the scrolling.
+         */
+        String sizedQuery = setQuerySize(getQuery("test-hits.json"), 2);
+        search.search(sizedQuery);
+        while ((search.next()) != null)
+        {
+            hitCount++;
+        }
+        search.close();
+
+        Assert.assertEquals("Limited number of hits", LIMITED_NUM_HITS, hitCount);
+    }
+
+    @Test
+    public void testNdjsonExport() throws IOException
+    {
+        logger.info("Testing NDJSON Export");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        String sizedQuery = setQuerySize(getQuery("test-hits.json"), 2);
+        search.search(sizedQuery);
+
+        File exportFile = File.createTempFile("export", ".ndjson");
+        exportFile.deleteOnExit();
+        FileOutputStream exportStream = new FileOutputStream(exportFile);
+        ESExportStats stats = search.exportNdjson(exportStream.getChannel(), true);
+        exportStream.close();
+        search.close();
+
+        Assert.assertEquals("Exported documents", GENERAL_NUM_HITS, stats.getRows());
+        BufferedReader exportReader = new BufferedReader(new InputStreamReader(new FileInputStream(exportFile), "UTF-8"));
+        int lines = 0;
+        String line;
+        while ((line = exportReader.readLine()) != null)
+        {
+            JSONObject document = new JSONObject(line);
+            Assert.assertTrue("Exported documents carry their id", document.has("_id"));
+            lines++;
+        }
+        exportReader.close();
+        Assert.assertEquals("One document per line", GENERAL_NUM_HITS, lines);
+    }
+
+    @Test
+    public void testDelimitedExport() throws IOException
+    {
+        logger.info("Testing Compressed CSV Export");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        String sizedQuery = setQuerySize(getQuery("test-hits.json"), 2);
+        search.search(sizedQuery);
+
+        File exportFile = File.createTempFile("export", ".csv.gz");
+        exportFile.deleteOnExit();
+        FileOutputStream exportStream = new FileOutputStream(exportFile);
+        ESExportStats stats = search.exportDelimited(exportStream.getChannel(), new String[] { "id", "name", "number" },
+                ESDelimitedExporter.FORMAT_CSV, true);
+        exportStream.close();
+        search.close();
+
+        Assert.assertEquals("Exported rows", GENERAL_NUM_HITS, stats.getRows());
+        BufferedReader exportReader = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+                new FileInputStream(exportFile)), "UTF-8"));
+        Assert.assertEquals("Header line", "id,name,number", exportReader.readLine());
+        int lines = 0;
+        String line;
+        while ((line = exportReader.readLine()) != null)
+        {
+            Assert.assertEquals("Columns per line", 3, line.split(",", -1).length);
+            lines++;
+        }
+        exportReader.close();
+        Assert.assertEquals("One row per line", GENERAL_NUM_HITS, lines);
+    }
+
+    @Test
+    public void testSpooledRewind()
+    {
+        logger.info("Testing Spooled Results Rewind");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        search.setSpooling(true);
+        String sizedQuery = setQuerySize(getQuery("test-hits.json"), 2);
+        search.search(sizedQuery);
+
+        List<Map<String, Object>> firstPass = new ArrayList<Map<String, Object>>();
+        Map<String, Object> hit;
+        while ((hit = search.next()) != null)
+        {
+            firstPass.add(hit);
+        }
+        Assert.assertEquals("Number of hits", GENERAL_NUM_HITS, firstPass.size());
+
+        search.rewind();
+        int secondPass = 0;
+        while ((hit = search.next()) != null)
+        {
+            Assert.assertEquals("Spooled hit", firstPass.get(secondPass), hit);
+            secondPass++;
+        }
+        Assert.assertEquals("Number of spooled hits", GENERAL_NUM_HITS, secondPass);
+
+        Assert.assertTrue("Position on a spooled hit", search.absolute(2));
+        Assert.assertEquals("Positioned hit", firstPass.get(2), search.next());
+        Assert.assertFalse("Position past the last hit", search.absolute(GENERAL_NUM_HITS));
+        search.close();
+    }
+
+    @Test
+    public void testPipelinedConversion()
+    {
+        logger.info("Testing Hits Converted on a Pool");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        // Resumable searches scroll in index order on the primaries, the
+        // same order every time
+        search.setRetryPolicy(new ESRetryPolicy());
+        String sizedQuery = setQuerySize(getQuery("test-hits.json"), 2);
+        search.search(sizedQuery);
+        List<String> serialIds = new ArrayList<String>();
+        Map<String, Object> hit;
+        while ((hit = search.next()) != null)
+        {
+            serialIds.add(String.valueOf(hit.get("id")));
+        }
+        search.close();
+
+        ESSearch pipelinedSearch = new ESSearch(null, null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        pipelinedSearch.setConversionThreads(3);
+        pipelinedSearch.setRetryPolicy(new ESRetryPolicy());
+        pipelinedSearch.search(sizedQuery);
+        List<String> pipelinedIds = new ArrayList<String>();
+        while ((hit = pipelinedSearch.next()) != null)
+        {
+            pipelinedIds.add(String.valueOf(hit.get("id")));
+        }
+        pipelinedSearch.close();
+
+        Assert.assertEquals("Number of converted hits", GENERAL_NUM_HITS, pipelinedIds.size());
+        Assert.assertEquals("Converted hits, in the order of the hits", serialIds, pipelinedIds);
+    }
+
+    @Test
+    public void testScheduledSearch()
+    {
+        logger.info("Testing Scheduled Search");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        search.setScheduler(ESQueryScheduler.getInstance());
+        search.setPriority(ESQueryScheduler.PRIORITY_BATCH);
+        search.search(getQuery("test-hits.json"));
+        ESQueryTiming timing = search.getLastQueryTiming();
+        int hitsCount = 0;
+        while (search.next() != null)
+        {
+            hitsCount++;
+        }
+        search.close();
+        Assert.assertNotNull("Scheduled queries are timed", timing);
+        Assert.assertEquals("Query sent once", 1, timing.getAttempts());
+        Assert.assertEquals("Number of hits", GENERAL_NUM_HITS, hitsCount);
+    }
+
+    @Test
+    public void testMemoryBudget()
+    {
+        logger.info("Testing Memory Budget");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        search.setMemoryBudget(1024);
+        search.setMemoryPolicy(ESSearch.ES_MEMORY_REFUSE);
+        try
+        {
+            search.search(getQuery("test-hits.json"));
+            Assert.fail("Results over the memory budget should be refused");
+        }
+        catch (ESMemoryBudgetException ex)
+        {
+            Assert.assertEquals("Estimated rows", GENERAL_NUM_HITS, ex.getEstimate().getRows());
+        }
+        search.close();
+
+        ESSearch streamingSearch = new ESSearch(null, null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        streamingSearch.setMemoryBudget(1024);
+        streamingSearch.setMemoryPolicy(ESSearch.ES_MEMORY_STREAM);
+        streamingSearch.search(getQuery("test-hits.json"));
+        int hitsCount = 0;
+        while (streamingSearch.next() != null)
+        {
+            hitsCount++;
+        }
+        Assert.assertTrue("The estimate is over the budget", streamingSearch.getLastEstimate().getBytes() > 1024);
+        streamingSearch.close();
+        Assert.assertEquals("Streamed hits", GENERAL_NUM_HITS, hitsCount);
+    }
+
+    @Test
+    public void testResilientScrolling()
+    {
+        logger.info("Testing Resilient Scrolling");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        // Hedge every search, to go through both requests
+        search.setRetryPolicy(new ESRetryPolicy().setHedgeAfterMillis(1));
+        String sizedQuery = setQuerySize(getQuery("test-hits.json"), 3);
+        search.search(sizedQuery);
+        Set<Map<String, Object>> rows = new HashSet<Map<String, Object>>();
+        int hitsCount = 0;
+        Map<String, Object> hit;
+        while ((hit = search.next()) != null)
+        {
+            rows.add(hit);
+            hitsCount++;
+        }
+        search.close();
+        Assert.assertEquals("Number of hits", GENERAL_NUM_HITS, hitsCount);
+        Assert.assertEquals("Every hit returned once", GENERAL_NUM_HITS, rows.size());
+    }
+
+    @Test
+    public void testTracedSearch()
+    {
+        logger.info("Testing Traced Search");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        search.setTraced(true);
+        search.search(setQuerySize(getQuery("test-hits.json"), 2));
+        int hitsCount = 0;
+        while (search.next() != null)
+        {
+            hitsCount++;
+        }
+        ESTrace trace = search.getTrace();
+        search.close();
+        Assert.assertNotNull("Flagged queries are traced", trace);
+        Assert.assertTrue("Finished trace", trace.getDurationNanos() >= 0);
+        Assert.assertEquals("Traced rows", hitsCount, trace.getRows());
+        Assert.assertEquals("Search span", "search", trace.getSpans().get(0).getName());
+        Assert.assertTrue("Page spans", trace.getSpans().size() > 1);
+        Assert.assertEquals("Number of hits", GENERAL_NUM_HITS, hitsCount);
+    }
+
     @Test
     public void testHitsFields()
     {
@@ -259,6 +562,49 @@ public class ESSearchTest
         Assert.assertEquals("Number of total fields projected", PROJECTION_NUM_FIELDS, fieldsCount);
     }
 
+    @Test
+    public void testHitsFieldsWithColumns()
+    {
+        logger.info("Testing Hits Fields with Columns");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        search.setColumns("name, description, group");
+        Map<String, Class<?>> fields = search.getFields(getQuery("test-hits.json"));
+        search.close();
+        Assert.assertEquals("Number of total fields projected by columns", PROJECTION_NUM_FIELDS, fields.size());
+    }
+
+    @Test
+    public void testDocValueColumns()
+    {
+        int hitCount = 0;
+
+        logger.info("Testing Doc Value Columns");
+        ESSearch search = new ESSearch(null, "test", ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        search.setColumns("name, number, postDate");
+        search.setDocValueColumns("number, postDate");
+        search.search(getQuery("test-hits.json"));
+        Map<String, Object> hit;
+        while ((hit = search.next()) != null)
+        {
+            Assert.assertTrue("Names come from the source", hit.get("name") instanceof String);
+            Assert.assertTrue("Numbers come from the doc values", hit.get("number") instanceof Long);
+            Assert.assertTrue("Dates come as epoch millis", hit.get("postDate") instanceof Long);
+            hitCount++;
+        }
+        search.close();
+
+        Assert.assertEquals("Number of hits with doc values", TEST_TYPE_NUM_HITS, hitCount);
+
+        search = new ESSearch(null, "test", ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        search.setColumns("name, number, postDate");
+        search.setDocValueColumns("number, postDate");
+        Map<String, Class<?>> fields = search.getFields(getQuery("test-hits.json"));
+        search.close();
+        Assert.assertEquals("Names are typed by the source", String.class, fields.get("name"));
+        Assert.assertEquals("Numbers are typed by the doc values", Long.class, fields.get("number"));
+        Assert.assertEquals("Dates are typed by the doc values", Long.class, fields.get("postDate"));
+    }
+
     @Test
     public void testTypeTestHits()
     {
@@ -332,6 +678,407 @@ public class ESSearchTest
         Assert.assertEquals("Nested Aggregations Return " + GENERAL_NUM_AGGS + " Rows",GENERAL_NUM_AGGS, aggsCount);
     }
 
+    @Test
+    public void testSpilledNestedAggregations()
+    {
+        logger.info("Testing Nested Aggregations Spilled to Disk");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_AGGS, "localhost", 9600, clusterName);
+        search.search(getQuery("test-aggs.json"));
+        List<Map<String, Object>> heapRows = new ArrayList<Map<String, Object>>();
+        Map<String, Object> hit;
+        while ((hit = search.next()) != null)
+        {
+            heapRows.add(hit);
+        }
+        search.close();
+
+        // A budget this small keeps a couple of rows on the heap at most
+        ESSearch spillingSearch = new ESSearch(null, null, ESSearch.ES_MODE_AGGS, "localhost", 9600, clusterName);
+        spillingSearch.setAggregationHeapBudget(512);
+        spillingSearch.search(getQuery("test-aggs.json"));
+        int aggsCount = 0;
+        while ((hit = spillingSearch.next()) != null)
+        {
+            Assert.assertEquals("Spilled aggregation row", heapRows.get(aggsCount), hit);
+            aggsCount++;
+        }
+        spillingSearch.close();
+        Assert.assertEquals("Spilled Aggregations Return " + GENERAL_NUM_AGGS + " Rows", GENERAL_NUM_AGGS, aggsCount);
+    }
+
+    @Test
+    public void testSpilledDateHistogram()
+    {
+        logger.info("Testing Date Histogram Spilled to Disk");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_AGGS, "localhost", 9600, clusterName);
+        search.search(getQuery("test-date-aggs.json"));
+        List<Map<String, Object>> heapRows = new ArrayList<Map<String, Object>>();
+        Map<String, Object> hit;
+        while ((hit = search.next()) != null)
+        {
+            heapRows.add(hit);
+        }
+        search.close();
+        Assert.assertFalse("Date histogram rows", heapRows.isEmpty());
+
+        ESSearch spillingSearch = new ESSearch(null, null, ESSearch.ES_MODE_AGGS, "localhost", 9600, clusterName);
+        spillingSearch.setAggregationHeapBudget(512);
+        spillingSearch.search(getQuery("test-date-aggs.json"));
+        int aggsCount = 0;
+        while ((hit = spillingSearch.next()) != null)
+        {
+            Map<String, Object> heapRow = heapRows.get(aggsCount);
+            Assert.assertEquals("Spilled date histogram row", heapRow, hit);
+            for (Map.Entry<String, Object> column : heapRow.entrySet())
+            {
+                // Equal strings would hide a key that lost its class on disk
+                Assert.assertEquals("Class of " + column.getKey(),
+                        column.getValue() != null ? column.getValue().getClass() : null,
+                        hit.get(column.getKey()) != null ? hit.get(column.getKey()).getClass() : null);
+            }
+            aggsCount++;
+        }
+        spillingSearch.close();
+        Assert.assertEquals("Spilled Date Histogram Rows", heapRows.size(), aggsCount);
+    }
+
+    @Test
+    public void testProfiledAggregations()
+    {
+        logger.info("Testing Profiled Aggregations");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_AGGS, "localhost", 9600, clusterName);
+        search.setProfiling(true);
+        search.search(getQuery("test-aggs.json"));
+        ESProfileReport profile = search.getLastProfile();
+        int aggsCount = 0;
+        while (search.next() != null)
+        {
+            aggsCount++;
+        }
+        search.close();
+        logger.debug(profile);
+        Assert.assertNotNull("Profiled queries have a report", profile);
+        Assert.assertFalse("The cluster profiled the shards", profile.getShards().isEmpty());
+        Assert.assertFalse("Shards report their queries", profile.getShards().get(0).getQueries().isEmpty());
+        Assert.assertEquals("Exploded rows", GENERAL_NUM_AGGS, profile.getExplodedRows());
+        Assert.assertEquals("Profiled Aggregations Return " + GENERAL_NUM_AGGS + " Rows", GENERAL_NUM_AGGS, aggsCount);
+    }
+
+    @Test
+    public void testInstrumentedAggregations()
+    {
+        logger.info("Testing Instrumented Aggregations");
+        final long[] explodedRows = new long[] { -1 };
+        final long[] queryHits = new long[] { -1 };
+        ESInstrumentationProvider.set(new ESInstrumentation()
+        {
+            @Override
+            public Object beginQuery()
+            {
+                return this;
+            }
+
+            @Override
+            public void endQuery(Object event, String[] indexes, int mode, long totalHits)
+            {
+                queryHits[0] = totalHits;
+            }
+
+            @Override
+            public Object beginPage()
+            {
+                return null;
+            }
+
+            @Override
+            public void endPage(Object event, int hits, long bytes)
+            {
+                Assert.fail("Pages that were not begun are not ended");
+            }
+
+            @Override
+            public Object beginExplode()
+            {
+                return this;
+            }
+
+            @Override
+            public void endExplode(Object event, long buckets, long rows)
+            {
+                Assert.assertTrue("Exploded buckets", buckets > 0);
+                explodedRows[0] = rows;
+            }
+        });
+        try
+        {
+            ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_AGGS, "localhost", 9600, clusterName);
+            search.search(getQuery("test-aggs.json"));
+            search.close();
+        }
+        finally
+        {
+            ESInstrumentationProvider.set(null);
+        }
+        Assert.assertEquals("Exploded rows", GENERAL_NUM_AGGS, explodedRows[0]);
+        Assert.assertEquals("Query rows", GENERAL_NUM_AGGS, queryHits[0]);
+    }
+
+    @Test
+    public void testRecordedReplay() throws IOException
+    {
+        logger.info("Testing Recorded Replay");
+        File recordingFile = File.createTempFile("replay", ".bin");
+        recordingFile.deleteOnExit();
+        String sizedQuery = setQuerySize(getQuery("test-hits.json"), 2);
+
+        ESRecordingClient recorder = new ESRecordingClient(elasticTestNode.client(), recordingFile);
+        ESSearch search = new ESSearch(recorder, ESSearch.ES_MODE_HITS);
+        search.search(sizedQuery);
+        List<String> recordedIds = new ArrayList<String>();
+        Map<String, Object> hit;
+        while ((hit = search.next()) != null)
+        {
+            recordedIds.add(String.valueOf(hit.get("id")));
+        }
+        search.close();
+        recorder.close();
+        Assert.assertEquals("Recorded hits", GENERAL_NUM_HITS, recordedIds.size());
+        Assert.assertTrue("Recorded exchanges", recorder.getRecordedExchanges() > 1);
+
+        ESReplayClient replay = new ESReplayClient(recordingFile);
+        try
+        {
+            ESReplayBenchmark benchmark = new ESReplayBenchmark(replay, ESSearch.ES_MODE_HITS);
+            ESBenchmarkResult result = benchmark.run(sizedQuery, 1, 2);
+            Assert.assertEquals("Replayed runs", 2, result.getRuns());
+            Assert.assertEquals("Replayed hits", 2L * GENERAL_NUM_HITS, result.getRows());
+
+            // Every page of the scroll is replayed, in the recorded order
+            ESSearch replayed = new ESSearch(replay, ESSearch.ES_MODE_HITS);
+            replayed.search(sizedQuery);
+            List<String> replayedIds = new ArrayList<String>();
+            while ((hit = replayed.next()) != null)
+            {
+                replayedIds.add(String.valueOf(hit.get("id")));
+            }
+            replayed.close();
+            Assert.assertEquals("Replayed hits", recordedIds, replayedIds);
+        }
+        finally
+        {
+            replay.close();
+        }
+    }
+
+    @Test
+    public void testClosedConnection() throws SQLException
+    {
+        logger.info("Testing Closed Connection");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_AGGS, "localhost", 9600, clusterName);
+        Assert.assertTrue("Valid before connecting", search.isValid(5));
+        search.search(getQuery("test-aggs.json"));
+        Assert.assertTrue("Valid once connected", search.isValid(5));
+        Assert.assertFalse("Open connection", search.isClosed());
+        search.close();
+        Assert.assertTrue("Closed connection", search.isClosed());
+        Assert.assertFalse("Closed connection is not valid", search.isValid(5));
+        try
+        {
+            search.search(getQuery("test-aggs.json"));
+            Assert.fail("Closed connections don't search");
+        }
+        catch (IllegalStateException ex)
+        {
+            Assert.assertTrue("Closed connection", search.isClosed());
+        }
+    }
+
+    @Test
+    public void testPooledDataSource() throws SQLException
+    {
+        logger.info("Testing Pooled Data Source");
+        ESDataSource dataSource = new ESDataSource("localhost", 9600, clusterName);
+        dataSource.setMaxPoolSize(1);
+        dataSource.setSearchMode(ESSearch.ES_MODE_AGGS);
+
+        ESSearch first = dataSource.getConnection();
+        ESSearch second = dataSource.getConnection();
+        Assert.assertTrue("Pooled connection is valid", first.isValid(5));
+        second.search(getQuery("test-aggs.json"));
+        int aggsCount = 0;
+        while (second.next() != null)
+        {
+            aggsCount++;
+        }
+        Assert.assertEquals("Aggregations on a shared client", GENERAL_NUM_AGGS, aggsCount);
+
+        ESPoolStats stats = dataSource.getPoolStats();
+        Assert.assertEquals("Connections share the client", 1, stats.getClients());
+        Assert.assertEquals("Active connections", 2, stats.getActiveConnections());
+
+        ESSearch cloned = second.clone();
+        Assert.assertEquals("Clones borrow a client of their own", 3,
+                dataSource.getPoolStats().getActiveConnections());
+        first.close();
+        second.close();
+        Assert.assertTrue("Clones outlive the connection they come from", cloned.isValid(5));
+        cloned.search(getQuery("test-aggs.json"));
+        aggsCount = 0;
+        while (cloned.next() != null)
+        {
+            aggsCount++;
+        }
+        Assert.assertEquals("Aggregations on a cloned connection", GENERAL_NUM_AGGS, aggsCount);
+        cloned.close();
+        Assert.assertTrue("Closed pooled connection", first.isClosed());
+        Assert.assertFalse("Closed pooled connection is not valid", first.isValid(5));
+        stats = dataSource.getPoolStats();
+        Assert.assertEquals("Idle clients", 1, stats.getIdleClients());
+        Assert.assertEquals("Active connections", 0, stats.getActiveConnections());
+
+        ESSearch third = dataSource.getConnection();
+        third.close();
+        Assert.assertEquals("Clients created", 1, dataSource.getPoolStats().getClientsCreated());
+        dataSource.close();
+    }
+
+    @Test
+    public void testPrunedIndexes()
+    {
+        logger.info("Testing Index Pruning");
+        ESSearch search = new ESSearch("uni*", null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        search.setIndexPruner(new ESIndexPruner("postDate"));
+
+        search.search("{ \"query\": { \"bool\": { \"filter\": { \"range\": { \"postDate\": "
+                + "{ \"gte\": \"2000-01-01\", \"lt\": \"2009-01-01\" } } } } } }");
+        Assert.assertEquals("No index can match", 0, search.getSearchedIndexes().length);
+        Assert.assertNull("No hits from pruned indexes", search.next());
+
+        search.search("{ \"query\": { \"bool\": { \"filter\": { \"range\": { \"postDate\": "
+                + "{ \"gte\": \"2009-11-01\", \"lte\": \"2009-11\" } } } } } }");
+        Assert.assertArrayEquals("Nothing pruned, the pattern is searched", new String[] { "uni*" },
+                search.getSearchedIndexes());
+        Assert.assertNotNull("Hits from the matching index", search.next());
+        search.close();
+
+        ESSearch aggSearch = new ESSearch("uni*", null, ESSearch.ES_MODE_AGGS, "localhost", 9600, clusterName);
+        aggSearch.setIndexPruner(new ESIndexPruner("postDate"));
+        aggSearch.search("{ \"query\": { \"bool\": { \"filter\": { \"range\": { \"postDate\": "
+                + "{ \"gte\": \"2000-01-01\", \"lt\": \"2009-01-01\" } } } } }, "
+                + "\"aggregations\": { \"total\": { \"filter\": { \"exists\": { \"field\": \"group\" } } } } }");
+        Map<String, Object> hit = aggSearch.next();
+        Assert.assertNotNull("Aggregations without hits still have rows", hit);
+        Assert.assertEquals("Empty aggregation", 0L, hit.get("total DocCount"));
+        aggSearch.close();
+    }
+
+    @Test
+    public void testRoutedQuery()
+    {
+        logger.info("Testing Routed Query");
+        ESRoutingAnalyzer routing = new ESRoutingAnalyzer();
+        routing.setRoutingField("uni*", "group");
+        ESSearch search = new ESSearch("unit", null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        search.setRoutingAnalyzer(routing);
+
+        search.search("{ \"query\": { \"bool\": { \"filter\": [ "
+                + "{ \"terms\": { \"group\": [ \"utilitarians\", \"practicals\" ] } }, "
+                + "{ \"term\": { \"group\": \"practicals\" } } ] } } }");
+        Assert.assertEquals("Routed to the filtered group", "practicals", search.getSearchRouting());
+
+        search.search("{ \"query\": { \"bool\": { \"should\": "
+                + "{ \"term\": { \"group\": \"practicals\" } } } } }");
+        Assert.assertNull("Optional terms don't route", search.getSearchRouting());
+        int hitCount = 0;
+        while (search.next() != null)
+        {
+            hitCount++;
+        }
+        search.close();
+        Assert.assertTrue("Unrouted hits", hitCount > 0);
+    }
+
+    @Test
+    public void testTimeSlicedQuery()
+    {
+        logger.info("Testing Time Sliced Query");
+        for (boolean ordered : new boolean[] { true, false })
+        {
+            ESSearch search = new ESSearch("unit", null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+            search.setTimeSlicing("postDate", 4);
+            search.setTimeSliceOrdered(ordered);
+            search.setTraced(true);
+            search.search(getQuery("test-hits.json"));
+            int hitCount = 0;
+            String lastDate = "";
+            boolean missingDate = false;
+            Map<String, Object> hit;
+            while ((hit = search.next()) != null)
+            {
+                hitCount++;
+                String postDate = (String) hit.get("postDate");
+                if (!ordered)
+                {
+                    continue;
+                }
+                if (postDate == null)
+                {
+                    missingDate = true;
+                    continue;
+                }
+                // The slices are cut oldest first, the last one has no postDate
+                Assert.assertFalse("Ordered slices return the hits without a postDate last", missingDate);
+                Assert.assertTrue("Ordered slices return the oldest hits first", postDate.compareTo(lastDate) >= 0);
+                lastDate = postDate;
+            }
+            ESTrace trace = search.getTrace();
+            search.close();
+            long slices = 0;
+            for (ESTraceSpan span : trace.getSpans())
+            {
+                if (span.getName().equals("slice"))
+                {
+                    slices = (Long) span.getAttributes().get("slices");
+                }
+            }
+            // Hits without a postDate are in a slice of their own
+            Assert.assertTrue("The hits are scrolled in more than one slice", slices > 1);
+            Assert.assertEquals("Hits of all the slices", GENERAL_NUM_HITS, hitCount);
+            if (ordered)
+            {
+                Assert.assertTrue("Hits without a postDate are sliced", missingDate);
+            }
+        }
+    }
+
+    @Test
+    public void testMergedSortedSlices()
+    {
+        logger.info("Testing Merged Sorted Slices");
+        ESSearch search = new ESSearch("unit", null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        search.setTimeSlicing("postDate", 4);
+        search.search("{ \"query\": { \"match_all\": {} }, \"sort\": [ { \"stat\": \"asc\" } ] }");
+        int hitCount = 0;
+        long lastStat = Long.MIN_VALUE;
+        boolean missingStat = false;
+        Map<String, Object> hit;
+        while ((hit = search.next()) != null)
+        {
+            hitCount++;
+            Object stat = hit.get("stat");
+            if (stat == null)
+            {
+                missingStat = true;
+                continue;
+            }
+            Assert.assertFalse("Hits without the sort field come last", missingStat);
+            Assert.assertTrue("Merged in the order of the sort", ((Number) stat).longValue() >= lastStat);
+            lastStat = ((Number) stat).longValue();
+        }
+        search.close();
+        Assert.assertEquals("Hits of all the slices", GENERAL_NUM_HITS, hitCount);
+    }
+
     @Test
     public void testSingleAggregation()
     {
@@ -380,6 +1127,134 @@ public class ESSearchTest
         Assert.assertEquals("Multiple Aggregations Returns "+ MULTIPLE_NUM_AGGS +" Rows",MULTIPLE_NUM_AGGS, aggsCount);
     }
 
+    @Test
+    public void testRestMultiPageHits()
+    {
+        int hitCount = 0;
+
+        logger.info("Testing REST Multi Page Hits Mode");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_HITS, "localhost", HTTP_PORT, clusterName);
+        search.setTransport(ESSearch.ES_TRANSPORT_HTTP);
+        String sizedQuery = setQuerySize(getQuery("test-hits.json"), 2);
+        search.search(sizedQuery);
+        while ((search.next()) != null)
+        {
+            hitCount++;
+        }
+        search.close();
+
+        Assert.assertEquals("REST multi page number of hits", GENERAL_NUM_HITS, hitCount);
+    }
+
+    @Test
+    public void testRestClearScroll()
+    {
+        logger.info("Testing REST Clear Scroll");
+        ESRestClient restClient = new ESRestClient("localhost", HTTP_PORT);
+        ESRestResponse response = restClient.search(new String[] { "unit" }, null, getQuery("test-hits.json"), true,
+                2, 0, new ESRestResponseParser());
+        Assert.assertNotNull("Scrolling search", response.getScrollId());
+        Assert.assertTrue("Scroll released", restClient.clearScroll(response.getScrollId()));
+        try
+        {
+            restClient.scroll(response.getScrollId(), new ESRestResponseParser());
+            Assert.fail("Released scrolls can't be read");
+        }
+        catch (RuntimeException ex)
+        {
+            logger.debug("Released scroll: " + ex.getMessage());
+        }
+        restClient.close();
+    }
+
+    @Test
+    public void testRestNestedAggregations()
+    {
+        logger.info("Testing REST Nested Aggregations");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_AGGS, "localhost", HTTP_PORT, clusterName);
+        search.setTransport(ESSearch.ES_TRANSPORT_HTTP);
+        search.search(getQuery("test-aggs.json"));
+        Map<String, Object> hit;
+        int aggsCount = 0;
+        while ((hit = search.next()) != null)
+        {
+            if (hit.get("Aggregation").toString().equals("People Groups") &&
+                    hit.get("People Groups Key").toString().equals("utilitarians") &&
+                    hit.get("Group Number Key").toString().equals("5"))
+            {
+                Assert.assertEquals("The sum of the utilitarians in group 5 should be " + GENERAL_AGGS_FIRST_TERM_COUNT,
+                        GENERAL_AGGS_FIRST_TERM_COUNT, hit.get("Group Stats Sum"));
+            }
+            aggsCount++;
+        }
+        search.close();
+        Assert.assertEquals("REST Nested Aggregations Return " + GENERAL_NUM_AGGS + " Rows", GENERAL_NUM_AGGS, aggsCount);
+    }
+
+    @Test
+    public void testRestSingleAggregation()
+    {
+        logger.info("Testing REST Single Aggregations");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_AGGS, "localhost", HTTP_PORT, clusterName);
+        search.setTransport(ESSearch.ES_TRANSPORT_HTTP);
+        search.search(getQuery("test-simple-aggs.json"));
+        Map<String, Object> hit = search.next();
+        Assert.assertNotNull(hit);
+        Assert.assertEquals(SIMPLE_AGG_NAME, hit.get("Aggregation"));
+        Assert.assertEquals(SIMPLE_AGG_COUNT, hit.get("total DocCount"));
+        Assert.assertNull(search.next());
+        search.close();
+    }
+
+    @Test
+    public void testColumnBatches()
+    {
+        int hitCount = 0;
+
+        logger.info("Testing Column Batches");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_HITS, "localhost", 9600, clusterName);
+        search.setTraced(true);
+        String sizedQuery = setQuerySize(getQuery("test-hits.json"), 2);
+        search.search(sizedQuery);
+        try
+        {
+            search.nextBatch(0);
+            Assert.fail("Batches need room for a row");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            logger.debug("Empty batch refused: " + ex.getMessage());
+        }
+        ESColumnBatch batch;
+        while ((batch = search.nextBatch(7)) != null)
+        {
+            Assert.assertTrue("Batch size within the requested rows", batch.getRowCount() <= 7);
+            hitCount += batch.getRowCount();
+        }
+        ESTrace trace = search.getTrace();
+        search.close();
+
+        Assert.assertEquals("Number of hits in batches", GENERAL_NUM_HITS, hitCount);
+        Assert.assertEquals("Traced rows of the batches", GENERAL_NUM_HITS, trace.getRows());
+    }
+
+    @Test
+    public void testAggregationColumnBatch()
+    {
+        logger.info("Testing Aggregation Column Batch");
+        ESSearch search = new ESSearch(null, null, ESSearch.ES_MODE_AGGS, "localhost", 9600, clusterName);
+        search.search(getQuery("test-aggs.json"));
+        ESColumnBatch batch = search.nextBatch(GENERAL_NUM_AGGS * 2);
+        Assert.assertNotNull(batch);
+        Assert.assertEquals("Aggregation rows in the batch", GENERAL_NUM_AGGS, batch.getRowCount());
+        Assert.assertEquals("Sums are stored as doubles", ESColumn.TYPE_DOUBLE,
+                batch.getColumn("Group Stats Sum").getType());
+        Assert.assertEquals("Keys are dictionary encoded", ESColumn.TYPE_STRING,
+                batch.getColumn("People Groups Key").getType());
+        Assert.assertNull(search.nextBatch(GENERAL_NUM_AGGS));
+        search.close();
+    }
+
     @Test
     public void testShieldAuthentication()
     {
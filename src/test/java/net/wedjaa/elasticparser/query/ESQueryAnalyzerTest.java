@@ -0,0 +1,88 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+package net.wedjaa.elasticparser.query;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the dates of range queries are read the way the cluster
+ * reads them - no cluster is involved.
+ */
+public class ESQueryAnalyzerTest
+{
+
+    private static final long YEAR_2009 = 1230768000000L;
+    private static final long YEAR_2010 = 1262304000000L;
+    private static final long POST_DATE = 1258294332000L;
+
+    static Logger logger = Logger.getLogger(ESQueryAnalyzerTest.class);
+
+    @Test
+    public void testDigitsAsYear()
+    {
+        logger.info("Testing Digits with the Default Format");
+        // strict_date_optional_time comes first, it reads four digits as a year
+        Assert.assertEquals("Start of the year", Long.valueOf(YEAR_2009),
+                ESQueryAnalyzer.parseDate("2009", null, 0, false));
+        Assert.assertEquals("End of the year", Long.valueOf(YEAR_2010 - 1),
+                ESQueryAnalyzer.parseDate("2009", null, 0, true));
+        Assert.assertEquals("Epoch milliseconds", Long.valueOf(POST_DATE),
+                ESQueryAnalyzer.parseDate(String.valueOf(POST_DATE), null, 0, false));
+    }
+
+    @Test
+    public void testDigitsAsEpoch()
+    {
+        logger.info("Testing Digits with Epoch Formats");
+        Assert.assertEquals("Epoch milliseconds", Long.valueOf(2009),
+                ESQueryAnalyzer.parseDate("2009", "epoch_millis", 0, false));
+        Assert.assertEquals("Epoch seconds", Long.valueOf(2009000),
+                ESQueryAnalyzer.parseDate("2009", "epoch_second||strict_date_optional_time", 0, false));
+        Assert.assertEquals("Number values", Long.valueOf(POST_DATE),
+                ESQueryAnalyzer.parseDate(POST_DATE / 1000, "epoch_second", 0, false));
+    }
+
+    @Test
+    public void testAmbiguousDigits()
+    {
+        logger.info("Testing Digits a Lenient Format Reads");
+        Assert.assertNull("Lenient years have any length",
+                ESQueryAnalyzer.parseDate("2009", "date_optional_time||epoch_millis", 0, false));
+        Assert.assertNull("No format reads the digits",
+                ESQueryAnalyzer.parseDate("20091115", "strict_date_optional_time", 0, false));
+    }
+
+    @Test
+    public void testDates()
+    {
+        logger.info("Testing Dates and Date Math");
+        Assert.assertEquals("Full date", Long.valueOf(POST_DATE),
+                ESQueryAnalyzer.parseDate("2009-11-15T14:12:12", null, 0, false));
+        Assert.assertEquals("Rounded date math", Long.valueOf(YEAR_2010 - 1),
+                ESQueryAnalyzer.parseDate("2009-11-15||/y", null, 0, true));
+    }
+
+}
@@ -0,0 +1,117 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+package net.wedjaa.elasticparser.query;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Checks that the slices of a query match every hit of the query exactly
+ * once - no cluster is involved, the counts of the histogram are given.
+ */
+public class ESTimeSlicerTest
+{
+
+    private static final String FIELD = "postDate";
+    private static final String QUERY = "{ \"query\": { \"term\": { \"group\": \"utilitarians\" } } }";
+
+    static Logger logger = Logger.getLogger(ESTimeSlicerTest.class);
+
+    @Test
+    public void testSingleBucketWithMissing()
+    {
+        logger.info("Testing Slices of a Single Bucket");
+        // All the dated hits on the same instant, some hits without the field
+        List<ESTimeSlice> slices = new ESTimeSlicer(FIELD, 4).getSlices(26, new long[] { 1258294332000L },
+                new long[] { 20 });
+
+        Assert.assertEquals("A dated slice and a missing one", 2, slices.size());
+        Assert.assertTrue("The dated slice needs the field", slices.get(0).isExisting());
+        Assert.assertEquals("Hits of the dated slice", 20, slices.get(0).getHits());
+        Assert.assertTrue("Hits without the field", slices.get(1).isMissing());
+        Assert.assertEquals("Hits of the missing slice", 6, slices.get(1).getHits());
+
+        JSONObject dated = new JSONObject(slices.get(0).restrict(QUERY, FIELD)).getJSONObject("query")
+                .getJSONObject("bool");
+        Assert.assertEquals("The dated slice excludes the missing hits", FIELD,
+                dated.getJSONObject("filter").getJSONObject("exists").getString("field"));
+        Assert.assertEquals("The query of the dated slice", "utilitarians",
+                dated.getJSONObject("must").getJSONObject("term").getString("group"));
+        JSONObject missing = new JSONObject(slices.get(1).restrict(QUERY, FIELD)).getJSONObject("query")
+                .getJSONObject("bool");
+        Assert.assertEquals("The missing slice excludes the dated hits", FIELD,
+                missing.getJSONObject("must_not").getJSONObject("exists").getString("field"));
+    }
+
+    @Test
+    public void testMostHitsInLastBucket()
+    {
+        logger.info("Testing Slices of a Burst in the Last Bucket");
+        List<ESTimeSlice> slices = new ESTimeSlicer(FIELD, 4).getSlices(105, new long[] { 0, 10, 20 },
+                new long[] { 1, 1, 98 });
+
+        // The first buckets never hold a share of the hits, nothing is cut
+        Assert.assertEquals("A dated slice and a missing one", 2, slices.size());
+        Assert.assertTrue("The dated slice needs the field", slices.get(0).isExisting());
+        Assert.assertEquals("Hits of the dated slice", 100, slices.get(0).getHits());
+        Assert.assertEquals("Hits of the missing slice", 5, slices.get(1).getHits());
+    }
+
+    @Test
+    public void testCutSlices()
+    {
+        logger.info("Testing Cut Slices");
+        List<ESTimeSlice> slices = new ESTimeSlicer(FIELD, 2).getSlices(25, new long[] { 0, 10, 20, 30 },
+                new long[] { 5, 5, 5, 5 });
+
+        Assert.assertEquals("Two dated slices and a missing one", 3, slices.size());
+        long sliced = 0;
+        for (ESTimeSlice slice : slices)
+        {
+            sliced += slice.getHits();
+            Assert.assertFalse("Ranges with a bound don't match the missing hits", slice.isExisting());
+        }
+        Assert.assertEquals("Every hit in a slice", 25, sliced);
+        Assert.assertEquals("Open first slice", Long.MIN_VALUE, slices.get(0).getFrom());
+        Assert.assertEquals("Slices meet", slices.get(0).getTo(), slices.get(1).getFrom());
+        JSONObject range = new JSONObject(slices.get(1).restrict(QUERY, FIELD)).getJSONObject("query")
+                .getJSONObject("bool").getJSONObject("filter").getJSONObject("range").getJSONObject(FIELD);
+        Assert.assertEquals("The last slice starts at the cut", 20L, range.getLong("gte"));
+        Assert.assertFalse("The last slice is open", range.has("lt"));
+    }
+
+    @Test
+    public void testNothingDated()
+    {
+        logger.info("Testing Slices without Dates");
+        List<ESTimeSlice> slices = new ESTimeSlicer(FIELD, 4).getSlices(6, new long[0], new long[0]);
+        Assert.assertEquals("A single slice", 1, slices.size());
+        Assert.assertEquals("The whole query", QUERY, slices.get(0).restrict(QUERY, FIELD));
+    }
+
+}
@@ -0,0 +1,175 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+package net.wedjaa.elasticparser.row;
+
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that the rows built on a shared schema behave like any other map
+ * of the results - the consumers only see a Map.
+ */
+public class ESRowTest
+{
+
+    static Logger logger = Logger.getLogger(ESRowTest.class);
+
+    @Test
+    public void testMapContract()
+    {
+        logger.info("Testing Row Map Contract");
+        ESRowBuilder rowBuilder = new ESRowBuilder(new ESRowSchema());
+        ESRow row = rowBuilder.set("name", "the 1st").set("number", 5L).set("stat", 10.0).build();
+
+        Assert.assertEquals("Size of the row", 3, row.size());
+        Assert.assertFalse("Row with values", row.isEmpty());
+        Assert.assertEquals("Value of a column", "the 1st", row.get("name"));
+        Assert.assertEquals("Value of a column", 5L, row.get("number"));
+        Assert.assertTrue("Column of the row", row.containsKey("stat"));
+        Assert.assertTrue("Value of the row", row.containsValue(10.0));
+        Assert.assertFalse("Column not in the schema", row.containsKey("group"));
+        Assert.assertNull("Column not in the schema", row.get("group"));
+        Assert.assertNull("Key that isn't a column", row.get(42));
+        Assert.assertEquals("Columns in the order of the schema", Arrays.asList("name", "number", "stat"),
+                new ArrayList<String>(row.keySet()));
+        Assert.assertEquals("Values in the order of the schema", Arrays.<Object> asList("the 1st", 5L, 10.0),
+                new ArrayList<Object>(row.values()));
+
+        try
+        {
+            row.put("group", "utilitarians");
+            Assert.fail("Rows are immutable");
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            Assert.assertFalse("Rows are immutable", row.containsKey("group"));
+        }
+        Iterator<Map.Entry<String, Object>> entries = row.entrySet().iterator();
+        entries.next();
+        try
+        {
+            entries.remove();
+            Assert.fail("Rows are immutable");
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            Assert.assertEquals("Rows are immutable", 3, row.size());
+        }
+    }
+
+    @Test
+    public void testEqualsAndHashCode()
+    {
+        logger.info("Testing Row Equality");
+        Map<String, Object> expected = new HashMap<String, Object>();
+        expected.put("name", "the 2nd");
+        expected.put("group", "practicals");
+        expected.put("stat", null);
+
+        ESRowBuilder rowBuilder = new ESRowBuilder(new ESRowSchema());
+        ESRow row = rowBuilder.setAll(expected).build();
+        Assert.assertEquals("Rows equal maps with the same entries", expected, row);
+        Assert.assertEquals("Maps equal rows with the same entries", row, expected);
+        Assert.assertEquals("Rows hash like maps with the same entries", expected.hashCode(), row.hashCode());
+
+        // The same entries, set in another order on a schema of its own
+        ESRow other = new ESRowBuilder(new ESRowSchema()).set("stat", null).set("group", "practicals")
+                .set("name", "the 2nd").build();
+        Assert.assertEquals("Rows with the same entries are equal", row, other);
+        Assert.assertEquals("Rows with the same entries hash the same", row.hashCode(), other.hashCode());
+
+        ESRow different = rowBuilder.set("name", "the 2nd").set("group", "practicals").build();
+        Assert.assertFalse("A missing column makes a different row", row.equals(different));
+        Assert.assertFalse("A missing column makes a different row", different.equals(expected));
+    }
+
+    @Test
+    public void testAbsentAndNullValues()
+    {
+        logger.info("Testing Row Absent and Null Values");
+        ESRowSchema schema = new ESRowSchema();
+        ESRowBuilder rowBuilder = new ESRowBuilder(schema);
+        ESRow first = rowBuilder.set("name", "the 3rd").set("description", null).set("number", 4L).build();
+        ESRow second = rowBuilder.set("number", 7L).build();
+
+        Assert.assertTrue("Null values are in the row", first.containsKey("description"));
+        Assert.assertNull("Null values are in the row", first.get("description"));
+        Assert.assertTrue("Null values are in the row", first.containsValue(null));
+        Assert.assertEquals("Null values count in the size", 3, first.size());
+
+        // The builder doesn't carry the values of a row over to the next
+        Assert.assertEquals("Only the columns set on the row", 1, second.size());
+        Assert.assertFalse("Columns of the schema absent from the row", second.containsKey("name"));
+        Assert.assertFalse("Columns of the schema absent from the row", second.containsKey("description"));
+        Assert.assertFalse("Absent values are not null values", second.containsValue(null));
+        Assert.assertEquals("Absent columns are skipped", Arrays.asList("number"),
+                new ArrayList<String>(second.keySet()));
+        Assert.assertEquals("Value of the later row", 7L, second.get("number"));
+        Assert.assertEquals("Value of the earlier row", 4L, first.get("number"));
+
+        // Columns added to the schema later are absent from earlier rows
+        ESRow third = rowBuilder.set("postDate", "2009-11-15T14:12:12").build();
+        Assert.assertFalse("Columns added after the row was built", first.containsKey("postDate"));
+        Assert.assertEquals("Columns added after the row was built", 3, first.entrySet().size());
+        Assert.assertTrue("Column added to the schema", third.containsKey("postDate"));
+    }
+
+    @Test
+    public void testSharedSchema()
+    {
+        logger.info("Testing Shared Row Schema");
+        ESRowSchema schema = new ESRowSchema();
+        Assert.assertEquals("Positions in the order columns are added", 0, schema.columnIndex("name"));
+        Assert.assertEquals("Positions in the order columns are added", 1, schema.columnIndex("group"));
+        Assert.assertEquals("Positions never change", 0, schema.columnIndex("name"));
+        Assert.assertEquals("Columns not in the schema", -1, schema.indexOf("stat"));
+        Assert.assertEquals("Looking up doesn't add columns", 2, schema.size());
+
+        String name = new String("group");
+        Assert.assertSame("Column names are interned", schema.columnName(1), schema.intern(name));
+
+        List<ESRow> rows = new ArrayList<ESRow>();
+        ESRowBuilder rowBuilder = new ESRowBuilder(schema);
+        for (int idx = 0; idx < 20; idx++)
+        {
+            rows.add(rowBuilder.set("column " + idx, idx).build());
+        }
+        Assert.assertEquals("Columns added by the builder", 22, schema.size());
+        for (int idx = 0; idx < rows.size(); idx++)
+        {
+            Assert.assertSame("Rows share the schema", schema, rows.get(idx).getSchema());
+            Assert.assertEquals("Rows past the initial buffer", idx, rows.get(idx).get("column " + idx));
+            Assert.assertEquals("Rows past the initial buffer", 1, rows.get(idx).size());
+        }
+    }
+
+}
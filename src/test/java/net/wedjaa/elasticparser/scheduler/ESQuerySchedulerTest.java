@@ -0,0 +1,255 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+package net.wedjaa.elasticparser.scheduler;
+
+import org.apache.log4j.Logger;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the admission of queries by the scheduler, with queries that block
+ * until they are let go or throw - no cluster is involved. Every test works
+ * on a scheduler of its own.
+ */
+public class ESQuerySchedulerTest
+{
+
+    private static final String CLUSTER = "scheduled";
+    private static final long WAIT_MILLIS = 10000;
+
+    static Logger logger = Logger.getLogger(ESQuerySchedulerTest.class);
+
+    @Test
+    public void testClusterLimit() throws InterruptedException
+    {
+        logger.info("Testing Cluster Limit");
+        ESQueryScheduler scheduler = new ESQueryScheduler();
+        scheduler.setClusterLimit(CLUSTER, 2);
+        CountDownLatch finish = new CountDownLatch(1);
+        List<Thread> queries = new ArrayList<Thread>();
+        for (int idx = 0; idx < 4; idx++)
+        {
+            queries.add(submit(scheduler, new String[] { "unit" }, ESQueryScheduler.PRIORITY_INTERACTIVE,
+                    blocking(finish, null, null)));
+        }
+
+        awaitQueue(scheduler, 2, 2);
+        Assert.assertEquals("Queries running up to the cluster limit", 2, scheduler.getRunning(CLUSTER));
+        Assert.assertEquals("Queries over the cluster limit wait", 2, scheduler.getWaiting(CLUSTER));
+
+        finish.countDown();
+        join(queries);
+        Assert.assertEquals("All the queries ran", 0, scheduler.getRunning(CLUSTER) + scheduler.getWaiting(CLUSTER));
+    }
+
+    @Test
+    public void testIndexLimit() throws InterruptedException
+    {
+        logger.info("Testing Index Limit");
+        ESQueryScheduler scheduler = new ESQueryScheduler();
+        scheduler.setClusterLimit(CLUSTER, 4);
+        scheduler.setIndexLimit("busy", 1);
+        CountDownLatch finish = new CountDownLatch(1);
+        List<Thread> queries = new ArrayList<Thread>();
+        queries.add(submit(scheduler, new String[] { "busy" }, ESQueryScheduler.PRIORITY_INTERACTIVE,
+                blocking(finish, null, null)));
+        awaitQueue(scheduler, 1, 0);
+        queries.add(submit(scheduler, new String[] { "busy", "other" }, ESQueryScheduler.PRIORITY_INTERACTIVE,
+                blocking(finish, null, null)));
+        awaitQueue(scheduler, 1, 1);
+        queries.add(submit(scheduler, new String[] { "other" }, ESQueryScheduler.PRIORITY_INTERACTIVE,
+                blocking(finish, null, null)));
+
+        // The query on the busy index doesn't hold up the next one
+        awaitQueue(scheduler, 2, 1);
+        Assert.assertEquals("Queries over the index limit wait", 1, scheduler.getWaiting(CLUSTER));
+
+        finish.countDown();
+        join(queries);
+        Assert.assertEquals("All the queries ran", 0, scheduler.getRunning(CLUSTER) + scheduler.getWaiting(CLUSTER));
+    }
+
+    @Test
+    public void testInteractiveFirst() throws InterruptedException
+    {
+        logger.info("Testing Interactive Queries First");
+        List<String> started = runAfterBatch(new ESQueryScheduler(), 0);
+        Assert.assertEquals("Interactive queries go ahead of batch ones", "interactive", started.get(0));
+        Assert.assertEquals("Batch queries run after", "batch", started.get(1));
+    }
+
+    @Test
+    public void testBatchAging() throws InterruptedException
+    {
+        logger.info("Testing Batch Aging");
+        ESQueryScheduler scheduler = new ESQueryScheduler();
+        scheduler.setAgingMillis(50);
+        List<String> started = runAfterBatch(scheduler, 500);
+        Assert.assertEquals("Batch queries waiting longer than the aging go first", "batch", started.get(0));
+        Assert.assertEquals("Interactive queries arriving later run after", "interactive", started.get(1));
+    }
+
+    @Test
+    public void testRejectionBackoff()
+    {
+        logger.info("Testing Rejection Backoff");
+        ESQueryScheduler scheduler = new ESQueryScheduler();
+        scheduler.setClusterLimit(CLUSTER, 4);
+        final AtomicInteger runs = new AtomicInteger();
+        ESQueryTiming timing = scheduler.execute(CLUSTER, new String[] { "unit" },
+                ESQueryScheduler.PRIORITY_INTERACTIVE, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (runs.incrementAndGet() == 1)
+                        {
+                            throw new EsRejectedExecutionException("rejected execution of search");
+                        }
+                    }
+                });
+
+        Assert.assertEquals("Rejected query sent again", 2, runs.get());
+        Assert.assertEquals("Attempts of the query", 2, timing.getAttempts());
+        Assert.assertEquals("Rejections counted", 1, scheduler.getRejections(CLUSTER));
+        // Halved to 2, then grown back by half a query
+        Assert.assertEquals("Cluster limit halved on rejection", 2, scheduler.getCurrentLimit(CLUSTER));
+
+        try
+        {
+            scheduler.execute(CLUSTER, null, ESQueryScheduler.PRIORITY_BATCH, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    runs.incrementAndGet();
+                    throw new IllegalStateException("broken query");
+                }
+            });
+            Assert.fail("Failures that aren't rejections are passed on");
+        }
+        catch (IllegalStateException ex)
+        {
+            Assert.assertEquals("Failures that aren't rejections are not retried", 3, runs.get());
+        }
+        Assert.assertEquals("Failures that aren't rejections are not counted", 1, scheduler.getRejections(CLUSTER));
+        Assert.assertEquals("Failed queries release their turn", 0, scheduler.getRunning(CLUSTER));
+    }
+
+    /**
+     * Queues a batch query and then, after a pause, an interactive one
+     * behind a query that holds the only slot of the cluster.
+     *
+     * @return the queries, in the order they started.
+     */
+    private List<String> runAfterBatch(ESQueryScheduler scheduler, long pauseMillis) throws InterruptedException
+    {
+        scheduler.setClusterLimit(CLUSTER, 1);
+        CountDownLatch finish = new CountDownLatch(1);
+        CountDownLatch none = new CountDownLatch(0);
+        List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> queries = new ArrayList<Thread>();
+        queries.add(submit(scheduler, null, ESQueryScheduler.PRIORITY_INTERACTIVE, blocking(finish, null, null)));
+        awaitQueue(scheduler, 1, 0);
+        queries.add(submit(scheduler, null, ESQueryScheduler.PRIORITY_BATCH, blocking(none, started, "batch")));
+        awaitQueue(scheduler, 1, 1);
+        Thread.sleep(pauseMillis);
+        queries.add(submit(scheduler, null, ESQueryScheduler.PRIORITY_INTERACTIVE,
+                blocking(none, started, "interactive")));
+        awaitQueue(scheduler, 1, 2);
+
+        finish.countDown();
+        join(queries);
+        Assert.assertEquals("All the queued queries ran", 2, started.size());
+        return started;
+    }
+
+    private static Runnable blocking(final CountDownLatch finish, final List<String> started, final String name)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (started != null)
+                {
+                    started.add(name);
+                }
+                try
+                {
+                    finish.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static Thread submit(final ESQueryScheduler scheduler, final String[] indexes, final int priority,
+            final Runnable query)
+    {
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                scheduler.execute(CLUSTER, indexes, priority, query);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitQueue(ESQueryScheduler scheduler, int running, int waiting) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (scheduler.getRunning(CLUSTER) != running || scheduler.getWaiting(CLUSTER) != waiting)
+        {
+            Assert.assertTrue("Expected " + running + " queries running and " + waiting + " waiting, found "
+                    + scheduler.getRunning(CLUSTER) + " and " + scheduler.getWaiting(CLUSTER),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void join(List<Thread> queries) throws InterruptedException
+    {
+        for (Thread query : queries)
+        {
+            query.join(WAIT_MILLIS);
+            Assert.assertFalse("Query finished", query.isAlive());
+        }
+    }
+
+}
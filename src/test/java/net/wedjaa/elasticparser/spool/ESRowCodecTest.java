@@ -0,0 +1,122 @@
+/****
+ *
+ * Copyright 2013-2016 Wedjaa <http://www.wedjaa.net/>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ *
+ */
+
+/**
+ * @author Fabio Torchetti
+ *
+ */
+
+package net.wedjaa.elasticparser.spool;
+
+import net.wedjaa.elasticparser.row.ESRowSchema;
+
+import org.apache.log4j.Logger;
+import org.elasticsearch.common.text.StringText;
+import org.elasticsearch.common.text.Text;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checks that the rows read back from their encoding have the values -
+ * and the classes of the values - they were written with.
+ */
+public class ESRowCodecTest
+{
+
+    static Logger logger = Logger.getLogger(ESRowCodecTest.class);
+
+    @Test
+    public void testRoundTrip()
+    {
+        logger.info("Testing Row Codec Round Trip");
+        Map<String, Object> nested = new LinkedHashMap<String, Object>();
+        nested.put("count", 20);
+        nested.put("tags", Arrays.<Object> asList("one", 2L, null));
+
+        Map<String, Object> row = new LinkedHashMap<String, Object>();
+        row.put("name", "the 1st");
+        row.put("long", -5L);
+        row.put("double", 10.5);
+        row.put("float", 1.5f);
+        row.put("short", (short) -3);
+        row.put("byte", (byte) 7);
+        row.put("flag", true);
+        row.put("date", new Date(1258294332000L));
+        row.put("key", new DateTime(1258243200000L, DateTimeZone.forID("Europe/Rome")));
+        row.put("big", new BigInteger("123456789012345678901234567890"));
+        row.put("decimal", new BigDecimal("-1234567890.0987654321"));
+        row.put("nested", nested);
+        row.put("missing", null);
+
+        ESRowCodec codec = new ESRowCodec(new ESRowSchema());
+        Map<String, Object> decoded = codec.decode(codec.encode(row));
+
+        Assert.assertEquals("Decoded row", row, decoded);
+        for (Map.Entry<String, Object> column : row.entrySet())
+        {
+            if (column.getValue() != null)
+            {
+                Assert.assertEquals("Class of " + column.getKey(), column.getValue().getClass(),
+                        decoded.get(column.getKey()).getClass());
+            }
+        }
+        Assert.assertEquals("Time zone of the date", "Europe/Rome",
+                ((DateTime) decoded.get("key")).getZone().getID());
+    }
+
+    @Test
+    public void testText()
+    {
+        logger.info("Testing Row Codec Text Values");
+        Map<String, Object> row = new LinkedHashMap<String, Object>();
+        row.put("highlight", new StringText("<em>utilitarians</em>"));
+
+        ESRowCodec codec = new ESRowCodec(new ESRowSchema());
+        Object decoded = codec.decode(codec.encode(row)).get("highlight");
+        Assert.assertTrue("Text stays text", decoded instanceof Text);
+        Assert.assertEquals("Value of the text", "<em>utilitarians</em>", ((Text) decoded).string());
+    }
+
+    @Test
+    public void testUnknownType()
+    {
+        logger.info("Testing Row Codec Unknown Types");
+        Map<String, Object> row = new LinkedHashMap<String, Object>();
+        row.put("thread", new Object());
+
+        try
+        {
+            new ESRowCodec(new ESRowSchema()).encode(row);
+            Assert.fail("Values without an encoding are refused");
+        }
+        catch (IllegalArgumentException ex)
+        {
+            Assert.assertTrue("The type is named", ex.getMessage().contains("java.lang.Object"));
+        }
+    }
+
+}